@@ -53,11 +53,17 @@ public class Appia {
   protected Vector<EventScheduler> eventSchedulers=new Vector<EventScheduler>();
   protected TimerManager timerManager=null;
   protected Thread thread = null;
-  protected int nEvents=0;
   private ThreadFactory threadFactory;  
+  private ThreadFactory ioThreadFactory = null;
   private boolean running = true;
   private String managementMBeanID;
   
+  private boolean multiThreaded = false;
+  private int schedulerThreads = 0;
+  private SchedulerWorker mainWorker = new SchedulerWorker();
+  private Vector<SchedulerWorker> workers = new Vector<SchedulerWorker>();
+  private int nextWorker = 0;
+  
   /**
    * Default constructor.
    * <br>
@@ -92,83 +98,146 @@ public class Appia {
   }
 
   public void instanceInsertEventScheduler(EventScheduler eventScheduler) {
-    if ( ! eventSchedulers.contains(eventScheduler) )
+    synchronized (this) {
+      if ( eventSchedulers.contains(eventScheduler) )
+        return;
       eventSchedulers.addElement(eventScheduler);
+      // schedulers registered after the start are given a worker right away
+      if ( multiThreaded && (thread != null) )
+        assignWorker(eventScheduler);
+      else {
+        eventScheduler.setWorker(mainWorker);
+        mainWorker.addEventScheduler(eventScheduler);
+      }
+    }
   }
 
   public void instanceRemoveEventScheduler(EventScheduler eventScheduler) {
     eventSchedulers.removeElement(eventScheduler);
+    final SchedulerWorker worker=eventScheduler.getWorker();
+    if (worker != null)
+      worker.removeEventScheduler(eventScheduler);
   }
 
   public void instanceInsertListenRequest(ExternalEvent descriptor) {}
   
   public void instanceRemoveListenRequest(ExternalEvent descriptor) {}
 
-  public synchronized void instanceInsertedEvent() {
-      notify();
-      nEvents++;
+  /**
+   * Wakes up the threads executing the {@link net.sf.appia.core.EventScheduler EventSchedulers}.
+   * <br>
+   * {@link net.sf.appia.core.EventScheduler#insert(Event)} signals the thread of
+   * the scheduler directly, so this is only needed by schedulers that do not.
+   */
+  public void instanceInsertedEvent() {
+      mainWorker.insertedEvent();
+      for (int i=0 ; i < workers.size() ; i++)
+        workers.elementAt(i).insertedEvent();
   }
   
   public Thread instanceGetAppiaThread() {
     return thread;
   }
 
-  public void instanceRun() {
-    // Starting associated TimerManager
-    timerManager.start();
+  /**
+   * Selects the multi-threaded execution mode.
+   * <br>
+   * In this mode each {@link net.sf.appia.core.EventScheduler EventScheduler} is
+   * executed by a dedicated thread, instead of all being multiplexed on the
+   * <i>Appia</i> thread. Channels that share sessions also share the
+   * {@link net.sf.appia.core.EventScheduler EventScheduler} and therefore the thread.
+   * <br>
+   * <b>It must be called before {@link #instanceRun()}.</b>
+   *
+   * @param multiThreaded true to use a thread per scheduler (or group of schedulers)
+   * @see #instanceSetSchedulerThreads(int)
+   */
+  public synchronized void instanceSetMultiThreaded(boolean multiThreaded) {
+    if (thread != null)
+      throw new AppiaError("Appia execution mode must be set before Appia starts running");
+    this.multiThreaded=multiThreaded;
+  }
 
-    //some final initializations
-    int i;
-    thread = Thread.currentThread();
-    for (i=0 ; i < eventSchedulers.size() ; i++) {
-      final EventScheduler es=eventSchedulers.elementAt(i);
-      es.start();
+  public synchronized boolean instanceIsMultiThreaded() {
+    return multiThreaded;
+  }
+
+  /**
+   * Sets the maximum number of threads used to run the
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} in multi-threaded mode.
+   * <br>
+   * When there are more schedulers than threads, the schedulers are grouped in
+   * the existing threads, in a round-robin fashion.
+   *
+   * @param n the maximum number of threads. 0 (the default) means one thread per scheduler.
+   */
+  public synchronized void instanceSetSchedulerThreads(int n) {
+    if (n < 0)
+      throw new IllegalArgumentException("Number of scheduler threads must be positive or 0");
+    schedulerThreads=n;
+  }
+
+  public synchronized int instanceGetSchedulerThreads() {
+    return schedulerThreads;
+  }
+
+  private void assignWorker(EventScheduler eventScheduler) {
+    mainWorker.removeEventScheduler(eventScheduler);
+    SchedulerWorker worker;
+    if ( (schedulerThreads == 0) || (workers.size() < schedulerThreads) ) {
+      worker=new SchedulerWorker();
+      final Thread t=threadFactory.newThread(worker);
+      t.setName("Appia Scheduler Thread "+workers.size());
+      worker.setThread(t);
+      workers.addElement(worker);
+      eventScheduler.setWorker(worker);
+      worker.addEventScheduler(eventScheduler);
+      t.start();
+    } else {
+      worker=workers.elementAt(nextWorker);
+      nextWorker=(nextWorker+1) % workers.size();
+      eventScheduler.setWorker(worker);
+      worker.addEventScheduler(eventScheduler);
     }
-    
-    i=0;
-    boolean consumedEvent;
-    EventScheduler es;
-    
-    while (true) {	
-      try {
-        es=eventSchedulers.elementAt(i);
-      } catch (ArrayIndexOutOfBoundsException e) {
-        es=null;
-      }
-      
-      if ( es != null )
-        consumedEvent=es.consumeEvent();
-      else
-        consumedEvent=false;
+  }
+
+  private void instanceRunMultiThreaded() {
+    synchronized (this) {
+      for (int i=0 ; i < eventSchedulers.size() ; i++)
+        assignWorker(eventSchedulers.elementAt(i));
       
-      synchronized (this) {
-    	  if ( consumedEvent )
-    		  nEvents--;
-    	  
-    	  while ( running && nEvents == 0 ) {
-    		  try {
-    			  wait();
-    		  } catch (InterruptedException e) {}
-    	  }        
-        
-    	if(!running)
-    		break;    		
+      while (running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {}
       }
       
-      i++;
-      if ( i >= eventSchedulers.size() ) {
-        i=0;
-        //so other threads can run
-        // Thread.yield();
-      }
+      for (int i=0 ; i < workers.size() ; i++)
+        workers.elementAt(i).stop();
     }
+  }
 
+  public void instanceRun() {
+    // Starting associated TimerManager
+    timerManager.start();
+
+    //some final initializations
+    synchronized (this) {
+      thread = Thread.currentThread();
+      mainWorker.setThread(thread);
+    }
+    if (multiThreaded)
+      instanceRunMultiThreaded();
+    else
+      mainWorker.run();
   }
 
   public void instanceStop() {
       synchronized (this) {
       	running = false;
       	timerManager.stop();
+      	mainWorker.stop();
+      	notifyAll();
 //      	instanceGetAppiaThread().interrupt();
   	}
   }
@@ -252,16 +321,54 @@ public class Appia {
    * Method used by any {@link net.sf.appia.core.EventScheduler EventScheduler} to signal
    * that a new {@link net.sf.appia.core.Event Event} has been inserted.
    * <br>
-   * The <i>Appia</i> keeps track of how many events exist in all the
-   * {@link net.sf.appia.core.EventScheduler EventSchedulers}, and if none exist it simply
-   * waits idle.
+   * When none of the {@link net.sf.appia.core.EventScheduler EventSchedulers} have
+   * events the <i>Appia</i> thread simply waits idle, and this wakes it up.
    */
   public static void insertedEvent() {
     appia.instanceInsertedEvent();
   }
   
+  /**
+   * Selects the multi-threaded execution mode.
+   * <br>
+   * <b>It must be called before {@link #run()}.</b>
+   *
+   * @param multiThreaded true to run each {@link net.sf.appia.core.EventScheduler EventScheduler}
+   * on a dedicated thread
+   * @see #instanceSetMultiThreaded(boolean)
+   */
+  public static void setMultiThreaded(boolean multiThreaded) {
+    appia.instanceSetMultiThreaded(multiThreaded);
+  }
+  
+  /**
+   * Sets the maximum number of threads used to run the
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} in multi-threaded mode.
+   *
+   * @param n the maximum number of threads. 0 means one thread per scheduler.
+   * @see #instanceSetSchedulerThreads(int)
+   */
+  public static void setSchedulerThreads(int n) {
+    appia.instanceSetSchedulerThreads(n);
+  }
+  
+  /**
+   * Sets the ThreadFactory of the I/O threads of the protocols in the default Appia instance.
+   * <br>
+   * <b>It must be called before the channels are created.</b>
+   *
+   * @param thf the new ThreadFactory
+   * @see #setIOThreadFactory(ThreadFactory)
+   */
+  public static void setDefaultIOThreadFactory(ThreadFactory thf) {
+    appia.setIOThreadFactory(thf);
+  }
+  
   /**
    * Gets the Thread where Appia is running.
+   * <br>
+   * In multi-threaded mode events are not executed by this thread. Use
+   * {@link net.sf.appia.core.EventScheduler#getOwnerThread()} instead.
    * @return Thread
    */
   public static Thread getAppiaThread() {
@@ -279,6 +386,30 @@ public class Appia {
       this.timerManager=new TimerManager(thf);
       this.timerManager.start();
   }
+
+  /**
+   * Gets the ThreadFactory of the I/O threads of the protocols, such as the readers
+   * and senders of the transport protocols.
+   * By default, it is the ThreadFactory of Appia.
+   *
+   * @return the ThreadFactory of the I/O threads
+   */
+  public synchronized ThreadFactory getIOThreadFactory() {
+      return (ioThreadFactory == null) ? threadFactory : ioThreadFactory;
+  }
+
+  /**
+   * Sets the ThreadFactory of the I/O threads of the protocols.
+   * <br>
+   * Unlike {@link #setThreadFactory(ThreadFactory)}, the TimerManager and the threads
+   * that run the schedulers are not changed.
+   * <b>It must be called before the channels are created.</b>
+   *
+   * @param thf the new ThreadFactory, or null to use the ThreadFactory of Appia
+   */
+  public synchronized void setIOThreadFactory(ThreadFactory thf) {
+      ioThreadFactory = thf;
+  }
   
   public void setManagementMBeanID(String id){
       managementMBeanID = id;
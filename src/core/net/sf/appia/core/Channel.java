@@ -20,9 +20,12 @@
  
 package net.sf.appia.core;
 
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ThreadFactory;
 
+import net.sf.appia.core.events.EventPool;
+import net.sf.appia.core.events.SendableEvent;
 import net.sf.appia.core.events.channel.ChannelClose;
 import net.sf.appia.core.events.channel.ChannelInit;
 import net.sf.appia.core.events.channel.Debug;
@@ -78,12 +81,13 @@ public class Channel {
     
   String channelID;
   private QoS qos;
-  private Hashtable eventsRoutes=null;
+  /* indexed as the routes of the QoS. It is replaced, never changed */
+  private volatile ChannelEventRoute[] eventsRoutes=null;
   
   private EventScheduler eventScheduler;
   private TimerManager timerManager;
   
-  private boolean alive=false;
+  private volatile boolean alive=false;
   private boolean started=false;
   
   private MemoryManager memoryManager=null;
@@ -93,6 +97,9 @@ public class Channel {
   // Factories
   private MessageFactory messageFactory = new DefaultMessageFactory();
   private ThreadFactory threadFactory = new AppiaThreadFactory();
+  private ThreadFactory ioThreadFactory = threadFactory;
+  /* replaced when a pool is added or removed, because it is read by the transport threads */
+  private volatile HashMap<Class<?>,EventPool<?>> eventPools = new HashMap<Class<?>,EventPool<?>>();
   
   /**
    * The {@link net.sf.appia.core.Session Sessions} stack.
@@ -116,6 +123,7 @@ public class Channel {
     sessions=new Session[qos.getLayers().length];
     timerManager=(eventScheduler.getAppiaInstance()).instanceGetTimerManager();
     threadFactory = eventScheduler.getAppiaInstance().getThreadFactory();
+    ioThreadFactory = eventScheduler.getAppiaInstance().getIOThreadFactory();
     this.jmxConfiguration = jmxConfig;
   }
   
@@ -138,6 +146,7 @@ public class Channel {
     sessions=new Session[qos.getLayers().length];
     timerManager=eventScheduler.getAppiaInstance().instanceGetTimerManager();
     threadFactory = eventScheduler.getAppiaInstance().getThreadFactory();
+    ioThreadFactory = eventScheduler.getAppiaInstance().getIOThreadFactory();
     this.memoryManager = memoryManager;
     this.jmxConfiguration = jmxConfig;
   }
@@ -171,6 +180,16 @@ public class Channel {
       return threadFactory;
   }
 
+  /**
+   * Gets the ThreadFactory of the I/O threads of the protocols, such as the readers
+   * and senders of the transport protocols.
+   *
+   * @see Appia#getIOThreadFactory()
+   */
+  public ThreadFactory getIOThreadFactory(){
+      return ioThreadFactory;
+  }
+
   public MessageFactory getMessageFactory(){
       return messageFactory;
   }
@@ -179,6 +198,46 @@ public class Channel {
       this.messageFactory = messageFactory;
   }
 
+  /**
+   * Adds a pool for the events of the given class. The transport protocols take
+   * from it the events of this Channel received from the network.
+   * <br>
+   * Pooling is only safe if no session keeps these events after releasing them.
+   * The pool uses the current {@link MessageFactory}, so it must be added after
+   * the factory is set.
+   *
+   * @param type the class of the events
+   * @param capacity the maximum number of events kept by the pool
+   * @return the new pool
+   * @see EventPool
+   */
+  public synchronized <E extends SendableEvent> EventPool<E> addEventPool(Class<E> type, int capacity) {
+      final EventPool<E> pool = new EventPool<E>(type, messageFactory, capacity);
+      final HashMap<Class<?>,EventPool<?>> pools = new HashMap<Class<?>,EventPool<?>>(eventPools);
+      pools.put(type, pool);
+      eventPools = pools;
+      return pool;
+  }
+
+  /**
+   * Removes the pool of the events of the given class.
+   */
+  public synchronized void removeEventPool(Class<? extends SendableEvent> type) {
+      final HashMap<Class<?>,EventPool<?>> pools = new HashMap<Class<?>,EventPool<?>>(eventPools);
+      pools.remove(type);
+      eventPools = pools;
+  }
+
+  /**
+   * Gets the pool of the events of the given class.
+   *
+   * @return the pool, or null if the events of the class are not pooled
+   */
+  @SuppressWarnings("unchecked")
+  public <E extends SendableEvent> EventPool<E> getEventPool(Class<E> type) {
+      return (EventPool<E>) eventPools.get(type);
+  }
+
   /**
    * Get the Channel ID
    * @return the Channel ID
@@ -205,29 +264,17 @@ public class Channel {
    * {@link net.sf.appia.core.AppiaEventException#UNWANTEDEVENT UNWANTEDEVENT}
    */
   public ChannelEventRoute getEventRoute(Event event) throws AppiaEventException {
-    if (eventsRoutes == null)
+    final ChannelEventRoute[] routes=eventsRoutes;
+    if (routes == null)
       throw new AppiaEventException(AppiaEventException.CLOSEDCHANNEL,"Channel Not Started");
     
-    ChannelEventRoute channelRoute=(ChannelEventRoute)eventsRoutes.get(event.getClass());
+    //the route of the event, or of its nearest declared superclass
+    final int index=qos.getRouteIndex(event.getClass());
     
-    if (channelRoute==null) {
-      
-      //verifies if there is a route for a superclass of
-      //the event received
-      for ( Class c = event.getClass().getSuperclass() ;
-      (c != null) && (channelRoute == null) ;
-      c = c.getSuperclass() ) {
-        channelRoute = (ChannelEventRoute)eventsRoutes.get(c);
-      }
-      
-      if ( channelRoute != null ) {
-        eventsRoutes.put(event.getClass(),channelRoute);
-      } else {
-        throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT,"Unwanted Event '"+event.getClass().getName()
-                +"' on Channel '"+this.channelID+"'.");
-      }
-    }
-    return channelRoute;
+    if ((index < 0) || (index >= routes.length))
+      throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT,"Unwanted Event '"+event.getClass().getName()
+              +"' on Channel '"+this.channelID+"'.");
+    return routes[index];
   }
   
   /**
@@ -377,7 +424,7 @@ public class Channel {
     makeEventsRoutes();
     
     try {
-      if (Thread.currentThread() == eventScheduler.getAppiaInstance().instanceGetAppiaThread())
+      if (Thread.currentThread() == eventScheduler.getOwnerThread())
     	(new ChannelInit(this)).go();
       else
         (new ChannelInit()).asyncGo(this,Direction.UP);
@@ -415,7 +462,7 @@ public class Channel {
     	}
       if (alive) {
         try {
-          if (Thread.currentThread() == eventScheduler.getAppiaInstance().instanceGetAppiaThread())
+          if (Thread.currentThread() == eventScheduler.getOwnerThread())
         	(new ChannelClose(this)).go();
           else
             (new ChannelClose()).asyncGo(this,Direction.DOWN);
@@ -447,23 +494,61 @@ public class Channel {
    * if the Channel is closed
    */
   protected void insertEvent(Event event) throws AppiaEventException {
-    synchronized (this) {
-      if (!alive && !(event instanceof ChannelInit)) {
-        if (started) {
-          while (!alive) {
-            try {
-              this.wait();
-            } catch (InterruptedException e) {
-              //e.printStackTrace();
+    // only takes the lock while the channel is not alive
+    if (!alive) {
+      synchronized (this) {
+        if (!alive && !(event instanceof ChannelInit)) {
+          if (started) {
+            while (!alive) {
+              try {
+                this.wait();
+              } catch (InterruptedException e) {
+                //e.printStackTrace();
+              }
             }
+          } else {
+            throw new AppiaEventException(AppiaEventException.CLOSEDCHANNEL,"Channel is Closed");
           }
-        } else {
+        }
+      }
+    }
+    
+    eventScheduler.insert(event);
+  }
+  
+  /**
+   * Inserts an {@link net.sf.appia.core.Event Event} in the Channel, without waiting
+   * for the Channel to start.
+   *
+   * @return false if the Channel is starting, and the event was not inserted
+   * @throws AppiaEventException as in {@link #insertEvent(Event)}
+   */
+  boolean tryInsertEvent(Event event) throws AppiaEventException {
+    if (!alive) {
+      synchronized (this) {
+        if (!alive && !(event instanceof ChannelInit)) {
+          if (started)
+            return false;
           throw new AppiaEventException(AppiaEventException.CLOSEDCHANNEL,"Channel is Closed");
         }
       }
     }
     
     eventScheduler.insert(event);
+    return true;
+  }
+  
+  /**
+   * Inserts a batch of initialized events coming from outside the <i>Appia</i> thread.
+   * Used by the timer managers to deliver all the expired timers of the Channel at once.
+   *
+   * @return false if the Channel is not alive, and the events were discarded
+   */
+  boolean insertEvents(List<? extends Event> events) {
+    if (!alive)
+      return false;
+    eventScheduler.insertWaiting(events);
+    return true;
   }
   
   private void createUnboundedSessions() {
@@ -478,11 +563,12 @@ public class Channel {
   
   private void makeEventsRoutes() {
     final QoSEventRoute[] qosRoutes=qos.getEventsRoutes();
-    eventsRoutes=new Hashtable();
+    final ChannelEventRoute[] routes=new ChannelEventRoute[qosRoutes.length];
     
     for (int i=0 ; i < qosRoutes.length ; i++) {
-      eventsRoutes.put(qosRoutes[i].getEventType(),qosRoutes[i].makeChannelRoute(this));
+      routes[i]=qosRoutes[i].makeChannelRoute(this);
     }
+    eventsRoutes=routes;
   }
   
   
@@ -515,7 +601,8 @@ public class Channel {
     
     // ChannelClose
     if ( event instanceof ChannelClose ) {
-      eventsRoutes.clear();
+      // no event is accepted after the channel is closed
+      eventsRoutes=new ChannelEventRoute[0];
       return;
     }
     
@@ -45,6 +45,7 @@ public class ChannelEventRoute {
 
   private boolean[] waypoints;
   private Session[] route;
+  private Session[] declaring;
 
   /**
    * Creates a <i>ChannelEventRoute</i> for the {@link net.sf.appia.core.Channel Channel},
@@ -76,6 +77,37 @@ public class ChannelEventRoute {
          j++;
       }
     }
+    
+    final boolean[] providers=this.qosRoute.providers;
+    for (size=0,i=0 ; i < sessions.length ; i++) {
+      if (waypoints[i] || providers[i])
+         size++;
+    }
+    
+    declaring=new Session[size];
+    
+    for (i=0,j=0 ; i < sessions.length ; i++) {
+      if (waypoints[i] || providers[i]) {
+         declaring[j]=sessions[i];
+         j++;
+      }
+    }
+  }
+  
+  /**
+   * Checks if the {@link net.sf.appia.core.Layer Layer} of a
+   * {@link net.sf.appia.core.Session Session} declares the
+   * {@link net.sf.appia.core.Event Event}, as provided or as accepted.
+   *
+   * @param session the {@link net.sf.appia.core.Session Session}
+   * @return true if the layer of the session declares the event in this channel
+   */
+  public boolean isDeclaredBy(Session session) {
+    for (int i=0 ; i < declaring.length ; i++) {
+      if (declaring[i] == session)
+        return true;
+    }
+    return false;
   }
 
   /**
@@ -32,7 +32,6 @@
 
 import java.io.PrintStream;
 import java.security.InvalidParameterException;
-import java.util.Arrays;
 
 import net.sf.appia.core.events.SendableEvent;
 import net.sf.appia.core.events.channel.ChannelEvent;
@@ -67,6 +66,8 @@ public class Event {
   
   private boolean isInitiated = false;
   private boolean sourceSet = false;
+  /* the layer of the source declares the event, computed by init() */
+  private boolean declared = false;
   
   private Thread appiaThread=null;
   
@@ -224,14 +225,12 @@ public class Event {
       if ((currentSession == route.length) && (this instanceof ChannelEvent))
         channel.handle(this);
       // added by Nuno on 7/03/2003
-      /* if this event ended the route and is a SendableEvent, we can detach the memory 
-       * TODO: maybe this is not needed, but we have to ensure that all sessions 
-       * invoke Message.discardAll() when they are discarding a message with contents,
-       * in order to free all resources from the memory manager.
+      /* if this event ended the route and is a SendableEvent, it is released:
+       * the memory is detached and the arrays of pooled messages are returned
+       * to the pool. The sessions that discard events must release them.
        */
-      if ((currentSession == route.length)	&& (this instanceof SendableEvent)) {
-        ((SendableEvent) this).detachFromMemory();
-      }
+      if ((currentSession == route.length)	&& (this instanceof SendableEvent))
+        ((SendableEvent) this).release();
       return null;
     }
   }
@@ -257,6 +256,8 @@ public class Event {
    * @throws AppiaEventException
    */
   public final void go() throws AppiaEventException {
+    if (this instanceof SendableEvent)
+      ((SendableEvent) this).checkNotReleased();
     if (!isInitiated)
       throw new AppiaEventException(
       AppiaEventException.NOTINITIALIZED,
@@ -266,30 +267,50 @@ public class Event {
     
     // TODO: does this have any effect on performance ???
     // If so it can be commented.
-    if (appiaThread == null)
-      appiaThread=eventScheduler.getAppiaInstance().instanceGetAppiaThread();
+    if (Thread.currentThread() != appiaThread)
+      // the owner thread may only be known after the event was initialized
+      appiaThread=eventScheduler.getOwnerThread();
     if (Thread.currentThread() != appiaThread)
       throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"go\" called from outside the Appia thread");
     
     eventScheduler.insert(this);
   }
 
-  private void validateDeclaredEvent() throws AppiaEventException {
-    if (getSourceSession() == null || this.getClass().equals(ChannelInit.class)) return;
-    
-    if (dir == Direction.UP) {
-        if (!hasDeclaredEvent(getSourceSession().getLayer().getProvidedEvents(), this.getClass()))
-            throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT, 
-                    String.format("Provided event %s not declared in %s", this.getClass().getSimpleName(), getSourceSession().getLayer().getClass().getSimpleName()));
-    } else if (dir == Direction.DOWN) {
-        if (hasDeclaredEvent(getSourceSession().getLayer().getAcceptedEvents(), this.getClass()))
-            throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT, 
-                    String.format("Provided event %s not declared in %s", this.getClass().getSimpleName(), getSourceSession().getLayer().getClass().getSimpleName()));
-    }
+  /**
+   * Sends the Event to the next Session, as {@link #go()}, but only when the
+   * {@link net.sf.appia.core.EventScheduler EventScheduler} of the Channel has no other
+   * events to consume.
+   * <br>
+   * It allows a Session that holds events, to send them together, to learn that no more
+   * events will arrive soon, without waiting for a timer.
+   *
+   * @throws AppiaEventException as in {@link #go()}
+   */
+  public final void goWhenIdle() throws AppiaEventException {
+    if (!isInitiated)
+      throw new AppiaEventException(
+      AppiaEventException.NOTINITIALIZED,
+      "Event not initialized");
+
+    validateDeclaredEvent();
+
+    if (Thread.currentThread() != appiaThread)
+      appiaThread=eventScheduler.getOwnerThread();
+    if (Thread.currentThread() != appiaThread)
+      throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"goWhenIdle\" called from outside the Appia thread");
+
+    eventScheduler.insertWhenIdle(this);
   }
 
-  private boolean hasDeclaredEvent(Class<?>[] events, Class<?> event) {
-    return events != null && Arrays.asList(events).contains(event);
+  /**
+   * The layer of the source session must declare the event, or one of its superclasses,
+   * as provided, or as accepted when it sends back an event it received (as the replies
+   * to RegisterSocketEvent), in either direction.
+   */
+  private void validateDeclaredEvent() throws AppiaEventException {
+    if (!declared)
+        throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT, 
+                String.format("Provided event %s not declared in %s", this.getClass().getSimpleName(), getSourceSession().getLayer().getClass().getSimpleName()));
   }
   
   /**
@@ -317,13 +338,36 @@ public class Event {
     
     firstSession = channel.getFirstSession(channelRoute, dir, src);
     currentSession = -1;
+    declared = (src == null) || (getClass() == ChannelInit.class) || channelRoute.isDeclaredBy(src);
     
     eventScheduler = channel.getEventScheduler();
-    appiaThread=eventScheduler.getAppiaInstance().instanceGetAppiaThread();
+    appiaThread=eventScheduler.getOwnerThread();
     
     isInitiated = true;
   }
   
+  /**
+   * Clears the attributes of the Event, leaving it as if it was created with the
+   * empty constructor, so that it can be reused by an
+   * {@link net.sf.appia.core.events.EventPool EventPool}.
+   * <br>
+   * Pooled events with other attributes must redefine it, calling this method.
+   */
+  protected void reset() {
+    currentSession=-1;
+    firstSession=-1;
+    channel=null;
+    eventScheduler=null;
+    src=null;
+    dir=0;
+    route=null;
+    isInitiated=false;
+    sourceSet=false;
+    declared=false;
+    appiaThread=null;
+    schedulerData=null;
+  }
+  
   public void debug(PrintStream out) {
     out.println("Event:");
     out.println(this);
@@ -375,12 +419,7 @@ public class Event {
   public final void asyncGo(Channel channel, int dir)
   throws AppiaEventException {
     
-    this.channel=channel;
-    this.dir=dir;
-    src=null;
-    sourceSet=true;
-    
-    init();
+    asyncInit(channel,dir);
     
     if (Thread.currentThread() == appiaThread)
       throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"asyncGo\" called from within Appia thread");
@@ -401,6 +440,60 @@ public class Event {
     channel.insertEvent(this);
   }
   
+  /**
+   * Tries to insert the Event in the Channel <i>asynchronously</i>, without blocking.
+   * <br>
+   * It behaves as {@link #asyncGo(Channel, int)}, but instead of waiting it returns
+   * false if the memory manager of the Channel is above the threshold of the given
+   * Direction, or if the Channel is still starting. In that case the Event was not
+   * inserted, and it may be given again to this method later, for instance when the
+   * future returned by
+   * {@link net.sf.appia.core.memoryManager.MemoryManager#whenBelowThreshold(int) whenBelowThreshold}
+   * completes.
+   * <br>
+   * Since it never blocks, it can also be called from the Appia thread.
+   *
+   * @param channel the {@link net.sf.appia.core.Channel Channel} of the Event
+   * @param dir the {@link net.sf.appia.core.Direction Direction} of the Event
+   * @return true if the Event was inserted, false otherwise
+   * @throws AppiaEventException
+   * @see net.sf.appia.core.memoryManager.MemoryManager
+   */
+  public final boolean tryAsyncGo(Channel channel, int dir)
+  throws AppiaEventException {
+    
+    final MemoryManager mm = channel.getMemoryManager();
+    if (AppiaConfig.QUOTA_ON && mm != null && mm.aboveThreshold(dir))
+      return false;
+    
+    asyncInit(channel,dir);
+    if (channel.tryInsertEvent(this))
+      return true;
+    notInserted();
+    return false;
+  }
+  
+  /**
+   * Called when the Event was initialized by {@link #tryAsyncGo(Channel, int)} but not
+   * inserted in the Channel. Events that take resources of the Channel when initialized
+   * must redefine it to give them back, keeping the Event ready to be given again.
+   */
+  protected void notInserted() {
+  }
+  
+  /**
+   * Initializes the Event to be inserted <i>asynchronously</i>, with the Channel
+   * as source, resetting its route.
+   */
+  final void asyncInit(Channel channel, int dir) throws AppiaEventException {
+    this.channel=channel;
+    this.dir=dir;
+    src=null;
+    sourceSet=true;
+    
+    init();
+  }
+  
   private Object schedulerData=null;
 
   /**
@@ -19,6 +19,8 @@
  */
  package net.sf.appia.core;
 
+import java.util.List;
+
 /*
  * Change Log: 
  * 
@@ -42,13 +44,17 @@ public class EventScheduler {
   private Event reverseHead=null;
   private Event reverseTail=null;
   
-  private Event waitingHead=null;
-  private Event waitingTail=null;
+  private final WaitingQueue waiting=new WaitingQueue();
+  
+  private Event idleHead=null;
+  private Event idleTail=null;
   
   private int currentDirection=0;
   private Channel currentChannel=null;
   private Session currentSession=null;
   
+  private volatile SchedulerWorker worker=null;
+  
   public EventScheduler() {
     appia=Appia.appia;
     appia.instanceInsertEventScheduler(this);
@@ -61,7 +67,7 @@ public class EventScheduler {
   
   public void insert(Event event) {
     if (
-        (Thread.currentThread() == appia.instanceGetAppiaThread()) &&
+        (Thread.currentThread() == getOwnerThread()) &&
         (currentSession != null) &&
         (event.getChannel() == currentChannel) &&
         ((event.currentSession() == currentSession) || (event.getSourceSession() == currentSession))
@@ -95,34 +101,42 @@ public class EventScheduler {
         reverseTail=event;
       }
     } else { // inserting on a different channel, etc
-    	synchronized (this) {
-    		event.setSchedulerData(null);
-    		if(waitingTail == null || event.getPriority() <= waitingTail.getPriority()){
-    			if (waitingHead == null)
-    				waitingHead=event;
-    			else {
-    				waitingTail.setSchedulerData(event);
-    			}
-    			waitingTail=event;
-    		}
-    		else if(event.getPriority() > waitingHead.getPriority()){
-    			event.setSchedulerData(waitingHead);
-    			waitingHead = event;    			
-    		} else {
-    			// start in the second
-    			Event previous = waitingHead, current = (Event) waitingHead.getSchedulerData();
-    			//while(current != null && event.getPriority() <= current.getPriority()){
-    			while(event.getPriority() <= current.getPriority()){
-    				previous = current;
-    				current = (Event) current.getSchedulerData();
-    			}
-    			event.setSchedulerData(current);
-    			previous.setSchedulerData(event);
-    		}
-    	}
+      waiting.offer(event);
     }
     
-    appia.instanceInsertedEvent();
+    signal();
+  }
+  
+  /**
+   * Inserts a batch of events from outside the owner thread, signaling it only once.
+   */
+  void insertWaiting(List<? extends Event> events) {
+    for (int i=0 ; i < events.size() ; i++)
+      waiting.offer(events.get(i));
+    signal();
+  }
+  
+  /**
+   * Inserts an event that is only consumed when there are no other events.
+   * <b>It must only be called by the owner thread.</b>
+   *
+   * @see Event#goWhenIdle()
+   */
+  void insertWhenIdle(Event event) {
+    event.setSchedulerData(null);
+    if (idleHead == null)
+      idleHead=event;
+    else
+      idleTail.setSchedulerData(event);
+    idleTail=event;
+  }
+  
+  private void signal() {
+    final SchedulerWorker w=worker;
+    if (w != null)
+      w.insertedEvent();
+    else
+      appia.instanceInsertedEvent();
   }
   
   public boolean consumeEvent() {
@@ -146,15 +160,16 @@ public class EventScheduler {
         reverseHead=null;
         reverseTail=null;
       } else {
-        synchronized (this) {
-          if (waitingHead != null) {
-            event=waitingHead;
-            waitingHead=(Event) waitingHead.getSchedulerData();
-            if (waitingHead == null)
-              waitingTail=null;
-          } else {
+        event=waiting.poll();
+        if (event == null) {
+          // nothing else to do, so the events waiting for it are consumed
+          if (idleHead != null) {
+            event=idleHead;
+            idleHead=(Event) idleHead.getSchedulerData();
+            if (idleHead == null)
+              idleTail=null;
+          } else
             consumed=false;
-          }
         }
       }
     }
@@ -190,6 +205,16 @@ public class EventScheduler {
     return consumed;
   }
     
+  /**
+   * Checks if there are events waiting to be consumed.
+   * <b>It must only be called by the owner thread.</b>
+   *
+   * @return true if there are events to consume
+   */
+  public boolean hasPendingEvents() {
+    return (mainHead != null) || (reverseHead != null) || !waiting.isEmpty() || (idleHead != null);
+  }
+    
   public Session getHandelingSession() {
     return currentSession;
   }
@@ -198,6 +223,28 @@ public class EventScheduler {
     return appia;
   }
 
+  /**
+   * Gets the thread that executes the events of this scheduler.
+   * <br>
+   * It is the <i>Appia</i> thread, or, if <i>Appia</i> is running in
+   * multi-threaded mode, the thread dedicated to this scheduler.
+   *
+   * @return the owner thread, or null if this scheduler is not running yet
+   * @see net.sf.appia.core.Appia#instanceSetMultiThreaded(boolean)
+   */
+  public Thread getOwnerThread() {
+    final SchedulerWorker w=worker;
+    return (w != null) ? w.getThread() : appia.instanceGetAppiaThread();
+  }
+
+  void setWorker(SchedulerWorker worker) {
+    this.worker=worker;
+  }
+
+  SchedulerWorker getWorker() {
+    return worker;
+  }
+
   public void start() {}
   public void stop() {}
   
@@ -34,6 +34,7 @@
 
 package net.sf.appia.core;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -57,6 +58,21 @@ public class QoS {
   protected Class[][] eventsAccepted=null;
   private Class[] eventsProvided=null;
   
+  /* position of the route of each declared event class in eventsRoutes */
+  private HashMap<Class<?>,Integer> routesIndex=null;
+  /* position of the route of any event class, compiled once for each class */
+  private final ClassValue<Integer> eventsIndex=new ClassValue<Integer>() {
+    protected Integer computeValue(Class<?> type) {
+      // the route of the nearest declared superclass
+      for (Class<?> c=type ; c != null ; c=c.getSuperclass()) {
+        final Integer index=routesIndex.get(c);
+        if (index != null)
+          return index;
+      }
+      return -1;
+    }
+  };
+  
   public QoS(String id, Layer[] layers) throws AppiaInvalidQoSException {
     this.layers=layers;
     this.qosID=id;
@@ -90,6 +106,10 @@ public class QoS {
     this.layers=(Layer[])layers.clone();
     makeEventsRoutes();
     
+    routesIndex=new HashMap<Class<?>,Integer>();
+    for (i=0 ; i < eventsRoutes.length ; i++)
+      routesIndex.put(eventsRoutes[i].getEventType(),i);
+    
     
     // Uncomment to print the event routes to a file
     /*
@@ -210,6 +230,18 @@ public class QoS {
     return eventsRoutes;
   }
   
+  /**
+   * Gets the position, in {@link #getEventsRoutes()}, of the route of an event class.
+   * The route of a class that was not declared by any layer is the route of its nearest
+   * declared superclass.
+   *
+   * @param eventType the class of the event
+   * @return the position of the route, or -1 if the event is not accepted nor provided by any layer
+   */
+  public int getRouteIndex(Class<?> eventType) {
+    return eventsIndex.get(eventType).intValue();
+  }
+  
   private boolean hasRequired(Class required) {
     int i;
     
@@ -41,6 +41,8 @@ public class QoSEventRoute {
   //private Layer[] layers;
 
   protected boolean[] waypoints;
+  /* the layers that provide the event, the channel never does */
+  protected boolean[] providers;
 
   public QoSEventRoute(QoS qos, Class eventType) {
     this.eventType=eventType;
@@ -60,6 +62,15 @@ public class QoSEventRoute {
         waypoints[i]=false;
       }
     }
+    
+    providers=new boolean[accepted.length];
+    for (i=0 ; i < this.qos.layers.length ; i++) {
+      final Class[] provided=this.qos.layers[i].getProvidedEvents();
+      if (provided != null) {
+        for (j=0 ; (j < provided.length) && !(provided[j].isAssignableFrom(eventType)) ; j++);
+        providers[i]= (j < provided.length);
+      }
+    }
   }
 
   public Class getEventType() {
@@ -0,0 +1,138 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core;
+
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker that executes a group of {@link net.sf.appia.core.EventScheduler EventSchedulers}
+ * on a dedicated thread.
+ * <br>
+ * The <i>Appia</i> thread runs one worker with all the schedulers. In multi-threaded
+ * mode each worker round-robins over its own schedulers on a dedicated thread,
+ * and becomes the owner thread of those schedulers.
+ * <br>
+ * When no scheduler has events the thread is parked. Producers only unpark it
+ * if it announced it was going to sleep, so inserting an event takes no locks.
+ *
+ * @see net.sf.appia.core.Appia#instanceSetMultiThreaded(boolean)
+ */
+class SchedulerWorker implements Runnable {
+
+  private Vector<EventScheduler> eventSchedulers=new Vector<EventScheduler>();
+  private volatile Thread thread=null;
+  private volatile boolean running=true;
+  private volatile boolean sleeping=false;
+
+  /**
+   * Associates the worker to the given thread.
+   * It must be called before the thread is started.
+   */
+  void setThread(Thread thread) {
+    this.thread=thread;
+  }
+
+  /**
+   * Gets the thread that executes the schedulers of this worker.
+   */
+  Thread getThread() {
+    return thread;
+  }
+
+  void addEventScheduler(EventScheduler eventScheduler) {
+    eventSchedulers.addElement(eventScheduler);
+    insertedEvent();
+  }
+
+  void removeEventScheduler(EventScheduler eventScheduler) {
+    eventSchedulers.removeElement(eventScheduler);
+  }
+
+  int size() {
+    return eventSchedulers.size();
+  }
+
+  /**
+   * Signals that a new event was inserted in one of the schedulers of this worker.
+   * May be called by any thread.
+   */
+  void insertedEvent() {
+    if (sleeping) {
+      sleeping=false;
+      LockSupport.unpark(thread);
+    }
+  }
+
+  void stop() {
+    running=false;
+    final Thread t=thread;
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  private boolean hasPendingEvents() {
+    for (int i=0 ; i < eventSchedulers.size() ; i++) {
+      try {
+        if (eventSchedulers.elementAt(i).hasPendingEvents())
+          return true;
+      } catch (ArrayIndexOutOfBoundsException e) {}
+    }
+    return false;
+  }
+
+  public void run() {
+    int i;
+    for (i=0 ; i < eventSchedulers.size() ; i++)
+      eventSchedulers.elementAt(i).start();
+
+    boolean consumedEvent;
+    EventScheduler es;
+
+    while (running) {
+      // one event per scheduler, on each round
+      consumedEvent=false;
+      for (i=0 ; i < eventSchedulers.size() ; i++) {
+        try {
+          es=eventSchedulers.elementAt(i);
+        } catch (ArrayIndexOutOfBoundsException e) {
+          es=null;
+        }
+        if ( (es != null) && es.consumeEvent() )
+          consumedEvent=true;
+      }
+
+      if ( !consumedEvent ) {
+        // announce the sleep before checking again, so no insertion is missed
+        sleeping=true;
+        if ( !running || hasPendingEvents() ) {
+          sleeping=false;
+          continue;
+        }
+        while ( sleeping && running )
+          LockSupport.park(this);
+      }
+    }
+
+    for (i=0 ; i < eventSchedulers.size() ; i++)
+      eventSchedulers.elementAt(i).stop();
+  }
+}
@@ -172,7 +172,10 @@ public class TimerManager implements Runnable, TimeProvider {
     this.alive=alive;
   }
   
-  private synchronized boolean isAlive() {
+  /**
+   * Checks if the manager thread should keep running.
+   */
+  protected synchronized boolean isAlive() {
     return alive;
   }
   
@@ -243,7 +246,12 @@ public class TimerManager implements Runnable, TimeProvider {
    * @see java.lang.Thread#start
    */  
   public void start() {
-    setAlive(true);
+    synchronized (this) {
+      // it may already have been started by Appia.setTimerManager()
+      if (alive)
+        return;
+      alive=true;
+    }
     thread.start();
   }
   
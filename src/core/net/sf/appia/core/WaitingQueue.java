@@ -0,0 +1,152 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free multi-producer/single-consumer queue of the events inserted in an
+ * {@link net.sf.appia.core.EventScheduler EventScheduler} from other threads.
+ * <br>
+ * There is one band per {@link net.sf.appia.core.Event#getPriority() priority} in use.
+ * Producers push events on the band stack with a single CAS. The consumer grabs
+ * the whole stack at once and reverses it, so events with the same priority
+ * are delivered in insertion order, and higher priorities are delivered first.
+ * <br>
+ * The events are linked through their scheduler data, so no extra nodes are allocated.
+ *
+ * @see net.sf.appia.core.EventScheduler#insert(Event)
+ */
+final class WaitingQueue {
+
+  /**
+   * Events with the same priority.
+   */
+  private static final class Band {
+    final int priority;
+    final AtomicReference<Event> stack=new AtomicReference<Event>();
+    // owned by the consumer
+    Event head=null;
+
+    Band(int priority) {
+      this.priority=priority;
+    }
+
+    void push(Event event) {
+      Event top;
+      do {
+        top=stack.get();
+        event.setSchedulerData(top);
+      } while (!stack.compareAndSet(top,event));
+    }
+
+    Event poll() {
+      if (head == null) {
+        Event e=stack.getAndSet(null);
+        if (e == null)
+          return null;
+        // reverse the stack to get the insertion order
+        Event prev=null;
+        while (e != null) {
+          final Event next=(Event) e.getSchedulerData();
+          e.setSchedulerData(prev);
+          prev=e;
+          e=next;
+        }
+        head=prev;
+      }
+      final Event e=head;
+      head=(Event) e.getSchedulerData();
+      e.setSchedulerData(null);
+      return e;
+    }
+
+    boolean isEmpty() {
+      return (head == null) && (stack.get() == null);
+    }
+  }
+
+  private final AtomicReferenceArray<Band> bandsByPriority=
+    new AtomicReferenceArray<Band>(Event.MAX_PRIORITY-Event.MIN_PRIORITY+1);
+
+  /* Bands in use, sorted by decreasing priority. Copied on write. */
+  private volatile Band[] bands=new Band[0];
+
+  /**
+   * Inserts an event. May be called by any thread.
+   */
+  public void offer(Event event) {
+    final int index=event.getPriority()-Event.MIN_PRIORITY;
+    Band band=bandsByPriority.get(index);
+    if (band == null)
+      band=createBand(index);
+    band.push(event);
+  }
+
+  /**
+   * Removes the next event, or returns null if there is none.
+   * <b>It must only be called by the consumer thread.</b>
+   */
+  public Event poll() {
+    final Band[] b=bands;
+    for (int i=0 ; i < b.length ; i++) {
+      final Event e=b[i].poll();
+      if (e != null)
+        return e;
+    }
+    return null;
+  }
+
+  /**
+   * Checks if there are no events waiting.
+   * <b>It must only be called by the consumer thread.</b>
+   */
+  public boolean isEmpty() {
+    final Band[] b=bands;
+    for (int i=0 ; i < b.length ; i++) {
+      if (!b[i].isEmpty())
+        return false;
+    }
+    return true;
+  }
+
+  private synchronized Band createBand(int index) {
+    Band band=bandsByPriority.get(index);
+    if (band != null)
+      return band;
+
+    band=new Band(index+Event.MIN_PRIORITY);
+    final Band[] old=bands;
+    final Band[] b=new Band[old.length+1];
+    int i=0, j=0;
+    while ( (i < old.length) && (old[i].priority > band.priority) )
+      b[j++]=old[i++];
+    b[j++]=band;
+    while (i < old.length)
+      b[j++]=old[i++];
+
+    // the band must be visible to the consumer before any event is pushed in it
+    bands=b;
+    bandsByPriority.set(index,band);
+    return band;
+  }
+}
@@ -0,0 +1,524 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.appia.core.events.channel.ChannelEvent;
+import net.sf.appia.core.events.channel.PeriodicTimer;
+import net.sf.appia.core.events.channel.Timer;
+
+/**
+ * <I>Appia</I> timers manager based on a hierarchical hashed timing wheel.
+ * <br>
+ * It is a drop-in replacement for the {@link net.sf.appia.core.TimerManager TimerManager},
+ * that keeps all pending timers in a sorted list. Here, arming and canceling a
+ * timer are O(1), independently of the number of pending timers, and all the
+ * timers that expire in the same tick are delivered in a batch, outside the lock.
+ * <br>
+ * The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots. A tick of the
+ * first level is {@link #DEFAULT_TICK} milliseconds, and each level covers
+ * {@link #SLOTS} times the range of the previous one. When the first level wraps,
+ * the timers of the next slot of the upper levels are cascaded down.
+ * <br>
+ * By default, as in the {@link net.sf.appia.core.TimerManager TimerManager}, every
+ * tick of a periodic timer delivers a new clone of it. Optionally, with
+ * {@link #setRecyclePeriodicTimers(boolean)}, periodic timers are not cloned on every
+ * tick: each one keeps a spare instance, that is recycled when the delivered one comes
+ * back to the Channel, after going through all the sessions. Only when the previous
+ * instance is still in use a new clone is made. In that mode, sessions must not keep a
+ * reference to a delivered periodic timer, for instance to cancel it later, because
+ * the instance is reused by the next ticks.
+ * The timers of a Channel that expire in the same tick are inserted in the
+ * Channel scheduler at once, with a single wakeup.
+ * <br>
+ * It can be selected with {@link net.sf.appia.core.Appia#setTimerManager(TimerManager)}
+ * or with the <code>timermanager</code> attribute of the XML configuration.
+ *
+ * @see net.sf.appia.core.events.channel.Timer
+ * @see net.sf.appia.core.events.channel.PeriodicTimer
+ */
+public class WheelTimerManager extends TimerManager {
+
+  /** Number of levels of the wheel. */
+  public static final int LEVELS=4;
+  /** Number of slots of each level of the wheel. */
+  public static final int SLOTS=256;
+  /** Default duration of a tick, in milliseconds. */
+  public static final long DEFAULT_TICK=1;
+
+  private static final int BITS=8;
+  private static final int MASK=SLOTS-1;
+  private static final long MAX_DELTA=(1L << (BITS*LEVELS))-1;
+  private static final long NANOS=1000000;
+
+  /**
+   * A pending timer. Linked in its slot and with the other timers with the same ID.
+   */
+  private static final class Entry {
+    final String id;
+    final ChannelEvent event;
+    final long period;
+    final Channel channel;
+    final int dir;
+    /* The instance ready to be delivered, and the one being delivered */
+    ChannelEvent spare;
+    ChannelEvent inFlight;
+    long tick;
+    int level=-1;
+    int slot;
+    Entry prev;
+    Entry next;
+    Entry sameID;
+
+    Entry(String id, ChannelEvent event, long period) {
+      this.id=id;
+      this.event=event;
+      this.period=period;
+      this.channel=event.getChannel();
+      this.dir=Direction.invert(event.getDir());
+    }
+  }
+
+  private final long tick;
+  private final long tickNanos;
+  private final long startNanos;
+
+  private final Entry[][] wheel=new Entry[LEVELS][SLOTS];
+  private final HashMap<String,Entry> timers=new HashMap<String,Entry>();
+  private int size=0;
+  /* The next tick to process. */
+  private long currentTick=0;
+  /* The tick until which the manager thread is sleeping. */
+  private long wakeupTick=Long.MAX_VALUE;
+
+  /* Owned by the manager thread */
+  private final ArrayList<Entry> expired=new ArrayList<Entry>();
+  private final ArrayList<ChannelEvent> deliveries=new ArrayList<ChannelEvent>();
+  private final ArrayList<Entry> deliveryEntries=new ArrayList<Entry>();
+  private final ArrayList<Event> batch=new ArrayList<Event>();
+
+  private volatile boolean recyclePeriodicTimers=false;
+
+  /**
+   * Creates a new WheelTimerManager with the default tick.
+   */
+  public WheelTimerManager(ThreadFactory thf) {
+    this(thf,DEFAULT_TICK);
+  }
+
+  /**
+   * Creates a new WheelTimerManager.
+   *
+   * @param thf the factory of the manager thread
+   * @param tick the duration of a tick, in milliseconds
+   */
+  public WheelTimerManager(ThreadFactory thf, long tick) {
+    super(thf);
+    if (tick <= 0)
+      throw new IllegalArgumentException("Tick must be positive");
+    this.tick=tick;
+    this.tickNanos=tick*NANOS;
+    this.startNanos=nanoTime();
+  }
+
+  /**
+   * Gets the duration of a tick, in milliseconds.
+   */
+  public long getTick() {
+    return tick;
+  }
+
+  /**
+   * Defines if the instances of the periodic timers are recycled.
+   * If false, every tick delivers a new clone of the periodic timer,
+   * as the {@link net.sf.appia.core.TimerManager TimerManager} does.
+   * <br>
+   * Recycling may only be enabled if no session keeps a reference to the
+   * delivered periodic timers after forwarding them, for instance to cancel
+   * them later. Such a reference would silently become the next tick of the timer.
+   * To cancel a periodic timer, the session must keep the timer it created, not
+   * the delivered ones.
+   * <br>
+   * By default it is disabled.
+   */
+  public void setRecyclePeriodicTimers(boolean recycle) {
+    recyclePeriodicTimers=recycle;
+  }
+
+  /**
+   * Checks if the instances of the periodic timers are recycled.
+   */
+  public boolean isRecyclingPeriodicTimers() {
+    return recyclePeriodicTimers;
+  }
+
+  /** Receives a timer to manage.
+   * @param timer The timer to manage.
+   * @see net.sf.appia.core.events.channel.Timer
+   */
+  public void handleTimerRequest(Timer timer) {
+    final int q=timer.getQualifierMode();
+
+    if (q == EventQualifier.ON)
+      arm(timer.timerID,timer,timer.getTimeout(),0);
+    else if (q == EventQualifier.OFF)
+      cancel(timer.timerID);
+  }
+
+  /** Receives a periodic timer to manage.
+   * @param timer The periodic timer to manage.
+   * @see net.sf.appia.core.events.channel.PeriodicTimer
+   */
+  public void handlePeriodicTimer(PeriodicTimer timer) {
+    final int q=timer.getQualifierMode();
+
+    if (q == EventQualifier.ON)
+      arm(timer.timerID,timer,timer.getPeriod(),timer.getPeriod());
+    else if (q == EventQualifier.OFF)
+      cancel(timer.timerID);
+    else if (q == EventQualifier.NOTIFY)
+      release(timer);
+  }
+
+  /** Returns the time interval until the next timer expires.
+   * In milliseconds.
+   * @return The time until the next timer. In milliseconds, or -1 if there are no timers.
+   */
+  public synchronized long nextTimerEvent() {
+    if (size == 0)
+      return -1;
+    final long next=nextTick();
+    final long now=nowTick();
+    return (next > now) ? (next-now)*tick : 0;
+  }
+
+  /**
+   * Number of pending timers.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  private long nowTick() {
+    return (nanoTime()-startNanos)/tickNanos;
+  }
+
+  private long toTicks(long millis) {
+    final long t=(millis+tick-1)/tick;
+    return (t > 0) ? t : 1;
+  }
+
+  private synchronized void arm(String timerID, ChannelEvent event, long timeout, long period) {
+    final Entry e=new Entry(timerID,event,(period > 0) ? toTicks(period) : 0);
+    e.tick=nowTick()+toTicks(timeout);
+
+    final Entry other=timers.get(timerID);
+    if (other != null) {
+      // timers with the same ID are kept, as in the TimerManager
+      e.sameID=other.sameID;
+      other.sameID=e;
+    } else
+      timers.put(timerID,e);
+    size++;
+
+    add(e);
+    if (e.tick < wakeupTick)
+      notify();
+  }
+
+  private synchronized void cancel(String timerID) {
+    final Entry first=timers.get(timerID);
+    if (first == null)
+      return;
+
+    // as in the TimerManager, removes the one that would expire first
+    Entry e=first, prevE=null, min=first, prevMin=null;
+    while (e != null) {
+      if (e.tick < min.tick) {
+        min=e;
+        prevMin=prevE;
+      }
+      prevE=e;
+      e=e.sameID;
+    }
+
+    if (prevMin != null)
+      prevMin.sameID=min.sameID;
+    else if (min.sameID != null)
+      timers.put(timerID,min.sameID);
+    else
+      timers.remove(timerID);
+    size--;
+
+    unlink(min);
+  }
+
+  /**
+   * A delivered periodic timer reached the end of the Channel, so it may be reused.
+   */
+  private synchronized void release(PeriodicTimer timer) {
+    Entry e=timers.get(timer.timerID);
+    while (e != null) {
+      if (e.inFlight == timer) {
+        e.inFlight=null;
+        if (recyclePeriodicTimers)
+          e.spare=timer;
+        return;
+      }
+      e=e.sameID;
+    }
+  }
+
+  private void add(Entry e) {
+    long delta=e.tick-currentTick;
+    long t=e.tick;
+    if (delta < 0) {
+      delta=0;
+      t=currentTick;
+    } else if (delta > MAX_DELTA) {
+      // it will be cascaded again when the top level gets there
+      delta=MAX_DELTA;
+      t=currentTick+MAX_DELTA;
+    }
+
+    int level=0;
+    while ( (level < LEVELS-1) && (delta >= (1L << (BITS*(level+1)))) )
+      level++;
+
+    final int slot=(int) ((t >>> (BITS*level)) & MASK);
+    e.level=level;
+    e.slot=slot;
+    e.prev=null;
+    e.next=wheel[level][slot];
+    if (e.next != null)
+      e.next.prev=e;
+    wheel[level][slot]=e;
+  }
+
+  private void unlink(Entry e) {
+    if (e.prev != null)
+      e.prev.next=e.next;
+    else
+      wheel[e.level][e.slot]=e.next;
+    if (e.next != null)
+      e.next.prev=e.prev;
+    e.prev=e.next=null;
+    e.level=-1;
+  }
+
+  private void cascade(int level, int slot) {
+    Entry e=wheel[level][slot];
+    wheel[level][slot]=null;
+    while (e != null) {
+      final Entry next=e.next;
+      add(e);
+      e=next;
+    }
+  }
+
+  /**
+   * Processes the current tick, moving the expired timers to the expired list.
+   */
+  private void processTick() {
+    if ( (currentTick & MASK) == 0 ) {
+      // cascades from the highest level that wrapped, down to the second
+      int levels=1;
+      while ( (levels < LEVELS-1) && (((currentTick >>> (BITS*levels)) & MASK) == 0) )
+        levels++;
+      for (int l=levels ; l >= 1 ; l--)
+        cascade(l,(int) ((currentTick >>> (BITS*l)) & MASK));
+    }
+
+    final int slot=(int) (currentTick & MASK);
+    Entry e=wheel[0][slot];
+    wheel[0][slot]=null;
+    while (e != null) {
+      final Entry next=e.next;
+      e.prev=e.next=null;
+      e.level=-1;
+      expired.add(e);
+      e=next;
+    }
+
+    currentTick++;
+  }
+
+  /**
+   * The next tick the manager thread must process: the next non empty slot
+   * of the first level, or the next cascade.
+   */
+  private long nextTick() {
+    final long boundary=(currentTick | MASK)+1;
+    for (long t=currentTick ; t < boundary ; t++) {
+      if (wheel[0][(int) (t & MASK)] != null)
+        return t;
+    }
+    return boundary;
+  }
+
+  private synchronized void collectExpired() {
+    final long now=nowTick();
+
+    if (size == 0) {
+      currentTick=now+1;
+      return;
+    }
+
+    while (currentTick <= now)
+      processTick();
+
+    for (int i=0 ; i < expired.size() ; i++) {
+      final Entry e=expired.get(i);
+      if (e.period > 0) {
+        // periodic timers are armed again before delivery, so they can be canceled meanwhile
+        e.tick=now+e.period;
+        add(e);
+        final ChannelEvent event=nextInstance(e);
+        if (event != null) {
+          deliveries.add(event);
+          deliveryEntries.add(e);
+        }
+      } else {
+        removeID(e);
+        deliveries.add(e.event);
+        deliveryEntries.add(e);
+      }
+    }
+    expired.clear();
+  }
+
+  /**
+   * The instance of a periodic timer to deliver: the spare one, if it was
+   * released, or else a clone of the original request.
+   */
+  private ChannelEvent nextInstance(Entry e) {
+    ChannelEvent event=e.spare;
+    e.spare=null;
+    if (event == null) {
+      try {
+        event=(ChannelEvent) e.event.cloneEvent();
+      } catch (CloneNotSupportedException ex) {
+        throw new AppiaError("WheelTimerManager: CloneNotSupportedException ");
+      }
+    }
+    e.inFlight=event;
+    return event;
+  }
+
+  private void removeID(Entry e) {
+    final Entry first=timers.get(e.id);
+    if (first == e) {
+      if (e.sameID != null)
+        timers.put(e.id,e.sameID);
+      else
+        timers.remove(e.id);
+    } else if (first != null) {
+      Entry prev=first;
+      while ( (prev.sameID != null) && (prev.sameID != e) )
+        prev=prev.sameID;
+      prev.sameID=e.sameID;
+    }
+    e.sameID=null;
+    size--;
+  }
+
+  private synchronized void goToSleep() {
+    if (!isAlive())
+      return;
+
+    if (size == 0) {
+      wakeupTick=Long.MAX_VALUE;
+      try {
+        wait();
+      } catch (InterruptedException e) {}
+    } else {
+      wakeupTick=nextTick();
+      final long sleep=(startNanos+wakeupTick*tickNanos-nanoTime()+NANOS-1)/NANOS;
+      if (sleep > 0) {
+        try {
+          wait(sleep);
+        } catch (InterruptedException e) {}
+      }
+    }
+    wakeupTick=Long.MAX_VALUE;
+  }
+
+  /**
+   * Delivers the expired timers, grouped by Channel.
+   * The route of each event is reset, and the events of the same Channel are
+   * inserted at once in its scheduler.
+   */
+  private void deliver() {
+    final int n=deliveries.size();
+    for (int i=0 ; i < n ; i++) {
+      final Entry first=deliveryEntries.get(i);
+      if (first == null)
+        continue;
+      final Channel channel=first.channel;
+
+      for (int j=i ; j < n ; j++) {
+        final Entry e=deliveryEntries.get(j);
+        if ( (e == null) || (e.channel != channel) )
+          continue;
+        deliveryEntries.set(j,null);
+
+        final ChannelEvent event=deliveries.get(j);
+        try {
+          event.setQualifierMode(EventQualifier.NOTIFY);
+          ((Event) event).asyncInit(channel,e.dir);
+          batch.add(event);
+        } catch (AppiaEventException ex) {
+          //ex.printStackTrace();
+        }
+      }
+
+      if ( !batch.isEmpty() && !channel.insertEvents(batch) ) {
+        // the Channel is not alive, so it follows the usual path
+        for (int j=0 ; j < batch.size() ; j++) {
+          try {
+            channel.insertEvent(batch.get(j));
+          } catch (AppiaEventException ex) {
+            //ex.printStackTrace();
+          }
+        }
+      }
+      batch.clear();
+    }
+    deliveries.clear();
+    deliveryEntries.clear();
+  }
+
+  /** The code executed by the manager thread.
+   * @see java.lang.Thread#run
+   */
+  public void run() {
+    while (isAlive()) {
+      collectExpired();
+
+      deliver();
+
+      goToSleep();
+    }
+  }
+}
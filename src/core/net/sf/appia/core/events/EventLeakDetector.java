@@ -0,0 +1,132 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.events;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.AppiaThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Detects the {@link SendableEvent SendableEvents} that were collected by the
+ * garbage collector without being {@link SendableEvent#release() released}, while
+ * their message was accounted in a {@link net.sf.appia.core.memoryManager.MemoryManager MemoryManager}.
+ * <br>
+ * Each leak is logged with the place where the event was attached to the memory manager,
+ * and the memory of its message is given back to the memory manager.
+ * <br>
+ * It is meant for debugging, and is disabled by default. It is enabled with the
+ * system property <code>appia.leakDetector=true</code>, or with {@link #setEnabled(boolean)}
+ * before the events are created.
+ * <br>
+ * The events are tracked with phantom references and a reference queue, as
+ * <code>java.lang.ref.Cleaner</code> does, so events do not need a finalizer.
+ */
+public final class EventLeakDetector {
+
+    private static Logger log = Logger.getLogger(EventLeakDetector.class);
+
+    private static volatile boolean enabled = Boolean.getBoolean("appia.leakDetector");
+
+    private static final ReferenceQueue<SendableEvent> queue = new ReferenceQueue<SendableEvent>();
+    /* keeps the references reachable until their event is released or collected */
+    private static final ConcurrentHashMap<Tracked,Boolean> tracked = new ConcurrentHashMap<Tracked,Boolean>();
+    private static final AtomicLong leaks = new AtomicLong();
+    private static Thread thread = null;
+
+    private EventLeakDetector() {}
+
+    /**
+     * Reference to a tracked event.
+     */
+    static final class Tracked extends PhantomReference<SendableEvent> {
+        private final String type;
+        private final Message message;
+        private final Throwable attached;
+
+        Tracked(SendableEvent event, Message message) {
+            super(event, queue);
+            this.type = event.getClass().getName();
+            this.message = message;
+            this.attached = new Throwable("Event attached to the memory manager");
+        }
+    }
+
+    /**
+     * Enables or disables the detection of leaked events.
+     * Only the events attached to a memory manager after it is enabled are tracked.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the number of leaked events detected so far.
+     */
+    public static long getLeaks() {
+        return leaks.get();
+    }
+
+    static Tracked track(SendableEvent event, Message message) {
+        start();
+        final Tracked ref = new Tracked(event, message);
+        tracked.put(ref, Boolean.TRUE);
+        return ref;
+    }
+
+    static void untrack(Tracked ref) {
+        tracked.remove(ref);
+        ref.clear();
+    }
+
+    private static synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new AppiaThreadFactory().newThread(new Runnable() {
+            public void run() {
+                for (;;) {
+                    try {
+                        collected((Tracked) queue.remove());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "Appia event leak detector", true);
+        thread.start();
+    }
+
+    private static void collected(Tracked ref) {
+        if (tracked.remove(ref) == null)
+            return;
+        leaks.incrementAndGet();
+        log.warn("Event "+ref.type+" was not released", ref.attached);
+        ref.message.setMemoryManager(null);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.events;
+
+import java.lang.reflect.Constructor;
+
+import net.sf.appia.core.AppiaError;
+import net.sf.appia.core.message.MessageFactory;
+
+/**
+ * Pool of the events of a {@link SendableEvent} class, and of their messages.
+ * <br>
+ * The events taken from the pool return to it when they are {@link SendableEvent#release() released},
+ * either by the kernel, at the end of their route, or by the session that discards them.
+ * They are reused with their attributes {@link net.sf.appia.core.Event#reset() reset}, and with their
+ * message empty. Therefore, <b>no session may keep a reference to a pooled event, or to its message,
+ * after the event is released</b>. Sessions that keep events, for instance to resend them, must keep
+ * clones.
+ * <br>
+ * Pools are registered with a {@link net.sf.appia.core.Channel Channel}, and are used by the
+ * transport protocols to create the events received from the network.
+ * <br>
+ * In debug mode, enabled with the system property <code>appia.eventPool.debug=true</code>, or with
+ * {@link #setDebug(boolean)}, the released events are never reused, and using one of them throws an
+ * {@link AppiaError} with the place where it was released.
+ *
+ * @see net.sf.appia.core.Channel#addEventPool(Class, int)
+ */
+public final class EventPool<E extends SendableEvent> {
+
+    /** Default maximum number of events kept by a pool. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static volatile boolean debug = Boolean.getBoolean("appia.eventPool.debug");
+
+    private final Class<E> type;
+    private final Constructor<E> constructor;
+    private final MessageFactory messageFactory;
+    private final SendableEvent[] free;
+    private int size = 0;
+    private long created = 0;
+    private long reused = 0;
+
+    /**
+     * Creates a pool.
+     *
+     * @param type the class of the events, that must have a constructor without arguments
+     * @param messageFactory the factory of the messages of the new events
+     * @param capacity the maximum number of events kept by the pool
+     * @throws IllegalArgumentException if the class has no constructor without arguments
+     */
+    public EventPool(Class<E> type, MessageFactory messageFactory, int capacity) {
+        this.type = type;
+        this.messageFactory = messageFactory;
+        this.free = new SendableEvent[capacity];
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Event "+type.getName()+" has no constructor without arguments");
+        }
+    }
+
+    /**
+     * Enables or disables the detection of events used after being released.
+     */
+    public static void setDebug(boolean enable) {
+        debug = enable;
+    }
+
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Gets the class of the events of this pool.
+     */
+    public Class<E> getEventClass() {
+        return type;
+    }
+
+    /**
+     * Takes an event from the pool, or creates a new one if the pool is empty.
+     * The event is not initialized, as if it was created with its constructor
+     * without arguments, and has an empty message.
+     */
+    public E acquire() {
+        SendableEvent e = null;
+        synchronized (this) {
+            if (size > 0) {
+                e = free[--size];
+                free[size] = null;
+                reused++;
+            } else
+                created++;
+        }
+        if (e != null) {
+            e.reuse();
+            return type.cast(e);
+        }
+
+        final E event;
+        try {
+            event = constructor.newInstance();
+        } catch (Exception ex) {
+            throw new AppiaError("Unable to create event "+type.getName(), ex);
+        }
+        event.setMessage(messageFactory.newMessage());
+        event.setPool(this);
+        return event;
+    }
+
+    /**
+     * Returns a released event to the pool. Called by {@link SendableEvent#release()}.
+     */
+    void recycle(SendableEvent e) {
+        if (debug)
+            return;
+        synchronized (this) {
+            if (size < free.length)
+                free[size++] = e;
+        }
+    }
+
+    /**
+     * Gets the number of events in the pool.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of events created, because the pool was empty.
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * Gets the number of events taken from the pool.
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+}
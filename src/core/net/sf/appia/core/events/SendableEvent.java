@@ -44,6 +44,13 @@ import net.sf.appia.core.message.Message;
 public class SendableEvent extends Event implements Cloneable {
 
 	private boolean detached;
+	/* registered in the leak detector while the message is attached */
+	private EventLeakDetector.Tracked tracked = null;
+	/* the pool to which the event returns when released, if it was taken from one */
+	private EventPool<?> pool = null;
+	private boolean pooledDetached;
+	private boolean released = false;
+	private Throwable releasedAt = null;
 
   public SendableEvent() {
     message=new Message();
@@ -79,10 +86,14 @@ public class SendableEvent extends Event implements Cloneable {
   protected Message message;
 
   public Message getMessage() {
+    if (released)
+      checkNotReleased();
     return message;
   }
 
   public void setMessage(Message message) {
+    if (released)
+      checkNotReleased();
     this.message=message;
     // added on 9-Jul-2001
     attachToMemory();
@@ -109,49 +120,136 @@ public class SendableEvent extends Event implements Cloneable {
 		if (AppiaConfig.QUOTA_ON && (this.message!=null) && (this.getChannel()!=null)){
 			this.message.setMemoryManager(this.getChannel().getMemoryManager());
 			detached = false;
+			track();
 		}
 	}
 
+	private void track() {
+		if (tracked != null) {
+			EventLeakDetector.untrack(tracked);
+			tracked = null;
+		}
+		if (EventLeakDetector.isEnabled() && (message.getMemoryManager() != null))
+			tracked = EventLeakDetector.track(this, message);
+	}
+
 	/**
 	 * Detaches the amount of memory occupied by the Message of
 	 * This SendableEvent from the MemoryManager.
 	 * This is used when we need to use flow control in the channel with
 	 * good performance.
 	 * <br>
-	 * This method is called by the Appia kernel when the event route ends.
-	 * This method should be called if we want to destroy the event before 
-	 * he reaches the end of his route or if we dont call the go() method in 
-	 * the last session. If this is not done by the protocol programmer, it is 
-	 * done in the finalizer of the message, but the performance is not so good.
+	 * It is called by {@link #release()}.
 	 * @see net.sf.appia.core.message.Message
 	 * @see net.sf.appia.core.memoryManager.MemoryManager
 	 */
 	public void detachFromMemory(){
-		if(AppiaConfig.QUOTA_ON && !detached && (this.message.getMemoryManager() != null)){
+		if (tracked != null) {
+			EventLeakDetector.untrack(tracked);
+			tracked = null;
+		}
+		if(AppiaConfig.QUOTA_ON && !detached && (this.message != null) && (this.message.getMemoryManager() != null)){
 			this.message.setMemoryManager(null);
 			detached = true;
 		}
 	}
 
+	/**
+	 * Gives back the memory of the message, charged to the memory manager of the channel
+	 * when the event was initialized. It is charged again if the event is given again.
+	 * @see net.sf.appia.core.Event#notInserted()
+	 */
+	protected void notInserted() {
+		if (tracked != null) {
+			EventLeakDetector.untrack(tracked);
+			tracked = null;
+		}
+		if (AppiaConfig.QUOTA_ON && !detached && (message != null) && (message.getMemoryManager() != null))
+			message.setMemoryManager(null);
+	}
+
+	/**
+	 * Releases the event. Its message is detached from the
+	 * {@link net.sf.appia.core.memoryManager.MemoryManager MemoryManager}, and the
+	 * contents of a message that uses a {@link net.sf.appia.core.message.BufferPool BufferPool}
+	 * are discarded.
+	 * <br>
+	 * This method is called by the Appia kernel when the event route ends.
+	 * It must be called by a session that discards the event, instead of calling
+	 * the go() method. Otherwise the memory of the message is never given back to the
+	 * memory manager. The {@link EventLeakDetector} reports the events that were not
+	 * released, and gives their memory back.
+	 */
+	public void release() {
+		if (pool != null)
+			checkNotReleased();
+		detachFromMemory();
+		if ((message != null) && ((message.getBufferPool() != null) || (pool != null)))
+			message.discardAll();
+		if (pool != null) {
+			released = true;
+			if (EventPool.isDebug())
+				releasedAt = new Throwable("Event released");
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * Checks that the event was not released to its {@link EventPool}.
+	 * It is called when the event, or its message, are used.
+	 * 
+	 * @throws AppiaError if the event was released. In debug mode,
+	 * its cause shows where it was released.
+	 * @see EventPool#setDebug(boolean)
+	 */
+	public final void checkNotReleased() {
+		if (released)
+			throw new AppiaError("Event "+getClass().getName()+" used after being released to its pool", releasedAt);
+	}
+
+	/*
+	 * Called by the pool when the event is created.
+	 */
+	void setPool(EventPool<?> pool) {
+		this.pool = pool;
+		pooledDetached = detached;
+	}
+
+	/*
+	 * Called by the pool when the event is taken again.
+	 */
+	void reuse() {
+		released = false;
+		releasedAt = null;
+		reset();
+	}
+
+	/**
+	 * Clears the attributes of the event, keeping its empty message.
+	 * @see net.sf.appia.core.Event#reset()
+	 */
+	protected void reset() {
+		super.reset();
+		dest = null;
+		source = null;
+		detached = pooledDetached;
+	}
+
 	/**
  	 * Clones the sendable event.
  	 * @see net.sf.appia.core.Event#cloneEvent()
  	 */
 	public Event cloneEvent() throws CloneNotSupportedException {
+	    checkNotReleased();
 	    final SendableEvent ev = (SendableEvent) super.cloneEvent();
+	    // the clone was not taken from the pool, so it must not be recycled into it
+	    ev.pool = null;
 	    ev.message = (Message) message.clone();
+	    // the clone of the message is attached to the same memory manager
+	    ev.tracked = null;
+	    if (!ev.detached)
+	        ev.track();
 	    return ev;
 	}
 
-	/**
-	 * Called when the garbage Collector runs and this object is going to
-	 * be destroyed.
-	 * @see java.lang.Object#finalize()
-	 */
-	protected void finalize() throws Throwable {
-	    super.finalize();
-        if(message!=null && message.length() > 0)
-	    detachFromMemory();
-	}
-
 }
@@ -21,12 +21,22 @@ package net.sf.appia.core.memoryManager;
 
 import java.io.*;
 import java.security.InvalidParameterException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.appia.core.*;
 
 /**
  * This class is used by the events and a {@link net.sf.appia.core.Channel} to stabilish a
  * maximum number of bytes used by {@link net.sf.appia.core.message.Message messages} that a channel can hold.
+ * <br>
+ * The accounting is lock free, and the memory manager can be used concurrently by the
+ * Appia thread and by any number of threads inserting events with
+ * {@link net.sf.appia.core.Event#asyncGo(Channel, int) asyncGo}.
+ * Each direction has its own threshold. Threads that should not block can use
+ * {@link #aboveThreshold(int)} and {@link #whenBelowThreshold(int)}, instead of
+ * {@link #synchronizedAboveThreshold(int)}.
  *
  * @see Channel
  * @see net.sf.appia.core.message.Message
@@ -41,18 +51,30 @@ public class MemoryManager {
 	/*
 	 * contains the maximum size in bytes that this memory manager can hold
 	 */
-	private int maxSize;
+	private volatile int maxSize;
 	/*
 	 * contains the size of allocated memory
 	 */
-	private int currentSize;
+	private final AtomicInteger currentSize = new AtomicInteger(0);
 	/*
 	 * contains a tolerance margin
 	 */
-	private int upthreshold;
-	private int downthreshold;
+	private volatile int upthreshold;
+	private volatile int downthreshold;
 	
 	private Object downMutex = new Object(), upMutex = new Object();
+	/*
+	 * number of threads blocked in synchronizedAboveThreshold, so that free
+	 * only takes the locks when needed
+	 */
+	private final AtomicInteger downBlocked = new AtomicInteger(0), upBlocked = new AtomicInteger(0);
+	/*
+	 * futures returned by whenBelowThreshold
+	 */
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> downWaiters = 
+		new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> upWaiters = 
+		new ConcurrentLinkedQueue<CompletableFuture<Void>>();
 	
 	/**
 	 * Constructor of the class.
@@ -68,7 +90,6 @@ public class MemoryManager {
 			maxSize = 0;
 		else
 			maxSize = size;
-		currentSize = 0;
 		setThreshold(upth, Direction.UP);
 		setThreshold(downth,Direction.DOWN);
 		if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
@@ -82,14 +103,7 @@ public class MemoryManager {
 	 * @return true if the amount of memory reached the threshold.
 	 */
 	public boolean aboveThreshold(int direction) throws InvalidParameterException {
-		if(direction == Direction.UP){
-			return currentSize >= upthreshold;
-		}
-		else if(direction == Direction.DOWN){
-			return currentSize >= downthreshold;
-		}
-		else
-			throw new InvalidParameterException("Direction must be UP or DOWN in aboveThreshold");
+		return currentSize.get() >= getThreshold(direction);
 	}
 	
 	/**
@@ -104,20 +118,72 @@ public class MemoryManager {
 		// the aboveThreshold() already verifies is the direction parameter is valid.
 		boolean above = aboveThreshold(direction);
 		if(above){
-			Object sync = null;
-			if(direction == Direction.UP)
+			final Object sync;
+			final AtomicInteger blocked;
+			if(direction == Direction.UP){
 				sync = upMutex;
-			else
+				blocked = upBlocked;
+			}
+			else{
 				sync = downMutex;
+				blocked = downBlocked;
+			}
 			synchronized (sync) {
-				while(above = aboveThreshold(direction)){
-					sync.wait();
+				// registered before testing again, so that free sees it
+				blocked.incrementAndGet();
+				try {
+					while(above = aboveThreshold(direction)){
+						sync.wait();
+					}
+				} finally {
+					blocked.decrementAndGet();
 				}
 			}
 		}
 		return above;
 	}
 	
+	/**
+	 * Gets a future that completes when the used bytes in this memory manager drop
+	 * to 90% of the threshold of the given direction, the level at which blocked
+	 * threads are also woken up. It is already completed if the memory manager is not
+	 * above the threshold.
+	 * <br>
+	 * The future is completed by the thread that frees the memory, usually the Appia thread,
+	 * so the actions that depend on it should not block, or should be executed
+	 * asynchronously (e.g. with <code>thenRunAsync</code>).
+	 *
+	 * @param direction the direction of the threshold, UP or DOWN.
+	 * @return the future.
+	 */
+	public CompletableFuture<Void> whenBelowThreshold(int direction) throws InvalidParameterException {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (!aboveThreshold(direction)) {
+			future.complete(null);
+			return future;
+		}
+		final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = 
+			(direction == Direction.UP) ? upWaiters : downWaiters;
+		waiters.add(future);
+		// the memory may have been freed before the future was added
+		if (belowNotifyThreshold(currentSize.get(), direction))
+			complete(waiters);
+		return future;
+	}
+	
+	/*
+	 * Verifies if the given size is at the level where waiting threads and futures are released.
+	 */
+	private boolean belowNotifyThreshold(int size, int direction) {
+		return size <= getThreshold(direction)*NOTIFY_THRESHOLD;
+	}
+	
+	private static void complete(ConcurrentLinkedQueue<CompletableFuture<Void>> waiters) {
+		CompletableFuture<Void> future;
+		while ((future = waiters.poll()) != null)
+			future.complete(null);
+	}
+	
 	/**
 	 * Gets the value of the specified threshold.
 	 * @return the value of the specified threshold.
@@ -154,6 +220,8 @@ public class MemoryManager {
 				throw new InvalidParameterException("Direction must be UP or DOWN in setThreshold.");
 			
 		}
+		// a higher threshold may release waiting threads
+		wakeUp(currentSize.get());
 	}
 	
 	/**
@@ -172,7 +240,7 @@ public class MemoryManager {
 	 * @param newSize the new size of the memory (in bytes).
 	 */
 	public void setMaxSize(int newSize) throws AppiaWrongSizeException {
-		if ((newSize <= 0) || (newSize < currentSize)) 
+		if ((newSize <= 0) || (newSize < currentSize.get())) 
 			throw new AppiaWrongSizeException("Could not set size of "+mmID+" to "+newSize);
 		maxSize = newSize;
 	} // end of method setMaxSize
@@ -188,7 +256,7 @@ public class MemoryManager {
 	 * Gets the amount of memory (in bytes) occupied in the memory manager.
 	 */
 	public int used() {
-		return currentSize;
+		return currentSize.get();
 	}
 	
 	/**
@@ -199,17 +267,22 @@ public class MemoryManager {
 	public boolean malloc(int nBytes) {
 		if (nBytes <= 0)
 			return true;
-		if ((currentSize + nBytes) > maxSize) {
-			if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
-				debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
-						" bytes FAILED! current size = "+currentSize);
-			return false;
-		}
-		currentSize += nBytes;
+		int size, newSize;
+		do {
+			size = currentSize.get();
+			newSize = size + nBytes;
+			// newSize < 0 on overflow
+			if (newSize > maxSize || newSize < 0) {
+				if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
+					debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
+							" bytes FAILED! current size = "+size);
+				return false;
+			}
+		} while (!currentSize.compareAndSet(size, newSize));
 		
 		if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
 			debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
-					" bytes done! current size = "+currentSize);
+					" bytes done! current size = "+newSize);
 		return true;
 	} // end of method malloc
 	
@@ -221,23 +294,42 @@ public class MemoryManager {
 		if (nBytes == 0)
 			return;
 		
-		if (nBytes < 0 || currentSize == 0) { 
-			if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
-				debugOutput.println("MemoryManager: "+mmID+": free error: state is nBytes="+nBytes+" and "+
-						"currentSize="+currentSize);
-			return;
-		}
-		
-		currentSize -= Math.min(nBytes,currentSize);
+		int size, newSize;
+		do {
+			size = currentSize.get();
+			if (nBytes < 0 || size == 0) { 
+				if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
+					debugOutput.println("MemoryManager: "+mmID+": free error: state is nBytes="+nBytes+" and "+
+							"currentSize="+size);
+				return;
+			}
+			newSize = size - Math.min(nBytes,size);
+		} while (!currentSize.compareAndSet(size, newSize));
 		
-		if(currentSize <= (downthreshold*NOTIFY_THRESHOLD))
-			synchronized (downMutex) { downMutex.notifyAll(); }
-		if(currentSize <= (upthreshold*NOTIFY_THRESHOLD))
-			synchronized (upMutex) { upMutex.notifyAll(); }
+		wakeUp(newSize);
 		
 		if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
 			debugOutput.println("MemoryManager: "+mmID+
-					": free done (nBytes = "+nBytes+"). current size = "+currentSize);
+					": free done (nBytes = "+nBytes+"). current size = "+newSize);
 	} // end of method free
 	
+	/*
+	 * Releases the threads and futures waiting for a direction, if the
+	 * used memory is low enough.
+	 */
+	private void wakeUp(int size) {
+		if(belowNotifyThreshold(size, Direction.DOWN)){
+			if (downBlocked.get() > 0)
+				synchronized (downMutex) { downMutex.notifyAll(); }
+			if (!downWaiters.isEmpty())
+				complete(downWaiters);
+		}
+		if(belowNotifyThreshold(size, Direction.UP)){
+			if (upBlocked.get() > 0)
+				synchronized (upMutex) { upMutex.notifyAll(); }
+			if (!upWaiters.isEmpty())
+				complete(upWaiters);
+		}
+	}
+	
 } // end of class
@@ -0,0 +1,192 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the byte arrays used by the blocks of a {@link Message}.
+ * <br>
+ * The arrays are kept in size classes, with powers of two sizes between
+ * {@link #MIN_SIZE} and {@link #MAX_SIZE}. Each class keeps up to a fixed number
+ * of free arrays. Requests larger than {@link #MAX_SIZE} are allocated and left
+ * to the garbage collector.
+ * <br>
+ * An array is returned to the pool when the last block that uses it is discarded with
+ * {@link Message#discardAll()}, or when the event that carries the message
+ * reaches the end of its route. Arrays of blocks dropped in any other way
+ * are simply collected by the garbage collector, so returning them is
+ * an optimization and never required.
+ * <br>
+ * <b>The data of a pooled message must not be used after the message is discarded.</b>
+ *
+ * @see PooledMessageFactory
+ */
+public class BufferPool {
+
+    /** Size of the smallest class, in bytes. */
+    public static final int MIN_SIZE=64;
+    /** Size of the largest class, in bytes. */
+    public static final int MAX_SIZE=64*1024;
+    /** Default number of free arrays kept in each class. */
+    public static final int DEFAULT_CAPACITY=256;
+
+    private static final int MIN_SHIFT=6;
+    private static final int CLASSES=11;
+
+    private static BufferPool defaultPool=null;
+
+    /**
+     * An array of the pool, shared by all the blocks that use it.
+     */
+    static final class Buffer {
+        final byte[] data;
+        final BufferPool pool;
+        final int sizeClass;
+        /* number of live blocks that use the array */
+        final AtomicInteger users=new AtomicInteger(1);
+
+        Buffer(byte[] data, BufferPool pool, int sizeClass) {
+            this.data=data;
+            this.pool=pool;
+            this.sizeClass=sizeClass;
+        }
+
+        void retain() {
+            users.incrementAndGet();
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0)
+                pool.free(this);
+        }
+    }
+
+    /**
+     * The free arrays of a size class.
+     */
+    private static final class SizeClass {
+        final Buffer[] free;
+        int top=0;
+
+        SizeClass(int capacity) {
+            free=new Buffer[capacity];
+        }
+    }
+
+    private final SizeClass[] classes=new SizeClass[CLASSES];
+
+    private final AtomicLong allocated=new AtomicLong();
+    private final AtomicLong reused=new AtomicLong();
+    private final AtomicLong returned=new AtomicLong();
+
+    /**
+     * Gets the pool shared by all the {@link PooledMessageFactory PooledMessageFactories}
+     * created with the default constructor.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null)
+            defaultPool=new BufferPool(DEFAULT_CAPACITY);
+        return defaultPool;
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param capacity the maximum number of free arrays kept in each size class
+     */
+    public BufferPool(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative");
+        for (int i=0 ; i < CLASSES ; i++)
+            classes[i]=new SizeClass(capacity);
+    }
+
+    /**
+     * Gets an array with at least the given size.
+     */
+    Buffer acquire(int size) {
+        final int c=sizeClass(size);
+        if (c < 0) {
+            allocated.incrementAndGet();
+            return new Buffer(new byte[size],this,c);
+        }
+
+        final SizeClass sc=classes[c];
+        Buffer b=null;
+        synchronized (sc) {
+            if (sc.top > 0) {
+                b=sc.free[--sc.top];
+                sc.free[sc.top]=null;
+            }
+        }
+
+        if (b == null) {
+            allocated.incrementAndGet();
+            return new Buffer(new byte[MIN_SIZE << c],this,c);
+        }
+        reused.incrementAndGet();
+        b.users.set(1);
+        return b;
+    }
+
+    private void free(Buffer b) {
+        if (b.sizeClass < 0)
+            return;
+        final SizeClass sc=classes[b.sizeClass];
+        synchronized (sc) {
+            if (sc.top < sc.free.length) {
+                sc.free[sc.top++]=b;
+                returned.incrementAndGet();
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size > MAX_SIZE)
+            return -1;
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32-Integer.numberOfLeadingZeros(size-1)-MIN_SHIFT;
+    }
+
+    /**
+     * Number of arrays allocated by the pool, because there was no free array.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Number of arrays that were reused from the pool.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Number of arrays returned to the pool.
+     */
+    public long getReturned() {
+        return returned.get();
+    }
+}
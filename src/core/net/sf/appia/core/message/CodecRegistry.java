@@ -0,0 +1,262 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the {@link ObjectCodec codecs} used by {@link Message#pushObject(Object)}
+ * and {@link Message#popObject()}.
+ * <br>
+ * Each codec is registered for one class and one type tag, a number between
+ * {@link #MIN_TAG} and {@link #MAX_TAG} that is pushed into the message before the object.
+ * The tag must be the same in every node, so it is part of the wire format of the type.
+ * Objects are matched by their exact class. Objects of classes without a codec,
+ * including subclasses of registered classes, are written with Java serialization.
+ * <br>
+ * Tags are assigned as follows:
+ * <ul>
+ * <li>2 to 31: types of the Java platform, registered in every registry;</li>
+ * <li>32 to 127: types of the Appia protocols, with the tags allocated below;</li>
+ * <li>128 to 255: types of the applications.</li>
+ * </ul>
+ * A registry created with {@link #CodecRegistry()} looks up the codecs it does not have
+ * in the {@link #getDefault() default registry}. The registry used by a message
+ * is set by its {@link MessageFactory}, and is the default registry unless stated otherwise.
+ *
+ * @see ObjectCodec
+ */
+public class CodecRegistry {
+
+    /** Smallest tag of a registered codec. Smaller tags are used by {@link Message}. */
+    public static final int MIN_TAG=2;
+    /** Largest tag of a registered codec. */
+    public static final int MAX_TAG=255;
+
+    /** First tag of the types of the Appia protocols. */
+    public static final int PROTOCOL_TAGS=32;
+    /** First tag of the types of the applications. */
+    public static final int APPLICATION_TAGS=128;
+
+    /*
+     * Tags allocated to the types of the Appia protocols. Each type registers its codec
+     * when its class is loaded. New tags are added here, after the last allocated one.
+     */
+    /** Tag of <code>net.sf.appia.protocols.total.hybrid.Ticket</code>. */
+    public static final int HYBRID_TICKET_TAG=PROTOCOL_TAGS;
+
+    private static final CodecRegistry defaultRegistry=new CodecRegistry(null);
+
+    /**
+     * A codec and its tag.
+     */
+    static final class Entry {
+        final int tag;
+        final Class<?> type;
+        final ObjectCodec<Object> codec;
+
+        Entry(int tag, Class<?> type, ObjectCodec<Object> codec) {
+            this.tag=tag;
+            this.type=type;
+            this.codec=codec;
+        }
+    }
+
+    private final CodecRegistry parent;
+    /* both copied on write, because registrations are rare and lookups happen on every object */
+    private volatile Entry[] byTag=new Entry[MAX_TAG+1];
+    private volatile Map<Class<?>,Entry> byClass=new HashMap<Class<?>,Entry>();
+
+    /**
+     * Creates a registry that uses the codecs of the default registry, in addition to its own.
+     */
+    public CodecRegistry() {
+        this(defaultRegistry);
+    }
+
+    private CodecRegistry(CodecRegistry parent) {
+        this.parent=parent;
+        if (parent == null)
+            registerPlatformCodecs();
+    }
+
+    /**
+     * Gets the default registry, used by the messages of the default factories.
+     * @return the default registry
+     */
+    public static CodecRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * Registers a codec.
+     * <br>
+     * Registering the same class again with the same tag replaces its codec.
+     * @param tag the type tag
+     * @param type the class of the encoded objects
+     * @param codec the codec
+     * @throws IllegalArgumentException if the tag is out of range, or it is used by another class,
+     * or the class already has another tag
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void register(int tag, Class<T> type, ObjectCodec<? super T> codec) {
+        if (tag < MIN_TAG || tag > MAX_TAG)
+            throw new IllegalArgumentException("Codec tag "+tag+" out of range");
+        final Entry old=getEntry(tag);
+        if (old != null && old.type != type)
+            throw new IllegalArgumentException("Codec tag "+tag+" already used by "+old.type.getName());
+        final Entry oldType=getEntry(type);
+        if (oldType != null && oldType.tag != tag)
+            throw new IllegalArgumentException(type.getName()+" already has codec tag "+oldType.tag);
+
+        final Entry entry=new Entry(tag,type,(ObjectCodec<Object>) codec);
+        final Map<Class<?>,Entry> map=new HashMap<Class<?>,Entry>(byClass);
+        map.put(type,entry);
+        final Entry[] tags=byTag.clone();
+        tags[tag]=entry;
+        byTag=tags;
+        byClass=map;
+    }
+
+    /**
+     * Gets the codec registered for the given class.
+     * @param type the class
+     * @return the codec, or null if the class has none
+     */
+    public ObjectCodec<?> getCodec(Class<?> type) {
+        final Entry entry=getEntry(type);
+        return entry == null ? null : entry.codec;
+    }
+
+    /**
+     * Gets the codec registered with the given tag.
+     * @param tag the type tag
+     * @return the codec, or null if the tag is not used
+     */
+    public ObjectCodec<?> getCodec(int tag) {
+        final Entry entry=getEntry(tag);
+        return entry == null ? null : entry.codec;
+    }
+
+    Entry getEntry(Class<?> type) {
+        final Entry entry=byClass.get(type);
+        if (entry == null && parent != null)
+            return parent.getEntry(type);
+        return entry;
+    }
+
+    Entry getEntry(int tag) {
+        if (tag < MIN_TAG || tag > MAX_TAG)
+            return null;
+        final Entry entry=byTag[tag];
+        if (entry == null && parent != null)
+            return parent.getEntry(tag);
+        return entry;
+    }
+
+    private void registerPlatformCodecs() {
+        register(2,Long.class,new ObjectCodec<Long>() {
+            public void push(Long obj, Message message) {
+                message.pushLong(obj.longValue());
+            }
+            public Long pop(Message message) {
+                return Long.valueOf(message.popLong());
+            }
+        });
+        register(3,Integer.class,new ObjectCodec<Integer>() {
+            public void push(Integer obj, Message message) {
+                message.pushInt(obj.intValue());
+            }
+            public Integer pop(Message message) {
+                return Integer.valueOf(message.popInt());
+            }
+        });
+        register(4,Short.class,new ObjectCodec<Short>() {
+            public void push(Short obj, Message message) {
+                message.pushShort(obj.shortValue());
+            }
+            public Short pop(Message message) {
+                return Short.valueOf(message.popShort());
+            }
+        });
+        register(5,Byte.class,new ObjectCodec<Byte>() {
+            public void push(Byte obj, Message message) {
+                message.pushByte(obj.byteValue());
+            }
+            public Byte pop(Message message) {
+                return Byte.valueOf(message.popByte());
+            }
+        });
+        register(6,Boolean.class,new ObjectCodec<Boolean>() {
+            public void push(Boolean obj, Message message) {
+                message.pushBoolean(obj.booleanValue());
+            }
+            public Boolean pop(Message message) {
+                return Boolean.valueOf(message.popBoolean());
+            }
+        });
+        register(7,Double.class,new ObjectCodec<Double>() {
+            public void push(Double obj, Message message) {
+                message.pushDouble(obj.doubleValue());
+            }
+            public Double pop(Message message) {
+                return Double.valueOf(message.popDouble());
+            }
+        });
+        register(8,Float.class,new ObjectCodec<Float>() {
+            public void push(Float obj, Message message) {
+                message.pushFloat(obj.floatValue());
+            }
+            public Float pop(Message message) {
+                return Float.valueOf(message.popFloat());
+            }
+        });
+        register(9,String.class,new ObjectCodec<String>() {
+            public void push(String obj, Message message) {
+                message.pushLongString(obj);
+            }
+            public String pop(Message message) {
+                return message.popLongString();
+            }
+        });
+        register(10,byte[].class,new ObjectCodec<byte[]>() {
+            public void push(byte[] obj, Message message) {
+                if (obj.length > 0) {
+                    final MsgBuffer mbuf=new MsgBuffer();
+                    mbuf.len=obj.length;
+                    message.push(mbuf);
+                    System.arraycopy(obj,0,mbuf.data,mbuf.off,mbuf.len);
+                }
+                message.pushInt(obj.length);
+            }
+            public byte[] pop(Message message) {
+                final MsgBuffer mbuf=new MsgBuffer();
+                mbuf.len=message.popInt();
+                final byte[] obj=new byte[mbuf.len];
+                if (mbuf.len == 0)
+                    return obj;
+                message.popReadOnly(mbuf);
+                System.arraycopy(mbuf.data,mbuf.off,obj,0,mbuf.len);
+                return obj;
+            }
+        });
+    }
+}
@@ -28,13 +28,36 @@ package net.sf.appia.core.message;
  */
 public class DefaultMessageFactory implements MessageFactory {
 
-    public DefaultMessageFactory(){}
+    private final CodecRegistry codecs;
+
+    public DefaultMessageFactory(){
+        this(CodecRegistry.getDefault());
+    }
+
+    /**
+     * Creates a factory whose messages use the given codecs in
+     * {@link Message#pushObject(Object)} and {@link Message#popObject()}.
+     * @param codecs the registry of the codecs
+     */
+    public DefaultMessageFactory(CodecRegistry codecs){
+        this.codecs=codecs;
+    }
+
+    /**
+     * Gets the registry of the codecs used by the messages of this factory.
+     */
+    public CodecRegistry getCodecRegistry() {
+        return codecs;
+    }
+
     /**
      * 
      * @see net.sf.appia.core.message.MessageFactory#newMessage()
      */
     public Message newMessage() {
-        return new Message();
+        final Message m=new Message();
+        m.setCodecRegistry(codecs);
+        return m;
     }
 
     /**
@@ -42,7 +65,9 @@ public class DefaultMessageFactory implements MessageFactory {
      * @see net.sf.appia.core.message.MessageFactory#newMessage(byte[], int, int)
      */
     public Message newMessage(byte[] payload, int offset, int length) {
-        return new Message(payload,offset,length);
+        final Message m=new Message(payload,offset,length);
+        m.setCodecRegistry(codecs);
+        return m;
     }
 
 }
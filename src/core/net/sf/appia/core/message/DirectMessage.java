@@ -0,0 +1,269 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.nio.ByteBuffer;
+
+import net.sf.appia.core.AppiaConfig;
+
+/**
+ * Message whose payload is kept in a {@link ByteBuffer}, usually a direct one,
+ * outside the heap.
+ * <br>
+ * The headers pushed by the sessions are kept in the usual blocks, in front of
+ * the payload, so the push, pop and peek methods behave as in {@link Message}.
+ * The payload is only copied to the heap if some session reads into it, with
+ * pop, peek, frag, join or a {@link MsgWalk}.
+ * Otherwise, {@link #toByteBuffers()} gives the headers followed by the
+ * payload, and the payload goes to the network without being copied.
+ * <br>
+ * The payload is never changed by the message, so clones share it.
+ *
+ * @see DirectMessageFactory
+ */
+public class DirectMessage extends Message {
+
+	/* the payload, after all the blocks, or null */
+	private ByteBuffer payload = null;
+
+	/**
+	 * Builds a new empty message.
+	 */
+	public DirectMessage() {
+		super();
+	}
+
+	/**
+	 * Builds a new message with the given payload.
+	 * The payload is the content between the position and the limit of the buffer.
+	 * The buffer must not be changed while the message is in use.
+	 * @param payload the payload of the message
+	 */
+	public DirectMessage(ByteBuffer payload) {
+		super();
+		setPayload(payload);
+	}
+
+	/**
+	 * Builds a new message with initial data in the heap.
+	 * @param data the data to add into the message.
+	 * @param offset the offset of important data
+	 * @param length the length of the data
+	 */
+	public DirectMessage(byte[] data, int offset, int length) {
+		super(data, offset, length);
+	}
+
+	/**
+	 * Sets the payload of the message.
+	 * If the message contained some data, it is discarded.
+	 * The payload is the content between the position and the limit of the buffer.
+	 * The buffer must not be changed while the message is in use.
+	 * @param payload the payload of the message
+	 */
+	public void setPayload(ByteBuffer payload) {
+		discardAll();
+		this.payload = payload.slice().asReadOnlyBuffer();
+		if (AppiaConfig.QUOTA_ON)
+			bind(this.payload.remaining());
+	}
+
+	/**
+	 * Checks if the payload was not copied to the heap.
+	 * @return true if the message has a payload outside the blocks
+	 */
+	public boolean hasPayload() {
+		return payload != null;
+	}
+
+	private int payloadLength() {
+		return (payload == null) ? 0 : payload.remaining();
+	}
+
+	/*
+	 * Copies the payload to a block at the end of the message.
+	 */
+	private void copyPayload() {
+		if (payload == null)
+			return;
+
+		final int len = payload.remaining();
+		final byte[] data = new byte[len];
+		payload.duplicate().get(data);
+		payload = null;
+
+		// join binds the bytes again
+		if (AppiaConfig.QUOTA_ON)
+			unBind(len);
+		super.join(new Message(data, 0, len));
+	}
+
+	private void dropPayload() {
+		if (payload == null)
+			return;
+		if (AppiaConfig.QUOTA_ON)
+			unBind(payload.remaining());
+		payload = null;
+	}
+
+	public int length() {
+		return super.length() + payloadLength();
+	}
+
+	public void setByteArray(byte[] data, int offset, int length) {
+		dropPayload();
+		super.setByteArray(data, offset, length);
+	}
+
+	public void peek(MsgBuffer mbuf) {
+		if (mbuf.len > super.length())
+			copyPayload();
+		super.peek(mbuf);
+	}
+
+	public void pop(MsgBuffer mbuf) {
+		if (mbuf.len > super.length())
+			copyPayload();
+		super.pop(mbuf);
+	}
+
+	public void popReadOnly(MsgBuffer mbuf) {
+		if (mbuf.len > super.length())
+			copyPayload();
+		super.popReadOnly(mbuf);
+	}
+
+	public void peekReadOnly(MsgBuffer mbuf) {
+		if (mbuf.len > super.length())
+			copyPayload();
+		super.peekReadOnly(mbuf);
+	}
+
+	public int discard(int length) {
+		final int headers = super.length();
+		if ((payload == null) || (length <= headers))
+			return super.discard(length);
+
+		super.discard(headers);
+		final int remove = Math.min(length - headers, payload.remaining());
+		if (AppiaConfig.QUOTA_ON)
+			unBind(remove);
+		payload.position(payload.position() + remove);
+		return headers + remove;
+	}
+
+	public void discardAll() {
+		dropPayload();
+		super.discardAll();
+	}
+
+	public int truncate(int newLength) {
+		final int headers = super.length();
+		if ((payload == null) || (newLength < headers)) {
+			dropPayload();
+			return super.truncate(newLength);
+		}
+
+		if (newLength >= length())
+			return 0;
+
+		final int remove = payload.remaining() - (newLength - headers);
+		if (AppiaConfig.QUOTA_ON)
+			unBind(remove);
+		payload.limit(payload.limit() - remove);
+		return newLength;
+	}
+
+	public void frag(Message m, int length) {
+		copyPayload();
+		if (m instanceof DirectMessage)
+			((DirectMessage) m).dropPayload();
+		super.frag(m, length);
+	}
+
+	public void join(Message m) {
+		copyPayload();
+		if (m instanceof DirectMessage)
+			((DirectMessage) m).copyPayload();
+		super.join(m);
+	}
+
+	public void join(Message[] messages) {
+		copyPayload();
+		for (int i = 0; i < messages.length; i++)
+			if (messages[i] instanceof DirectMessage)
+				((DirectMessage) messages[i]).copyPayload();
+		super.join(messages);
+	}
+
+	public byte[] toByteArray() {
+		if (payload == null)
+			return super.toByteArray();
+
+		final ByteBuffer[] buffers = toByteBuffers();
+		final byte[] array = new byte[length()];
+		int off = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			final int len = buffers[i].remaining();
+			buffers[i].get(array, off, len);
+			off += len;
+		}
+		return array;
+	}
+
+	/**
+	 * Gets the message as an array of {@link ByteBuffer ByteBuffers}: one for each
+	 * block of headers, followed by the payload, that is not copied.
+	 * @see net.sf.appia.core.message.Message#toByteBuffers()
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		final ByteBuffer[] blocks = super.toByteBuffers();
+		if (payload == null)
+			return blocks;
+
+		final ByteBuffer[] buffers = new ByteBuffer[blocks.length + 1];
+		System.arraycopy(blocks, 0, buffers, 0, blocks.length);
+		buffers[blocks.length] = payload.duplicate();
+		return buffers;
+	}
+
+	public MsgWalk getMsgWalk() {
+		copyPayload();
+		return super.getMsgWalk();
+	}
+
+	public MsgWalk getMsgWalkReadOnly() {
+		copyPayload();
+		return super.getMsgWalkReadOnly();
+	}
+
+	public Object clone() throws CloneNotSupportedException {
+		final DirectMessage msg = (DirectMessage) super.clone();
+		if (payload != null)
+			msg.payload = payload.duplicate();
+		return msg;
+	}
+
+	protected void finalize() throws Throwable {
+		dropPayload();
+		super.finalize();
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Message factory that creates {@link DirectMessage DirectMessages}.
+ * <br>
+ * It can be set with {@link net.sf.appia.core.Channel#setMessageFactory(MessageFactory)}
+ * or in the <code>messageFactory</code> attribute of a channel in the XML configuration.
+ * If a {@link BufferPool} is given, the headers are pushed into arrays of that pool.
+ */
+public class DirectMessageFactory implements MessageFactory {
+
+    private final BufferPool pool;
+
+    /**
+     * Creates a factory whose messages allocate the arrays of the headers.
+     */
+    public DirectMessageFactory(){
+        this(null);
+    }
+
+    /**
+     * Creates a factory whose messages push the headers into arrays of the given pool.
+     */
+    public DirectMessageFactory(BufferPool pool){
+        this.pool=pool;
+    }
+
+    /**
+     * 
+     * @see net.sf.appia.core.message.MessageFactory#newMessage()
+     */
+    public Message newMessage() {
+        final Message m=new DirectMessage();
+        m.setBufferPool(pool);
+        return m;
+    }
+
+    /**
+     * 
+     * @see net.sf.appia.core.message.MessageFactory#newMessage(byte[], int, int)
+     */
+    public Message newMessage(byte[] payload, int offset, int length) {
+        final Message m=new DirectMessage(payload,offset,length);
+        m.setBufferPool(pool);
+        return m;
+    }
+
+    /**
+     * Creates a new message with the given payload, that is not copied.
+     * @see DirectMessage#DirectMessage(ByteBuffer)
+     */
+    public DirectMessage newMessage(ByteBuffer payload) {
+        final DirectMessage m=new DirectMessage(payload);
+        m.setBufferPool(pool);
+        return m;
+    }
+
+}
@@ -55,6 +55,7 @@ import java.io.UTFDataFormatException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import net.sf.appia.core.*;
 import net.sf.appia.core.memoryManager.*;
@@ -105,6 +106,8 @@ public class Message implements Cloneable {
 		public int len;
 		public Block next = null;
 		public int refs = 1;
+		/* the pooled array of this block, or null */
+		BufferPool.Buffer pooled = null;
 		
 		public Block() {}
 		
@@ -124,6 +127,12 @@ public class Message implements Cloneable {
 	protected int ro_off = 0;
 	protected int ro_len = 0;
 	
+	/* Pool of the arrays used to push headers */
+	private BufferPool pool=null;
+	
+	/* Codecs of the objects pushed with pushObject */
+	private CodecRegistry codecs=CodecRegistry.getDefault();
+	
 	/* Memory Manager to bind and unbind */
 	private MemoryManager memoryManager=null;
 	private Object mmLock = new Object();
@@ -193,6 +202,16 @@ public class Message implements Cloneable {
 		ro_off = 0;
 	}
 	
+	/*
+	 * Sets the data of the message to a part of a pooled array, that is retained
+	 * until the block is discarded.
+	 */
+	void setPooledData(BufferPool.Buffer buffer, int offset, int length) {
+		setByteArray(buffer.data, offset, length);
+		first.pooled = buffer;
+		buffer.retain();
+	}
+
 	/**
 	 * Gets the length (in bytes) of the message.
 	 * @return the length (in bytes) of the message.
@@ -303,13 +322,56 @@ public class Message implements Cloneable {
 		if (AppiaConfig.QUOTA_ON)
 			unBind(size);	  
 		size = 0;
+		/* the pooled arrays that are no longer used are returned to their pool */
 		while(first != null){
 			first.refs--;
+			if ((first.refs == 0) && (first.pooled != null)) {
+				first.pooled.release();
+				first.pooled = null;
+			}
 			first = first.next;
 		}
 		ro_mode = false;
 	}
 	
+	/**
+	 * Sets the pool of the arrays used to push headers into this message.
+	 * If null, the arrays are allocated and left to the garbage collector.
+	 * Clones of the message share its pool.
+	 * @param pool the pool to use
+	 * @see BufferPool
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Gets the pool of the arrays used to push headers into this message.
+	 * @return the pool, or null if the message does not use one
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+	
+	/**
+	 * Sets the registry of the codecs used by {@link #pushObject(Object)} and
+	 * {@link #popObject()}. Clones of the message share its registry.
+	 * @param codecs the registry to use
+	 * @see CodecRegistry
+	 */
+	public void setCodecRegistry(CodecRegistry codecs) {
+		this.codecs = codecs == null ? CodecRegistry.getDefault() : codecs;
+	}
+	
+	/**
+	 * Gets the registry of the codecs used by {@link #pushObject(Object)} and
+	 * {@link #popObject()}.
+	 * @return the registry
+	 */
+	public CodecRegistry getCodecRegistry() {
+		return codecs;
+	}
+	
 	/**
 	 * Pops a header from the message and puts the data into the MessageBuffer.
 	 * The number of bytes poped could be different from the nunber of bytes requested.
@@ -410,8 +472,15 @@ public class Message implements Cloneable {
 		int l = mbuf.len;
 		
 		if ((first == null) || (l > (first.off - first.offset)) || (first.refs > 1)) {
-			byte[] a = new byte[l + INCREASE];
-			Block b = new Block(a, 0, a.length, a.length - l);
+			Block b;
+			if (pool != null) {
+				BufferPool.Buffer pb = pool.acquire(l + INCREASE);
+				b = new Block(pb.data, 0, pb.data.length, pb.data.length - l);
+				b.pooled = pb;
+			} else {
+				byte[] a = new byte[l + INCREASE];
+				b = new Block(a, 0, a.length, a.length - l);
+			}
 			
 			b.next = first;
 			first = b;
@@ -523,6 +592,10 @@ public class Message implements Cloneable {
 				} else {
 					m.first =
 						new Block(b.buf,b.off + remain,(b.offset + b.length) - (b.off + remain),b.off + remain);
+					if (b.pooled != null) {
+						m.first.pooled = b.pooled;
+						b.pooled.retain();
+					}
 					//System.out.println("BLOCK: size total: "+m.first.buf.length+" offset: "+m.first.offset+" length: "+m.first.length+" off: "+m.first.off+" len: "+m.first.len);
 					m.first.next = b.next;
 					
@@ -593,6 +666,63 @@ public class Message implements Cloneable {
 		m.size = 0;
 	}
 	
+	/**
+	 * Joins several messages, adding them, in order, to the end of the current message.
+	 * Each block is visited once, so joining n fragments takes linear time, while
+	 * calling {@link #join(Message)} n times walks the blocks already joined again
+	 * on each call.
+	 * @param messages the messages to join with the current message. They are left empty.
+	 */
+	public void join(Message[] messages) {
+		if (ro_mode)
+			clearReadOnly();
+
+		Block tail=null;
+		// the blocks of the last joined message, that are only copied if another one follows
+		Block last=first;
+		for (int i=0 ; i < messages.length ; i++) {
+			final Message m=messages[i];
+			if ((m == null) || (m.first == null))
+				continue;
+			if (m.ro_mode)
+				m.clearReadOnly();
+			if (AppiaConfig.QUOTA_ON) {
+				bind(m.size);
+				m.unBind(m.size);
+			}
+
+			tail=unshare(tail, last);
+			if (tail == null)
+				first=m.first;
+			else
+				tail.next=m.first;
+			size += m.size;
+			last=m.first;
+
+			m.first = null;
+			m.size = 0;
+		}
+	}
+
+	/*
+	 * Replaces the shared blocks, from b to the end, by copies.
+	 * prev is the block before b, or null if b is the first.
+	 * Returns the last block.
+	 */
+	private Block unshare(Block prev, Block b) {
+		for (; b != null; b = b.next) {
+			if (b.refs > 1) {
+				b=copyBlock(b,b.off,b.len);
+				if (prev == null)
+					first=b;
+				else
+					prev.next=b;
+			}
+			prev=b;
+		}
+		return prev;
+	}
+
 	/**
 	 * Gets a byte array version of the message.
 	 * @return a byte array containing the message.
@@ -620,6 +750,32 @@ public class Message implements Cloneable {
 		return array;
 	}
 	
+	/**
+	 * Gets the message as an array of {@link ByteBuffer ByteBuffers}, one for each block,
+	 * that can be used in gathering writes without copying the message.
+	 * <br>
+	 * The buffers share the contents of the message, so they are only valid until the
+	 * message is changed.
+	 * @return the contents of the message, in order
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		int n = 0;
+		for (Block b = first; b != null; b = b.next)
+			n++;
+		
+		ByteBuffer[] buffers = new ByteBuffer[n];
+		int i = 0;
+		Block b = first;
+		if (ro_mode) {
+			buffers[i++] = ByteBuffer.wrap(first.buf, ro_off, ro_len);
+			b = first.next;
+		}
+		for (; b != null; b = b.next)
+			buffers[i++] = ByteBuffer.wrap(b.buf, b.off, b.len);
+		
+		return buffers;
+	}
+	
 	/**
 	 * Gets a MessageWalk object, which is used to travel through the message blocks.
 	 * @return a new instance of MessageWalk object. 
@@ -871,17 +1027,17 @@ public class Message implements Cloneable {
 		synchronized (mmLock) {
 			// from null to not null
 			if (memoryManager == null && newMM != null) {
-				if (!newMM.malloc(size))
+				if (!newMM.malloc(length()))
 					throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
 			}
 			// from not null to null
 			else if (memoryManager != null && newMM == null)
-				memoryManager.free(size);
+				memoryManager.free(length());
 			// from a memory manager to another
 			else if (memoryManager != null && newMM != null && memoryManager != newMM) {
-				if (!newMM.malloc(size))
+				if (!newMM.malloc(length()))
 					throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
-				memoryManager.free(size);
+				memoryManager.free(length());
 			}
 			memoryManager = newMM;			
 		}
@@ -989,13 +1145,15 @@ public class Message implements Cloneable {
 	 * Push an {@link java.lang.Object Object} (<i>header</i>) into the head of
 	 * the message.
 	 * <br>
-	 * The Object must implement the
-	 * {@link java.io.Serializable Serializable} interface. Otherwise
-	 * a MessageException is raised.
+	 * If the class of the Object has a codec in the {@link #getCodecRegistry() registry}
+	 * of the message, the codec writes it. Otherwise, the Object must implement the
+	 * {@link java.io.Serializable Serializable} interface and is written with Java
+	 * serialization. If it does not, a MessageException is raised.
 	 *
 	 * @param obj the {@link java.lang.Object Object} (<i>header</i>) to put in
 	 * the message
 	 * @see net.sf.appia.core.message.MessageException
+	 * @see CodecRegistry
 	 */
 	public void pushObject(Object obj) {
 		if(obj instanceof InetSocketAddress){
@@ -1003,6 +1161,14 @@ public class Message implements Cloneable {
 			pushByte(INET_SOCKET_ADDR);
 			return;
 		}
+		if(obj != null){
+			final CodecRegistry.Entry entry = codecs.getEntry(obj.getClass());
+			if(entry != null){
+				entry.codec.push(obj, this);
+				pushUnsignedByte(entry.tag);
+				return;
+			}
+		}
 		
 		if (aos == null)
 			aos = new AuxOutputStream();
@@ -1169,15 +1335,44 @@ public class Message implements Cloneable {
 	 * @see java.io.DataOutputStream
 	 */
 	public void pushString(String str) {
-		int strlen = str.length();
-		int utflen = 0;
-		char[] charr = new char[strlen];
-		int c, count = 0;
+		final char[] charr = str.toCharArray();
+		final int utflen = utfLength(charr);
+		
+		/* verified before pushing, so that the message is not changed */
+		if (utflen > 65535)
+			throw new MessageException("Error writing string to message.",new UTFDataFormatException());
 		
-		str.getChars(0, strlen, charr, 0);
+		mbuf.len = utflen + 2;
+		this.push(mbuf);
 		
-		for (int i = 0; i < strlen; i++) {
-			c = charr[i];
+		mbuf.data[mbuf.off + 0] = (byte) ((utflen >>> 8) & 0xFF);
+		mbuf.data[mbuf.off + 1] = (byte) ((utflen >>> 0) & 0xFF);
+		encodeUTF(charr, mbuf.data, mbuf.off + 2);
+	}
+	
+	/**
+	 * Pushes the given string into the message, with its length in an <I>int</I>.
+	 * <br>
+	 * Used by the codec of strings, that has no limit on their length.
+	 * The string is coded as in {@link #pushString(String)}.
+	 * @param str The string to push into the message.
+	 */
+	void pushLongString(String str) {
+		final char[] charr = str.toCharArray();
+		final int utflen = utfLength(charr);
+		if (utflen > 0) {
+			mbuf.len = utflen;
+			this.push(mbuf);
+			encodeUTF(charr, mbuf.data, mbuf.off);
+		}
+		pushInt(utflen);
+	}
+	
+	/* length of the given characters, coded with modified UTF-8 */
+	private static int utfLength(char[] charr) {
+		int utflen = 0;
+		for (int i = 0; i < charr.length; i++) {
+			final int c = charr[i];
 			if ((c >= 0x0001) && (c <= 0x007F)) {
 				utflen++;
 			} else if (c > 0x07FF) {
@@ -1186,26 +1381,23 @@ public class Message implements Cloneable {
 				utflen += 2;
 			}
 		}
-		
-		mbuf.len = utflen + 2;
-		this.push(mbuf);
-		
-		if (utflen > 65535)
-			throw new MessageException("Error writing string to message.",new UTFDataFormatException());
-		
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 8) & 0xFF);
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 0) & 0xFF);
-		for (int i = 0; i < strlen; i++) {
+		return utflen;
+	}
+	
+	/* writes the given characters, coded with modified UTF-8, starting at the given offset */
+	private static void encodeUTF(char[] charr, byte[] data, int off) {
+		int c, count = off;
+		for (int i = 0; i < charr.length; i++) {
 			c = charr[i];
 			if ((c >= 0x0001) && (c <= 0x007F)) {
-				mbuf.data[mbuf.off + count++] = (byte) c;
+				data[count++] = (byte) c;
 			} else if (c > 0x07FF) {
-				mbuf.data[mbuf.off + count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
+				data[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				data[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
 			} else {
-				mbuf.data[mbuf.off + count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
+				data[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				data[count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
 			}
 		}
 	}
@@ -1237,6 +1429,8 @@ public class Message implements Cloneable {
 		if(objectType == INET_SOCKET_ADDR){
 			return popInetSocketAddress();
 		}
+		if(objectType != GENERIC_OBJECT)
+			return getCodecEntry(objectType).codec.pop(this);
 		// else, is the generic object
 		if (ais == null)
 			ais=new AuxInputStream();
@@ -1462,6 +1656,22 @@ public class Message implements Cloneable {
 			throw new MessageException("Error reading string from message.",new EOFException());
 		int utflen = (ch1 << 8) + (ch2 << 0);
 		
+		return popUTF(utflen);
+	}
+	
+	/**
+	 * Pops a string pushed with {@link #pushLongString(String)}.
+	 * @return the string removed from the message
+	 */
+	String popLongString() {
+		final int utflen = popInt();
+		if (utflen == 0)
+			return "";
+		return popUTF(utflen);
+	}
+	
+	/* pops a string coded with modified UTF-8, with the given length */
+	private String popUTF(int utflen) {
 		mbuf.len = utflen;
 		char str[] = new char[utflen];
 		popReadOnly(mbuf);
@@ -1507,6 +1717,13 @@ public class Message implements Cloneable {
 		return new String(str, 0, strlen);
 	}
 	
+	private CodecRegistry.Entry getCodecEntry(byte objectType) {
+		final CodecRegistry.Entry entry = codecs.getEntry(objectType & 0xFF);
+		if (entry == null)
+			throw new MessageException("Trying to read an object with an unknown codec tag "+(objectType & 0xFF)+".");
+		return entry;
+	}
+	
 	private InetSocketAddress popInetSocketAddress() {
 		MsgBuffer mbuf = new MsgBuffer();
 		mbuf.len = 6;
@@ -1548,6 +1765,16 @@ public class Message implements Cloneable {
 			pushByte(objectType);
 			return addr;
 		}
+		if(objectType != GENERIC_OBJECT){
+			try {
+				final CodecRegistry.Entry entry = getCodecEntry(objectType);
+				final Object obj = entry.codec.pop(this);
+				entry.codec.push(obj, this);
+				return obj;
+			} finally {
+				pushByte(objectType);
+			}
+		}
 		
 		if (ais == null)
 			ais=new AuxInputStream();
@@ -2022,11 +2249,5 @@ public class Message implements Cloneable {
 		return true;
 	}
 	
-	protected void finalize() throws Throwable {
-		super.finalize();
-		if(size>0)
-			discardAll();
-	}
-	
 } // end of class Message
 
@@ -0,0 +1,49 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.message;
+
+/**
+ * Binary encoding of the objects of one type, used by
+ * {@link Message#pushObject(Object)} and {@link Message#popObject()}.
+ * <br>
+ * A codec writes the object with the <i>push</i> methods of the message, and
+ * reads it back with the matching <i>pop</i> methods, in the reverse order.
+ * Codecs are registered in a {@link CodecRegistry} with a type tag that identifies
+ * them in the messages.
+ *
+ * @param <T> the type of the encoded objects
+ * @see CodecRegistry
+ */
+public interface ObjectCodec<T> {
+
+    /**
+     * Pushes the object into the head of the message.
+     * @param obj the object, never null
+     * @param message the message
+     */
+    void push(T obj, Message message);
+
+    /**
+     * Pops an object pushed by {@link #push(Object, Message)}.
+     * @param message the message
+     * @return the object
+     */
+    T pop(Message message);
+}
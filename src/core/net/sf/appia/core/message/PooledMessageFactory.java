@@ -0,0 +1,95 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+/**
+ * Message factory that creates messages whose headers are pushed into
+ * arrays of a {@link BufferPool}.
+ * <br>
+ * It can be used in the XML configuration, in the <code>messageFactory</code>
+ * attribute of a channel. In that case, all the channels share the
+ * {@link BufferPool#getDefault() default pool}.
+ */
+public class PooledMessageFactory implements MessageFactory {
+
+    private final BufferPool pool;
+    private final CodecRegistry codecs;
+
+    /**
+     * Creates a factory that uses the default pool.
+     */
+    public PooledMessageFactory(){
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * Creates a factory that uses the given pool.
+     */
+    public PooledMessageFactory(BufferPool pool){
+        this(pool,CodecRegistry.getDefault());
+    }
+
+    /**
+     * Creates a factory that uses the given pool and the given codecs in
+     * {@link Message#pushObject(Object)} and {@link Message#popObject()}.
+     */
+    public PooledMessageFactory(BufferPool pool, CodecRegistry codecs){
+        this.pool=pool;
+        this.codecs=codecs;
+    }
+
+    /**
+     * Gets the pool used by the messages of this factory.
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * Gets the registry of the codecs used by the messages of this factory.
+     */
+    public CodecRegistry getCodecRegistry() {
+        return codecs;
+    }
+
+    /**
+     *
+     * @see net.sf.appia.core.message.MessageFactory#newMessage()
+     */
+    public Message newMessage() {
+        final Message m=new Message();
+        m.setBufferPool(pool);
+        m.setCodecRegistry(codecs);
+        return m;
+    }
+
+    /**
+     *
+     * @see net.sf.appia.core.message.MessageFactory#newMessage(byte[], int, int)
+     */
+    public Message newMessage(byte[] payload, int offset, int length) {
+        final Message m=new Message(payload,offset,length);
+        m.setBufferPool(pool);
+        m.setCodecRegistry(codecs);
+        return m;
+    }
+
+}
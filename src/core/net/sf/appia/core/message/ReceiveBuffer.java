@@ -0,0 +1,121 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Array of a {@link BufferPool} where datagrams are received one after the other.
+ * <br>
+ * Each message received is set to its part of the array, without copying it, and
+ * the array returns to the pool when all its messages are discarded. When the
+ * free space at the end of the array is smaller than the largest datagram, another
+ * array is taken from the pool.
+ * <br>
+ * It must be used by a single thread.
+ */
+public final class ReceiveBuffer {
+
+    private final BufferPool pool;
+    private final int maxLength;
+    private BufferPool.Buffer buffer = null;
+    private ByteBuffer byteBuffer = null;
+    private int position = 0;
+
+    /**
+     * Creates a buffer.
+     *
+     * @param pool the pool of the arrays
+     * @param maxLength the maximum length of a datagram
+     */
+    public ReceiveBuffer(BufferPool pool, int maxLength) {
+        this.pool = pool;
+        this.maxLength = maxLength;
+        next();
+    }
+
+    private void next() {
+        if (buffer != null)
+            buffer.release();
+        buffer = pool.acquire(Math.max(BufferPool.MAX_SIZE, maxLength));
+        byteBuffer = ByteBuffer.wrap(buffer.data);
+        position = 0;
+    }
+
+    /**
+     * Gets the buffer where the next datagram is received, from the current
+     * {@link #position() position} up to the maximum length of a datagram.
+     */
+    public ByteBuffer getBuffer() {
+        byteBuffer.limit(position + maxLength);
+        byteBuffer.position(position);
+        return byteBuffer;
+    }
+
+    /**
+     * The array where the next datagram is received.
+     */
+    public byte[] array() {
+        return buffer.data;
+    }
+
+    /**
+     * The position of the next datagram in the {@link #array() array}.
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Sets the data of the message to a part of the received datagram.
+     * The message uses the given pool for its headers, unless it already has one.
+     *
+     * @param message the message
+     * @param offset the offset of the data in the {@link #array() array}
+     * @param length the length of the data
+     */
+    public void take(Message message, int offset, int length) {
+        message.setPooledData(buffer, offset, length);
+        if (message.getBufferPool() == null)
+            message.setBufferPool(pool);
+    }
+
+    /**
+     * Keeps the received datagram, whose data was taken by a message. Otherwise,
+     * its space is used by the next datagram.
+     *
+     * @param length the length of the datagram
+     */
+    public void consume(int length) {
+        position += length;
+        if (buffer.data.length - position < maxLength)
+            next();
+    }
+
+    /**
+     * Gives the array back to the pool, when all its messages are discarded.
+     */
+    public void release() {
+        if (buffer != null)
+            buffer.release();
+        buffer = null;
+        byteBuffer = null;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.EchoEvent;
+
+/**
+ * Layer definition of the batching protocol.
+ * <br>
+ * It provides the following events:
+ * <ul>
+ * <li>BatchEvent: frames with several messages.
+ * <li>EchoEvent and BatchFlushEvent: to send the held messages when the scheduler is idle.
+ * <li>BatchTimer: to bound the time a message is held.
+ * </ul>
+ *
+ * @see BatchSession
+ */
+public class BatchLayer extends Layer {
+
+    public BatchLayer() {
+        evRequire = new Class[] {
+                SendableEvent.class,
+                ChannelInit.class,
+        };
+
+        evAccept = new Class[] {
+                SendableEvent.class,
+                ChannelInit.class,
+                ChannelClose.class,
+                BatchFlushEvent.class,
+                BatchTimer.class,
+        };
+
+        evProvide = new Class[] {
+                BatchEvent.class,
+                EchoEvent.class,
+                BatchFlushEvent.class,
+                BatchTimer.class,
+        };
+    }
+
+    /**
+     * @see net.sf.appia.core.Layer#createSession()
+     */
+    public Session createSession() {
+        return new BatchSession(this);
+    }
+}
@@ -0,0 +1,418 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.EchoEvent;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.EventFactory;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Batching protocol. Consecutive messages going down to the same destination are
+ * held and sent together in a {@link BatchEvent}, so the layers below, and the transport,
+ * handle a single message for all of them. The receiver delivers each message
+ * separately, with its original event class, source and destination.
+ * <br>
+ * The messages held are sent when:
+ * <ul>
+ * <li>the next message does not fit in <b>max_size</b> bytes;
+ * <li>the first of them is held for <b>linger</b> microseconds;
+ * <li>the scheduler of the channel has no other events, so no more messages
+ * will arrive soon.
+ * </ul>
+ * A single message, or one larger than the maximum size, is sent unchanged. The order
+ * of the messages to each destination is kept, but not the order between destinations.
+ * Only the message, source and destination of the events are carried.
+ * <br>
+ * The layer should be placed right below the layers that generate many small messages,
+ * so that each frame, and not each message, gets the headers of the layers below.
+ *
+ * @see BatchLayer
+ */
+public class BatchSession extends Session implements InitializableSession {
+
+    private static Logger log = Logger.getLogger(BatchSession.class);
+
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    public static final long DEFAULT_LINGER = 1000;
+
+    /* bytes added to the frame by each message: its class and its length */
+    private static final int ENTRY_SIZE = 5;
+    private static final int MAX_CLASSES = 255;
+
+    private int paramMaxSize = DEFAULT_MAX_SIZE;
+    private long paramLinger = DEFAULT_LINGER;
+    private boolean paramIdleFlush = true;
+
+    private final HashMap<Channel,Batches> channels = new HashMap<Channel,Batches>();
+
+    /*
+     * Messages held for a destination.
+     */
+    private static final class Batch {
+        final Object dest;
+        final long start;
+        SendableEvent[] events = new SendableEvent[16];
+        int[] lengths = new int[16];
+        int[] types = new int[16];
+        Class<?>[] classes = new Class<?>[4];
+        int count = 0;
+        int nClasses = 0;
+        int size = 0;
+
+        Batch(Object dest, long start) {
+            this.dest = dest;
+            this.start = start;
+        }
+
+        /*
+         * Returns false if the event class does not fit in the frame.
+         */
+        boolean add(SendableEvent e, int length) {
+            final Class<?> c = e.getClass();
+            int type = 0;
+            while ((type < nClasses) && (classes[type] != c))
+                type++;
+            if (type == nClasses) {
+                if (nClasses == MAX_CLASSES)
+                    return false;
+                if (nClasses == classes.length)
+                    classes = Arrays.copyOf(classes, nClasses * 2);
+                classes[nClasses++] = c;
+            }
+            if (count == events.length) {
+                events = Arrays.copyOf(events, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                types = Arrays.copyOf(types, count * 2);
+            }
+            events[count] = e;
+            lengths[count] = length;
+            types[count] = type;
+            count++;
+            size += length + ENTRY_SIZE;
+            return true;
+        }
+    }
+
+    /*
+     * State of a channel.
+     */
+    private static final class Batches {
+        final Channel channel;
+        final HashMap<Object,Batch> batches = new HashMap<Object,Batch>();
+        boolean idleFlush = false;
+        boolean timer = false;
+
+        Batches(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /*
+     * Destinations are AppiaMulticast objects created for each message, so
+     * they are compared by their contents.
+     */
+    private static final class MulticastKey {
+        private final Object address;
+        private final Object[] destinations;
+        private final int hash;
+
+        MulticastKey(AppiaMulticast dest) {
+            address = dest.getMulticastAddress();
+            destinations = dest.getDestinations();
+            hash = 31 * ((address == null) ? 0 : address.hashCode()) + Arrays.hashCode(destinations);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof MulticastKey))
+                return false;
+            final MulticastKey k = (MulticastKey) o;
+            return ((address == null) ? (k.address == null) : address.equals(k.address))
+                    && Arrays.equals(destinations, k.destinations);
+        }
+    }
+
+    /**
+     * Creates a new session.
+     */
+    public BatchSession(Layer layer) {
+        super(layer);
+    }
+
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>max_size</b> the maximum number of bytes of the messages sent together. (default 4096)
+     * <li><b>linger</b> the maximum time a message is held, in microseconds. The timer has the resolution
+     * of the {@link net.sf.appia.core.TimerManager TimerManager}, but the time is also checked when
+     * each message arrives. 0 means messages are only sent when the next one does not fit, or
+     * when the scheduler is idle. (default 1000)
+     * <li><b>idle_flush</b> send the messages when the scheduler has no other events. (default true)
+     * </ul>
+     *
+     * @param params The parameters given in the XML configuration.
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("max_size"))
+            paramMaxSize = params.getInt("max_size");
+        if (params.containsKey("linger"))
+            paramLinger = params.getLong("linger");
+        if (params.containsKey("idle_flush"))
+            paramIdleFlush = params.getBoolean("idle_flush");
+        // otherwise messages could be held forever
+        if (paramLinger <= 0)
+            paramIdleFlush = true;
+    }
+
+    /**
+     * Main event handler.
+     *
+     * @param event the event to handle.
+     * @see net.sf.appia.core.Session#handle(net.sf.appia.core.Event)
+     */
+    public void handle(Event event) {
+        if (event instanceof SendableEvent) {
+            if (event.getDir() == Direction.DOWN)
+                handleDown((SendableEvent) event);
+            else if (event instanceof BatchEvent)
+                handleBatch((BatchEvent) event);
+            else
+                forward(event);
+        } else if (event instanceof BatchFlushEvent)
+            handleFlush((BatchFlushEvent) event);
+        else if (event instanceof BatchTimer)
+            handleTimer((BatchTimer) event);
+        else if (event instanceof ChannelInit)
+            handleChannelInit((ChannelInit) event);
+        else if (event instanceof ChannelClose)
+            handleChannelClose((ChannelClose) event);
+        else
+            forward(event);
+    }
+
+    private void forward(Event event) {
+        try {
+            event.go();
+        } catch (AppiaEventException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleChannelInit(ChannelInit init) {
+        channels.put(init.getChannel(), new Batches(init.getChannel()));
+        forward(init);
+    }
+
+    private void handleChannelClose(ChannelClose close) {
+        final Batches b = channels.remove(close.getChannel());
+        if (b != null)
+            flushAll(b);
+        forward(close);
+    }
+
+    private void handleDown(SendableEvent e) {
+        final Batches b = channels.get(e.getChannel());
+        if (b == null) {
+            forward(e);
+            return;
+        }
+
+        final int length = e.getMessage().length();
+        final Object key = (e.dest instanceof AppiaMulticast) ? new MulticastKey((AppiaMulticast) e.dest) : e.dest;
+        Batch batch = b.batches.get(key);
+        if (length + ENTRY_SIZE >= paramMaxSize) {
+            if (batch != null)
+                flush(b, key, batch);
+            forward(e);
+            return;
+        }
+
+        final long now = (paramLinger > 0) ? e.getChannel().getTimeProvider().currentTimeMicros() : 0;
+        if ((batch != null) && (batch.size + length + ENTRY_SIZE > paramMaxSize)) {
+            flush(b, key, batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new Batch(e.dest, now);
+            b.batches.put(key, batch);
+            schedule(b);
+        }
+        if (!batch.add(e, length)) {
+            flush(b, key, batch);
+            batch = new Batch(e.dest, now);
+            b.batches.put(key, batch);
+            batch.add(e, length);
+        }
+        if ((paramLinger > 0) && (now - batch.start >= paramLinger))
+            flush(b, key, batch);
+    }
+
+    /*
+     * Makes sure the held messages of the channel are sent later.
+     */
+    private void schedule(Batches b) {
+        try {
+            if (paramIdleFlush && !b.idleFlush) {
+                new EchoEvent(new BatchFlushEvent(), b.channel, Direction.DOWN, this).goWhenIdle();
+                b.idleFlush = true;
+            }
+            if ((paramLinger > 0) && !b.timer) {
+                new BatchTimer((paramLinger + 999) / 1000, b.channel, this).go();
+                b.timer = true;
+            }
+        } catch (AppiaEventException e) {
+            e.printStackTrace();
+        } catch (AppiaException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleFlush(BatchFlushEvent e) {
+        final Batches b = channels.get(e.getChannel());
+        if (b != null) {
+            b.idleFlush = false;
+            flushAll(b);
+        }
+    }
+
+    private void handleTimer(BatchTimer timer) {
+        final Batches b = channels.get(timer.getChannel());
+        if (b != null) {
+            b.timer = false;
+            flushAll(b);
+        }
+    }
+
+    private void flushAll(Batches b) {
+        final Iterator<Batch> it = b.batches.values().iterator();
+        while (it.hasNext()) {
+            send(b, it.next());
+            it.remove();
+        }
+    }
+
+    private void flush(Batches b, Object key, Batch batch) {
+        b.batches.remove(key);
+        send(b, batch);
+    }
+
+    private void send(Batches b, Batch batch) {
+        if (batch.count == 1) {
+            forward(batch.events[0]);
+            return;
+        }
+
+        try {
+            final BatchEvent frame = new BatchEvent(b.channel, this);
+            frame.dest = batch.dest;
+            final Message msg = frame.getMessage();
+            final Message[] messages = new Message[batch.count];
+            for (int i = 0; i < batch.count; i++)
+                messages[i] = batch.events[i].getMessage();
+            msg.join(messages);
+
+            // popped in the opposite order
+            for (int i = batch.count - 1; i >= 0; i--) {
+                msg.pushInt(batch.lengths[i]);
+                msg.pushUnsignedByte(batch.types[i]);
+            }
+            for (int i = batch.nClasses - 1; i >= 0; i--)
+                msg.pushString(batch.classes[i].getName());
+            msg.pushUnsignedByte(batch.nClasses);
+            msg.pushInt(batch.count);
+
+            for (int i = 0; i < batch.count; i++)
+                batch.events[i].release();
+            frame.go();
+        } catch (AppiaEventException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleBatch(BatchEvent frame) {
+        // the message of the frame is given to the first event
+        Message msg = frame.getMessage();
+        try {
+            final int count = msg.popInt();
+            final int nClasses = msg.popUnsignedByte();
+            final ArrayList<Constructor<? extends SendableEvent>> constructors =
+                new ArrayList<Constructor<? extends SendableEvent>>(nClasses);
+            for (int i = 0; i < nClasses; i++)
+                constructors.add(EventFactory.getConstructor(msg.popString()));
+            final int[] types = new int[count];
+            final int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = msg.popUnsignedByte();
+                lengths[i] = msg.popInt();
+            }
+
+            final Channel channel = frame.getChannel();
+            for (int i = 0; i < count; i++) {
+                final SendableEvent e = EventFactory.newEvent(channel, constructors.get(types[i]));
+                final Message next;
+                if (i == count - 1)
+                    next = null;
+                else if (lengths[i] == 0) {
+                    next = msg;
+                    msg = channel.getMessageFactory().newMessage();
+                } else {
+                    next = channel.getMessageFactory().newMessage();
+                    msg.frag(next, lengths[i]);
+                }
+                e.setMessage(msg);
+                e.source = frame.source;
+                e.dest = frame.dest;
+                e.setChannel(channel);
+                e.setDir(Direction.UP);
+                e.setSourceSession(this);
+                e.init();
+                e.go();
+                msg = next;
+            }
+        } catch (Exception e) {
+            log.warn("Discarding malformed frame from " + frame.source + ": " + e);
+        }
+    }
+}
@@ -21,28 +21,78 @@ package net.sf.appia.protocols.common;
 
 import java.util.concurrent.ThreadFactory;
 
+import org.apache.log4j.Logger;
+
 /**
  * This class defines a AppiaThreadFactory.
+ * <br>
+ * It can create virtual threads instead of platform threads, when the JVM
+ * supports them (Java 21 or later). The readers and senders of the transport
+ * protocols block on their sockets, and with virtual threads they do not need
+ * one OS thread each.
  * 
  * @author <a href="mailto:nunomrc@di.fc.ul.pt">Nuno Carvalho</a>
  * @version 1.0
  */
 public class AppiaThreadFactory implements ThreadFactory {
 
-	public AppiaThreadFactory() {}
+	private static Logger log = Logger.getLogger(AppiaThreadFactory.class);
+
+	private final ThreadFactory virtualThreads;
+
+	public AppiaThreadFactory() {
+		this(false);
+	}
+
+	/**
+	 * Creates a thread factory.
+	 * 
+	 * @param virtual true to create virtual threads. If the JVM does not support them,
+	 * platform threads are created.
+	 */
+	public AppiaThreadFactory(boolean virtual) {
+		virtualThreads = virtual ? virtualThreadFactory() : null;
+	}
+
+	/**
+	 * Checks if this factory creates virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtualThreads != null;
+	}
 
 	public Thread newThread(Runnable runnable) {
+		if (virtualThreads != null)
+			return virtualThreads.newThread(runnable);
 		return new Thread(runnable);
 	}
 
 	public Thread newThread(Runnable runnable, String name) {
+		if (virtualThreads != null) {
+			final Thread thread = virtualThreads.newThread(runnable);
+			thread.setName(name);
+			return thread;
+		}
 		return new Thread(runnable,name);
 	}
 
 	public Thread newThread(Runnable runnable, String name, boolean isDaemon) {
 		final Thread thread = newThread(runnable,name);
-		thread.setDaemon(isDaemon);
+		// virtual threads are always daemon threads
+		if (virtualThreads == null)
+			thread.setDaemon(isDaemon);
 		return thread;
 	}
 
+	/* Thread.ofVirtual().factory(), looked up by reflection to keep compiling for older releases */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			log.warn("Virtual threads are not supported by this JVM. Using platform threads.");
+			return null;
+		}
+	}
+
 }
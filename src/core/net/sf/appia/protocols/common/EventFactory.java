@@ -0,0 +1,90 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.common;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.events.EventPool;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Creates the events received from the network.
+ * <br>
+ * The constructor without arguments of each event class is looked up once and
+ * cached, instead of calling <code>Class.forName(name).newInstance()</code> for
+ * every received message.
+ */
+public final class EventFactory {
+
+    private static final ConcurrentHashMap<String,Constructor<? extends SendableEvent>> constructors=
+        new ConcurrentHashMap<String,Constructor<? extends SendableEvent>>();
+
+    private EventFactory() {}
+
+    /**
+     * Gets the constructor without arguments of the given event class.
+     *
+     * @param className the fully qualified name of a {@link SendableEvent} class
+     * @throws ClassNotFoundException if the class does not exist
+     * @throws NoSuchMethodException if the class has no constructor without arguments
+     * @throws ClassCastException if the class is not a {@link SendableEvent}
+     */
+    public static Constructor<? extends SendableEvent> getConstructor(String className)
+            throws ClassNotFoundException, NoSuchMethodException {
+        Constructor<? extends SendableEvent> c=constructors.get(className);
+        if (c == null) {
+            c=Class.forName(className).asSubclass(SendableEvent.class).getDeclaredConstructor();
+            c.setAccessible(true);
+            constructors.put(className, c);
+        }
+        return c;
+    }
+
+    /**
+     * Creates a new event of the given class.
+     *
+     * @param className the fully qualified name of a {@link SendableEvent} class
+     * @throws Exception if the event can not be created
+     */
+    public static SendableEvent newEvent(String className) throws Exception {
+        return getConstructor(className).newInstance();
+    }
+
+    /**
+     * Creates an event received from the network, with an empty message of the channel.
+     * The event is taken from the {@link EventPool} of its class in the channel, if there is one.
+     *
+     * @param channel the channel of the event
+     * @param constructor the constructor of the event class
+     * @throws Exception if the event can not be created
+     * @see Channel#addEventPool(Class, int)
+     */
+    public static SendableEvent newEvent(Channel channel, Constructor<? extends SendableEvent> constructor)
+            throws Exception {
+        final EventPool<? extends SendableEvent> pool=channel.getEventPool(constructor.getDeclaringClass());
+        if (pool != null)
+            return pool.acquire();
+        final SendableEvent e=constructor.newInstance();
+        e.setMessage(channel.getMessageFactory().newMessage());
+        return e;
+    }
+}
@@ -99,9 +99,11 @@ public class DropSession extends Session {
 		System.err.println("Unexpected exception in Drop Session");
 	    }
 	  }
-          else
+          else {
+            ((SendableEvent) e).release();
             if(DropConfig.debugOn && debugOutput!=null)
               debugOutput.println("Drop: Event dropped");
+          }
         }
         else if(e instanceof Debug)
           handleDebug((Debug)e);
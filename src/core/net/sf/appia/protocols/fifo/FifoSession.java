@@ -50,6 +50,8 @@ import net.sf.appia.protocols.common.FIFOUndeliveredEvent;
 import net.sf.appia.protocols.common.RegisterSocketEvent;
 import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
 import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 
 
@@ -57,10 +59,20 @@ import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
 /**
  * Class that implements reliable FIFO order for point to point
  * and multicast messages.
+ * <br>
+ * When the shared multicast is enabled, a multicast message is sent once,
+ * with the headers of all its destinations, if the transport supports
+ * {@link AppiaMulticast}. Each receiver finds its header by its own address,
+ * so the destinations must be given by the same addresses that the receivers
+ * register in the {@link RegisterSocketEvent}. Retransmissions are sent to
+ * each peer.
+ * Since the header grows with the number of destinations, the fragmentation
+ * should be done below this layer. All the nodes must use the same mode.
+ * 
  * @author Nuno Carvalho
  * @see Session
  */
-public class FifoSession extends Session {
+public class FifoSession extends Session implements InitializableSession {
 
     /*
 	 * Keeps all addresses. each address is a PeerInfo
@@ -70,11 +82,13 @@ public class FifoSession extends Session {
 	private HashMap<Object,PeerInfo> addresses;
 
 	/*
-	 * List of pending messages.
-	 * This is a list of WaitingMessage classes 
+	 * Queue of pending messages, ordered by the time they were (re)sent.
+	 * This is a queue of WaitingMessage classes 
 	 * that holds the event and the timeStamp.
+	 * Acknowledged messages are not searched for, they are discarded
+	 * when they reach the head of the queue.
 	 */
-	private LinkedList<WaitingMessage> messages;
+	private ArrayDeque<WaitingMessage> messages;
 	private LinkedList<Channel> channels;
 	private Channel timerChannel;
 
@@ -85,6 +99,15 @@ public class FifoSession extends Session {
 	private Object myAddr = null;
 	private boolean changeTimer = false;
 
+	/* Kind of header, only used when the shared multicast is enabled */
+	private static final byte SINGLE_HEADER = 0, SHARED_HEADER = 1;
+	private boolean sharedMulticast = false;
+	/* channels with a transport that supports AppiaMulticast */
+	private HashSet<Channel> multicastChannels = new HashSet<Channel>();
+	/* PDU size available to this layer, for the channels where it is known */
+	private HashMap<Channel,Integer> pduSizes = new HashMap<Channel,Integer>();
+	private byte[] myWireAddress = null;
+
 	private PrintStream debugOutput = System.out;
 
 	/**
@@ -95,13 +118,36 @@ public class FifoSession extends Session {
 		super(l);
 
 		addresses = new HashMap<Object,PeerInfo>();
-		messages = new LinkedList<WaitingMessage>();
+		messages = new ArrayDeque<WaitingMessage>();
 		channels = new LinkedList<Channel>();
 		timerPeriod = FifoConfig.TIMER_PERIOD;
 		currentTTR = timersToResend = FifoConfig.TIMERS_TO_RESEND;
 		this.nResends = FifoConfig.NUM_RESENDS;
 	}
 
+	/**
+	 * Initializes the session using the parameters given in the XML configuration.
+	 * Possible parameters:
+	 * <ul>
+	 * <li><b>shared_multicast</b> if true, multicast messages are sent once with the headers
+	 * of all the destinations. All the nodes must use the same value. (default: false)
+	 * </ul>
+	 * 
+	 * @param params The parameters given in the XML configuration.
+	 */
+	public void init(SessionProperties params) {
+		if (params.containsKey("shared_multicast"))
+			sharedMulticast = params.getBoolean("shared_multicast");
+	}
+
+	/**
+	 * Enables or disables the shared multicast.
+	 * It must be done before any message is sent, and all the nodes must use the same value.
+	 */
+	public void setSharedMulticast(boolean sharedMulticast) {
+		this.sharedMulticast = sharedMulticast;
+	}
+
 	/**
 	 * Method called when <i>Appia</i> has a event to deliver to this Session.
 	 * The protocol accepts the following events:
@@ -174,12 +220,23 @@ public class FifoSession extends Session {
 			requestPeriodicTimer(e.getChannel());
 		}
 		channels.add(e.getChannel());
+
+		/* checks if a layer below supports AppiaMulticast */
+		final Layer[] layers = e.getChannel().getQoS().getLayers();
+		for (int i = 0; i < layers.length && layers[i] != getLayer(); i++) {
+			if (layers[i] instanceof AppiaMulticastSupport) {
+				multicastChannels.add(e.getChannel());
+				break;
+			}
+		}
 	}
 
 	private void handleChannelClose(ChannelClose e) {
 		/* Checks if the timer must be requested by other of 
 		 * the available channels */
 		channels.remove(e.getChannel());
+		multicastChannels.remove(e.getChannel());
+		pduSizes.remove(e.getChannel());
 		if ((e.getChannel() == timerChannel) && (channels.size() > 0)) {
 			timerChannel = (Channel) channels.getFirst();
 			requestPeriodicTimer(timerChannel);
@@ -239,8 +296,12 @@ public class FifoSession extends Session {
 
 	private void handlePDUSize(MaxPDUSizeEvent e) {
 		try {
-			/* Subtract to the actual PDUSize the biggest possible header */
-			e.pduSize -= Header.HEADER_SIZE;
+			/* the reply of the transport, with the size available to this layer */
+			if (e.getDir() == Direction.UP)
+				pduSizes.put(e.getChannel(), e.pduSize);
+			/* Subtract to the actual PDUSize the biggest header of a message sent to a single peer.
+			 * Multicast messages whose shared header does not fit are sent to each peer. */
+			e.pduSize -= headerSize();
 			e.go();
 		} catch (AppiaEventException ex) {
 			System.err.println(
@@ -324,6 +385,7 @@ public class FifoSession extends Session {
 	private void handleRegisterSocket(RegisterSocketEvent rse) {
 		if (rse.getDir() == Direction.UP && !rse.error) {
             myAddr = new InetSocketAddress(rse.localHost,rse.port);
+            myWireAddress = wireAddress(myAddr);
 		}
 
 		try {
@@ -348,8 +410,10 @@ public class FifoSession extends Session {
 		}
 		final PeerInfo p = addresses.get(e.source);
 		/* False is only expected when the peer has failed. Ignored */
-		if (p == null)
+		if (p == null) {
+			e.release();
 			return;
+		}
 		MsgBuffer msgBuf = new MsgBuffer();
 		msgBuf.len = Header.INT_SIZE;
 		e.getMessage().pop(msgBuf);
@@ -363,6 +427,7 @@ public class FifoSession extends Session {
 						+ "number "
 						+ confirmation);
 		}
+		e.release();
 	}
 
 	/**
@@ -403,6 +468,8 @@ public class FifoSession extends Session {
 		clone.dest = header.peer.peer;
 		/* push message header into the message */
 		header.pushHeader(clone, header.peer.nextIncoming);
+		if (sharedMulticast)
+			clone.getMessage().pushByte(SINGLE_HEADER);
 		/* prepare event and send it */
 		try {
 			clone.setSourceSession(this);
@@ -447,6 +514,81 @@ public class FifoSession extends Session {
 		}
 	}
 
+	/*
+	 * sends a multicast message once, with the headers of all
+	 * the destinations: [address][header] for each one
+	 */
+	private void makeSharedMulticast(Object[] dests, WaitingMessage we) {
+		final Header[] headers = new Header[dests.length];
+		int length = 0;
+
+		for (int i = 0; i < dests.length; i++) {
+			PeerInfo peer = addresses.get(dests[i]);
+			if (peer == null)
+				peer = newPeer(dests[i], we.event.getChannel());
+			else
+				peer.usedOn(timeProvider.currentTimeMillis());
+
+			headers[i] = new Header(peer, we);
+			peer.headers.addLast(headers[i]);
+			we.addHeader(headers[i]);
+			peer.incOutgoing();
+			length += peer.wireAddress.length + Header.HEADER_SIZE;
+		}
+
+		SendableEvent clone = null;
+		try {
+			clone = (SendableEvent) we.event.cloneEvent();
+		} catch (CloneNotSupportedException ex) {
+			System.err.println("(FIFO) could not clone event!");
+			return;
+		}
+		final MsgBuffer msgBuf = new MsgBuffer();
+		msgBuf.len = length;
+		clone.getMessage().push(msgBuf);
+		int off = msgBuf.off;
+		for (int i = 0; i < headers.length; i++) {
+			final PeerInfo peer = headers[i].peer;
+			System.arraycopy(peer.wireAddress, 0, msgBuf.data, off, peer.wireAddress.length);
+			off += peer.wireAddress.length;
+			headers[i].putHeader(msgBuf.data, off, peer.nextIncoming);
+			off += Header.HEADER_SIZE;
+		}
+		clone.getMessage().pushInt(length);
+		clone.getMessage().pushByte(SHARED_HEADER);
+
+		try {
+			clone.setSourceSession(this);
+			clone.init();
+			clone.go();
+		} catch (AppiaEventException ex) {
+			System.err.println(
+				"(Fifo:makeSharedMulticast) Unexpected exception in FifoSession: "+ex.getMessage());
+		}
+	}
+
+	/*
+	 * the shared multicast can be used if the transport supports it,
+	 * all the destinations have an IP address and the shared header
+	 * fits in the PDU size
+	 */
+	private boolean canShareMulticast(Object[] dests, SendableEvent e) {
+		final Channel channel = e.getChannel();
+		if (!sharedMulticast || !multicastChannels.contains(channel))
+			return false;
+		/* kind and length of the shared header */
+		int length = 1 + Header.INT_SIZE;
+		for (int i = 0; i < dests.length; i++) {
+			final PeerInfo peer = addresses.get(dests[i]);
+			final byte[] address = peer != null ? peer.wireAddress : wireAddress(dests[i]);
+			if (address == null)
+				return false;
+			length += address.length + Header.HEADER_SIZE;
+		}
+		final Integer pduSize = pduSizes.get(channel);
+		return pduSize == null || e.getMessage().length() + length <= pduSize.intValue();
+	}
+
 	/**
 	 * process outgoing messages.
 	 * this is just for p2p messages.
@@ -464,7 +606,10 @@ public class FifoSession extends Session {
 
 			final AppiaMulticast am = (AppiaMulticast) e.dest;
 			final Object[] dests = am.getDestinations();
-			makeMulticast(dests, we);
+			if (canShareMulticast(dests, e))
+				makeSharedMulticast(dests, we);
+			else
+				makeMulticast(dests, we);
 		} else {
 			/* point to point */
 			if (FifoConfig.DEBUG_ON && debugOutput != null)
@@ -497,14 +642,28 @@ public class FifoSession extends Session {
 
         /* get header message */
 		MsgBuffer header = new MsgBuffer();
-		header.len = Header.INT_SIZE * 2;
-		e.getMessage().pop(header);
+		if (sharedMulticast && e.getMessage().popByte() == SHARED_HEADER) {
+			header.len = e.getMessage().popInt();
+			e.getMessage().pop(header);
+			if (!findSharedHeader(header)) {
+				/* the peer will retransmit it */
+				if (FifoConfig.DEBUG_ON && debugOutput != null)
+					debugOutput.println(
+						"(FIFO:processIncoming) No header for this node. Discarding message.");
+				e.release();
+				return;
+			}
+		} else {
+			header.len = Header.INT_SIZE * 2;
+			e.getMessage().pop(header);
+		}
 
 		final PeerInfo p = checkConnection(e, header);
 		/* p==null means "discard message" */
-		if (p == null)
+		if (p == null) {
+			e.release();
 			return;
-		else
+		} else
 			p.usedOn(timeProvider.currentTimeMillis());
 
 		// This adds the message to an incoming queue and delivers
@@ -513,6 +672,31 @@ public class FifoSession extends Session {
 			dequeue(p);
 	}
 
+	/*
+	 * points the buffer to the header of this node in a shared header
+	 */
+	private boolean findSharedHeader(MsgBuffer buf) {
+		if (myWireAddress == null)
+			return false;
+		final int end = buf.off + buf.len;
+		int off = buf.off;
+		while (off < end) {
+			final int addrLength = 1 + buf.data[off] + 2;
+			if (addrLength == myWireAddress.length) {
+				int i = 0;
+				while (i < addrLength && buf.data[off + i] == myWireAddress[i])
+					i++;
+				if (i == addrLength) {
+					buf.off = off + addrLength;
+					buf.len = Header.HEADER_SIZE;
+					return true;
+				}
+			}
+			off += addrLength + Header.HEADER_SIZE;
+		}
+		return false;
+	}
+
 	/**
 	 * remove nodes not needed anymore
 	 */
@@ -522,20 +706,21 @@ public class FifoSession extends Session {
 
 		peer.confirmedUntil(seq);
 		peer.usedOn(timeProvider.currentTimeMillis());
-		final ListIterator<Header> it = peer.headers.listIterator();
-		boolean done = false;
+		/* headers are in the order of the sequence numbers,
+		   so only the acknowledged ones are visited */
 		Header h = null;
-		while (it.hasNext() && !done) {
-			h = it.next();
-			if (h.sequenceNumber < seq) {
-				h.waitingMessage.endPoints--;
-				h.waitingMessage.removeHeader(h);
-				if (h.waitingMessage.endPoints <= 0)
-				    messages.remove(h.waitingMessage);
-				it.remove();
-			} else
-				done = true;
+		while ((h = peer.headers.peekFirst()) != null && h.sequenceNumber < seq) {
+			peer.headers.pollFirst();
+			h.waitingMessage.confirm(h);
 		}
+		purgeConfirmed();
+	}
+
+	/* discards the acknowledged messages at the head of the queue */
+	private void purgeConfirmed() {
+		WaitingMessage we = null;
+		while ((we = messages.peekFirst()) != null && we.isConfirmed())
+			messages.pollFirst().event.release();
 	}
 
 	/* *************************
@@ -568,20 +753,17 @@ public class FifoSession extends Session {
 				"(FIFO) fifo will verify if it needs to resend messages.");
 
         final long currentTime = timeProvider.currentTimeMillis();
-        long delta = 0;
-        boolean stop = false;
         WaitingMessage message = null;
-        LinkedList<WaitingMessage> localBuffer = new LinkedList<WaitingMessage>();
-        ListIterator<WaitingMessage>it = messages.listIterator();
-		while(!stop && it.hasNext()){
-		    message = it.next();
-            delta = currentTime - message.timeStamp;
-            if (delta > timerPeriod){
-                it.remove();
-                localBuffer.addLast(message);
-            }
+        final ArrayList<WaitingMessage> localBuffer = new ArrayList<WaitingMessage>();
+        /* the queue is ordered by time, so it stops on the first message
+           that did not expire */
+		while((message = messages.peekFirst()) != null){
+            if (message.isConfirmed())
+                messages.pollFirst().event.release();
+            else if (currentTime - message.timeStamp > timerPeriod)
+                localBuffer.add(messages.pollFirst());
             else
-                stop = true;
+                break;
 		}
 		for(WaitingMessage waiting : localBuffer)
             resendMessage(waiting);
@@ -594,7 +776,11 @@ public class FifoSession extends Session {
 				System.out.println(
 					"FifoSession: going to giveup sending some message because exceeded number of resends!");
 			for (Header header : we.getHeaders())
-				giveup(header.peer, we.event);
+				if (!header.confirmed)
+					giveup(header.peer, we.event);
+			/* giveup() only keeps the event of a point to point message */
+			if (we.event.dest instanceof AppiaMulticast)
+				we.event.release();
 		} else {
 			if (FifoConfig.DEBUG_ON)
 				System.out.println(
@@ -602,12 +788,8 @@ public class FifoSession extends Session {
 						+ we.nResends);
 			we.timeStamp = timeProvider.currentTimeMillis();
 			for (Header header : we.getHeaders())
-				sendMessage(we,header);
-			/*TODO: this could be buggy because the method
-			    is called inside an iterator.
-			    This could be fixed by returning the new we and
-			    adding later to the list;
-			*/
+				if (!header.confirmed)
+					sendMessage(we,header);
 			messages.addLast(we);
 		}
 	}
@@ -665,8 +847,10 @@ public class FifoSession extends Session {
 		final long now = timeProvider.currentTimeMillis();
 		while (peers.hasNext()) {
 		    peer = peers.next().getValue();
-			if (peer.isOld(now))
+			if (peer.isOld(now)) {
+				peer.releaseIncoming();
 				peers.remove();
+			}
 		}
 	}
 
@@ -708,7 +892,7 @@ public class FifoSession extends Session {
 		} else {
 			unAckedEvent = s;
 			// remove the fifo header before sending the event back
-			unAckedEvent.getMessage().pop(new MsgBuffer(new byte[Header.HEADER_SIZE], 0, Header.HEADER_SIZE));
+			unAckedEvent.getMessage().pop(new MsgBuffer(new byte[headerSize()], 0, headerSize()));
 		}
 		try {
 			final FIFOUndeliveredEvent e =
@@ -807,12 +991,32 @@ public class FifoSession extends Session {
 		return (buf.data[buf.off + 3] & 128) != 0;
 	}
 
+	/* size of the header of a message sent to a single peer */
+	private int headerSize() {
+		return sharedMulticast ? Header.HEADER_SIZE + 1 : Header.HEADER_SIZE;
+	}
+
+	/* the IP address and port, as written in a shared header */
+	private static byte[] wireAddress(Object addr) {
+		if (!(addr instanceof InetSocketAddress) || ((InetSocketAddress) addr).getAddress() == null)
+			return null;
+		final byte[] ip = ((InetSocketAddress) addr).getAddress().getAddress();
+		final int port = ((InetSocketAddress) addr).getPort();
+		final byte[] b = new byte[1 + ip.length + 2];
+		b[0] = (byte) ip.length;
+		System.arraycopy(ip, 0, b, 1, ip.length);
+		b[ip.length + 1] = (byte) (port >> 8);
+		b[ip.length + 2] = (byte) port;
+		return b;
+	}
+
 	/*
 	 * used to create a peer when fifo receives a message
 	 * from a new Addr
 	 */
 	private PeerInfo newPeer(Object who, Channel c) {
 		final PeerInfo newpeer = new PeerInfo(who, c);
+		newpeer.wireAddress = wireAddress(who);
 		addresses.put(who, newpeer);
 		return newpeer;
 	}
@@ -956,6 +1160,7 @@ public class FifoSession extends Session {
 				   acknowledgment by considering that the lastAckSent is lower than
 				   it realy is */
 				p.forceAck();
+				e.release();
 				if (FifoConfig.DEBUG_ON && debugOutput != null)
 					debugOutput.println(
 						"(FIFO:checkOrder) Duplicated message ("
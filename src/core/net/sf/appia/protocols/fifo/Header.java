@@ -52,6 +52,8 @@ public class Header {
 	protected int sequenceNumber;
 	protected WaitingMessage waitingMessage;
 	protected PeerInfo peer;
+	/* the peer acknowledged the message */
+	protected boolean confirmed = false;
     protected static final int INT_SIZE = 4;
     protected static final int HEADER_SIZE = INT_SIZE * 2;
 
@@ -81,9 +83,15 @@ public class Header {
 
 		msgBuf.len = HEADER_SIZE;
 		m.push(msgBuf);
-		seqToByte(msgBuf, sequenceNumber, mySyn);
-		msgBuf.off += INT_SIZE;
-		seqToByte(msgBuf, nextIncoming, hisSyn);
+		putHeader(msgBuf.data, msgBuf.off, nextIncoming);
+	}
+
+	/**
+	 * writes the header, with HEADER_SIZE bytes, in the given array.
+	 */
+	public void putHeader(byte[] data, int off, int nextIncoming) {
+		seqToByte(data, off, sequenceNumber, mySyn);
+		seqToByte(data, off + INT_SIZE, nextIncoming, hisSyn);
 	}
 
 //	/**
@@ -117,13 +125,13 @@ public class Header {
 	   destination.
 	   So, sequence numbers range between 0 and (2^31)-1. */
 
-	private void seqToByte(MsgBuffer buf, int seq, boolean syn) {
+	private void seqToByte(byte[] data, int off, int seq, boolean syn) {
 
-		buf.data[buf.off + 3] =
+		data[off + 3] =
 			(byte) ((byte) (0xff & (seq >> 24)) | ((byte) (syn ? 0x80 : 0x0)));
-		buf.data[buf.off + 2] = (byte) (0xff & (seq >> 16));
-		buf.data[buf.off + 1] = (byte) (0xff & (seq >> 8));
-		buf.data[buf.off] = (byte) (0xff & seq);
+		data[off + 2] = (byte) (0xff & (seq >> 16));
+		data[off + 1] = (byte) (0xff & (seq >> 8));
+		data[off] = (byte) (0xff & seq);
 	}
 
 //	private void putInt(int i, MsgBuffer mbuf) {
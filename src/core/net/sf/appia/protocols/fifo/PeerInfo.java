@@ -69,7 +69,8 @@ public class PeerInfo {
 	/* used to discard this peer if there are no message exchange for a long time */
 	public long lastUsed;
 
-	/* keeps references to headers of peers that not acked this message */
+	/* keeps references to headers of messages that this peer did not ack yet,
+	   in the order of their sequence numbers */
 	public LinkedList<Header> headers;
 
 	/* keep a list of channels used by this peer */
@@ -77,6 +78,8 @@ public class PeerInfo {
 
 	/* Address of this peer */
 	public Object peer;
+	/* Address of this peer, as written in shared multicast headers */
+	protected byte[] wireAddress = null;
 
 	public PeerInfo(Object peer, Channel c) {
 		final long now = c.getTimeProvider().currentTimeMillis();
@@ -183,12 +186,25 @@ public class PeerInfo {
 		/* Messages too far from next expected or near 
 		   sequence number 0 will be thrown away */
 		if (seqNumber - nextIncoming > queueSize || seqNumber < queueSize) {
+			e.release();
 			return;
 		}
 		final int queueIndex = seqNumber % queueSize;
 		if (waitQueue[queueIndex] == null) {
 			waitQueue[queueIndex] = new PeerWaitingMessage(e, seqNumber);
 		}
+		else
+			e.release();
+	}
+
+	/* Releases the messages still waiting to be delivered, when the peer is forgotten */
+	public void releaseIncoming() {
+		for (int i = 0; i < waitQueue.length; i++) {
+			if (waitQueue[i] != null) {
+				waitQueue[i].e.release();
+				waitQueue[i] = null;
+			}
+		}
 	}
 
 	public void confirmedUntil(int seq) {
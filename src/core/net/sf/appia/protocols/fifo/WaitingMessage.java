@@ -79,6 +79,24 @@ public class WaitingMessage {
 	headers.addLast(h);
     }
 
+    /**
+     * marks the header of a peer that acknowledged this message.
+     * The header is kept in the list, but it is no longer resent.
+     */
+    public void confirm(Header h) {
+	if (!h.confirmed) {
+	    h.confirmed = true;
+	    endPoints--;
+	}
+    }
+
+    /**
+     * true if all the receivers acknowledged this message.
+     */
+    public boolean isConfirmed() {
+	return endPoints <= 0;
+    }
+
     /**
      * remove a header from the LinkedList of headers
      */
@@ -49,6 +49,8 @@ import net.sf.appia.core.events.channel.EchoEvent;
  * <ul>
  * <li>FragEvent: used by the protocol to pass message
  * fragments.
+ * <li>FragNackEvent: used by the protocol to request missing
+ * fragments, when <b>nack_time</b> is set.
  * <li>EchoEvent: For carrying the MaxPDUSizeEvent
  * <li>MaxPDUSizeEvent: Event that queries the lower layers for the maximum
  * PDU size
@@ -99,6 +101,7 @@ public class FragLayer extends Layer {
     };
     evProvide=new Class[]{
             net.sf.appia.protocols.frag.FragEvent.class,
+            net.sf.appia.protocols.frag.FragNackEvent.class,
             EchoEvent.class,
             net.sf.appia.protocols.frag.MaxPDUSizeEvent.class,
             net.sf.appia.protocols.frag.FragTimer.class,
@@ -0,0 +1,52 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.frag;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Requests the fragments of a message that were not received.
+ * <br>
+ * The message carries the ID of the message, the number of the first fragment
+ * from which all fragments are missing, or -1, and the numbers of the other
+ * missing fragments.
+ *
+ * @see FragSession
+ */
+public class FragNackEvent extends SendableEvent {
+
+    /**
+     * Creates a request to be sent to the given node.
+     */
+    public FragNackEvent(Channel channel, Session source, Object dest) throws AppiaEventException {
+        super(channel, Direction.DOWN, source);
+        this.dest = dest;
+    }
+
+    /**
+     * Empty constructor. Required for event
+     * dynamic instantiation.
+     */
+    public FragNackEvent() {}
+}
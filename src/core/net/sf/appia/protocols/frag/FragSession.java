@@ -45,6 +45,7 @@
 
 import java.io.PrintStream;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ArrayList;
@@ -63,7 +64,16 @@ import net.sf.appia.xml.utils.SessionProperties;
 
 /**
  * This is the Session class of the fragmentation protocol.
- *
+ * <br>
+ * The fragments received are kept by source and message ID, in a {@link FragTable},
+ * and marked in a bitmap, so each fragment is handled in constant time, and the
+ * message is joined once, when the last fragment arrives.
+ * <br>
+ * Optionally, the session requests the missing fragments of a message, with a
+ * {@link FragNackEvent}, when no fragment of the message arrived during the
+ * <b>nack_time</b>. The sender keeps the fragments of its last messages to resend them,
+ * so the loss of one datagram does not require the whole message to be resent by
+ * the reliable protocol above.
  *
  * @author Hugo Miranda
  * @see FragLayer
@@ -76,12 +86,22 @@ public class FragSession extends Session implements InitializableSession {
 
   private int msgSeq = 0;
   private HashMap pdus;
-  private HashMap sources;
+  private FragTable<FragHolder> holders;
   
   private final int fragHeaderSize = 8;
   
   private int paramFragSize=-1;
+  private long paramNackTime=0;
+  private int paramNackBuffer=DEFAULT_NACK_BUFFER;
   public static final int TIMER_PERIOD=30000; // 30 secs
+  public static final int DEFAULT_NACK_BUFFER=64;
+  /* rounds that a message is kept after being delivered, to discard retransmitted fragments */
+  private static final int DONE_ROUNDS=4;
+  /* rounds without fragments before the missing ones are requested */
+  private static final int NACK_ROUNDS=2;
+  /* maximum number of fragments requested in each nack */
+  private static final int MAX_NACKED=256;
+  private int discardRounds=1;
   private Channel timerChannel=null;
   private MessageFactory messageFactory = null;
   
@@ -109,36 +129,79 @@ public class FragSession extends Session implements InitializableSession {
 
   /**
    * This class defines a FragHolder.
+   * The fragments received are marked in a bitmap, and counted, so checking if
+   * the message is complete takes constant time.
    * 
    * @author <a href="mailto:nunomrc@di.fc.ul.pt">Nuno Carvalho</a>
    * @version 1.0
    */
-  private class FragHolder {
-      private static final int DEFAULT_NUMBER_FRAGS=10;
-    public ArrayList frags;
-    public Object source;
-    public int msgId;
-    public SendableEvent e=null;
-    public boolean secondChance=false;
+  private static class FragHolder {
+    private static final int DEFAULT_NUMBER_FRAGS=16;
+    // fragments by number. The first has the type of the message.
+    public SendableEvent[] frags;
+    public long[] received;
+    public int count=0;
+    // number of fragments, known when the first arrives
+    public int total=-1;
+    public int highest=-1;
+    public final Object source;
+    public final int msgId;
+    public Channel channel=null;
+    public int idleRounds=0;
+    public boolean done=false;
     
-    public FragHolder(Object source, int msgId) {
+    public FragHolder(Object source, int msgId, int nFrags) {
       this.source = source;
       this.msgId = msgId;
-      frags=new ArrayList(DEFAULT_NUMBER_FRAGS);
+      frags=new SendableEvent[nFrags];
+      received=new long[(nFrags+63)/64];
     }
-
-    public FragHolder(Object source, int msgId, int nFrags) {
-        this.source = source;
-        this.msgId = msgId;
-        frags=new ArrayList(nFrags);
+    
+    public boolean isReceived(int n) {
+      return (n < frags.length) && ((received[n >>> 6] & (1L << (n & 63))) != 0);
+    }
+    
+    public void add(int n, SendableEvent e) {
+      if (n >= frags.length) {
+        final int size=Math.max(n+1, frags.length*2);
+        final SendableEvent[] f=new SendableEvent[size];
+        System.arraycopy(frags,0,f,0,frags.length);
+        frags=f;
+        final long[] r=new long[(size+63)/64];
+        System.arraycopy(received,0,r,0,received.length);
+        received=r;
       }
-
-    public void ensureSize(int size) {
-      while (frags.size() < size)
-        frags.add(null);
+      frags[n]=e;
+      received[n >>> 6] |= 1L << (n & 63);
+      count++;
+      if (n > highest)
+        highest=n;
+    }
+    
+    public boolean isComplete() {
+      return count == total;
     }
   }
   
+  /**
+   * Fragments of a message sent, kept to be resent.
+   */
+  private static class SentMessage {
+    public final int msgId;
+    // the first fragment, with the type of the message
+    public SendableEvent first;
+    public Message[] frags;
+    public int rounds=0;
+    
+    public SentMessage(int msgId, int nFrags) {
+      this.msgId=msgId;
+      frags=new Message[nFrags];
+    }
+  }
+  
+  private FragTable<SentMessage> sent;
+  private ArrayDeque<SentMessage> sentOrder;
+  
   /**
    * Standard constructor
    *
@@ -148,7 +211,7 @@ public class FragSession extends Session implements InitializableSession {
   public FragSession(Layer layer) {
     super(layer);
     pdus = new HashMap(INIT_HASHMAP_SIZE);
-    sources=new HashMap();
+    holders=new FragTable<FragHolder>();
   }
 
   /**
@@ -156,6 +219,10 @@ public class FragSession extends Session implements InitializableSession {
    * Possible parameters:
    * <ul>
    * <li><b>frag_size</b> the maximum payload per fragment.
+   * <li><b>nack_time</b> the time without receiving fragments of an incomplete message before
+   * requesting the missing ones, in milliseconds. The request is sent between one and two
+   * such periods after the last fragment arrived. By default, 0, that disables the requests.
+   * <li><b>nack_buffer</b> the number of messages sent whose fragments are kept to be resent.
    * </ul>
    * 
    * @param params The parameters given in the XML configuration.
@@ -163,34 +230,10 @@ public class FragSession extends Session implements InitializableSession {
   public void init(SessionProperties params) {
     if (params.containsKey("frag_size"))
       paramFragSize=params.getInt("frag_size");
-  }
-  
-  private FragHolder findFragHolder(Object who, int msgId) {
-    final ArrayList msgs=(ArrayList)sources.get(who);
-    if (msgs == null)
-      return null;
-    for (int i=0 ; i < msgs.size() ; i++) {
-      final FragHolder f = (FragHolder)msgs.get(i);
-      if (f.msgId == msgId)
-        return f;
-    }
-    return null;
-  }
-  
-  private void addFragHolder(FragHolder fh) {
-    ArrayList msgs=(ArrayList)sources.get(fh.source);
-    if (msgs == null) {
-      msgs=new ArrayList();
-      sources.put(fh.source, msgs);
-    }
-    msgs.add(fh);
-  }
-  
-  private void removeFragHolder(FragHolder fh) {
-    final ArrayList msgs=(ArrayList)sources.get(fh.source);
-    if (msgs == null)
-      return;
-    msgs.remove(fh);
+    if (params.containsKey("nack_time"))
+      paramNackTime=params.getLong("nack_time");
+    if (params.containsKey("nack_buffer"))
+      paramNackBuffer=params.getInt("nack_buffer");
   }
   
   /**
@@ -211,6 +254,8 @@ public class FragSession extends Session implements InitializableSession {
       setPDUSize((MaxPDUSizeEvent) e);
     else if (e instanceof FragTimer)
       updateHolding();
+    else if (e instanceof FragNackEvent)
+      handleNack((FragNackEvent) e);
     else if (e instanceof SendableEvent) {
       if (e.getDir() == Direction.UP)
         reassembly((SendableEvent) e);
@@ -236,11 +281,43 @@ public class FragSession extends Session implements InitializableSession {
     if (ev.getChannel() == timerChannel)
       timerChannel=null;
     try { ev.go(); } catch (AppiaEventException ex) { ex.printStackTrace(); }
+    
+    /* the messages of the channel are no longer sent or reassembled */
+    final PDUSize p=(PDUSize) pdus.remove(ev.getChannel());
+    if ((p != null) && (p.holding != null)) {
+      while (!p.holding.isEmpty())
+        ((SendableEvent) p.holding.removeFirst()).release();
+    }
+    final ArrayList<FragHolder> list=holders.values();
+    for (int i=0 ; i < list.size() ; i++) {
+      final FragHolder f=list.get(i);
+      if (f.channel == ev.getChannel()) {
+        holders.remove(f.source, f.msgId);
+        if (!f.done)
+          discard(f);
+      }
+    }
+    if (sentOrder != null) {
+      final Iterator<SentMessage> iter=sentOrder.iterator();
+      while (iter.hasNext()) {
+        final SentMessage m=iter.next();
+        if (m.first.getChannel() == ev.getChannel()) {
+          iter.remove();
+          forget(m);
+        }
+      }
+    }
   }
   
   private void sendTimer(Channel channel) {
     try {
-      new FragTimer(TIMER_PERIOD,channel,this,EventQualifier.ON).go();
+      long period=TIMER_PERIOD;
+      if (paramNackTime > 0) {
+        // the period is short enough to request the fragments before the message is discarded
+        period=Math.min(paramNackTime, TIMER_PERIOD/(NACK_ROUNDS+1));
+        discardRounds=(int)(TIMER_PERIOD/period);
+      }
+      new FragTimer(period,channel,this,EventQualifier.ON).go();
       timerChannel=channel;
       
       if (FragConfig.DEBUG_ON && debugOutput != null)
@@ -262,22 +339,30 @@ public class FragSession extends Session implements InitializableSession {
       printState(debugOutput);
     }
     
-    final Iterator iter=sources.values().iterator();
-    while (iter.hasNext()) {
-      final ArrayList msgs=(ArrayList)iter.next();
-      final Iterator i=msgs.iterator();
-      while (i.hasNext()) {
-        final FragHolder f = (FragHolder)i.next();
-        if (f.secondChance) {
-          i.remove();
+    final ArrayList<FragHolder> list=holders.values();
+    for (int i=0 ; i < list.size() ; i++) {
+      final FragHolder f=list.get(i);
+      f.idleRounds++;
+      if (f.idleRounds > (f.done ? DONE_ROUNDS : discardRounds)) {
+        holders.remove(f.source, f.msgId);
+        if (!f.done) {
+          discard(f);
           if (FragConfig.DEBUG_ON && debugOutput != null)
             debugOutput.println("Frag: Discarded message from "+f.source.toString()+" with id "+f.msgId);
-        } else {
-          f.secondChance=true;
         }
+      } else if (!f.done && (paramNackTime > 0) && (f.idleRounds >= NACK_ROUNDS)) {
+        // only after a whole period without fragments, not while the message is still arriving
+        nack(f);
       }
-      if (msgs.size() == 0)
-        iter.remove();
+    }
+    
+    // the oldest messages are the first
+    if (sentOrder != null) {
+      final Iterator<SentMessage> iter=sentOrder.iterator();
+      while (iter.hasNext())
+        iter.next().rounds++;
+      while (!sentOrder.isEmpty() && (sentOrder.peekFirst().rounds > discardRounds))
+        forget(sentOrder.pollFirst());
     }
   }
   
@@ -384,6 +469,9 @@ public class FragSession extends Session implements InitializableSession {
         orig.frag(m, maxLength);
         orig.pushInt(nFrags);
         orig.pushInt(msgSeq);
+        final SentMessage kept = (paramNackTime > 0) ? new SentMessage(msgSeq, nFrags) : null;
+        if (kept != null)
+          kept.first = (SendableEvent) e.cloneEvent();
         e.go();
         
         orig = m;
@@ -402,12 +490,17 @@ public class FragSession extends Session implements InitializableSession {
             m=null;
           }
 
-          orig.pushInt(fragNumber++);
+          orig.pushInt(fragNumber);
           orig.pushInt(msgSeq);
+          if (kept != null)
+            kept.frags[fragNumber] = (Message) orig.clone();
+          fragNumber++;
           f.setMessage(orig);
           f.go();
           orig = m;
-        }        
+        }
+        if (kept != null)
+          keep(kept);
       } else {
         //fits in one event
         orig.pushInt(nFrags);
@@ -422,9 +515,114 @@ public class FragSession extends Session implements InitializableSession {
       System.err.println(
       "Unexpected event exception while "
       + "fragmenting message");
+    } catch (CloneNotSupportedException ex) {
+      msgSeq++;
+      
+      System.err.println(
+      "Unexpected clone exception while "
+      + "fragmenting message");
     }
   }
   
+  private void keep(SentMessage m) {
+    if (sent == null) {
+      sent=new FragTable<SentMessage>();
+      sentOrder=new ArrayDeque<SentMessage>();
+    }
+    sent.put(null, m.msgId, m);
+    sentOrder.addLast(m);
+    while (sentOrder.size() > paramNackBuffer)
+      forget(sentOrder.pollFirst());
+  }
+  
+  private void forget(SentMessage m) {
+    sent.remove(null, m.msgId);
+    m.first.release();
+    for (int i=1 ; i < m.frags.length ; i++)
+      m.frags[i].discardAll();
+  }
+  
+  private void handleNack(FragNackEvent e) {
+    final Message msg=e.getMessage();
+    final int msgId=msg.popInt();
+    final int from=msg.popInt();
+    final int n=msg.popInt();
+    
+    final SentMessage m=(sent == null) ? null : sent.get(null, msgId);
+    if (FragConfig.DEBUG_ON && debugOutput != null)
+      debugOutput.println("Frag: nack received from "+e.source+" for message "+msgId+(m == null ? ", that is no longer kept" : ""));
+    
+    if (m != null) {
+      try {
+        for (int i=0 ; i < n ; i++)
+          resend(m, msg.popInt(), e.source);
+        if (from >= 0)
+          for (int i=from ; i < m.frags.length ; i++)
+            resend(m, i, e.source);
+      } catch (AppiaEventException ex) {
+        System.err.println(
+            "Unexpected event exception while "
+            + "resending fragments");
+      } catch (CloneNotSupportedException ex) {
+        System.err.println(
+            "Unexpected clone exception while "
+            + "resending fragments");
+      }
+    }
+    e.release();
+  }
+  
+  private void resend(SentMessage m, int fragNumber, Object dest)
+  throws AppiaEventException, CloneNotSupportedException {
+    if ((fragNumber < 0) || (fragNumber >= m.frags.length))
+      return;
+    
+    final SendableEvent e;
+    if (fragNumber == 0) {
+      e=(SendableEvent) m.first.cloneEvent();
+      e.setSourceSession(this);
+      e.init();
+    } else {
+      e=new FragEvent(m.first, this);
+      e.setMessage((Message) m.frags[fragNumber].clone());
+    }
+    e.dest=dest;
+    e.go();
+  }
+  
+  private void nack(FragHolder f) {
+    try {
+      final FragNackEvent e=new FragNackEvent(f.channel, this, f.source);
+      final Message msg=e.getMessage();
+      final int last=(f.total < 0) ? f.highest : f.total-1;
+      int n=0;
+      for (int i=0 ; (i <= last) && (n < MAX_NACKED) ; i++) {
+        if (!f.isReceived(i)) {
+          msg.pushInt(i);
+          n++;
+        }
+      }
+      msg.pushInt(n);
+      // the last fragments are unknown while the first is missing
+      msg.pushInt((f.total < 0) ? f.highest+1 : -1);
+      msg.pushInt(f.msgId);
+      e.go();
+      
+      if (FragConfig.DEBUG_ON && debugOutput != null)
+        debugOutput.println("Frag: requested "+n+" fragments of message "+f.msgId+" from "+f.source);
+    } catch (AppiaEventException ex) {
+      System.err.println(
+          "Unexpected event exception while "
+          + "requesting fragments");
+    }
+  }
+  
+  private void discard(FragHolder f) {
+    for (int i=0 ; i < f.frags.length ; i++)
+      if (f.frags[i] != null)
+        f.frags[i].release();
+  }
+  
   private void reassembly(SendableEvent e) {
     if (timerChannel == null)
       sendTimer(e.getChannel());
@@ -437,46 +635,58 @@ public class FragSession extends Session implements InitializableSession {
       if (FragConfig.DEBUG_ON && debugOutput != null)
         debugOutput.println("Frag: message received with id: "+msgId+". Fragment: "+nFrags+" (is FragEvent = "+(e instanceof FragEvent)+")");
 
-      FragHolder fHold=null;
+      final int fragNumber;
       if (e instanceof FragEvent) {
-        fHold = findFragHolder(e.source, msgId);
-        if (fHold == null) {
-          fHold=new FragHolder(e.source, msgId);
-          addFragHolder(fHold);
-        }
-
-        fHold.ensureSize(nFrags+1);
-        fHold.frags.set(nFrags, e.getMessage());
+        fragNumber=nFrags;
       } else {
         if (nFrags <= 1) {
           e.go();
           return;
         }
-
-        fHold = findFragHolder(e.source, msgId);
-        if (fHold == null) {
-          fHold=new FragHolder(e.source, msgId, nFrags);
-          addFragHolder(fHold);
-        }
-        
-        fHold.e=e;
-        fHold.ensureSize(nFrags);
-        fHold.frags.set(0, e.getMessage());
+        fragNumber=0;
+      }
+      
+      FragHolder fHold = holders.get(e.source, msgId);
+      if (fHold == null) {
+        fHold=new FragHolder(e.source, msgId, fragNumber == 0 ? nFrags : FragHolder.DEFAULT_NUMBER_FRAGS);
+        holders.put(e.source, msgId, fHold);
+      }
+      
+      if (fHold.done || (fragNumber < 0) || fHold.isReceived(fragNumber)
+          || ((fHold.total > 0) && (fragNumber >= fHold.total))
+          || ((fragNumber == 0) && (nFrags <= fHold.highest))) {
+        if (FragConfig.DEBUG_ON && debugOutput != null)
+          debugOutput.println("Frag: discarded repeated or invalid fragment "+fragNumber+" of message "+msgId);
+        e.release();
+        return;
       }
       
+      if (fragNumber == 0)
+        fHold.total=nFrags;
+      fHold.add(fragNumber, e);
+      fHold.channel=e.getChannel();
+      fHold.idleRounds=0;
       
-      if (receivedAll(fHold.frags)) {
-        final Message msg=(Message)fHold.frags.get(0);
-        for (int i=1 ; i < fHold.frags.size() ; i++)
-          msg.join((Message)fHold.frags.get(i));
+      if (fHold.isComplete()) {
+        final SendableEvent first=fHold.frags[0];
+        final Message[] rest=new Message[fHold.total-1];
+        for (int i=1 ; i < fHold.total ; i++)
+          rest[i-1]=fHold.frags[i].getMessage();
+        first.getMessage().join(rest);
+        for (int i=1 ; i < fHold.total ; i++)
+          fHold.frags[i].release();
+        
+        // with requests, the message is kept for a while, to discard fragments that are resent late
+        if (paramNackTime > 0) {
+          fHold.done=true;
+          fHold.frags=null;
+          fHold.received=null;
+        } else
+          holders.remove(fHold.source, fHold.msgId);
         
-        fHold.e.setMessage(msg);
-        fHold.e.go();
+        first.go();
         if (FragConfig.DEBUG_ON && debugOutput != null)
-            debugOutput.println("Frag: message reasembled : "+fHold.e);        
-        removeFragHolder(fHold);
-      } else {
-        fHold.secondChance=false;
+            debugOutput.println("Frag: message reasembled : "+first);
       }
     } catch (AppiaEventException ex) {
       System.err.println(
@@ -528,32 +738,28 @@ public class FragSession extends Session implements InitializableSession {
         out.println("no.");
     }
     
-    final Iterator iter=sources.values().iterator();
+    final ArrayList<FragHolder> list=holders.values();
     
-    if (iter.hasNext())
+    if (!list.isEmpty())
       out.println("Pending messages:");
     else
       out.println("No pending messages.");
     
-    while (iter.hasNext()) {
-      final ArrayList msgs=(ArrayList)iter.next();
-      for (int i=0 ; i < msgs.size() ; i++) {
-        final FragHolder f = (FragHolder)msgs.get(i);
-        int r=0;
-        for (int j=0 ; j < f.frags.size() ; j++)
-          if (f.frags.get(j) != null)
-            r++;
-        
-        out.println(
-        "Current message number of frags: "
-        + f.frags.size()
-        + " Fragments received: "
-        + r
-        + " SecondChance: "
-        + f.secondChance);
-      }
+    for (int i=0 ; i < list.size() ; i++) {
+      final FragHolder f = list.get(i);
+      out.println(
+      "Current message number of frags: "
+      + f.total
+      + " Fragments received: "
+      + f.count
+      + " Rounds: "
+      + f.idleRounds
+      + (f.done ? " Delivered" : ""));
     }
     
+    if (sentOrder != null)
+      out.println("Messages kept to be resent: "+sentOrder.size());
+    
     out.println(
     "Debug output is currently "
     + (debugOutput == null ? "off" : "on"));
@@ -566,8 +772,4 @@ public class FragSession extends Session implements InitializableSession {
     
     return frags;
   }
-  
-  private boolean receivedAll(ArrayList a) {
-    return (a.indexOf(null) < 0);
-  }
 }
@@ -0,0 +1,133 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.frag;
+
+import java.util.ArrayList;
+
+/**
+ * Map from a source and a message ID to the state of the message.
+ * <br>
+ * The keys are kept in open addressing arrays, with linear probing, so finding
+ * a message does not create keys nor walk lists.
+ */
+final class FragTable<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] sources = new Object[INITIAL_CAPACITY];
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size = 0;
+
+    private int slot(Object source, int id) {
+        int h = (source == null ? 0 : source.hashCode()) * 31 + id;
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(Object source, int id) {
+        for (int i = slot(source, id); values[i] != null; i = (i + 1) & mask) {
+            if (ids[i] == id && (source == null ? sources[i] == null : source.equals(sources[i])))
+                return i;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object source, int id) {
+        final int i = find(source, id);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    void put(Object source, int id, V value) {
+        int i = find(source, id);
+        if (i < 0) {
+            if (2 * (size + 1) > values.length)
+                resize(values.length * 2);
+            i = slot(source, id);
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            size++;
+        }
+        sources[i] = source;
+        ids[i] = id;
+        values[i] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(Object source, int id) {
+        int i = find(source, id);
+        if (i < 0)
+            return null;
+        final V value = (V) values[i];
+        size--;
+
+        // moves back the following entries of the cluster, so that no search stops early
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int k = slot(sources[j], ids[j]);
+            if (((j - k) & mask) >= ((j - i) & mask)) {
+                sources[i] = sources[j];
+                ids[i] = ids[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        sources[i] = null;
+        values[i] = null;
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the values, so that entries can be removed while they are visited.
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList<V> values() {
+        final ArrayList<V> list = new ArrayList<V>(size);
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null)
+                list.add((V) values[i]);
+        return list;
+    }
+
+    private void resize(int capacity) {
+        final Object[] oldSources = sources;
+        final int[] oldIds = ids;
+        final Object[] oldValues = values;
+        sources = new Object[capacity];
+        ids = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldSources[j], oldIds[j]);
+                while (values[i] != null)
+                    i = (i + 1) & mask;
+                sources[i] = oldSources[j];
+                ids[i] = oldIds[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -22,7 +22,6 @@ package net.sf.appia.protocols.nakfifo;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.ListIterator;
 
 import net.sf.appia.core.AppiaError;
 import net.sf.appia.core.AppiaEventException;
@@ -87,6 +86,8 @@ public class NakFifoSession extends Session implements InitializableSession {
     private long param_MAX_APPL_ROUNDS=DEFAULT_MAX_APPL_TIME/param_TIMER_PERIOD;
     private long param_MAX_RECV_ROUNDS=DEFAULT_MAX_RECV_TIME/param_TIMER_PERIOD;
     private long param_MAX_SENT_ROUNDS=DEFAULT_MAX_SENT_TIME/param_TIMER_PERIOD;
+    private int param_MAX_UNDELIVERED_MSGS=SeqWindow.DEFAULT_MAX_MESSAGES;
+    private long param_MAX_UNDELIVERED_BYTES=SeqWindow.DEFAULT_MAX_BYTES;
 
     /** Creates a new instance of NakFifoSession */
     public NakFifoSession(Layer layer) {
@@ -102,6 +103,8 @@ public class NakFifoSession extends Session implements InitializableSession {
      * <li><b>max_appl_time</b> maximum time without receiving an Application message, and discarding the peer. (in milliseconds)
      * <li><b>max_recv_time</b> maximum time for message reception, before suspecting the peer. (in milliseconds)
      * <li><b>max_sent_time</b> maximum time between sent messages. (in milliseconds)
+     * <li><b>max_undelivered_msgs</b> maximum number of sequence numbers, after the next to deliver, of the messages kept out of order.
+     * <li><b>max_undelivered_bytes</b> maximum number of bytes of the messages kept out of order, for each peer.
      * </ul>
      * 
      * @param params The parameters given in the XML configuration.
@@ -117,6 +120,10 @@ public class NakFifoSession extends Session implements InitializableSession {
             param_MAX_RECV_ROUNDS=params.getLong("max_recv_time")/param_TIMER_PERIOD;
         if (params.containsKey("max_sent_time"))
             param_MAX_SENT_ROUNDS=params.getLong("max_sent_time")/param_TIMER_PERIOD;
+        if (params.containsKey("max_undelivered_msgs"))
+            param_MAX_UNDELIVERED_MSGS=params.getInt("max_undelivered_msgs");
+        if (params.containsKey("max_undelivered_bytes"))
+            param_MAX_UNDELIVERED_BYTES=params.getLong("max_undelivered_bytes");
     }
 
     /** Main Event handler. */  
@@ -211,8 +218,13 @@ public class NakFifoSession extends Session implements InitializableSession {
 
             if (ev.dest instanceof AppiaMulticast) {
                 Object[] dests=((AppiaMulticast)ev.dest).getDestinations();
+                if (dests.length == 0) {
+                    ev.release();
+                    return;
+                }
+                // each peer keeps its own copy, and the last one keeps the original
                 for (int i=0 ; i < dests.length ; i++) {
-                    send(ev,dests[i]);
+                    send(ev,dests[i],i < dests.length-1);
                 }
                 return;
             }
@@ -224,22 +236,32 @@ public class NakFifoSession extends Session implements InitializableSession {
                 return;
             }
 
-            send(ev,ev.dest);
+            send(ev,ev.dest,false);
             return;
         }
 
         log.warn("Direction is wrong. Discarding event "+ev);
+        ev.release();
     }
 
     private void handlePing(PingEvent ev) {
         if (ev.getDir() != Direction.UP) {
             log.warn("Discarding Ping event due to wrong diretion.");
+            ev.release();
             return;
         }
         receive(ev);
     }
 
     private void handleNack(NackEvent ev) {
+        try {
+            nacked(ev);
+        } finally {
+            ev.release();
+        }
+    }
+
+    private void nacked(NackEvent ev) {
         Peer peer=(Peer)peers.get(ev.source);
         if (peer == null) {
             peer=createPeer(ev.source,ev.getChannel());
@@ -303,22 +325,23 @@ public class NakFifoSession extends Session implements InitializableSession {
             if (peer.nacked != null) {
                 peer.nacked.rounds++;
                 if (peer.nacked.rounds > param_RESEND_NACK_ROUNDS) {
-                    nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, ((SendableEvent)peer.undelivered_msgs.getFirst()).getChannel());
+                    nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, nackChannel(peer));
                     peer.nacked.rounds=0;
                 }
             } else {
                 if (peer.rounds_appl_msg > param_MAX_APPL_ROUNDS) {
                     peers_iter.remove();
+                    releaseUnconfirmed(peer);
                     peer=null;
                 }
             }
 
             if ((peer != null) && (peer.rounds_msg_recv > param_MAX_RECV_ROUNDS)) {
-                Iterator msgs=peer.unconfirmed_msgs.iterator();
-                while (msgs.hasNext()) {
-                    sendFIFOUndelivered((SendableEvent)msgs.next(),peer.addr);
+                for (int i=0 ; i < peer.unconfirmed_msgs.size() ; i++) {
+                    sendFIFOUndelivered(peer.unconfirmed_msgs.get(i),peer.addr);
                 }
                 peers_iter.remove();
+                releaseUnconfirmed(peer);
                 peer=null;
             }
 
@@ -326,7 +349,7 @@ public class NakFifoSession extends Session implements InitializableSession {
                 try {
                     PingEvent e=new PingEvent(peer.last_channel,this);
                     e.dest=peer.addr;
-                    send(e,peer.addr);
+                    send(e,peer.addr,false);
                 } catch (AppiaEventException ex) {
                     ex.printStackTrace();
                     log.warn("Impossible to send ping.");
@@ -344,7 +367,7 @@ public class NakFifoSession extends Session implements InitializableSession {
             debugPeer(peer,"handleIgnore");
 
         peer.last_msg_delivered=ev.getMessage().popLong();
-        peer.undelivered_msgs.clear();
+        peer.undelivered_msgs.reset(peer.last_msg_delivered+1);
         peer.nacked=null;
 
         peer.rounds_msg_recv=0;
@@ -352,9 +375,14 @@ public class NakFifoSession extends Session implements InitializableSession {
 
         //if (debugFull)
         log.debug("Received Ignore from "+peer.addr.toString()+" with value "+peer.last_msg_delivered);
+        ev.release();
     }
 
-    private void send(SendableEvent event, Object addr) {
+    /*
+     * Sends the event to a peer, that keeps it until it is confirmed.
+     * If the event is shared with other peers, a copy is kept instead.
+     */
+    private void send(SendableEvent event, Object addr, boolean shared) {
         Peer peer=(Peer)peers.get(addr);
         if (peer == null)
             peer=createPeer(addr,event.getChannel());      
@@ -374,7 +402,7 @@ public class NakFifoSession extends Session implements InitializableSession {
             ev.go();
 
             peer.last_msg_sent++;
-            storeUnconfirmed(peer,event);
+            storeUnconfirmed(peer,shared ? (SendableEvent)event.cloneEvent() : event);
 
             peer.rounds_msg_sent=0;
             if (!(ev instanceof PingEvent))
@@ -409,12 +437,14 @@ public class NakFifoSession extends Session implements InitializableSession {
         long seq;
         if ((seq=utils.popSeq(ev.getMessage(),peer.last_msg_delivered,false)) < 0) {
             log.debug("Problems reading sequence number discarding event "+ev+" from "+ev.dest.toString());
+            ev.release();
             return;
         }
 
         long peer_confirmed;
         if ((peer_confirmed=utils.popSeq(ev.getMessage(),peer.last_msg_confirmed,false)) < 0) {
             log.debug("Problems reading last message received by peer, discarding event "+ev+" from "+ev.dest.toString());
+            ev.release();
             return;
         }
 
@@ -442,6 +472,8 @@ public class NakFifoSession extends Session implements InitializableSession {
             try {
                 if (!(ev instanceof PingEvent))
                     ev.go();
+                else
+                    ev.release();
             } catch  (AppiaEventException ex) {
                 ex.printStackTrace();
                 return;
@@ -465,6 +497,7 @@ public class NakFifoSession extends Session implements InitializableSession {
         } else { // Wrong seq number
             if (seq <= peer.last_msg_delivered) {
                 log.debug("Received old message from "+peer.addr.toString()+". Discarding.");
+                ev.release();
                 return;
             }
 
@@ -515,25 +548,30 @@ public class NakFifoSession extends Session implements InitializableSession {
     }
 
     private void storeUnconfirmed(Peer peer, SendableEvent ev) {
-        peer.unconfirmed_msgs.addLast(ev);
+        peer.unconfirmed_msgs.addLast(peer.last_msg_sent,ev);
     }
 
     private void removeUnconfirmed(Peer peer, long last) {
         while (peer.last_msg_confirmed < last) {
-            SendableEvent ev = (SendableEvent) peer.unconfirmed_msgs.removeFirst();
+            // each peer keeps its own copy of the event
+            peer.unconfirmed_msgs.removeFirst().release();
             peer.last_msg_confirmed++;
-            // FIXME: this cannot be done here
-            //ev.getMessage().discardAll();
         }
     }
 
+    /* releases the events kept for a peer that is removed */
+    private void releaseUnconfirmed(Peer peer) {
+        for (int i=0 ; i < peer.unconfirmed_msgs.size() ; i++)
+            peer.unconfirmed_msgs.get(i).release();
+        peer.unconfirmed_msgs.clear();
+    }
+
     private void resend(Peer peer, long first, long last) {
-        ListIterator aux=peer.unconfirmed_msgs.listIterator();
-        long seq=peer.last_msg_confirmed;
-        while (aux.hasNext() && (seq <= last)) {
-            SendableEvent evaux=(SendableEvent)aux.next();
-            seq++;
-            if ((seq >= first) && (seq <= last)) {
+        final SeqQueue msgs=peer.unconfirmed_msgs;
+        for (int i=Math.max(msgs.indexOf(first),0) ; (i < msgs.size()) && (msgs.seq(i) <= last) ; i++) {
+            SendableEvent evaux=msgs.get(i);
+            long seq=msgs.seq(i);
+            if (seq >= first) {
                 try {
                     // Must send a clone because original may be shared among several peers
                     // due to AppiaMulticast
@@ -558,50 +596,48 @@ public class NakFifoSession extends Session implements InitializableSession {
     }
 
     private void storeUndelivered(Peer peer, SendableEvent ev, long seq) {
-        utils.pushSeq(ev.getMessage(),seq);
-        ListIterator aux=peer.undelivered_msgs.listIterator(peer.undelivered_msgs.size());
-        while (aux.hasPrevious()) {
-            SendableEvent evaux=(SendableEvent)aux.previous();
-            long seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-            if (seqaux == seq) {
-                log.debug("Received undelivered message already stored. Discarding new copy.");
-                return;
-            }
-            if (seqaux < seq) {
-                aux.next();
-                aux.add(ev);
-                return;
-            }
+        final SeqWindow msgs=peer.undelivered_msgs;
+        msgs.advance(peer.last_msg_delivered+1);
+        if (msgs.contains(seq)) {
+            log.debug("Received undelivered message already stored. Discarding new copy.");
+            ev.release();
+            return;
+        }
+        if (!msgs.put(seq,ev)) {
+            log.debug("Too many undelivered messages from "+peer.addr+". Discarding "+seq+", it will be retransmitted.");
+            ev.release();
         }
-        peer.undelivered_msgs.addFirst(ev);
     }
 
     private long deliverUndelivered(Peer peer) {
-        ListIterator aux=peer.undelivered_msgs.listIterator();
-        while (aux.hasNext()) {
-            SendableEvent evaux=(SendableEvent)aux.next();
-            long seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-            if (seqaux == peer.last_msg_delivered+1) {
-                try {
-                    if (!(evaux instanceof PingEvent)) {
-                        evaux.getMessage().discard(MessageUtils.SEQ_SIZE);
-                        evaux.go();
-                    }
-                } catch (AppiaEventException ex) {
-                    ex.printStackTrace();
-                    log.debug("Discarding event "+evaux+". This may lead to incoherence.");
-                }
-                peer.last_msg_delivered=seqaux;
-                aux.remove();
-            } else {
-                return seqaux;
+        final SeqWindow msgs=peer.undelivered_msgs;
+        msgs.advance(peer.last_msg_delivered+1);
+        SendableEvent evaux;
+        while ((evaux=msgs.remove(peer.last_msg_delivered+1)) != null) {
+            try {
+                if (!(evaux instanceof PingEvent))
+                    evaux.go();
+                else
+                    evaux.release();
+            } catch (AppiaEventException ex) {
+                ex.printStackTrace();
+                log.debug("Discarding event "+evaux+". This may lead to incoherence.");
             }
+            peer.last_msg_delivered++;
+            msgs.advance(peer.last_msg_delivered+1);
         }
-        return -1;
+        return msgs.first(peer.last_msg_delivered+1);
+    }
+
+    /* the channel of the first message kept out of order */
+    private Channel nackChannel(Peer peer) {
+        final SendableEvent ev=peer.undelivered_msgs.get(peer.undelivered_msgs.first(peer.last_msg_delivered+1));
+        return ev != null ? ev.getChannel() : peer.last_channel;
     }
 
     private Peer createPeer(Object addr, Channel channel) {
         Peer peer=new Peer(addr, channel.getTimeProvider());
+        peer.undelivered_msgs.setLimits(param_MAX_UNDELIVERED_MSGS,param_MAX_UNDELIVERED_BYTES);
         peers.put(peer.addr,peer);
         ignore(peer,channel);
         return peer;
@@ -707,12 +743,8 @@ public class NakFifoSession extends Session implements InitializableSession {
 
             int limit=debugListLimit;
             s+="\t Unconfirmed Msgs:"+"\n";
-            ListIterator iter=peer.unconfirmed_msgs.listIterator();
-            long l=peer.last_msg_confirmed;
-            while (iter.hasNext()) {
-                SendableEvent ev=(SendableEvent)iter.next();
-                l++;
-                s+="\t\t "+l+": "+ev+"\n";
+            for (int i=0 ; i < peer.unconfirmed_msgs.size() ; i++) {
+                s+="\t\t "+peer.unconfirmed_msgs.seq(i)+": "+peer.unconfirmed_msgs.get(i)+"\n";
                 if (--limit <= 0) {
                     s+="\t\t  ..."+"\n";
                     break;
@@ -721,15 +753,14 @@ public class NakFifoSession extends Session implements InitializableSession {
 
             limit=debugListLimit;
             s+="\t Undelivered Msgs:"+"\n";
-            iter=peer.undelivered_msgs.listIterator();
-            while (iter.hasNext()) {
-                SendableEvent ev=(SendableEvent)iter.next();
-                l=utils.popSeq(ev.getMessage(),peer.last_msg_delivered,true);
-                s+="\t\t "+l+": "+ev+"\n";
+            long l=peer.undelivered_msgs.first(peer.last_msg_delivered+1);
+            while (l >= 0) {
+                s+="\t\t "+l+": "+peer.undelivered_msgs.get(l)+"\n";
                 if (--limit <= 0) {
                     s+="\t\t  ..."+"\n";
                     break;
                 }
+                l=peer.undelivered_msgs.first(l+1);
             }
 
             s+="\t Nacked First/Last/Rounds: ";
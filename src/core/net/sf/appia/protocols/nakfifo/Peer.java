@@ -25,8 +25,6 @@
 
 package net.sf.appia.protocols.nakfifo;
 
-import java.util.LinkedList;
-
 import net.sf.appia.core.Channel;
 import net.sf.appia.core.TimeProvider;
 
@@ -47,8 +45,10 @@ public class Peer {
   // Used only by NakFifoMulticast
   public long last_confirm_sent=0;
   
-  public LinkedList unconfirmed_msgs=new LinkedList();
-  public LinkedList undelivered_msgs=new LinkedList();
+  /** Messages sent and not confirmed, by their sequence number. */
+  public SeqQueue unconfirmed_msgs=new SeqQueue();
+  /** Messages received out of order, by their sequence number. */
+  public SeqWindow undelivered_msgs=new SeqWindow();
   
   // TODO: 
   // Option 1: add pending list for events waiting to be sent when unconfirmed grows to much
@@ -72,6 +72,7 @@ public class Peer {
       last_msg_sent--;
     last_msg_confirmed=last_msg_sent;
     first_msg_sent=last_msg_sent+1;
+    undelivered_msgs.reset(last_msg_delivered+1);
   }
   
   public Peer(Object addr, long init) {
@@ -79,5 +80,6 @@ public class Peer {
     
     last_msg_sent=last_msg_confirmed=init;
     first_msg_sent=init+1;
+    undelivered_msgs.reset(last_msg_delivered+1);
   }
 }
\ No newline at end of file
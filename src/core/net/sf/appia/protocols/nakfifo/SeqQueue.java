@@ -0,0 +1,130 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.nakfifo;
+
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Messages sent to a peer and not yet confirmed, in the order they were sent.
+ * <br>
+ * The messages are kept in a ring buffer, with the first sequence number of each one.
+ * The sequence numbers are increasing, and usually consecutive, so the message
+ * with a given sequence number is found directly, or with a binary search if
+ * there are gaps (e.g. a {@link net.sf.appia.protocols.nakfifo.multicast.UpdateEvent}
+ * that covers several sequence numbers).
+ */
+public class SeqQueue {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private SendableEvent[] events = new SendableEvent[INITIAL_CAPACITY];
+    private long[] seqs = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Adds a message after all the others.
+     *
+     * @param seq the first sequence number of the message
+     */
+    public void addLast(long seq, SendableEvent event) {
+        if (size == events.length)
+            grow();
+        final int i = (head + size) & (events.length - 1);
+        events[i] = event;
+        seqs[i] = seq;
+        size++;
+    }
+
+    /**
+     * Removes the first message.
+     *
+     * @return the message, or null if there are none
+     */
+    public SendableEvent removeFirst() {
+        if (size == 0)
+            return null;
+        final SendableEvent event = events[head];
+        events[head] = null;
+        head = (head + 1) & (events.length - 1);
+        size--;
+        return event;
+    }
+
+    /**
+     * Gets the i-th message, starting at 0.
+     */
+    public SendableEvent get(int i) {
+        return events[(head + i) & (events.length - 1)];
+    }
+
+    /**
+     * Gets the first sequence number of the i-th message.
+     */
+    public long seq(int i) {
+        return seqs[(head + i) & (events.length - 1)];
+    }
+
+    /**
+     * Finds the last message whose first sequence number is not greater than the given one.
+     *
+     * @return the index of the message, or -1 if all the messages start after it
+     */
+    public int indexOf(long seq) {
+        if (size == 0 || seq < seq(0))
+            return -1;
+        final long direct = seq - seq(0);
+        if (direct < size && seq((int) direct) == seq)
+            return (int) direct;
+        int low = 0, high = size - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (seq(middle) <= seq)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /** Number of messages. */
+    public int size() {
+        return size;
+    }
+
+    /** Removes all the messages. */
+    public void clear() {
+        while (size > 0)
+            removeFirst();
+        head = 0;
+    }
+
+    private void grow() {
+        final SendableEvent[] newEvents = new SendableEvent[events.length << 1];
+        final long[] newSeqs = new long[events.length << 1];
+        for (int i = 0; i < size; i++) {
+            newEvents[i] = get(i);
+            newSeqs[i] = seq(i);
+        }
+        events = newEvents;
+        seqs = newSeqs;
+        head = 0;
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.nakfifo;
+
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Messages received from a peer out of order, indexed by sequence number.
+ * <br>
+ * The messages are kept in a ring buffer, in the slot given by their sequence
+ * number, with a bitmap of the occupied slots. Storing, removing and finding
+ * duplicates take constant time, and the next stored message is found by scanning
+ * the bitmap. The window starts in the {@link #advance(long) base}, the first
+ * sequence number that was not delivered, and grows until the maximum number of
+ * messages. Messages beyond it, or beyond the maximum number of bytes, are not
+ * stored and must be retransmitted.
+ * <br>
+ * The messages dropped by {@link #advance(long)} and {@link #reset(long)} are released.
+ */
+public class SeqWindow {
+
+    /** Default maximum number of messages in the window. */
+    public static final int DEFAULT_MAX_MESSAGES = 1 << 16;
+    /** Default maximum number of bytes of the messages in the window. */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private SendableEvent[] events = new SendableEvent[INITIAL_CAPACITY];
+    private long[] seqs = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    /* occupied slots */
+    private long[] present = new long[INITIAL_CAPACITY / 64];
+    private int mask = INITIAL_CAPACITY - 1;
+
+    private long base = 0;
+    private int size = 0;
+    private long bytes = 0;
+
+    private int maxMessages = DEFAULT_MAX_MESSAGES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Sets the limits of the window.
+     *
+     * @param maxMessages the maximum distance from the base to a stored message
+     * @param maxBytes the maximum number of bytes of the stored messages
+     */
+    public void setLimits(int maxMessages, long maxBytes) {
+        this.maxMessages = Math.max(maxMessages, INITIAL_CAPACITY);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Stores a message.
+     *
+     * @return false if the message is before the base, is already stored, or
+     * does not fit in the window
+     */
+    public boolean put(long seq, SendableEvent event) {
+        if (seq < base || contains(seq))
+            return false;
+        final int length = event.getMessage().length();
+        if (size > 0 && bytes + length > maxBytes)
+            return false;
+        if (seq - base >= events.length && !grow(seq - base + 1))
+            return false;
+
+        final int i = (int) (seq & mask);
+        events[i] = event;
+        seqs[i] = seq;
+        lengths[i] = length;
+        present[i >>> 6] |= 1L << (i & 63);
+        size++;
+        bytes += length;
+        return true;
+    }
+
+    /**
+     * Checks if a message is stored.
+     */
+    public boolean contains(long seq) {
+        if (seq < base || seq - base >= events.length)
+            return false;
+        final int i = (int) (seq & mask);
+        return (present[i >>> 6] & (1L << (i & 63))) != 0;
+    }
+
+    /**
+     * Gets a stored message, or null.
+     */
+    public SendableEvent get(long seq) {
+        return contains(seq) ? events[(int) (seq & mask)] : null;
+    }
+
+    /**
+     * Removes a stored message.
+     *
+     * @return the message, or null if it was not stored
+     */
+    public SendableEvent remove(long seq) {
+        if (!contains(seq))
+            return null;
+        final int i = (int) (seq & mask);
+        final SendableEvent event = events[i];
+        events[i] = null;
+        present[i >>> 6] &= ~(1L << (i & 63));
+        size--;
+        bytes -= lengths[i];
+        return event;
+    }
+
+    /**
+     * Finds the first stored message with a sequence number not lower than the given one.
+     *
+     * @return its sequence number, or -1 if there is none
+     */
+    public long first(long from) {
+        if (size == 0)
+            return -1;
+        long seq = Math.max(from, base);
+        final long end = base + events.length;
+        while (seq < end) {
+            final int i = (int) (seq & mask);
+            final long word = present[i >>> 6] >>> (i & 63);
+            if (word != 0) {
+                seq += Long.numberOfTrailingZeros(word);
+                return seq < end ? seq : -1;
+            }
+            seq += 64 - (i & 63);
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the base of the window forward, removing the messages before it.
+     */
+    public void advance(long newBase) {
+        if (newBase <= base)
+            return;
+        long seq;
+        while ((seq = first(base)) >= 0 && seq < newBase)
+            remove(seq).release();
+        base = newBase;
+    }
+
+    /**
+     * Removes all the messages and sets the base of the window.
+     */
+    public void reset(long newBase) {
+        for (int i = 0; i < events.length; i++) {
+            if (events[i] != null)
+                events[i].release();
+            events[i] = null;
+        }
+        for (int i = 0; i < present.length; i++)
+            present[i] = 0;
+        size = 0;
+        bytes = 0;
+        base = newBase;
+    }
+
+    /** Number of stored messages. */
+    public int size() {
+        return size;
+    }
+
+    /** Number of bytes of the stored messages. */
+    public long bytes() {
+        return bytes;
+    }
+
+    private boolean grow(long needed) {
+        if (needed > maxMessages)
+            return false;
+        int capacity = events.length;
+        while (capacity < needed)
+            capacity <<= 1;
+
+        final SendableEvent[] oldEvents = events;
+        final long[] oldSeqs = seqs;
+        final int[] oldLengths = lengths;
+        final long[] oldPresent = present;
+        events = new SendableEvent[capacity];
+        seqs = new long[capacity];
+        lengths = new int[capacity];
+        present = new long[capacity / 64];
+        mask = capacity - 1;
+        for (int i = 0; i < oldEvents.length; i++) {
+            if ((oldPresent[i >>> 6] & (1L << (i & 63))) != 0) {
+                final int j = (int) (oldSeqs[i] & mask);
+                events[j] = oldEvents[i];
+                seqs[j] = oldSeqs[i];
+                lengths[j] = oldLengths[i];
+                present[j >>> 6] |= 1L << (j & 63);
+            }
+        }
+        return true;
+    }
+}
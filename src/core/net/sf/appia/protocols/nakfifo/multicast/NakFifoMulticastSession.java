@@ -28,7 +28,6 @@ package net.sf.appia.protocols.nakfifo.multicast;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.ListIterator;
 
 import net.sf.appia.core.AppiaError;
 import net.sf.appia.core.AppiaEventException;
@@ -53,6 +52,8 @@ import net.sf.appia.protocols.nakfifo.Nacked;
 import net.sf.appia.protocols.nakfifo.NakFifoTimer;
 import net.sf.appia.protocols.nakfifo.Peer;
 import net.sf.appia.protocols.nakfifo.PingEvent;
+import net.sf.appia.protocols.nakfifo.SeqQueue;
+import net.sf.appia.protocols.nakfifo.SeqWindow;
 import net.sf.appia.xml.interfaces.InitializableSession;
 import net.sf.appia.xml.utils.SessionProperties;
 
@@ -104,6 +105,8 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
   private long param_MAX_RECV_ROUNDS=DEFAULT_MAX_RECV_TIME/param_TIMER_PERIOD;
   private long param_MAX_SENT_ROUNDS=DEFAULT_MAX_SENT_TIME/param_TIMER_PERIOD;
   private long param_CONFIRM_ROUNDS=DEFAULT_CONFIRM_ROUNDS;
+  private int param_MAX_UNDELIVERED_MSGS=SeqWindow.DEFAULT_MAX_MESSAGES;
+  private long param_MAX_UNDELIVERED_BYTES=SeqWindow.DEFAULT_MAX_BYTES;
   
   /** Creates a new instance of NakFifoSession */
   public NakFifoMulticastSession(Layer layer) {
@@ -126,6 +129,8 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
    * <li><b>max_recv_time</b> maximum time for message reception, before suspecting the peer. (in milliseconds)
    * <li><b>max_sent_time</b> maximum time between sent messages. (in milliseconds)
    * <li><b>confirm_rounds</b> number of rounds between confirmation messages.
+   * <li><b>max_undelivered_msgs</b> maximum number of sequence numbers, after the next to deliver, of the messages kept out of order.
+   * <li><b>max_undelivered_bytes</b> maximum number of bytes of the messages kept out of order, for each peer.
    * </ul>
    * 
    * @param params The parameters given in the XML configuration.
@@ -143,6 +148,10 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
       param_MAX_SENT_ROUNDS=params.getLong("max_sent_time")/param_TIMER_PERIOD;
     if (params.containsKey("confirm_rounds"))
       param_CONFIRM_ROUNDS=params.getLong("confirm_rounds");
+    if (params.containsKey("max_undelivered_msgs"))
+      param_MAX_UNDELIVERED_MSGS=params.getInt("max_undelivered_msgs");
+    if (params.containsKey("max_undelivered_bytes"))
+      param_MAX_UNDELIVERED_BYTES=params.getLong("max_undelivered_bytes");
   }
 
   /** 
@@ -424,7 +433,7 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
       if (peer.nacked != null) {
         peer.nacked.rounds++;
         if (peer.nacked.rounds > param_RESEND_NACK_ROUNDS) {
-          nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, ((SendableEvent)peer.undelivered_msgs.getFirst()).getChannel());
+          nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, nackChannel(peer));
           peer.nacked.rounds=0;
         }
       } else {
@@ -435,9 +444,8 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
       }
       
       if ((peer != null) && (peer.rounds_msg_recv > param_MAX_RECV_ROUNDS)) {
-        Iterator msgs=peer.unconfirmed_msgs.iterator();
-        while (msgs.hasNext()) {
-          sendFIFOUndelivered((SendableEvent)msgs.next(),peer.addr);
+        for (int i=0 ; i < peer.unconfirmed_msgs.size() ; i++) {
+          sendFIFOUndelivered(peer.unconfirmed_msgs.get(i),peer.addr);
         }
         peers_iter.remove();
         peer=null;
@@ -489,7 +497,7 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
       debugPeer(peer,"handleIgnore");
     
     peer.last_msg_delivered=ev.getMessage().popLong();
-    peer.undelivered_msgs.clear();
+    peer.undelivered_msgs.reset(peer.last_msg_delivered+1);
     peer.nacked=null;
     
     peer.rounds_msg_recv=0;
@@ -709,7 +717,10 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
       //ev.getMessage().pushInt(ev.getMessage().popInt()+1);
     }
     
-    peer.unconfirmed_msgs.addLast(ev);
+    if (ev instanceof UpdateEvent)
+      peer.unconfirmed_msgs.addLast(((UpdateEvent)ev).from,ev);
+    else
+      peer.unconfirmed_msgs.addLast(peer.last_msg_sent,ev);
     
     // TODO: erase
     int size=peer.unconfirmed_msgs.size();
@@ -719,7 +730,7 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
   
   private void removeUnconfirmed(Peer peer, long last) {
     while (peer.last_msg_confirmed < last) {
-    	SendableEvent ev = (SendableEvent) peer.unconfirmed_msgs.removeFirst();
+    	SendableEvent ev = peer.unconfirmed_msgs.removeFirst();
       if (ev instanceof UpdateEvent)
         peer.last_msg_confirmed=((UpdateEvent)ev).to;
       else {
@@ -737,13 +748,11 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
   }
   
   private void resend(Peer peer, long first, long last) {
-    ListIterator aux=peer.unconfirmed_msgs.listIterator();
-    long seq=peer.last_msg_confirmed;
-    while (aux.hasNext() && (seq <= last)) {
-      SendableEvent evaux=(SendableEvent)aux.next();
+    final SeqQueue msgs=peer.unconfirmed_msgs;
+    for (int i=Math.max(msgs.indexOf(first),0) ; (i < msgs.size()) && (msgs.seq(i) <= last) ; i++) {
+      SendableEvent evaux=msgs.get(i);
       if (evaux instanceof UpdateEvent) {
         UpdateEvent update=(UpdateEvent)evaux;
-        seq=update.to;
         if (((update.from >= first) && (update.from <= last)) || ((update.to >= first) && (update.to <= last))) {
           try {
             SendableEvent ev=(UpdateEvent)update.cloneEvent();
@@ -763,8 +772,8 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
           }
         }
       } else {
-        seq++;
-        if ((seq >= first) && (seq <= last)) {
+        long seq=msgs.seq(i);
+        if (seq >= first) {
           try {
             SendableEvent ev=(SendableEvent)evaux.cloneEvent();
             // Removes peer counter
@@ -790,77 +799,49 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
   }
   
   private void storeUndelivered(Peer peer, SendableEvent ev, long seq) {
-    if (!(ev instanceof UpdateEvent))
-      utils.pushSeq(ev.getMessage(),seq);
-    ListIterator aux=peer.undelivered_msgs.listIterator(peer.undelivered_msgs.size());
-    while (aux.hasPrevious()) {
-      SendableEvent evaux=(SendableEvent)aux.previous();
-      long seqaux;
-      if (evaux instanceof UpdateEvent) { 
-    	  UpdateEvent update=(UpdateEvent)evaux;
-    	  if ((seq >= update.from) && (seq <= update.to)) {
-    		  log.debug("Received undelivered message already stored. Discarding new copy.");
-    		  return;
-    	  }
-    	  seqaux=update.to;
-      }  else {
-    	  seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-    	  if (seqaux == seq) {
-    		  log.debug("Received undelivered message already stored. Discarding new copy.");
-    		  return;
-    	  }
-      }
-      if (seqaux < seq) {
-        aux.next();
-        aux.add(ev);
-        return;
-      }
+    final SeqWindow msgs=peer.undelivered_msgs;
+    msgs.advance(peer.last_msg_delivered+1);
+    if (msgs.contains(seq)) {
+      log.debug("Received undelivered message already stored. Discarding new copy.");
+      return;
     }
-    peer.undelivered_msgs.addFirst(ev);
+    if (!msgs.put(seq,ev))
+      log.debug("Too many undelivered messages from "+peer.addr+". Discarding "+seq+", it will be retransmitted.");
   }
   
   private long deliverUndelivered(Peer peer) {
-    ListIterator aux=peer.undelivered_msgs.listIterator();
-    while (aux.hasNext()) {
-      SendableEvent evaux=(SendableEvent)aux.next();
+    final SeqWindow msgs=peer.undelivered_msgs;
+    msgs.advance(peer.last_msg_delivered+1);
+    SendableEvent evaux;
+    while ((evaux=msgs.remove(peer.last_msg_delivered+1)) != null) {
       if (evaux instanceof UpdateEvent) {
-        UpdateEvent update=(UpdateEvent)evaux;
-        if (update.to <= peer.last_msg_delivered) {
-        	log.debug("Discarded unwanted event from "+peer.addr+" with seq "+update.from+" -> "+update.to);
-        	aux.remove();
-        } else if (update.from == peer.last_msg_delivered+1) {
-          peer.last_msg_delivered=update.to;
-          aux.remove();
-        } else {
-          return update.from;
-        }
-      } else { // Not UpdateEvent interface regular SendableEvent
-        long seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-        if (seqaux <= peer.last_msg_delivered) {
-        	log.debug("Discarded unwanted event from "+peer.addr+" with seq "+seqaux);
-        	aux.remove();        	
-        } else if (seqaux == peer.last_msg_delivered+1) {
-          if (!(evaux instanceof PingEvent)) {
-            try {
-              evaux.getMessage().discard(MessageUtils.SEQ_SIZE);
-              evaux.go();
-            } catch (AppiaEventException ex) {
-              ex.printStackTrace();
-              log.debug("Discarding event "+evaux+". This may lead to incoherence.");
-            }
+        peer.last_msg_delivered=((UpdateEvent)evaux).to;
+      } else {
+        if (!(evaux instanceof PingEvent)) {
+          try {
+            evaux.go();
+          } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+            log.debug("Discarding event "+evaux+". This may lead to incoherence.");
           }
-          peer.last_msg_delivered=seqaux;
-          aux.remove();
-        } else {
-          return seqaux;
         }
+        peer.last_msg_delivered++;
       }
+      // messages covered by an update are discarded
+      msgs.advance(peer.last_msg_delivered+1);
     }
-    return -1;
+    return msgs.first(peer.last_msg_delivered+1);
+  }
+  
+  /* the channel of the first message kept out of order */
+  private Channel nackChannel(Peer peer) {
+    final SendableEvent ev=peer.undelivered_msgs.get(peer.undelivered_msgs.first(peer.last_msg_delivered+1));
+    return ev != null ? ev.getChannel() : peer.last_channel;
   }
   
   private Peer createPeer(Object addr, long init, Channel channel) {
     Peer peer=new Peer(addr,init);
+    peer.undelivered_msgs.setLimits(param_MAX_UNDELIVERED_MSGS,param_MAX_UNDELIVERED_BYTES);
     peers.put(peer.addr,peer);
     ignore(peer,channel);
     return peer;
@@ -934,12 +915,8 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
 
           int limit=debugListLimit;
           s+="\t Unconfirmed Msgs:"+"\n";
-          ListIterator iter=peer.unconfirmed_msgs.listIterator();
-          long l=peer.last_msg_confirmed;
-          while (iter.hasNext()) {
-              SendableEvent ev=(SendableEvent)iter.next();
-              l++;
-              s+="\t\t "+l+": "+ev+"\n";
+          for (int i=0 ; i < peer.unconfirmed_msgs.size() ; i++) {
+              s+="\t\t "+peer.unconfirmed_msgs.seq(i)+": "+peer.unconfirmed_msgs.get(i)+"\n";
               if (--limit <= 0) {
                   s+="\t\t  ..."+"\n";
                   break;
@@ -948,15 +925,14 @@ public class NakFifoMulticastSession extends Session implements InitializableSes
 
           limit=debugListLimit;
           s+="\t Undelivered Msgs:"+"\n";
-          iter=peer.undelivered_msgs.listIterator();
-          while (iter.hasNext()) {
-              SendableEvent ev=(SendableEvent)iter.next();
-              l=utils.popSeq(ev.getMessage(),peer.last_msg_delivered,true);
-              s+="\t\t "+l+": "+ev+"\n";
+          long l=peer.undelivered_msgs.first(peer.last_msg_delivered+1);
+          while (l >= 0) {
+              s+="\t\t "+l+": "+peer.undelivered_msgs.get(l)+"\n";
               if (--limit <= 0) {
                   s+="\t\t  ..."+"\n";
                   break;
               }
+              l=peer.undelivered_msgs.first(l+1);
           }
 
           s+="\t Nacked First/Last/Rounds: ";
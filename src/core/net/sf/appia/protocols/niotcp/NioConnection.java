@@ -0,0 +1,431 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.niotcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.protocols.tcpcomplete.WireDictionary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A TCP connection to another node, served by a {@link SelectorThread}.
+ * <br>
+ * Frames are queued by the Appia thread and written by the selector thread,
+ * with gathering writes that may take several frames at once.
+ * Incoming frames are read into a buffer of the connection, or directly into the
+ * array of the frame when it is large, and handed to the session.
+ * When the channel of a received event can not take it, the connection stops reading
+ * until the event is inserted, leaving the other node blocked by TCP flow control.
+ * <br>
+ * The accepting side of a connection first reads the port of the accept socket
+ * of the other node, as in {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteSession}.
+ * The event classes and channel IDs are encoded with the {@link WireDictionary} of the connection.
+ */
+final class NioConnection implements SelectionHandler {
+
+    private static Logger log = Logger.getLogger(NioConnection.class);
+
+    private static final int INT_SIZE = 4;
+    private static final int READ_BUFFER_SIZE = 16*1024;
+    private static final int MAX_GATHER = 64;
+
+    private final NioTcpSession session;
+    private final SelectorThread selector;
+    private final SocketChannel socket;
+    private SelectionKey key = null;
+    final WireDictionary dictionary = new WireDictionary();
+
+    /* channel of the undelivered events caused by reads */
+    final Channel channel;
+    /* the address of the accept socket of the other node, null until it is received */
+    private volatile InetSocketAddress peer;
+    private boolean connected;
+    private volatile boolean closed = false;
+
+    private final ConcurrentLinkedQueue<OutgoingFrame> queue = new ConcurrentLinkedQueue<OutgoingFrame>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ArrayList<OutgoingFrame> batch = new ArrayList<OutgoingFrame>();
+    private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int gatherOffset = 0, gatherCount = 0;
+    private boolean writeInterest = false;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] frame = null;
+    private int frameFill = 0;
+    private final AtomicInteger inactiveCounter = new AtomicInteger(0);
+    /* received event that its channel could not take yet */
+    private SendableEvent blocked = null;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable resumeTask = new Runnable() {
+        public void run() {
+            resume();
+        }
+    };
+
+    /**
+     * Creates a connection.
+     *
+     * @param peer the address of the accept socket of the other node, or null if it must be received
+     * @param connected false if the connection is still being established
+     */
+    NioConnection(NioTcpSession session, SelectorThread selector, SocketChannel socket,
+            Channel channel, InetSocketAddress peer, boolean connected) {
+        this.session = session;
+        this.selector = selector;
+        this.socket = socket;
+        this.channel = channel;
+        this.peer = peer;
+        this.connected = connected;
+    }
+
+    InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    SelectorThread getSelector() {
+        return selector;
+    }
+
+    InetAddress getLocalAddress() {
+        return socket.socket().getLocalAddress();
+    }
+
+    /**
+     * Registers the connection in its selector.
+     */
+    void register() {
+        selector.execute(new Runnable() {
+            public void run() {
+                if (closed)
+                    return;
+                try {
+                    key = selector.register(socket, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+                            NioConnection.this);
+                } catch (IOException ex) {
+                    failed(ex);
+                    return;
+                }
+                if (connected)
+                    flush();
+            }
+        });
+    }
+
+    /**
+     * Queues a frame to be written.
+     * @return false if the connection is closed
+     */
+    boolean enqueue(OutgoingFrame out) {
+        if (closed)
+            return false;
+        queue.add(out);
+        if (flushScheduled.compareAndSet(false, true))
+            selector.execute(flushTask);
+        return true;
+    }
+
+    /**
+     * Closes the connection, without sending undelivered events.
+     */
+    void close() {
+        selector.execute(new Runnable() {
+            public void run() {
+                closeNow();
+            }
+        });
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int sumInactiveCounter() {
+        return inactiveCounter.incrementAndGet();
+    }
+
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isConnectable() && socket.finishConnect()) {
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            }
+            if (key.isValid() && key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                flush();
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    public void closeNow() {
+        closeSocket();
+    }
+
+    /*
+     * Writes the queued frames until the queue is empty or the socket is full.
+     */
+    private void flush() {
+        if (!connected || closed || key == null)
+            return;
+        try {
+            for (;;) {
+                if (!write()) {
+                    setWriteInterest(true);
+                    return;
+                }
+                setWriteInterest(false);
+                flushScheduled.set(false);
+                if (queue.isEmpty() || !flushScheduled.compareAndSet(false, true))
+                    return;
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /*
+     * Returns false if the socket is full.
+     */
+    private boolean write() throws IOException {
+        for (;;) {
+            if (gatherCount == 0 && !fillBatch())
+                return true;
+
+            socket.write(gather, gatherOffset, gatherCount-gatherOffset);
+            while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining())
+                gatherOffset++;
+            if (gatherOffset < gatherCount)
+                return false;
+
+            for (int i = 0; i < batch.size(); i++)
+                batch.get(i).release();
+            batch.clear();
+            for (int i = 0; i < gatherCount; i++)
+                gather[i] = null;
+            gatherOffset = gatherCount = 0;
+        }
+    }
+
+    /*
+     * Takes queued frames, while their buffers fit in the gathering array.
+     */
+    private boolean fillBatch() {
+        OutgoingFrame out;
+        while ((out = queue.peek()) != null) {
+            final ByteBuffer[] buffers = out.getBuffers();
+            final int n = (out.eventType == null) ? buffers.length : buffers.length+1;
+            if (gatherCount > 0 && gatherCount+n > gather.length)
+                break;
+            queue.poll();
+            if (n > gather.length)
+                gather = new ByteBuffer[n];
+            if (out.eventType != null)
+                gather[gatherCount++] = ByteBuffer.wrap(dictionary.encode(out.eventType,
+                        out.channel.getChannelID(), out.length));
+            System.arraycopy(buffers, 0, gather, gatherCount, buffers.length);
+            gatherCount += buffers.length;
+            batch.add(out);
+        }
+        return gatherCount > 0;
+    }
+
+    private void setWriteInterest(boolean interest) {
+        if (interest != writeInterest) {
+            writeInterest = interest;
+            if (interest)
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() throws IOException {
+        // large frames are read directly into their array
+        if (frame != null && readBuffer.position() == 0 && frame.length-frameFill >= READ_BUFFER_SIZE) {
+            final int n = socket.read(ByteBuffer.wrap(frame, frameFill, frame.length-frameFill));
+            if (n < 0)
+                throw new IOException("Received EOF in the socket input stream.");
+            inactiveCounter.set(0);
+            frameFill += n;
+            if (frameFill == frame.length) {
+                final byte[] data = frame;
+                frame = null;
+                deliver(data);
+            }
+            return;
+        }
+
+        if (socket.read(readBuffer) < 0)
+            throw new IOException("Received EOF in the socket input stream.");
+        inactiveCounter.set(0);
+        parse();
+    }
+
+    /*
+     * Hands the complete frames of the read buffer to the session,
+     * until one of them can not be delivered.
+     */
+    private void parse() throws IOException {
+        readBuffer.flip();
+        try {
+            while (blocked == null) {
+                if (peer == null) {
+                    if (readBuffer.remaining() < INT_SIZE)
+                        break;
+                    final int port = readBuffer.getInt();
+                    if (log.isDebugEnabled())
+                        log.debug("received remote port:: "+port);
+                    peer = new InetSocketAddress(socket.socket().getInetAddress(), port);
+                    session.accepted(this);
+                    continue;
+                }
+                if (frame == null) {
+                    if (readBuffer.remaining() < INT_SIZE)
+                        break;
+                    final int total = readBuffer.getInt();
+                    if (total < 0)
+                        throw new IOException("Invalid frame length "+total);
+                    frame = new byte[total];
+                    frameFill = 0;
+                }
+                final int n = Math.min(readBuffer.remaining(), frame.length-frameFill);
+                readBuffer.get(frame, frameFill, n);
+                frameFill += n;
+                if (frameFill < frame.length)
+                    break;
+                final byte[] data = frame;
+                frame = null;
+                deliver(data);
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /*
+     * Hands a frame to the session. If its event is not inserted, reading stops
+     * until it is.
+     */
+    private void deliver(byte[] data) throws IOException {
+        blocked = session.receive(this, data);
+        if (blocked != null) {
+            if (log.isDebugEnabled())
+                log.debug("Channel "+blocked.getChannel().getChannelID()+" is full, stopped reading from "+peer);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            session.retryLater(selector, blocked.getChannel(), resumeTask);
+        }
+    }
+
+    /*
+     * Inserts the blocked event again, and if it was inserted,
+     * delivers the frames already read and reads again.
+     */
+    private void resume() {
+        if (closed || blocked == null)
+            return;
+        if (!session.deliver(blocked)) {
+            session.retryLater(selector, blocked.getChannel(), resumeTask);
+            return;
+        }
+        blocked = null;
+        try {
+            parse();
+            if (blocked == null)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /*
+     * The connection failed: it is closed, and the session is notified.
+     */
+    private void failed(IOException ex) {
+        if (closed)
+            return;
+        if (log.isDebugEnabled()) {
+            log.debug("Connection to "+peer+" failed: "+ex);
+            ex.printStackTrace();
+        }
+        session.failed(this, closeSocket());
+    }
+
+    /*
+     * Closes the socket and discards the frames that were not written.
+     * Returns the channels of those frames.
+     */
+    private Set<Channel> closeSocket() {
+        final Set<Channel> channels = new HashSet<Channel>();
+        if (closed)
+            return channels;
+        closed = true;
+        if (key != null)
+            key.cancel();
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                ex.printStackTrace();
+        }
+
+        if (blocked != null) {
+            blocked.release();
+            blocked = null;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).channel != null)
+                channels.add(batch.get(i).channel);
+            batch.get(i).release();
+        }
+        batch.clear();
+        gather = new ByteBuffer[MAX_GATHER];
+        gatherOffset = gatherCount = 0;
+        OutgoingFrame out;
+        while ((out = queue.poll()) != null) {
+            if (out.channel != null)
+                channels.add(out.channel);
+            out.release();
+        }
+        return channels;
+    }
+}
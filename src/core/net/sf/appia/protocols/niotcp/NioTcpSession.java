@@ -0,0 +1,738 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.niotcp;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.appia.core.AppiaConfig;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.memoryManager.MemoryManager;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.EventFactory;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.tcpcomplete.CloseTcpSocket;
+import net.sf.appia.protocols.tcpcomplete.TcpTimer;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+import net.sf.appia.protocols.tcpcomplete.WireDictionary;
+import net.sf.appia.protocols.utils.HostUtils;
+import net.sf.appia.protocols.utils.ParseUtils;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uses TCP to send/receive events to/from other Appia instances, with non-blocking
+ * sockets served by a small pool of selector threads.<br>
+ * It is wire compatible with {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteSession},
+ * and handles the same events: connections are established automatically when required,
+ * terminated after an inactivity period, and their failures are notified with
+ * {@link TcpUndeliveredEvent TcpUndeliveredEvents}. <br>
+ * Unlike {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteSession}, that uses two
+ * threads for each connection, all the connections are served by the selector threads,
+ * and connections are established without blocking the Appia thread.
+ * The selector threads never block on a channel whose memory manager is above the
+ * threshold: the connection stops reading until the channel takes events again. <br>
+ * Messages are written directly from their blocks, as the gathering writes of
+ * {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteSession}, and the event classes
+ * and channel IDs are encoded with a {@link WireDictionary} for each connection. <br>
+ * <br>
+ * <b>The TCP socket is bound to a local address</b>.
+ * If {@link net.sf.appia.protocols.common.RegisterSocketEvent#localHost} is null,
+ * {@link net.sf.appia.protocols.utils.HostUtils} is used to select one.
+ */
+public class NioTcpSession extends Session implements InitializableSession {
+
+    private static Logger log = Logger.getLogger(NioTcpSession.class);
+
+    private static final int DEST_TIMEOUT=150000; // 2,5 minutes
+    private static final int MAX_INACTIVITY=2;
+    private static final int SELECTOR_THREADS=Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+    private static final int BACKLOG=50;
+
+    protected int param_DEST_TIMEOUT=DEST_TIMEOUT, param_MAX_INACTIVITY=MAX_INACTIVITY,
+        param_SELECTOR_THREADS=SELECTOR_THREADS;
+    protected boolean param_CLOSE_INACTIVE_SOCKETS=true;
+
+    //Channels
+    private Hashtable<String,Channel> channels=new Hashtable<String,Channel>();
+
+    //Connections created by this node, and opened to us
+    private Hashtable<InetSocketAddress,NioConnection> ourConnections=new Hashtable<InetSocketAddress,NioConnection>();
+    private Hashtable<InetSocketAddress,NioConnection> otherConnections=new Hashtable<InetSocketAddress,NioConnection>();
+    private final Object socketLock=new Object();
+
+    private volatile SelectorThread[] selectors=null;
+    private final AtomicInteger nextSelector=new AtomicInteger(0);
+    private Acceptor acceptor=null;
+    private int ourPort=-1;
+
+    private Channel timerChannel=null;
+
+    //Messages already written, whose blocks can be released
+    private ConcurrentLinkedQueue<OutgoingFrame> writtenMessages=new ConcurrentLinkedQueue<OutgoingFrame>();
+
+    /**
+     * Creates a new NioTcpSession.
+     * @param layer
+     */
+    public NioTcpSession(Layer layer) {
+        super(layer);
+    }
+
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>dest_timeout</b> time between unused open connections verification. (in milliseconds);
+     * <li><b>max_inactivity</b> number of times that the dest_timeout expires without closing the connection;
+     * <li><b>close_inactive_sockets</b> boolean that defines if inactive sockets should be closed or not.
+     * <li><b>selector_threads</b> number of threads that serve the sockets.
+     * By default, half the number of processors, between 1 and 4.
+     * </ul>
+     *
+     * @param params The parameters given in the XML configuration.
+     * @see net.sf.appia.xml.interfaces.InitializableSession#init(SessionProperties)
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("dest_timeout"))
+            param_DEST_TIMEOUT=params.getInt("dest_timeout");
+        if (params.containsKey("max_inactivity"))
+            param_MAX_INACTIVITY=params.getInt("max_inactivity");
+        if (params.containsKey("close_inactive_sockets"))
+            param_CLOSE_INACTIVE_SOCKETS=params.getBoolean("close_inactive_sockets");
+        if (params.containsKey("selector_threads"))
+            param_SELECTOR_THREADS=Math.max(1, params.getInt("selector_threads"));
+    }
+
+    public void handle(Event e) {
+        if (e instanceof SendableEvent)
+            handleSendable((SendableEvent)e);
+        else if (e instanceof RegisterSocketEvent)
+            handleRegisterSocket((RegisterSocketEvent)e);
+        else if (e instanceof ChannelInit)
+            handleChannelInit((ChannelInit)e);
+        else if (e instanceof ChannelClose)
+            handleChannelClose((ChannelClose)e);
+        else if (e instanceof TcpTimer)
+            handleTcpTimer((TcpTimer)e);
+        else if (e instanceof CloseTcpSocket)
+            handleCloseSocket((CloseTcpSocket)e);
+    }
+
+    private void handleSendable(SendableEvent e) {
+        if (e.getDir() == Direction.UP) {
+            if (e.getChannel().isStarted()) {
+                try {
+                    e.go();
+                } catch (AppiaEventException e1) {
+                    e1.printStackTrace();
+                }
+            } else
+                e.release();
+            return;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("preparing to send ::"+e+" CHANNEL: "+e.getChannel().getChannelID());
+
+        releaseWrittenMessages();
+        final OutgoingFrame out=prepare(e);
+
+        if (e.dest instanceof AppiaMulticast) {
+            final Object[] dests=((AppiaMulticast)e.dest).getDestinations();
+            for (int i=0 ; i < dests.length ; i++) {
+                if (dests[i] instanceof InetSocketAddress)
+                    send(out, (InetSocketAddress)dests[i], e.getChannel());
+                else
+                    sendUndelivered(e.getChannel(), dests[i]);
+            }
+        } else if (e.dest instanceof InetSocketAddress) {
+            send(out, (InetSocketAddress)e.dest, e.getChannel());
+        } else {
+            sendUndelivered(e.getChannel(), e.dest);
+        }
+        out.release();
+
+        try {
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void handleRegisterSocket(RegisterSocketEvent e) {
+        if (log.isDebugEnabled())
+            log.debug("NIO TCP Session received RegisterSocketEvent to register a socket in port "+e.port);
+        ServerSocketChannel ssc=null;
+
+        if (e.localHost == null)
+            e.localHost=HostUtils.getLocalAddress();
+
+        if (ourPort < 0) {
+            if (e.port == RegisterSocketEvent.FIRST_AVAILABLE) {
+                try {
+                    ssc=newServerSocket(0, e.localHost);
+                } catch (IOException ex) {
+                    log.debug("Exception when trying to create a server socket in First Available mode: "+ex);
+                }
+            } else if (e.port == RegisterSocketEvent.RANDOMLY_AVAILABLE) {
+                final Random rand=new Random();
+                while (ssc == null) {
+                    final int p=rand.nextInt(Short.MAX_VALUE);
+                    try {
+                        ssc=newServerSocket(p, e.localHost);
+                    } catch (IllegalArgumentException ex) {
+                        log.debug("Exception when trying to create a server socket in Randomly Available mode: "+ex);
+                    } catch (IOException ex) {
+                        log.debug("Exception when trying to create a server socket in Randomly Available mode: "+ex);
+                    }
+                }
+            } else {
+                try {
+                    ssc=newServerSocket(e.port, e.localHost);
+                } catch (IOException ex) {
+                    log.debug("Exception when trying to create a server socket using the port: "+e.port+"\nException: "+ex);
+                }
+            }
+        }
+
+        if (ssc != null) {
+            try {
+                final Acceptor a=new Acceptor(ssc, e.getChannel());
+                a.register(selectors(e.getChannel())[0]);
+                acceptor=a;
+            } catch (IOException ex) {
+                log.debug("Exception when trying to start the selector threads: "+ex);
+                try {
+                    ssc.close();
+                } catch (IOException ex1) {}
+                ssc=null;
+            }
+        }
+
+        if (ssc != null) {
+            ourPort=ssc.socket().getLocalPort();
+            if (log.isDebugEnabled())
+                log.debug("NIO TCP Session registered a socket in port "+ourPort);
+
+            e.localHost=ssc.socket().getInetAddress();
+            e.port=ourPort;
+            e.error=false;
+        } else {
+            e.error=true;
+            if (acceptor != null && acceptor.getPort() == e.port) {
+                e.setErrorCode(RegisterSocketEvent.RESOURCE_ALREADY_BOUND_ERROR);
+                e.setErrorDescription("Socket already bound in port "+e.port);
+            } else {
+                e.setErrorCode(RegisterSocketEvent.RESOURCE_BUSY_ERROR);
+                e.setErrorDescription("Could not create socket. Resource is busy.");
+            }
+        }
+
+        // send RegisterSocketEvent
+        e.setDir(Direction.invert(e.getDir()));
+        e.setSourceSession(this);
+
+        try {
+            e.init();
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private ServerSocketChannel newServerSocket(int port, InetAddress localHost) throws IOException {
+        final ServerSocketChannel ssc=ServerSocketChannel.open();
+        try {
+            ssc.socket().bind(new InetSocketAddress(localHost, port), BACKLOG);
+            ssc.configureBlocking(false);
+        } catch (IOException ex) {
+            ssc.close();
+            throw ex;
+        } catch (IllegalArgumentException ex) {
+            ssc.close();
+            throw ex;
+        }
+        return ssc;
+    }
+
+    private void handleCloseSocket(CloseTcpSocket e) {
+        final InetSocketAddress dest=(InetSocketAddress) e.getAddress();
+        NioConnection c;
+        synchronized (socketLock) {
+            c=otherConnections.remove(dest);
+            if (c == null)
+                c=ourConnections.remove(dest);
+        }
+        if (c != null) {
+            c.close();
+            if (log.isDebugEnabled())
+                log.debug("Closing TCP socket for destination: "+dest);
+        } else
+            log.debug("Requested to close socket "+dest+" but the socket does not exist.");
+    }
+
+    private void handleChannelInit(ChannelInit e) {
+        putChannel(e.getChannel());
+        try {
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+
+        if (timerChannel == null && param_CLOSE_INACTIVE_SOCKETS) {
+            try {
+                final TcpTimer timer=new TcpTimer(param_DEST_TIMEOUT, e.getChannel(), this, EventQualifier.ON);
+                timer.go();
+                timerChannel=timer.getChannel();
+            } catch (AppiaEventException ex) {
+                ex.printStackTrace();
+            } catch (AppiaException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void handleChannelClose(ChannelClose e) {
+        removeChannel(e.getChannel());
+        releaseWrittenMessages();
+
+        if (channels.size() == 0) {
+            log.warn("No more channels. Cleaning sockets.");
+            synchronized (socketLock) {
+                ourConnections.clear();
+                otherConnections.clear();
+            }
+            // the selector threads close all the sockets when they stop
+            final SelectorThread[] s=selectors;
+            selectors=null;
+            if (s != null)
+                for (int i=0 ; i < s.length ; i++)
+                    s[i].stop();
+            // the accept socket was closed with the selector threads
+            acceptor=null;
+            ourPort=-1;
+            timerChannel=null;
+        } else if (timerChannel != null && e.getChannel().getChannelID().equals(timerChannel.getChannelID())) {
+            try {
+                timerChannel=channels.values().iterator().next();
+                final TcpTimer timer=new TcpTimer(param_DEST_TIMEOUT, timerChannel, this, EventQualifier.ON);
+                timer.go();
+            } catch (Exception ex) {
+                timerChannel=null;
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void handleTcpTimer(TcpTimer e) {
+        try {
+            e.go();
+        } catch (AppiaEventException e1) {
+            e1.printStackTrace();
+        }
+
+        synchronized (socketLock) {
+            closeInactive(ourConnections);
+            closeInactive(otherConnections);
+        }
+    }
+
+    private void closeInactive(Hashtable<InetSocketAddress,NioConnection> connections) {
+        final Iterator<NioConnection> it=connections.values().iterator();
+        while (it.hasNext()) {
+            final NioConnection c=it.next();
+            if (c.sumInactiveCounter() > param_MAX_INACTIVITY) {
+                c.close();
+                it.remove();
+            }
+        }
+    }
+
+    private void send(OutgoingFrame out, InetSocketAddress dest, Channel channel) {
+        try {
+            NioConnection c=getConnectionTo(dest, channel);
+            out.retain();
+            if (!c.enqueue(out)) {
+                // closed meanwhile
+                removeConnection(c);
+                c=getConnectionTo(dest, channel);
+                if (!c.enqueue(out)) {
+                    out.release();
+                    sendUndelivered(channel, dest);
+                }
+            }
+        } catch (IOException ex) {
+            if (log.isDebugEnabled()) {
+                ex.printStackTrace();
+                log.debug("Node "+dest+" failed.");
+            }
+            sendUndelivered(channel, dest);
+        }
+    }
+
+    private NioConnection getConnectionTo(InetSocketAddress dest, Channel channel) throws IOException {
+        synchronized (socketLock) {
+            NioConnection c=ourConnections.get(dest);
+            if (c == null || c.isClosed())
+                c=otherConnections.get(dest);
+            if (c == null || c.isClosed())
+                c=connect(dest, channel);
+            return c;
+        }
+    }
+
+    /*
+     * Starts a connection. The first frame is the port of our accept socket.
+     */
+    private NioConnection connect(InetSocketAddress dest, Channel channel) throws IOException {
+        final SocketChannel sc=SocketChannel.open();
+        final boolean connected;
+        try {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            connected=sc.connect(dest);
+        } catch (IOException ex) {
+            sc.close();
+            throw ex;
+        }
+
+        final NioConnection c=new NioConnection(this, nextSelector(channel), sc, channel, dest, connected);
+        ourConnections.put(dest, c);
+        c.register();
+        c.enqueue(new OutgoingFrame(this, null, null, null,
+                new ByteBuffer[] { ByteBuffer.wrap(ParseUtils.intToByteArray(ourPort)) }, 4));
+        sendHello(c);
+        if (log.isDebugEnabled())
+            log.debug("Connecting to "+dest+" sending our original port "+ourPort);
+        return c;
+    }
+
+    private void removeConnection(NioConnection c) {
+        final InetSocketAddress peer=c.getPeer();
+        if (peer == null)
+            return;
+        synchronized (socketLock) {
+            if (ourConnections.get(peer) == c)
+                ourConnections.remove(peer);
+            else if (otherConnections.get(peer) == c)
+                otherConnections.remove(peer);
+        }
+    }
+
+    private SelectorThread[] selectors(Channel channel) throws IOException {
+        SelectorThread[] s=selectors;
+        if (s == null) {
+            s=new SelectorThread[param_SELECTOR_THREADS];
+            for (int i=0 ; i < s.length ; i++) {
+                s[i]=new SelectorThread();
+                s[i].start(channel.getIOThreadFactory(), "NIO TCP selector thread "+i);
+            }
+            selectors=s;
+        }
+        return s;
+    }
+
+    private SelectorThread nextSelector(Channel channel) throws IOException {
+        final SelectorThread[] s=selectors(channel);
+        return s[(nextSelector.getAndIncrement() & Integer.MAX_VALUE) % s.length];
+    }
+
+    /**
+     * A connection accepted by our socket received the port of the other node.
+     * Called by the selector thread.
+     */
+    void accepted(NioConnection c) {
+        synchronized (socketLock) {
+            if (ourConnections.containsKey(c.getPeer()))
+                otherConnections.put(c.getPeer(), c);
+            else
+                ourConnections.put(c.getPeer(), c);
+        }
+        if (log.isDebugEnabled())
+            log.debug("created socket");
+    }
+
+    /**
+     * A frame was received. Called by the selector thread.
+     * @return the event of the frame if its channel could not take it, null otherwise
+     * @throws IOException if the frame is malformed
+     */
+    SendableEvent receive(NioConnection c, byte[] data) throws IOException {
+        final Constructor<? extends SendableEvent> type=c.dictionary.decode(data, 0);
+        if (type == null)
+            return null;
+        final Channel msgChannel=getChannel(c.dictionary.getChannelName());
+        if (msgChannel == null)
+            return null;
+        final int curPos=c.dictionary.getPosition();
+        final SendableEvent e;
+        try {
+            e=EventFactory.newEvent(msgChannel, type);
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        e.setChannel(msgChannel);
+
+        /* Extract the addresses and put them on the event */
+        e.source=c.getPeer();
+        e.dest=new InetSocketAddress(c.getLocalAddress(), ourPort);
+        e.getMessage().setByteArray(data, curPos, data.length-curPos);
+
+        if (log.isDebugEnabled())
+            log.debug("received an event. sending it to the appia stack: "+e+" Channel: "+msgChannel);
+        return deliver(e) ? null : e;
+    }
+
+    /**
+     * Inserts a received event in its channel, without blocking the selector thread.
+     * @return false if the channel can not take it yet
+     */
+    boolean deliver(SendableEvent e) {
+        try {
+            return e.tryAsyncGo(e.getChannel(), Direction.UP);
+        } catch (AppiaEventException ex) {
+            log.debug("Could not insert event: "+ex);
+            e.release();
+            return true;
+        }
+    }
+
+    /**
+     * Runs the task in the selector thread when the channel may take events again:
+     * when its memory manager is below the threshold, or shortly if it is starting.
+     * Called by the selector thread.
+     */
+    void retryLater(final SelectorThread selector, Channel channel, final Runnable task) {
+        final MemoryManager mm=channel.getMemoryManager();
+        if (AppiaConfig.QUOTA_ON && mm != null && mm.aboveThreshold(Direction.UP)) {
+            mm.whenBelowThreshold(Direction.UP).thenRun(new Runnable() {
+                public void run() {
+                    selector.execute(task);
+                }
+            });
+        } else
+            selector.executeLater(task);
+    }
+
+    /**
+     * The connection failed. Undelivered events are sent to the channel of the connection,
+     * and to the channels of the frames that were not written.
+     * Called by the selector thread.
+     */
+    void failed(NioConnection c, Set<Channel> pending) {
+        final InetSocketAddress peer=c.getPeer();
+        if (peer == null)
+            return;
+        removeConnection(c);
+
+        if (c.channel != null)
+            pending.add(c.channel);
+        for (Channel channel : pending)
+            notifyUndelivered(new TcpUndeliveredEvent(peer), channel, c.getSelector());
+    }
+
+    /*
+     * Inserts the undelivered event from the selector thread, retrying later if
+     * the channel can not take it.
+     */
+    private void notifyUndelivered(final TcpUndeliveredEvent e, final Channel channel, final SelectorThread selector) {
+        try {
+            if (!e.tryAsyncGo(channel, Direction.UP))
+                retryLater(selector, channel, new Runnable() {
+                    public void run() {
+                        notifyUndelivered(e, channel, selector);
+                    }
+                });
+        } catch (AppiaEventException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Could not insert event: "+ex);
+        }
+    }
+
+    /**
+     * All the destinations of the frame were written.
+     */
+    void written(OutgoingFrame out) {
+        writtenMessages.add(out);
+    }
+
+    /*
+     * Discards the messages already written, if they belong to channels of this thread.
+     * The blocks of a message are only changed by the thread of its channel.
+     */
+    private void releaseWrittenMessages() {
+        if (writtenMessages.isEmpty())
+            return;
+        final Iterator<OutgoingFrame> it=writtenMessages.iterator();
+        while (it.hasNext()) {
+            final OutgoingFrame out=it.next();
+            if (out.channel.getEventScheduler().getOwnerThread() == Thread.currentThread()) {
+                it.remove();
+                out.message.discardAll();
+            }
+        }
+    }
+
+    /*
+     * Prepares the event to be written directly from the blocks of its message.
+     * The beginning of the frame is encoded by each connection.
+     */
+    private OutgoingFrame prepare(SendableEvent e) {
+        Message msg;
+        try {
+            // the clone keeps the blocks unchanged until the message is written
+            msg=(Message) e.getMessage().clone();
+            msg.setMemoryManager(null);
+        } catch (CloneNotSupportedException ex) {
+            final byte[] data=e.getMessage().toByteArray();
+            msg=new Message(data, 0, data.length);
+        }
+        return new OutgoingFrame(this, msg, e.getChannel(), e.getClass(), msg.toByteBuffers(), msg.length());
+    }
+
+    /*
+     * Announces the dictionary to the other node.
+     */
+    private void sendHello(NioConnection c) {
+        c.enqueue(new OutgoingFrame(this, null, null, null,
+                new ByteBuffer[] { ByteBuffer.wrap(WireDictionary.hello()) }, WireDictionary.hello().length));
+    }
+
+    private void sendUndelivered(Channel channel, Object who) {
+        try {
+            new TcpUndeliveredEvent(channel, Direction.UP, this, who).go();
+        } catch (AppiaEventException exception) {
+            exception.printStackTrace();
+        }
+        if (who instanceof InetSocketAddress) {
+            NioConnection c;
+            synchronized (socketLock) {
+                c=ourConnections.remove(who);
+                if (c == null)
+                    c=otherConnections.remove(who);
+            }
+            if (c != null)
+                c.close();
+        }
+    }
+
+    private Channel getChannel(String channelName) {
+        return channels.get(channelName);
+    }
+
+    private void putChannel(Channel channel) {
+        channels.put(channel.getChannelID(), channel);
+    }
+
+    private void removeChannel(Channel channel) {
+        channels.remove(channel.getChannelID());
+    }
+
+    /**
+     * Accepts the connections of the other nodes.
+     * Accepted connections are spread among the selector threads.
+     */
+    private class Acceptor implements SelectionHandler {
+        private final ServerSocketChannel ssc;
+        private final Channel channel;
+        private SelectionKey key=null;
+
+        Acceptor(ServerSocketChannel ssc, Channel channel) {
+            this.ssc=ssc;
+            this.channel=channel;
+        }
+
+        int getPort() {
+            return ssc.socket().getLocalPort();
+        }
+
+        void register(final SelectorThread selector) {
+            selector.execute(new Runnable() {
+                public void run() {
+                    try {
+                        key=selector.register(ssc, SelectionKey.OP_ACCEPT, Acceptor.this);
+                    } catch (IOException ex) {
+                        log.warn("Could not register the accept socket: "+ex);
+                    }
+                }
+            });
+        }
+
+        public void ready(SelectionKey key) {
+            SocketChannel sc;
+            try {
+                while ((sc=ssc.accept()) != null) {
+                    if (log.isDebugEnabled())
+                        log.debug("new connection");
+                    try {
+                        sc.configureBlocking(false);
+                        sc.socket().setTcpNoDelay(true);
+                        final NioConnection c=new NioConnection(NioTcpSession.this, nextSelector(channel), sc, channel, null, true);
+                        c.register();
+                        sendHello(c);
+                    } catch (IOException ex) {
+                        if (log.isDebugEnabled())
+                            log.debug("error initiating connection. closing connection.");
+                        sc.close();
+                    }
+                }
+            } catch (IOException ex) {
+                log.debug("Exception when accepting connections: "+ex);
+            }
+        }
+
+        public void closeNow() {
+            if (key != null)
+                key.cancel();
+            try {
+                ssc.close();
+            } catch (IOException ex) {
+                if (log.isDebugEnabled())
+                    ex.printStackTrace();
+            }
+        }
+    }
+}
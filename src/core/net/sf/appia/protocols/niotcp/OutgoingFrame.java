@@ -0,0 +1,75 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.niotcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.message.Message;
+
+/**
+ * A frame written directly from the blocks of its message, shared by all its
+ * destinations. The beginning of the frame, with the event class and the channel ID,
+ * is encoded for each connection when it is written.
+ * When all the destinations were written, the message is discarded by the thread
+ * of its channel.
+ * <br>
+ * Frames without event class are written as they are.
+ */
+final class OutgoingFrame {
+
+    final Message message;
+    final Channel channel;
+    final Class<?> eventType;
+    final int length;
+    private final ByteBuffer[] buffers;
+    private final NioTcpSession session;
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    OutgoingFrame(NioTcpSession session, Message message, Channel channel, Class<?> eventType,
+            ByteBuffer[] buffers, int length) {
+        this.session = session;
+        this.message = message;
+        this.channel = channel;
+        this.eventType = eventType;
+        this.buffers = buffers;
+        this.length = length;
+    }
+
+    /**
+     * Each destination writes its own view of the buffers.
+     */
+    ByteBuffer[] getBuffers() {
+        final ByteBuffer[] b = new ByteBuffer[buffers.length];
+        for (int i = 0; i < b.length; i++)
+            b[i] = buffers[i].duplicate();
+        return b;
+    }
+
+    void retain() {
+        users.incrementAndGet();
+    }
+
+    void release() {
+        if (users.decrementAndGet() == 0 && message != null)
+            session.written(this);
+    }
+}
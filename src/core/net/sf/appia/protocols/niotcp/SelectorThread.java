@@ -0,0 +1,161 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.niotcp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread that serves the sockets registered in one {@link Selector}.
+ * <br>
+ * The keys are only changed by this thread. Other threads submit
+ * tasks with {@link #execute(Runnable)}, that are run between two selects.
+ * The selector is only woken up when a task arrives while the thread
+ * may be blocked, so a burst of tasks costs a single wakeup.
+ * Tasks of this thread may also be retried later, with {@link #executeLater(Runnable)}.
+ */
+final class SelectorThread implements Runnable {
+
+    private static Logger log = Logger.getLogger(SelectorThread.class);
+
+    private static final long RETRY_DELAY = 10; // milliseconds
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayList<Runnable> delayed = new ArrayList<Runnable>();
+    private long retryAt = 0;
+    private final AtomicBoolean wakenUp = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    private Thread thread = null;
+
+    SelectorThread() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts the thread.
+     */
+    void start(ThreadFactory factory, String name) {
+        thread = factory.newThread(this);
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread. All the registered handlers are closed.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task in this thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakenUp.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Runs the task in this thread after a short delay, without blocking it.
+     * Must be called by this thread.
+     */
+    void executeLater(Runnable task) {
+        if (delayed.isEmpty())
+            retryAt = System.currentTimeMillis()+RETRY_DELAY;
+        delayed.add(task);
+    }
+
+    /**
+     * Registers the channel in the selector. Must be called by this thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, SelectionHandler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                wakenUp.set(false);
+                if (!tasks.isEmpty())
+                    selector.selectNow();
+                else if (!delayed.isEmpty())
+                    selector.select(Math.max(1, retryAt-System.currentTimeMillis()));
+                else
+                    selector.select();
+            } catch (IOException ex) {
+                log.warn("Selector failed: "+ex);
+                break;
+            }
+
+            final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid())
+                    ((SelectionHandler) key.attachment()).ready(key);
+            }
+
+            if (!delayed.isEmpty() && System.currentTimeMillis() >= retryAt) {
+                tasks.addAll(delayed);
+                delayed.clear();
+            }
+            runTasks();
+        }
+
+        runTasks();
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+            if (key.attachment() != null)
+                ((SelectionHandler) key.attachment()).closeNow();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                ex.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.warn("Exception in selector task: "+ex);
+                if (log.isDebugEnabled())
+                    ex.printStackTrace();
+            }
+        }
+    }
+}
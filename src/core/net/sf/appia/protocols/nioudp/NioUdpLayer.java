@@ -0,0 +1,69 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.nioudp;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticastSupport;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.Debug;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.udpsimple.MulticastInitEvent;
+
+/**
+ * Layer definition of the NIO UDP protocol.
+ * It can replace the {@link net.sf.appia.protocols.udpsimple.UdpSimpleLayer},
+ * and both can be used by the nodes of the same group.
+ *
+ * @see NioUdpSession
+ */
+public class NioUdpLayer extends Layer implements AppiaMulticastSupport {
+
+    public NioUdpLayer() {
+        evProvide = new Class[] {
+                SendableEvent.class,
+                SendableNotDeliveredEvent.class,
+        };
+
+        evRequire = new Class[0];
+
+        evAccept = new Class[] {
+                SendableEvent.class,
+                ChannelInit.class,
+                RegisterSocketEvent.class,
+                ChannelClose.class,
+                MaxPDUSizeEvent.class,
+                MulticastInitEvent.class,
+                Debug.class,
+        };
+    }
+
+    /**
+     * @see net.sf.appia.core.Layer#createSession()
+     */
+    public Session createSession() {
+        return new NioUdpSession(this);
+    }
+
+}
@@ -0,0 +1,673 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.nioudp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.Debug;
+import net.sf.appia.core.message.BufferPool;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.ReceiveBuffer;
+import net.sf.appia.protocols.common.EventFactory;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.udpsimple.MulticastInitEvent;
+import net.sf.appia.protocols.utils.HostUtils;
+import net.sf.appia.protocols.utils.ParseUtils;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * UDP transport protocol that uses a {@link DatagramChannel}.
+ * It can replace the {@link net.sf.appia.protocols.udpsimple.UdpSimpleSession},
+ * and both can be used by the nodes of the same group, because the datagrams
+ * have the same format: <code>[int length][event class][int channel hash][message]</code>.
+ * <br>
+ * The datagrams are received by one or more reader threads, directly into arrays of a
+ * {@link BufferPool}, with a {@link ReceiveBuffer}. Each message refers to its part of
+ * the array, and the array returns to the pool when all its messages are released.
+ * The event classes are found without decoding their names.
+ * <br>
+ * Each message is encoded once in a direct buffer, that is sent to all its destinations
+ * when multicast is emulated.
+ * <br>
+ * <b>The UDP socket is bound to a local address</b>.
+ * If {@link RegisterSocketEvent#localHost} is null,
+ * {@link HostUtils} is used to select one.
+ *
+ * @see NioUdpLayer
+ */
+public class NioUdpSession extends Session implements InitializableSession {
+
+    private static Logger log = Logger.getLogger(NioUdpSession.class);
+
+    public static final int DEFAULT_MAX_UDPMSG_SIZE = 8192;
+    private static final int MAX_UDP_HEADERS = 80 + 8;
+
+    private InetAddress paramLocalAddress = null;
+    private int paramMaxUdpMsgSize = DEFAULT_MAX_UDPMSG_SIZE;
+    private int paramReaders = 1;
+    private BufferPool pool = BufferPool.getDefault();
+
+    private DatagramChannel socket = null;
+    private InetSocketAddress myAddress = null;
+    private final ArrayList<Reader> readers = new ArrayList<Reader>();
+    private final HashMap<SocketAddress,DatagramChannel> multicastSockets = new HashMap<SocketAddress,DatagramChannel>();
+
+    /* channels, by the hash of their ID, replaced when a channel is added or removed */
+    private volatile int[] channelHashes = new int[0];
+    private volatile Channel[] channels = new Channel[0];
+
+    private final HashMap<Class<?>,byte[]> eventTypes = new HashMap<Class<?>,byte[]>();
+    private ByteBuffer sendBuffer = null;
+
+    /**
+     * Creates a new session.
+     */
+    public NioUdpSession(Layer layer) {
+        super(layer);
+    }
+
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>local_address</b> the address to which the UDP socket is bound.
+     * <li><b>max_udp_message_size</b> the maximum size of an underlying UDP message payload.
+     * <li><b>readers</b> the number of threads that receive from the UDP socket. (default 1)
+     * </ul>
+     *
+     * @param params The parameters given in the XML configuration.
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("local_address")) {
+            try {
+                paramLocalAddress = InetAddress.getByName(params.getString("local_address"));
+            } catch (UnknownHostException e) {
+                log.warn("Unknown host \""+params.getString("local_address")+"\". Using default.");
+                paramLocalAddress = null;
+            }
+        }
+        if (params.containsKey("max_udp_message_size"))
+            paramMaxUdpMsgSize = params.getInt("max_udp_message_size");
+        if (params.containsKey("readers"))
+            paramReaders = Math.max(1, params.getInt("readers"));
+    }
+
+    /**
+     * Sets the pool of the arrays where the datagrams are received.
+     * By default, the {@link BufferPool#getDefault() default pool} is used.
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of threads that receive from the UDP socket.
+     * Must be called before the socket is created.
+     */
+    public void setReaders(int readers) {
+        paramReaders = Math.max(1, readers);
+    }
+
+    /**
+     * Main event handler.
+     */
+    public void handle(Event e) {
+        if (e instanceof SendableEvent)
+            handleSendable((SendableEvent) e);
+        else if (e instanceof RegisterSocketEvent)
+            handleRegisterSocket((RegisterSocketEvent) e);
+        else if (e instanceof ChannelInit)
+            handleChannelInit((ChannelInit) e);
+        else if (e instanceof ChannelClose)
+            handleChannelClose((ChannelClose) e);
+        else if (e instanceof MaxPDUSizeEvent)
+            handlePDUSize((MaxPDUSizeEvent) e);
+        else if (e instanceof MulticastInitEvent)
+            handleMulticastInit((MulticastInitEvent) e);
+        else if (e instanceof Debug)
+            handleDebug((Debug) e);
+        else {
+            log.warn("Unexpected event "+e.getClass().getName()+". Forwarding it.");
+            try {
+                e.go();
+            } catch (AppiaEventException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void handleChannelInit(ChannelInit e) {
+        addChannel(e.getChannel());
+        try {
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void handleChannelClose(ChannelClose e) {
+        removeChannel(e.getChannel());
+        try {
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+
+        if (channels.length == 0) {
+            for (int i = 0; i < readers.size(); i++)
+                readers.get(i).terminate();
+            readers.clear();
+            close(socket);
+            socket = null;
+            for (DatagramChannel s : multicastSockets.values())
+                close(s);
+            multicastSockets.clear();
+        }
+    }
+
+    private synchronized void addChannel(Channel channel) {
+        final int hash = channel.getChannelID().hashCode();
+        final int n = channels.length;
+        final int[] hashes = new int[n + 1];
+        final Channel[] list = new Channel[n + 1];
+        System.arraycopy(channelHashes, 0, hashes, 0, n);
+        System.arraycopy(channels, 0, list, 0, n);
+        hashes[n] = hash;
+        list[n] = channel;
+        channelHashes = hashes;
+        channels = list;
+    }
+
+    private synchronized void removeChannel(Channel channel) {
+        final int[] hashes = channelHashes;
+        final Channel[] list = channels;
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == channel) {
+                final int[] h = new int[list.length - 1];
+                final Channel[] l = new Channel[list.length - 1];
+                System.arraycopy(hashes, 0, h, 0, i);
+                System.arraycopy(list, 0, l, 0, i);
+                System.arraycopy(hashes, i + 1, h, i, list.length - i - 1);
+                System.arraycopy(list, i + 1, l, i, list.length - i - 1);
+                channels = l;
+                channelHashes = h;
+                return;
+            }
+        }
+    }
+
+    /* used by the readers */
+    private Channel getChannel(int hash) {
+        final Channel[] list = channels;
+        final int[] hashes = channelHashes;
+        for (int i = 0; i < hashes.length && i < list.length; i++)
+            if (hashes[i] == hash)
+                return list[i];
+        return null;
+    }
+
+    private void handlePDUSize(MaxPDUSizeEvent e) {
+        try {
+            e.pduSize = paramMaxUdpMsgSize - MAX_UDP_HEADERS;
+            e.setDir(Direction.invert(e.getDir()));
+            e.setSourceSession(this);
+            e.init();
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void handleDebug(Debug e) {
+        if (e.getQualifierMode() == EventQualifier.NOTIFY) {
+            final PrintStream out = new PrintStream(e.getOutput());
+            out.println("NioUdpSession state dumping:");
+            out.println("Local address: "+myAddress+" Readers: "+readers.size());
+            for (SocketAddress addr : multicastSockets.keySet())
+                out.println("Local Multicast address: "+addr);
+            final Channel[] list = channels;
+            out.println("Currently connected channels: "+list.length);
+            for (int i = 0; i < list.length; i++)
+                out.println("Channel name: "+list[i].getChannelID()+" QoS: "+list[i].getQoS().getQoSID());
+        }
+        try {
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void handleRegisterSocket(RegisterSocketEvent e) {
+        if (socket != null) {
+            reverseRegister(e, myAddress.getPort(), myAddress.getAddress(), true);
+            return;
+        }
+
+        if ((e.localHost != null) && !HostUtils.isLocalAddress(e.localHost)) {
+            reverseRegister(e, e.port, null, true);
+            return;
+        }
+
+        if (newSocket(e.port, e.localHost, e.getChannel().getIOThreadFactory()))
+            reverseRegister(e, myAddress.getPort(), myAddress.getAddress(), false);
+        else
+            reverseRegister(e, e.port, null, true);
+    }
+
+    private void reverseRegister(RegisterSocketEvent e, int port, InetAddress localHost, boolean error) {
+        try {
+            e.setSourceSession(this);
+            e.setDir(Direction.invert(e.getDir()));
+            e.port = port;
+            e.localHost = localHost;
+            e.error = error;
+            e.init();
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private boolean newSocket(int port, InetAddress addr, ThreadFactory threadFactory) {
+        if (addr == null)
+            addr = (paramLocalAddress == null) ? HostUtils.getLocalAddress() : paramLocalAddress;
+
+        DatagramChannel s = null;
+        try {
+            if (port == RegisterSocketEvent.FIRST_AVAILABLE) {
+                s = bind(0, addr);
+            } else if (port == RegisterSocketEvent.RANDOMLY_AVAILABLE) {
+                final Random random = new Random();
+                while (s == null) {
+                    try {
+                        s = bind(1 + Math.abs(random.nextInt() % Short.MAX_VALUE), addr);
+                    } catch (IOException ex) {
+                        s = null;
+                    }
+                }
+            } else
+                s = bind(port, addr);
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                ex.printStackTrace();
+            return false;
+        }
+
+        socket = s;
+        myAddress = new InetSocketAddress(s.socket().getLocalAddress(), s.socket().getLocalPort());
+        for (int i = 0; i < paramReaders; i++)
+            startReader(new Reader(s, myAddress, null), threadFactory, "NioUdpReader ["+myAddress+"]");
+        return true;
+    }
+
+    private static DatagramChannel bind(int port, InetAddress addr) throws IOException {
+        final DatagramChannel s = DatagramChannel.open();
+        try {
+            s.socket().bind(new InetSocketAddress(addr, port));
+        } catch (IOException ex) {
+            close(s);
+            throw ex;
+        }
+        return s;
+    }
+
+    private void startReader(Reader reader, ThreadFactory threadFactory, String name) {
+        final Thread t = threadFactory.newThread(reader);
+        t.setName(name);
+        t.setDaemon(true);
+        readers.add(reader);
+        t.start();
+    }
+
+    private void handleMulticastInit(MulticastInitEvent e) {
+        if (!multicastSockets.containsKey(e.ipMulticast)) {
+            final InetSocketAddress group = (InetSocketAddress) e.ipMulticast;
+            DatagramChannel s = null;
+            try {
+                s = DatagramChannel.open(group.getAddress() instanceof java.net.Inet6Address
+                        ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+                s.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                s.bind(new InetSocketAddress(group.getPort()));
+                NetworkInterface ni = (myAddress == null) ? null : NetworkInterface.getByInetAddress(myAddress.getAddress());
+                if (ni == null)
+                    ni = s.getOption(StandardSocketOptions.IP_MULTICAST_IF);
+                if (ni == null)
+                    ni = NetworkInterface.getByInetAddress(HostUtils.getLocalAddress());
+                s.join(group.getAddress(), ni);
+
+                multicastSockets.put(e.ipMulticast, s);
+                startReader(new Reader(s, group, e.fullDuplex ? null : myAddress),
+                        e.getChannel().getIOThreadFactory(), "NioUdpMulticastReader ["+group+"]");
+                e.error = false;
+            } catch (Exception ex) {
+                log.warn("Error creating or joining the multicast socket: "+ex);
+                if (log.isDebugEnabled())
+                    ex.printStackTrace();
+                close(s);
+                e.error = true;
+            }
+        }
+
+        try {
+            e.setDir(Direction.invert(e.getDir()));
+            e.setSourceSession(this);
+            e.init();
+            e.go();
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void handleSendable(SendableEvent e) {
+        if (e.getDir() == Direction.DOWN)
+            send(e);
+
+        if (e.getChannel().isStarted()) {
+            try {
+                e.go();
+            } catch (AppiaEventException ex) {
+                ex.printStackTrace();
+            }
+        } else
+            e.release();
+    }
+
+    private void send(SendableEvent e) {
+        try {
+            if (socket == null) {
+                if (!newSocket(RegisterSocketEvent.FIRST_AVAILABLE, null, e.getChannel().getIOThreadFactory()))
+                    throw new IOException("Impossible to create new socket.");
+            }
+
+            final ByteBuffer buffer = encode(e);
+
+            if ((e.dest instanceof AppiaMulticast) && (((AppiaMulticast) e.dest).getMulticastAddress() == null)) {
+                final Object[] dests = ((AppiaMulticast) e.dest).getDestinations();
+                if (dests == null) {
+                    log.error("Destinations field of AppiaMulticast empty. Not sending event "+e);
+                    return;
+                }
+                for (int i = 0; i < dests.length; i++) {
+                    if (dests[i] instanceof InetSocketAddress) {
+                        buffer.rewind();
+                        socket.send(buffer, (InetSocketAddress) dests[i]);
+                    } else
+                        log.error("Wrong destination address type in event "+e);
+                }
+            } else {
+                final InetSocketAddress dest;
+                if (e.dest instanceof InetSocketAddress) {
+                    dest = (InetSocketAddress) e.dest;
+                } else if ((e.dest instanceof AppiaMulticast)
+                        && (((AppiaMulticast) e.dest).getMulticastAddress() instanceof InetSocketAddress)) {
+                    dest = (InetSocketAddress) ((AppiaMulticast) e.dest).getMulticastAddress();
+                    if (!dest.getAddress().isMulticastAddress()) {
+                        log.error("Not a multicast address in AppiaMulticast of event "+e);
+                        return;
+                    }
+                } else {
+                    log.error("Wrong destination address type in event "+e);
+                    return;
+                }
+                socket.send(buffer, dest);
+            }
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                ex.printStackTrace();
+            try {
+                new SendableNotDeliveredEvent(e.getChannel(), this, e).go();
+            } catch (AppiaEventException ex1) {
+                ex1.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Encodes the event in the send buffer, without changing its message.
+     */
+    private ByteBuffer encode(SendableEvent e) throws IOException {
+        byte[] type = eventTypes.get(e.getClass());
+        if (type == null) {
+            try {
+                type = e.getClass().getName().getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            eventTypes.put(e.getClass(), type);
+        }
+
+        final Message msg = e.getMessage();
+        final int length = 8 + type.length + msg.length();
+        if (length > paramMaxUdpMsgSize)
+            throw new IOException("Message length to great, may be truncated");
+
+        if (sendBuffer == null)
+            sendBuffer = ByteBuffer.allocateDirect(paramMaxUdpMsgSize);
+        final ByteBuffer buffer = sendBuffer;
+        buffer.clear();
+        buffer.putInt(type.length);
+        buffer.put(type);
+        buffer.putInt(e.getChannel().getChannelID().hashCode());
+        final ByteBuffer[] blocks = msg.toByteBuffers();
+        for (int i = 0; i < blocks.length; i++)
+            buffer.put(blocks[i]);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void close(DatagramChannel s) {
+        if (s == null)
+            return;
+        try {
+            s.close();
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                ex.printStackTrace();
+        }
+    }
+
+    /*
+     * Finds the event classes from the bytes of their names, without creating strings.
+     * Used by a single reader.
+     */
+    private static final class TypeCache {
+        private byte[][] names = new byte[16][];
+        private Object[] constructors = new Object[16];
+        private int size = 0;
+
+        @SuppressWarnings("unchecked")
+        Constructor<? extends SendableEvent> get(byte[] data, int off, int len) throws Exception {
+            final int hash = hash(data, off, len);
+            int i = hash & (names.length - 1);
+            for (; names[i] != null; i = (i + 1) & (names.length - 1))
+                if (equals(names[i], data, off, len))
+                    return (Constructor<? extends SendableEvent>) constructors[i];
+
+            final Constructor<? extends SendableEvent> c =
+                EventFactory.getConstructor(new String(data, off, len, "ISO-8859-1"));
+            final byte[] name = new byte[len];
+            System.arraycopy(data, off, name, 0, len);
+            if (2 * (size + 1) > names.length) {
+                grow();
+                i = hash & (names.length - 1);
+                while (names[i] != null)
+                    i = (i + 1) & (names.length - 1);
+            }
+            names[i] = name;
+            constructors[i] = c;
+            size++;
+            return c;
+        }
+
+        private void grow() {
+            final byte[][] oldNames = names;
+            final Object[] oldConstructors = constructors;
+            names = new byte[oldNames.length * 2][];
+            constructors = new Object[oldNames.length * 2];
+            for (int j = 0; j < oldNames.length; j++) {
+                if (oldNames[j] != null) {
+                    int i = hash(oldNames[j], 0, oldNames[j].length) & (names.length - 1);
+                    while (names[i] != null)
+                        i = (i + 1) & (names.length - 1);
+                    names[i] = oldNames[j];
+                    constructors[i] = oldConstructors[j];
+                }
+            }
+        }
+
+        private static int hash(byte[] data, int off, int len) {
+            int h = 1;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + data[off + i];
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equals(byte[] name, byte[] data, int off, int len) {
+            if (name.length != len)
+                return false;
+            for (int i = 0; i < len; i++)
+                if (name[i] != data[off + i])
+                    return false;
+            return true;
+        }
+    }
+
+    /*
+     * Thread that receives from a socket. Several readers may share the socket.
+     */
+    private final class Reader implements Runnable {
+
+        private final DatagramChannel socket;
+        private final InetSocketAddress dest;
+        private final InetSocketAddress ignoreSource;
+        private final TypeCache types = new TypeCache();
+        private volatile boolean terminate = false;
+        private Thread thread = null;
+
+        Reader(DatagramChannel socket, InetSocketAddress dest, InetSocketAddress ignoreSource) {
+            this.socket = socket;
+            this.dest = dest;
+            this.ignoreSource = ignoreSource;
+        }
+
+        void terminate() {
+            terminate = true;
+            if (thread != null)
+                thread.interrupt();
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            // one byte more than the largest datagram, to detect the truncated ones
+            final ReceiveBuffer buffer = new ReceiveBuffer(pool, paramMaxUdpMsgSize + 1);
+            try {
+                while (!terminate) {
+                    final ByteBuffer b = buffer.getBuffer();
+                    final InetSocketAddress source = (InetSocketAddress) socket.receive(b);
+                    final int length = b.position() - buffer.position();
+                    if ((ignoreSource != null) && ignoreSource.equals(source))
+                        continue;
+                    if (length > paramMaxUdpMsgSize) {
+                        log.debug("Discarded datagram larger than "+paramMaxUdpMsgSize+" bytes from "+source);
+                        continue;
+                    }
+                    if (deliver(buffer, length, source))
+                        buffer.consume(length);
+                }
+            } catch (ClosedChannelException ex) {
+                // the socket was closed or the thread interrupted
+            } catch (IOException ex) {
+                if (!terminate)
+                    log.warn("Error receiving from "+dest+": "+ex);
+            } finally {
+                buffer.release();
+            }
+        }
+
+        /*
+         * Returns true if a message took the data of the datagram.
+         */
+        private boolean deliver(ReceiveBuffer buffer, int length, InetSocketAddress source) {
+            final byte[] data = buffer.array();
+            final int off = buffer.position();
+            boolean taken = false;
+            try {
+                final int typeLength = ParseUtils.byteArrayToInt(data, off);
+                if ((typeLength < 0) || (typeLength > length - 8))
+                    throw new IOException("Malformed datagram");
+                final Constructor<? extends SendableEvent> c = types.get(data, off + 4, typeLength);
+
+                final int channelHash = ParseUtils.byteArrayToInt(data, off + 4 + typeLength);
+                final Channel channel = getChannel(channelHash);
+                if (channel == null) {
+                    if (log.isDebugEnabled())
+                        log.debug("Channel does not exist. Message will be discarded. hash="+channelHash);
+                    return false;
+                }
+
+                final SendableEvent e = EventFactory.newEvent(channel, c);
+                buffer.take(e.getMessage(), off + 8 + typeLength, length - 8 - typeLength);
+                taken = true;
+                e.source = source;
+                e.dest = dest;
+                e.asyncGo(channel, Direction.UP);
+            } catch (Exception ex) {
+                if (log.isDebugEnabled()) {
+                    ex.printStackTrace();
+                    log.debug("Exception while processing message from "+source+". Continued operation.");
+                }
+            }
+            return taken;
+        }
+    }
+}
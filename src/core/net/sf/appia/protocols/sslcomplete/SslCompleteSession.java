@@ -416,7 +416,7 @@ public class SslCompleteSession extends TcpCompleteSession implements Initializa
         // FIXME: this is using class from tcpcomplete
           // comment: it should be Ok because it extends the class anyway...
         acceptThread = new AcceptReader(ss,this,channel,socketLock);
-        final Thread t = channel.getThreadFactory().newThread(acceptThread);
+        final Thread t = channel.getIOThreadFactory().newThread(acceptThread);
         t.setName("TCP SSL accept reader");
         t.start();
         ourPort = ss.getLocalPort();
@@ -438,7 +438,12 @@ public class SslCompleteSession extends TcpCompleteSession implements Initializa
    */
   protected Socket createSSLSocket(Hashtable<InetSocketAddress,SocketInfoContainer> hm,
           InetSocketAddress iwp,Channel channel) throws IOException{
-    synchronized(socketLock){
+    connectLock.lock();
+    try{
+      final SocketInfoContainer container = getSocket(hm,iwp);
+      if (container != null)
+        return container.reader.getSocket();
+      
       Socket newSocket = null;
       
       if (sf == null)
@@ -457,6 +462,9 @@ public class SslCompleteSession extends TcpCompleteSession implements Initializa
       addSocket(hm,iwp,newSocket,channel);
       return newSocket;
     }
+    finally{
+      connectLock.unlock();
+    }
   }
 
 }
@@ -22,6 +22,7 @@ package net.sf.appia.protocols.tcpcomplete;
 
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -44,12 +45,16 @@ public class Measures {
     public static final String THRPUT_BYTES_PER_SECOND_DOWN = "bytes_per_second_down";
     public static final String REFRESH_INTERVAL = "refresh_interval";
     public static final String QUEUE_SIZE = "queue_size";
+    public static final String BYTES_COPIED = "bytes_copied";
+    public static final String BYTES_WRITTEN = "bytes_written";
 
     private static final float MINIMUM_VALUE = 0.05F;
     private static final long DEFAULT_REFRESH_INTERVAL = 5000;
 
     private Throughput msgPerSecondUp, msgPerSecondDown, bytesPerSecondUp, bytesPerSecondDown;
     private Map<String,String>jmxFeaturesMap = new Hashtable<String,String>();
+    // bytes copied to a single array before being sent, and bytes written to the sockets
+    private final AtomicLong bytesCopied = new AtomicLong(), bytesWritten = new AtomicLong();
 
     private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
     
@@ -148,6 +153,14 @@ public class Measures {
     public void countBytesDown(int count){
         bytesPerSecondDown.add(count);
     }
+
+    public void countBytesCopied(long count){
+        bytesCopied.addAndGet(count);
+    }
+
+    public void countBytesWritten(long count){
+        bytesWritten.addAndGet(count);
+    }
     
     private Object getParameter(String parameter) throws AppiaManagementException {
         if(parameter.equals(THRPUT_MSG_PER_SECOND_UP))
@@ -162,6 +175,10 @@ public class Measures {
             return refreshInterval;
         if(parameter.equals(QUEUE_SIZE))
             return session.getGlobalQueueSize();
+        if(parameter.equals(BYTES_COPIED))
+            return bytesCopied.get();
+        if(parameter.equals(BYTES_WRITTEN))
+            return bytesWritten.get();
         throw new AppiaManagementException("Parameter '"+parameter+"' not defined in session "+this.getClass().getName());
     }
 
@@ -186,6 +203,8 @@ public class Measures {
         jmxFeaturesMap.put(sid+THRPUT_MSG_PER_SECOND_UP,THRPUT_MSG_PER_SECOND_UP);
         jmxFeaturesMap.put(sid+REFRESH_INTERVAL,REFRESH_INTERVAL);
         jmxFeaturesMap.put(sid+QUEUE_SIZE,QUEUE_SIZE);
+        jmxFeaturesMap.put(sid+BYTES_COPIED,BYTES_COPIED);
+        jmxFeaturesMap.put(sid+BYTES_WRITTEN,BYTES_WRITTEN);
         return new MBeanAttributeInfo[]{
                 new MBeanAttributeInfo(sid+THRPUT_BYTES_PER_SECOND_DOWN,
                         "float","gets the throughput value",
@@ -205,6 +224,12 @@ public class Measures {
                                                         new MBeanAttributeInfo(sid+QUEUE_SIZE,
                                                                 "long","gets the queue size of sending messages",
                                                                 true,false,false),
+                                                                new MBeanAttributeInfo(sid+BYTES_COPIED,
+                                                                        "long","gets the number of bytes copied to a single array before being sent",
+                                                                        true,false,false),
+                                                                        new MBeanAttributeInfo(sid+BYTES_WRITTEN,
+                                                                                "long","gets the number of bytes written to the sockets",
+                                                                                true,false,false),
         };
     }
 
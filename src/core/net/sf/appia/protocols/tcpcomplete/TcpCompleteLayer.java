@@ -41,6 +41,7 @@ public class TcpCompleteLayer extends Layer implements net.sf.appia.core.events.
 				TcpUndeliveredEvent.class,
 				SendableEvent.class,
 				TcpTimer.class,
+				TcpWrittenEvent.class,
 		};
 		
 		evAccept = new Class[]{
@@ -50,6 +51,7 @@ public class TcpCompleteLayer extends Layer implements net.sf.appia.core.events.
 				ChannelClose.class,
 				TcpTimer.class,
 				CloseTcpSocket.class,
+				TcpWrittenEvent.class,
 		};
 		
 		evRequire = new Class[]{
@@ -20,13 +20,23 @@
  package net.sf.appia.protocols.tcpcomplete;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -80,6 +90,7 @@ public class TcpCompleteSession extends Session
   protected int param_DEST_TIMEOUT=DEST_TIMEOUT, param_MAX_INACTIVITY=MAX_INACTIVITY, 
   	param_SOTIMEOUT=SOTIMEOUT;
   protected boolean param_CLOSE_INACTIVE_SOCKETS=true;
+  protected boolean param_GATHERING_WRITES=true;
   
   //Channels
   protected Hashtable<String,Channel> channels;
@@ -99,6 +110,9 @@ public class TcpCompleteSession extends Session
   
   protected Object socketLock;
   protected Object channelLock;
+  /* Serializes the creation of connections. socketLock is not held while connecting,
+   * so the readers are not blocked, and a virtual thread does not pin its carrier. */
+  protected ReentrantLock connectLock;
   
 //  private Benchmark bench=null;
   
@@ -106,6 +120,11 @@ public class TcpCompleteSession extends Session
   
   private Measures measures;
   
+  //Messages already written, whose blocks can be released
+  private ConcurrentLinkedQueue<OutgoingMessage> writtenMessages;
+  //Channels where a TcpWrittenEvent was inserted and not yet handled
+  private Set<Channel> releaseScheduled;
+  
   /**
    * Constructor for NewTcpSession.
    * @param layer
@@ -122,7 +141,10 @@ public class TcpCompleteSession extends Session
     
     socketLock = new Object();
     channelLock = new Object();
+    connectLock = new ReentrantLock();
     measures = new Measures(this);
+    writtenMessages = new ConcurrentLinkedQueue<OutgoingMessage>();
+    releaseScheduled = Collections.newSetFromMap(new ConcurrentHashMap<Channel,Boolean>());
   }
   
   /**
@@ -133,6 +155,10 @@ public class TcpCompleteSession extends Session
    * <li><b>max_inactivity</b> number of times that the dest_timeout expires without closing the connection;
    * <li><b>reader_sotimeout</b> the timeout of the threads that listen on TCP sockets. (in milliseconds);
    * <li><b>close_inactive_sockets</b> boolean that defines if inactive sockets should be closed or not.
+   * <li><b>gathering_writes</b> boolean that defines if messages are written to the sockets
+   * directly from their blocks, without being copied to a single array. True by default.
+   * The event classes and channel IDs are only replaced by the codes of the {@link WireDictionary}
+   * when messages are written this way.
    * </ul>
    * 
    * @param params The parameters given in the XML configuration.
@@ -147,6 +173,8 @@ public class TcpCompleteSession extends Session
           param_MAX_INACTIVITY=params.getInt("max_inactivity");
       if (params.containsKey("close_inactive_sockets"))
           param_CLOSE_INACTIVE_SOCKETS=params.getBoolean("close_inactive_sockets");
+      if (params.containsKey("gathering_writes"))
+          param_GATHERING_WRITES=params.getBoolean("gathering_writes");
   }
 
   public void handle(Event e){
@@ -162,6 +190,14 @@ public class TcpCompleteSession extends Session
           handleTcpTimer((TcpTimer)e);
       else if(e instanceof CloseTcpSocket)
           handleCloseSocket((CloseTcpSocket)e);
+      else if(e instanceof TcpWrittenEvent)
+          handleWritten((TcpWrittenEvent)e);
+  }
+  
+  private void handleWritten(TcpWrittenEvent e){
+      // cleared before releasing, so messages written from now on insert a new event
+      releaseScheduled.remove(e.getChannel());
+      releaseWrittenMessages();
   }
   
   private void handleSendable(SendableEvent e){
@@ -173,29 +209,42 @@ public class TcpCompleteSession extends Session
 	          } catch (AppiaEventException e1) {
 	              e1.printStackTrace();
 	          }
-	      }
+	      } else
+	          e.release();
 		  return;
 	  }
 	  
     if(log.isDebugEnabled())
       log.debug("preparing to send ::"+e+" CHANNEL: "+e.getChannel().getChannelID());
     
-    byte[] data=format(e);
+    releaseWrittenMessages();
+    
+    OutgoingMessage out=null;
+    byte[] data=null;
+    if (param_GATHERING_WRITES)
+      out=prepare(e);
+    if (out == null) {
+      data=format(e);
+      measures.countBytesCopied(data.length);
+    }
     
     if (e.dest instanceof AppiaMulticast) {
       Object[] dests=((AppiaMulticast)e.dest).getDestinations();
       for (int i=0 ; i < dests.length ; i++) {
         if (dests[i] instanceof InetSocketAddress)
-          send(data, (InetSocketAddress)dests[i], e.getChannel());
+          send(data, out, (InetSocketAddress)dests[i], e.getChannel());
         else
           sendUndelivered(e.getChannel(),(InetSocketAddress) dests[i]);
       }
     } else if (e.dest instanceof InetSocketAddress) {
-      send(data, (InetSocketAddress)e.dest, e.getChannel());
+      send(data, out, (InetSocketAddress)e.dest, e.getChannel());
     } else {
       sendUndelivered(e.getChannel(),(InetSocketAddress) e.dest);
     }
     
+    if (out != null)
+      out.release();
+    
     try {
       e.go();
     } catch (AppiaEventException ex) {
@@ -215,7 +264,7 @@ public class TcpCompleteSession extends Session
     if(ourPort < 0){
         if(e.port == RegisterSocketEvent.FIRST_AVAILABLE){
             try {
-                ss = new ServerSocket(0, 50, e.localHost);
+                ss = newServerSocket(0, e.localHost);
             } catch (IOException ex) {
                 log.debug("Exception when trying to create a server socket in First Available mode: "+ex);
             }
@@ -229,7 +278,7 @@ public class TcpCompleteSession extends Session
                 p = rand.nextInt(Short.MAX_VALUE);
                 
                 try {
-                    ss = new ServerSocket(p, 50, e.localHost);
+                    ss = newServerSocket(p, e.localHost);
                     done = true;
                 } catch(IllegalArgumentException ex){
                     log.debug("Exception when trying to create a server socket in Randomly Available mode: "+ex);
@@ -240,7 +289,7 @@ public class TcpCompleteSession extends Session
         }
         else{
             try {
-                ss = new ServerSocket(e.port, 50, e.localHost);
+                ss = newServerSocket(e.port, e.localHost);
             } catch (IOException ex) {
                 log.debug("Exception when trying to create a server socket using the port: "+e.port+"\nException: "+ex);
             }
@@ -253,7 +302,7 @@ public class TcpCompleteSession extends Session
         
         //create accept thread int the request port.
       acceptThread = new AcceptReader(ss,this,e.getChannel(),socketLock);
-      final Thread t = e.getChannel().getThreadFactory().newThread(acceptThread);
+      final Thread t = e.getChannel().getIOThreadFactory().newThread(acceptThread);
       t.setName("TCP Accept thread from port "+ourPort);
       t.start();
       
@@ -284,6 +333,24 @@ public class TcpCompleteSession extends Session
     }
   }
   
+  /**
+   * Creates a server socket with an associated channel, so that the accepted
+   * sockets also have one, and can be used for gathering writes.
+   */
+  protected ServerSocket newServerSocket(int port, InetAddress localHost) throws IOException {
+    final ServerSocketChannel ssc = ServerSocketChannel.open();
+    try {
+      ssc.socket().bind(new InetSocketAddress(localHost, port), 50);
+    } catch (IOException ex) {
+      ssc.close();
+      throw ex;
+    } catch (IllegalArgumentException ex) {
+      ssc.close();
+      throw ex;
+    }
+    return ssc.socket();
+  }
+  
   private void handleCloseSocket(CloseTcpSocket e) {
       InetSocketAddress dest = (InetSocketAddress) e.getAddress();
       if(existsSocket(otherReaders,dest)){
@@ -326,6 +393,7 @@ public class TcpCompleteSession extends Session
 	  
     //remove channel.
     removeChannel(e.getChannel());
+    releaseWrittenMessages();
     
     if(channels.size() == 0){
         log.warn("No more channels. Cleaning sockets.");
@@ -350,6 +418,8 @@ public class TcpCompleteSession extends Session
   }
 
   private void handleTcpTimer(TcpTimer e) {
+	  // in case the channel could not be notified when the messages were written
+	  releaseWrittenMessages();
 	  try {
 		e.go();
 	} catch (AppiaEventException e1) {
@@ -376,9 +446,53 @@ public class TcpCompleteSession extends Session
     }
   }
   
+  private void send(byte[] data, OutgoingMessage out, InetSocketAddress dest, Channel channel) {
+    if (out != null)
+      send(out, dest, channel);
+    else
+      send(data, dest, channel);
+  }
+  
   protected void send(byte[] data, InetSocketAddress dest, Channel channel) {
-    SocketInfoContainer container = null;
     try {
+      final SocketInfoContainer container = getSocketTo(dest, channel);
+      //send event by the chosen socket -> formatAndSend()
+      if (log.isDebugEnabled())
+        log.debug("Adding to socket Queue of "+container.sender+" Queue has now #Items: "+container.sender.getQueue().getSize());
+      measures.countBytesDown(data.length);
+      measures.countMessagesDown(1);      
+      container.sender.getQueue().add(new MessageContainer(data,dest,channel));
+    } catch (IOException ex) {
+      if(log.isDebugEnabled()) {
+        ex.printStackTrace();
+        log.debug("Node "+dest+" failed.");
+      }
+    }
+  }
+  
+  /**
+   * Sends a message that is written directly from its blocks.
+   * All the destinations share the blocks of the message.
+   */
+  protected void send(OutgoingMessage out, InetSocketAddress dest, Channel channel) {
+    try {
+      final SocketInfoContainer container = getSocketTo(dest, channel);
+      if (log.isDebugEnabled())
+        log.debug("Adding to socket Queue of "+container.sender+" Queue has now #Items: "+container.sender.getQueue().getSize());
+      measures.countBytesDown(out.length);
+      measures.countMessagesDown(1);
+      out.retain();
+      container.sender.getQueue().add(new MessageContainer(out,dest,channel));
+    } catch (IOException ex) {
+      if(log.isDebugEnabled()) {
+        ex.printStackTrace();
+        log.debug("Node "+dest+" failed.");
+      }
+    }
+  }
+  
+  private SocketInfoContainer getSocketTo(InetSocketAddress dest, Channel channel) throws IOException {
+      SocketInfoContainer container = null;
       //check if the socket exist int the opensockets created by us
       if(existsSocket(ourReaders,dest)){
         //if so use that socket
@@ -399,18 +513,7 @@ public class TcpCompleteSession extends Session
           if(log.isDebugEnabled())
             log.debug("created new socket, sending...");
         }
-      //send event by the chosen socket -> formatAndSend()
-      if (log.isDebugEnabled())
-        log.debug("Adding to socket Queue of "+container.sender+" Queue has now #Items: "+container.sender.getQueue().getSize());
-      measures.countBytesDown(data.length);
-      measures.countMessagesDown(1);      
-      container.sender.getQueue().add(new MessageContainer(data,dest,channel));
-    } catch (IOException ex) {
-      if(log.isDebugEnabled()) {
-        ex.printStackTrace();
-        log.debug("Node "+dest+" failed.");
-      }
-    }
+      return container;
   }
   
   protected boolean existsSocket(Hashtable<InetSocketAddress,SocketInfoContainer> hr, InetSocketAddress iwp){
@@ -432,12 +535,18 @@ public class TcpCompleteSession extends Session
   //create socket, put in hashmap and create thread
   protected SocketInfoContainer createSocket(Hashtable<InetSocketAddress,SocketInfoContainer> hr, 
           InetSocketAddress iwp,Channel channel) throws IOException{
-    synchronized(socketLock){
+    connectLock.lock();
+    try{
+      final SocketInfoContainer container = getSocket(hr,iwp);
+      if(container != null)
+        return container;
+      
       Socket newSocket = null;
       
       //create socket
       
-      newSocket = new Socket(iwp.getAddress(),iwp.getPort());
+      // the socket has a channel, to be used for gathering writes
+      newSocket = SocketChannel.open(new InetSocketAddress(iwp.getAddress(),iwp.getPort())).socket();
       newSocket.setTcpNoDelay(true);
 //      newSocket.setSoTimeout(param_SOTIMEOUT);
       
@@ -450,15 +559,21 @@ public class TcpCompleteSession extends Session
 
       return addSocket(hr, iwp, newSocket, channel);
     }
+    finally{
+      connectLock.unlock();
+    }
   }
   
   protected SocketInfoContainer addSocket(Hashtable<InetSocketAddress,SocketInfoContainer> hr, 
           InetSocketAddress iwp,Socket socket,Channel channel){
     synchronized(socketLock){
-      final TcpReader reader = new TcpReader(socket,this,ourPort,iwp.getPort(),channel, measures);
-      final Thread tr = channel.getThreadFactory().newThread(reader);
-      final TcpSender sender = new TcpSender(socket,new SenderQueue<MessageContainer>());
-      final Thread ts = channel.getThreadFactory().newThread(sender);
+      final WireDictionary dictionary = new WireDictionary();
+      final TcpReader reader = new TcpReader(socket,this,ourPort,iwp.getPort(),channel, measures, dictionary);
+      final Thread tr = channel.getIOThreadFactory().newThread(reader);
+      final TcpSender sender = new TcpSender(socket,new SenderQueue<MessageContainer>(),dictionary);
+      // announces the dictionary to the other node
+      sender.getQueue().add(new MessageContainer(WireDictionary.hello(),iwp,channel));
+      final Thread ts = channel.getIOThreadFactory().newThread(sender);
       final SocketInfoContainer container = new SocketInfoContainer(reader,sender);
       tr.setName("TCP reader thread ["+iwp+"]");
       tr.start();
@@ -531,6 +646,42 @@ public class TcpCompleteSession extends Session
     return msg.toByteArray();
   }
   
+  /**
+   * Prepares the event to be written directly from the blocks of its message.
+   * The beginning of the frame, with the event class and the channel ID, is encoded
+   * for each connection by the thread that writes it, with the {@link WireDictionary} of the connection.
+   * 
+   * @return the message to write, or null if it must be formatted into a single array
+   */
+  protected OutgoingMessage prepare(SendableEvent e) {
+    final Message msg;
+    try {
+      // the clone keeps the blocks unchanged until the message is written
+      msg = (Message) e.getMessage().clone();
+    } catch (CloneNotSupportedException ex) {
+      return null;
+    }
+    msg.setMemoryManager(null);
+    return new OutgoingMessage(msg, e.getChannel(), e.getClass(), msg.toByteBuffers(), msg.length());
+  }
+  
+  /*
+   * Discards the messages already written, if they belong to channels of this thread.
+   * The blocks of a message are only changed by the thread of its channel.
+   */
+  private void releaseWrittenMessages() {
+    if (writtenMessages.isEmpty())
+      return;
+    final Iterator<OutgoingMessage> it = writtenMessages.iterator();
+    while (it.hasNext()) {
+      final OutgoingMessage out = it.next();
+      if (out.channel.getEventScheduler().getOwnerThread() == Thread.currentThread()) {
+        it.remove();
+        out.message.discardAll();
+      }
+    }
+  }
+  
   protected void sendASyncUndelivered(Channel channel, InetSocketAddress who) {
       try {
           new TcpUndeliveredEvent(channel,Direction.UP,this,who).asyncGo(channel, Direction.UP);
@@ -571,10 +722,12 @@ public class TcpCompleteSession extends Session
   class TcpSender implements Runnable {
       private Socket socket;
       private SenderQueue<MessageContainer> queue;
+      private WireDictionary dictionary;
       private boolean running=true;
-      TcpSender(Socket s, SenderQueue<MessageContainer> sq){
+      TcpSender(Socket s, SenderQueue<MessageContainer> sq, WireDictionary d){
           socket = s;
           queue = sq;
+          dictionary = d;
       }
       public void run() {
           MessageContainer container = null;
@@ -583,14 +736,19 @@ public class TcpCompleteSession extends Session
               if(container == null)
                   continue;
               try {
-                  if (log.isDebugEnabled())
-                      log.debug("Sending message to the socket for "+container.who+" with "+container.data.length+" bytes");
-                  socket.getOutputStream().write(container.data);
-                  if (log.isDebugEnabled())
-                      log.debug("Flushing data...");
-                  socket.getOutputStream().flush();
-                  if (log.isDebugEnabled())
-                      log.debug("Flushing done...");
+                  if (container.out != null)
+                      write(container.out, container.channel);
+                  else {
+                      if (log.isDebugEnabled())
+                          log.debug("Sending message to the socket for "+container.who+" with "+container.data.length+" bytes");
+                      socket.getOutputStream().write(container.data);
+                      if (log.isDebugEnabled())
+                          log.debug("Flushing data...");
+                      socket.getOutputStream().flush();
+                      if (log.isDebugEnabled())
+                          log.debug("Flushing done...");
+                      measures.countBytesWritten(container.data.length);
+                  }
               } catch (IOException e) {
                   if(isRunning()){
                       sendASyncUndelivered(container.channel, container.who);
@@ -599,6 +757,9 @@ public class TcpCompleteSession extends Session
                           e.printStackTrace();                          
                       }
                   }
+              } finally {
+                  if (container.out != null)
+                      container.out.release();
               }
           }
           try {
@@ -610,6 +771,34 @@ public class TcpCompleteSession extends Session
         }
       }
       
+      private void write(OutgoingMessage out, Channel channel) throws IOException {
+          final byte[] header = dictionary.encode(out.eventType, channel.getChannelID(), out.length);
+          final SocketChannel ch = socket.getChannel();
+          if (ch != null) {
+              if (log.isDebugEnabled())
+                  log.debug("Writing message to the socket channel with "+(header.length+out.length)+" bytes");
+              final ByteBuffer[] blocks = out.getBuffers();
+              final ByteBuffer[] buffers = new ByteBuffer[blocks.length+1];
+              buffers[0] = ByteBuffer.wrap(header);
+              System.arraycopy(blocks, 0, buffers, 1, blocks.length);
+              final long length = header.length+out.length;
+              long written = 0;
+              while (written < length)
+                  written += ch.write(buffers);
+          } else {
+              // sockets without channel, like SSL ones
+              final byte[] data = out.toByteArray();
+              final byte[] frame = new byte[header.length+data.length];
+              System.arraycopy(header, 0, frame, 0, header.length);
+              System.arraycopy(data, 0, frame, header.length, data.length);
+              if (log.isDebugEnabled())
+                  log.debug("Sending message to the socket with "+frame.length+" bytes");
+              socket.getOutputStream().write(frame);
+              socket.getOutputStream().flush();
+          }
+          measures.countBytesWritten(header.length+out.length);
+      }
+      
       SenderQueue<MessageContainer> getQueue(){
           return queue;
       }
@@ -639,6 +828,7 @@ public class TcpCompleteSession extends Session
    */
   class MessageContainer {
       byte[] data;
+      OutgoingMessage out;
       InetSocketAddress who;
       Channel channel;
       MessageContainer(byte[] b, InetSocketAddress sa, Channel c){
@@ -646,6 +836,89 @@ public class TcpCompleteSession extends Session
           who = sa;
           channel = c;
       }
+      MessageContainer(OutgoingMessage o, InetSocketAddress sa, Channel c){
+          out = o;
+          who = sa;
+          channel = c;
+      }
+  }
+
+  /**
+   * 
+   * A message written directly from its blocks, shared by all its destinations.
+   * The beginning of the frame is written separately for each destination.
+   * When all the destinations were written, the message is discarded by the thread
+   * of its channel.
+   * 
+   * @version 1.0
+   */
+  class OutgoingMessage {
+      final Message message;
+      final Channel channel;
+      final Class<?> eventType;
+      final int length;
+      private final ByteBuffer[] buffers;
+      private final AtomicInteger users = new AtomicInteger(1);
+      private byte[] data = null;
+      OutgoingMessage(Message m, Channel c, Class<?> t, ByteBuffer[] b, int l){
+          message = m;
+          channel = c;
+          eventType = t;
+          buffers = b;
+          length = l;
+      }
+      
+      /* Each destination writes its own view of the buffers */
+      ByteBuffer[] getBuffers(){
+          final ByteBuffer[] b = new ByteBuffer[buffers.length];
+          for (int i = 0; i < b.length; i++)
+              b[i] = buffers[i].duplicate();
+          return b;
+      }
+      
+      synchronized byte[] toByteArray(){
+          if (data == null) {
+              data = new byte[length];
+              final ByteBuffer[] b = getBuffers();
+              int off = 0;
+              for (int i = 0; i < b.length; i++) {
+                  final int len = b[i].remaining();
+                  b[i].get(data, off, len);
+                  off += len;
+              }
+              measures.countBytesCopied(length);
+          }
+          return data;
+      }
+      
+      void retain(){
+          users.incrementAndGet();
+      }
+      
+      /*
+       * When the last destination was written, the blocks are discarded at once if this
+       * is the thread of the channel. Otherwise the channel is notified, without blocking,
+       * so that an idle connection does not keep the blocks.
+       */
+      void release(){
+          if (users.decrementAndGet() != 0)
+              return;
+          if (channel.getEventScheduler().getOwnerThread() == Thread.currentThread()) {
+              message.discardAll();
+              return;
+          }
+          writtenMessages.add(this);
+          if (releaseScheduled.add(channel)) {
+              boolean inserted = false;
+              try {
+                  inserted = new TcpWrittenEvent().tryAsyncGo(channel, Direction.DOWN);
+              } catch (AppiaEventException ex) {
+                  // the channel is closed, the message is released by ChannelClose
+              }
+              if (!inserted)
+                  releaseScheduled.remove(channel);
+          }
+      }
   }
 
   public Object attributeGetter(String attribute, MBeanAttributeInfo info) throws AppiaManagementException {
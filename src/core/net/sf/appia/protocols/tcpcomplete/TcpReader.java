@@ -20,6 +20,7 @@
  package net.sf.appia.protocols.tcpcomplete;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -28,6 +29,7 @@ import java.net.SocketTimeoutException;
 
 import net.sf.appia.core.*;
 import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.protocols.common.EventFactory;
 import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
 import net.sf.appia.protocols.utils.ParseUtils;
 
@@ -48,6 +50,7 @@ public class TcpReader implements Runnable {
 	private int originalPort; //port of the accept socket
 	private Channel channel;
     private Measures measures;
+    private WireDictionary dictionary;
 	
 	private int inactiveCounter=0;
 	
@@ -55,7 +58,13 @@ public class TcpReader implements Runnable {
 	
 	public TcpReader(Socket socket,TcpCompleteSession session, int originalPort, int remotePort, 
             Channel channel, Measures m){
+		this(socket,session,originalPort,remotePort,channel,m,new WireDictionary());
+	}
+
+	public TcpReader(Socket socket,TcpCompleteSession session, int originalPort, int remotePort, 
+            Channel channel, Measures m, WireDictionary dictionary){
 		super();
+		this.dictionary = dictionary;
 		s = socket;
 		parentSession = session;
 		this.originalPort = originalPort;
@@ -162,31 +171,19 @@ public class TcpReader implements Runnable {
 			
 			byte data[] = new byte[total];
 			receive_n(data,total);
-			int curPos = 0;
-			
-			/* Extract event class name */
-			//size of class name
-			int sLength=ParseUtils.byteArrayToInt(data, curPos);
-			//the class name
-		    String className=new String(data,curPos+4,sLength);
-
-		        //updating curPos
-		        curPos += sLength + 4;
-
-		        /* Create event */
-		        e = (SendableEvent)Class.forName(className).newInstance();
-
-		        /* Extract channel name and put event in it*/
-		        sLength = ParseUtils.byteArrayToInt(data, curPos);
-		        String channelName=new String(data,curPos+4,sLength);
+			/* Extract event class name and channel name */
+			final Constructor<? extends SendableEvent> type = dictionary.decode(data, 0);
+			if(type == null)
+				return null;
 
-			Channel msgChannel = parentSession.getChannel(channelName);
+			Channel msgChannel = parentSession.getChannel(dictionary.getChannelName());
 			
 			if(msgChannel == null)
 				return null;
 			
+			e = EventFactory.newEvent(msgChannel, type);
 			e.setChannel(msgChannel);
-		        curPos += sLength + 4;
+			int curPos = dictionary.getPosition();
 
 		        /* Extract the addresses and put them on the event */
 
@@ -194,7 +191,7 @@ public class TcpReader implements Runnable {
 		        e.source=new InetSocketAddress(s.getInetAddress(),remotePort);
 			
 			e.dest=new InetSocketAddress(s.getLocalAddress(),originalPort);
-			e.setMessage(msgChannel.getMessageFactory().newMessage(data,curPos,total-curPos));
+			e.getMessage().setByteArray(data,curPos,total-curPos);
         } catch(IOException ste){
         	throw ste;
         }
@@ -0,0 +1,253 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.tcpcomplete;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.protocols.common.EventFactory;
+import net.sf.appia.protocols.utils.ParseUtils;
+
+/**
+ * Dictionary of the event classes and channel IDs sent on a TCP connection.
+ * <br>
+ * A frame starts with the event class and the channel ID, each written as
+ * <code>[int length][name]</code>. When both nodes support the dictionary,
+ * each name is sent once, with a code, and then replaced by its code:
+ * <ul>
+ * <li><code>[int length][name]</code>, with length &gt;= 0: the name, as in the original format;
+ * <li><code>[int DEFINE][int code][int length][name]</code>: the name, that gets the given code;
+ * <li><code>[int -(code+1)]</code>: a name defined before on the connection.
+ * </ul>
+ * The dictionary is negotiated: each node sends a {@link #hello() hello frame} when
+ * the connection is established, and only uses codes after receiving one.
+ * The hello frame carries a {@link SendableEvent} for the channel {@link #CONTROL_CHANNEL},
+ * that older nodes discard, as any message for an unknown channel.
+ * <br>
+ * The encoding methods are used by the thread that writes to the connection, and the
+ * decoding methods by the thread that reads from it, so frames are always decoded
+ * after the definitions they use.
+ */
+public class WireDictionary {
+
+    /** Channel ID of the hello frames. No channel should use it. */
+    public static final String CONTROL_CHANNEL = "appia.wire.dictionary";
+
+    private static final int DEFINE = Integer.MIN_VALUE;
+    /* maximum number of codes of each kind, in each direction */
+    private static final int MAX_CODES = 4096;
+
+    private static final ConcurrentHashMap<Class<?>,byte[]> typeNames = new ConcurrentHashMap<Class<?>,byte[]>();
+    private static byte[] hello = null;
+
+    private volatile boolean peerEnabled = false;
+
+    // encoder
+    private final HashMap<Class<?>,Integer> typeCodes = new HashMap<Class<?>,Integer>();
+    private final HashMap<String,Integer> channelCodes = new HashMap<String,Integer>();
+    private final HashMap<String,byte[]> channelNames = new HashMap<String,byte[]>();
+
+    // decoder
+    private final ArrayList<Constructor<? extends SendableEvent>> types = new ArrayList<Constructor<? extends SendableEvent>>();
+    private final ArrayList<String> channels = new ArrayList<String>();
+    private String channelName = null;
+    private int position = 0;
+
+    /**
+     * Gets the hello frame, including its length, that announces that this node supports the dictionary.
+     */
+    public static synchronized byte[] hello() {
+        if (hello == null) {
+            final byte[] type = SendableEvent.class.getName().getBytes();
+            final byte[] channel = CONTROL_CHANNEL.getBytes();
+            hello = new byte[4+4+type.length+4+channel.length];
+            ParseUtils.intToByteArray(hello.length-4, hello, 0);
+            ParseUtils.intToByteArray(type.length, hello, 4);
+            System.arraycopy(type, 0, hello, 8, type.length);
+            ParseUtils.intToByteArray(channel.length, hello, 8+type.length);
+            System.arraycopy(channel, 0, hello, 12+type.length, channel.length);
+        }
+        return hello;
+    }
+
+    /**
+     * Checks if the other node supports the dictionary.
+     */
+    public boolean isPeerEnabled() {
+        return peerEnabled;
+    }
+
+    /**
+     * Encodes the beginning of a frame: its length, the event class and the channel ID.
+     * The message follows.
+     *
+     * @param type the class of the event
+     * @param channelID the ID of the channel
+     * @param messageLength the length of the message
+     * @return the beginning of the frame
+     */
+    public byte[] encode(Class<?> type, String channelID, int messageLength) {
+        final boolean enabled = peerEnabled;
+        byte[] typeName = null, channel = null;
+        Integer typeCode = null, channelCode = null;
+        boolean defineType = false, defineChannel = false;
+
+        if (enabled) {
+            typeCode = typeCodes.get(type);
+            if (typeCode == null && typeCodes.size() < MAX_CODES) {
+                typeCode = typeCodes.size();
+                typeCodes.put(type, typeCode);
+                defineType = true;
+            }
+            channelCode = channelCodes.get(channelID);
+            if (channelCode == null && channelCodes.size() < MAX_CODES) {
+                channelCode = channelCodes.size();
+                channelCodes.put(channelID, channelCode);
+                defineChannel = true;
+            }
+        }
+        if (typeCode == null || defineType)
+            typeName = typeName(type);
+        if (channelCode == null || defineChannel)
+            channel = channelName(channelID);
+
+        final int typeLength = (typeName == null) ? 4 : (defineType ? 12 : 4)+typeName.length;
+        final int channelLength = (channel == null) ? 4 : (defineChannel ? 12 : 4)+channel.length;
+        final byte[] frame = new byte[4+typeLength+channelLength];
+        ParseUtils.intToByteArray(typeLength+channelLength+messageLength, frame, 0);
+        int off = put(frame, 4, typeName, typeCode, defineType);
+        put(frame, off, channel, channelCode, defineChannel);
+        return frame;
+    }
+
+    private static int put(byte[] frame, int off, byte[] name, Integer code, boolean define) {
+        if (name == null) {
+            ParseUtils.intToByteArray(-(code.intValue()+1), frame, off);
+            return off+4;
+        }
+        if (define) {
+            ParseUtils.intToByteArray(DEFINE, frame, off);
+            ParseUtils.intToByteArray(code.intValue(), frame, off+4);
+            off += 8;
+        }
+        ParseUtils.intToByteArray(name.length, frame, off);
+        System.arraycopy(name, 0, frame, off+4, name.length);
+        return off+4+name.length;
+    }
+
+    private static byte[] typeName(Class<?> type) {
+        byte[] name = typeNames.get(type);
+        if (name == null) {
+            name = type.getName().getBytes();
+            typeNames.put(type, name);
+        }
+        return name;
+    }
+
+    private byte[] channelName(String channelID) {
+        byte[] name = channelNames.get(channelID);
+        if (name == null) {
+            name = channelID.getBytes();
+            channelNames.put(channelID, name);
+        }
+        return name;
+    }
+
+    /**
+     * Decodes the event class and the channel ID at the beginning of a frame, without its length.
+     * A hello frame enables the dictionary for the messages sent to the other node.
+     *
+     * @param data the frame
+     * @param off the offset of the frame in the array
+     * @return the constructor of the decoded event class, or null if it was a hello frame
+     * @throws IOException if the frame is malformed or the event class does not exist
+     */
+    public Constructor<? extends SendableEvent> decode(byte[] data, int off) throws IOException {
+        position = off;
+        try {
+            final Constructor<? extends SendableEvent> type;
+            int n = readInt(data);
+            if (n >= 0) {
+                type = EventFactory.getConstructor(readName(data, n));
+            } else if (n == DEFINE) {
+                if (readInt(data) != types.size())
+                    throw new IOException("Unexpected event class code");
+                type = EventFactory.getConstructor(readName(data, readInt(data)));
+                types.add(type);
+            } else if (-(n+1) < types.size()) {
+                type = types.get(-(n+1));
+            } else
+                throw new IOException("Unknown event class code "+(-(n+1)));
+
+            n = readInt(data);
+            if (n >= 0) {
+                channelName = readName(data, n);
+            } else if (n == DEFINE) {
+                if (readInt(data) != channels.size())
+                    throw new IOException("Unexpected channel code");
+                channelName = readName(data, readInt(data));
+                channels.add(channelName);
+            } else if (-(n+1) < channels.size()) {
+                channelName = channels.get(-(n+1));
+            } else
+                throw new IOException("Unknown channel code "+(-(n+1)));
+
+            if (channelName.equals(CONTROL_CHANNEL)) {
+                peerEnabled = true;
+                return null;
+            }
+            return type;
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private int readInt(byte[] data) {
+        final int n = ParseUtils.byteArrayToInt(data, position);
+        position += 4;
+        return n;
+    }
+
+    private String readName(byte[] data, int length) {
+        final String name = new String(data, position, length);
+        position += length;
+        return name;
+    }
+
+    /**
+     * The channel ID decoded by the last call to {@link #decode(byte[], int)}.
+     */
+    public String getChannelName() {
+        return channelName;
+    }
+
+    /**
+     * The offset of the message, after the last call to {@link #decode(byte[], int)}.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -21,6 +21,7 @@
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.reflect.Constructor;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -48,6 +49,7 @@ import net.sf.appia.core.events.channel.ChannelInit;
 import net.sf.appia.core.events.channel.Debug;
 import net.sf.appia.core.message.Message;
 import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.protocols.common.EventFactory;
 import net.sf.appia.protocols.common.RegisterSocketEvent;
 import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
 import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
@@ -86,6 +88,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
   private UdpSimpleReader sockReader = null; //point-to-point reader
   private HashMap<SocketAddress,UdpSimpleReader> multicastReaders = new HashMap<SocketAddress, UdpSimpleReader>(); //multicast readers
   protected HashMap<Integer,Channel> channels = new HashMap<Integer, Channel>(); // known channels
+  private HashMap<Class<?>,byte[]> eventTypes = new HashMap<Class<?>,byte[]>(); // serialized event class names
   
   private InetAddress param_LOCAL_ADDRESS=null;
   private int param_MAX_UDPMSG_SIZE=DEFAULT_MAX_UDPMSG_SIZE;
@@ -247,7 +250,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
     	return;
     }
     	
-    if (newSock(e.port,e.localHost,e.getChannel().getThreadFactory())) {
+    if (newSock(e.port,e.localHost,e.getChannel().getIOThreadFactory())) {
       reverseRegister(e, myAddress.getPort(), myAddress.getAddress(), false);
     } else {
       reverseRegister(e, e.port, null, true);
@@ -289,7 +292,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         /* The socket is binded. Launch reader and return the event.*/
         final UdpSimpleReader multicastReader = 
           new UdpSimpleReader(this, multicastSock, ipMulticast, e.fullDuplex ? null : myAddress);
-        final Thread thread = e.getChannel().getThreadFactory().
+        final Thread thread = e.getChannel().getIOThreadFactory().
                 newThread(multicastReader);
         thread.setName("MulticastReaderThread ["+ipMulticast+"]");
         multicastReader.setParentThread(thread);
@@ -340,7 +343,8 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         } catch (AppiaEventException ex) {
             System.err.println("Event not initialized but tried to be " + "sent in UdpSimpleSession");
         }
-    }
+    } else
+        e.release();
   }
   
         /*
@@ -464,14 +468,18 @@ public class UdpSimpleSession extends Session implements InitializableSession {
     /* Event Class name */
     try {
       if (sock == null) {
-        if (!newSock(RegisterSocketEvent.FIRST_AVAILABLE,null,e.getChannel().getThreadFactory()))
+        if (!newSock(RegisterSocketEvent.FIRST_AVAILABLE,null,e.getChannel().getIOThreadFactory()))
           throw new IOException("Impossible to create new socket.");
       }
       
       Message msg = e.getMessage();
       MsgBuffer mbuf = new MsgBuffer();
       
-      byte[] eventType = e.getClass().getName().getBytes("ISO-8859-1");
+      byte[] eventType = eventTypes.get(e.getClass());
+      if (eventType == null) {
+        eventType = e.getClass().getName().getBytes("ISO-8859-1");
+        eventTypes.put(e.getClass(), eventType);
+      }
       int channelHash = e.getChannel().getChannelID().hashCode();
       
       mbuf.len = 4;
@@ -641,7 +649,11 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         } catch(SocketTimeoutException ste){
 //        	ste.printStackTrace();
         } catch (IOException e) {
-          System.err.println("[UdpSimpleSession:reader:run] IOException: " + e.getMessage());
+          // interrupting a virtual thread blocked on the socket closes it
+          synchronized (this) {
+            if (!terminate)
+              System.err.println("[UdpSimpleSession:reader:run] IOException: " + e.getMessage());
+          }
         }
         
         synchronized (this) {
@@ -669,7 +681,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         String className = new String(data, 4, sLength, "ISO-8859-1");
         
         /* Create event */
-        Class<?> c = Class.forName(className);
+        Constructor<? extends SendableEvent> c = EventFactory.getConstructor(className);
         if (debugFull) {
           logReader.debug(":receiveAndFormat: Reader, creating "+className+" event.");
         }
@@ -688,8 +700,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         	return;
         }
         
-        e = (SendableEvent) c.newInstance();
-        e.setMessage(msgChannel.getMessageFactory().newMessage());
+        e = EventFactory.newEvent(msgChannel, c);
         msg = e.getMessage();
         msg.setByteArray(data, 8 + sLength, data.length - (8 + sLength));
         
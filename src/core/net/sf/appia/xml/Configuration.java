@@ -36,9 +36,11 @@ import net.sf.appia.core.AppiaException;
 import net.sf.appia.core.Channel;
 import net.sf.appia.core.EventScheduler;
 import net.sf.appia.core.Layer;
+import net.sf.appia.core.TimerManager;
 import net.sf.appia.core.memoryManager.MemoryManager;
 import net.sf.appia.core.message.MessageFactory;
 import net.sf.appia.management.jmx.JMXConfiguration;
+import net.sf.appia.protocols.common.AppiaThreadFactory;
 import net.sf.appia.xml.templates.ChannelTemplate;
 import net.sf.appia.xml.templates.SessionTemplate;
 import net.sf.appia.xml.utils.ChannelInfo;
@@ -166,6 +168,35 @@ public class Configuration {
 			globalEventScheduler = null;
 	}
 	
+	/**
+	 * <p>Defines the Appia execution mode.</p>
+	 * <p>If multiThreaded is true, each EventScheduler is executed by a dedicated thread.
+	 * Usually combined with {@link #useMultiSchedulers(boolean)}.</p>
+	 * 
+	 * @param multiThreaded true if using one thread per EventScheduler.
+	 * @see Appia#instanceSetMultiThreaded(boolean)
+	 */
+	public void useMultiThreaded(boolean multiThreaded) {
+		if (appia == null)
+			Appia.setMultiThreaded(multiThreaded);
+		else
+			appia.instanceSetMultiThreaded(multiThreaded);
+	}
+	
+	/**
+	 * <p>Defines the maximum number of threads used to execute the EventSchedulers
+	 * in multi-threaded mode.</p>
+	 * 
+	 * @param n the maximum number of threads, or 0 for one thread per EventScheduler.
+	 * @see Appia#instanceSetSchedulerThreads(int)
+	 */
+	public void setSchedulerThreads(int n) {
+		if (appia == null)
+			Appia.setSchedulerThreads(n);
+		else
+			appia.instanceSetSchedulerThreads(n);
+	}
+	
 	/**
 	 * Tests if configuration is using a global EventScheduler.
 	 * 
@@ -199,10 +230,69 @@ public class Configuration {
 		schedulerClassIsSet = true;
 	}
     
+    /**
+     * Sets the ThreadFactory of the I/O threads of the protocols.
+     * 
+     * @param className the name of the ThreadFactory class.
+     * @see Appia#setIOThreadFactory(ThreadFactory)
+     */
     public void setThreadFactory(String className) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
         threadFactory = (ThreadFactory) Class.forName(className).newInstance();
+        applyThreadFactory();
     }    
 
+    /**
+     * <p>Selects virtual threads for the I/O threads of the protocols,
+     * such as the readers and senders of the transport protocols.
+     * The threads of Appia and of its TimerManager are not changed.</p>
+     * <p>Platform threads are used if the JVM does not support virtual threads.</p>
+     * 
+     * @param virtual true to use virtual threads.
+     * @see AppiaThreadFactory#AppiaThreadFactory(boolean)
+     */
+    public void useVirtualThreads(boolean virtual) {
+        threadFactory = new AppiaThreadFactory(virtual);
+        applyThreadFactory();
+    }
+
+    private void applyThreadFactory() {
+        if (appia == null)
+            Appia.setDefaultIOThreadFactory(threadFactory);
+        else
+            appia.setIOThreadFactory(threadFactory);
+    }
+
+    /**
+     * Replaces the TimerManager of Appia. The class must have a constructor
+     * that receives a ThreadFactory.
+     * 
+     * @param className the name of the TimerManager class.
+     * @throws AppiaXMLException if the TimerManager could not be created.
+     * @see Appia#setTimerManager(TimerManager)
+     */
+    public void setTimerManager(String className) throws AppiaXMLException {
+        final ThreadFactory thf = (appia == null) ? new AppiaThreadFactory() : appia.getThreadFactory();
+        final TimerManager timerManager;
+        try {
+            timerManager = (TimerManager) Class.forName(className)
+                .getConstructor(new Class[] {ThreadFactory.class}).newInstance(new Object[] {thf});
+        } catch (ClassNotFoundException e) {
+            throw new AppiaXMLException("Could not instantiate the timer manager", e);
+        } catch (NoSuchMethodException e) {
+            throw new AppiaXMLException("Could not instantiate the timer manager", e);
+        } catch (InstantiationException e) {
+            throw new AppiaXMLException("Could not instantiate the timer manager", e);
+        } catch (IllegalAccessException e) {
+            throw new AppiaXMLException("Could not instantiate the timer manager", e);
+        } catch (InvocationTargetException e) {
+            throw new AppiaXMLException("Could not instantiate the timer manager", e);
+        }
+        if (appia == null)
+            Appia.setTimerManager(timerManager);
+        else
+            appia.instanceSetTimerManager(timerManager);
+    }
+
 	private EventScheduler getEventScheduler() throws AppiaXMLException {
 		if (globalEventScheduler != null)
 			return globalEventScheduler;
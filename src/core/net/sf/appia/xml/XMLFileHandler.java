@@ -130,6 +130,21 @@ public class XMLFileHandler extends DefaultHandler {
 			String att = attributes.getValue("multischedulers");
 			if (att != null && att.equals("yes"))
 				config.useMultiSchedulers(true);
+			att = attributes.getValue("multithreaded");
+			if (att != null && att.equals("yes"))
+				config.useMultiThreaded(true);
+			att = attributes.getValue("schedulerthreads");
+			if (att != null && !att.equals("")) {
+				try {
+					config.setSchedulerThreads(Integer.parseInt(att));
+				} catch (NumberFormatException e) {
+					throw new SAXException(e);
+				}
+			}
+            att = attributes.getValue("virtualthreads");
+            if (att != null && att.equals("yes")) {
+                config.useVirtualThreads(true);
+            }
             att = attributes.getValue("threadFactory");
             if(att != null && !att.equals("")){
                 try {
@@ -142,6 +157,14 @@ public class XMLFileHandler extends DefaultHandler {
                     throw new SAXException(e);
                 }
             }
+			att = attributes.getValue("timermanager");
+			if (att != null && !att.equals("")) {
+				try {
+					config.setTimerManager(att);
+				} catch (AppiaXMLException e) {
+					throw new SAXException(e);
+				}
+			}
 			att = attributes.getValue("scheduler");
 			if (att != null) {
 				try {
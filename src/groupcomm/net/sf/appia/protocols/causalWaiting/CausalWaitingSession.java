@@ -19,9 +19,8 @@
  */
  package net.sf.appia.protocols.causalWaiting;
 
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 
 import net.sf.appia.core.AppiaError;
 import net.sf.appia.core.AppiaEventException;
@@ -36,6 +35,8 @@ import net.sf.appia.protocols.group.events.GroupSendableEvent;
 import net.sf.appia.protocols.group.events.Send;
 import net.sf.appia.protocols.group.intra.View;
 import net.sf.appia.protocols.group.leave.LeaveEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 import org.apache.log4j.Logger;
 
@@ -44,12 +45,22 @@ import org.apache.log4j.Logger;
  * Causal order protocol that implements the waiting causal broadcast algorithm
  * as described in the book <i>Introduction to Reliable Distributed Programming</i> by
  * Rachid Guerraoui and Luis Rodrigues. 
+ * <p>
+ * Messages that cannot be delivered yet are kept in one FIFO queue per sender. Only the
+ * first message of each queue is checked, and it counts the entries of its vector not yet
+ * satisfied by the local vector. When an entry of the local vector grows, only the
+ * messages waiting for that entry are checked again.
+ * <p>
+ * Optionally, each message carries only the entries of the vector that changed since the
+ * previous message of the same sender. This requires the FIFO delivery of the messages of
+ * each sender, given by the group communication stack, and the same configuration in all
+ * the members of the group.
  * 
  * @see net.sf.appia.protocols.causalWaiting.CausalWaitingLayer
  * @see EventContainer
  * @author Jose Mocito
  */
-public class CausalWaitingSession extends Session {
+public class CausalWaitingSession extends Session implements InitializableSession {
 
     private static Logger log = Logger.getLogger(CausalWaitingSession.class);
     private static final boolean debugOn = true;
@@ -63,9 +74,44 @@ public class CausalWaitingSession extends Session {
 	private long[] VC;
 	
 	/**
-	 * List of received events still to be delivered.
+	 * Messages received and still to be delivered, by sender.
 	 */
-	private LinkedList<EventContainer> pending = new LinkedList<EventContainer>();
+	private ArrayDeque<EventContainer>[] pending;
+	
+	/**
+	 * First messages of the queues waiting for each entry of the local vector.
+	 */
+	private ArrayList<EventContainer>[] waiting;
+	
+	/**
+	 * Messages ready to be delivered.
+	 */
+	private ArrayDeque<EventContainer> ready = new ArrayDeque<EventContainer>();
+	
+	private int pendingSize = 0;
+	
+	/**
+	 * If true, messages only carry the entries of the vector changed since the
+	 * previous message of the sender.
+	 */
+	private boolean compressed = false;
+	
+	/**
+	 * Vector sent in the last message, used with compressed vectors.
+	 */
+	private long[] lastSent;
+	
+	/**
+	 * Vector of the last message received from each member, used with compressed vectors.
+	 */
+	private long[][] lastReceived;
+	
+	/**
+	 * Vector and entries of the message being received.
+	 */
+	private long[] VCm;
+	private int[] changed;
+	private int changedSize;
 	
 	/**
 	 * Constructs a new waiting causal order protocol session.
@@ -76,6 +122,23 @@ public class CausalWaitingSession extends Session {
 		super(layer);
 	}
 	
+	/**
+	 * Initializes the session using the parameters given in the XML configuration.
+	 * Possible parameters:
+	 * <ul>
+	 * <li><b>compressed_clock</b> if true, each message only carries the entries of the
+	 * vector that changed since the previous message of the same sender. All the members
+	 * of the group must use the same value. Default is false.
+	 * </ul>
+	 * 
+	 * @param params The parameters given in the XML configuration.
+	 * @see net.sf.appia.xml.interfaces.InitializableSession#init(SessionProperties)
+	 */
+	public void init(SessionProperties params) {
+		if (params.containsKey("compressed_clock"))
+			compressed = params.getBoolean("compressed_clock");
+	}
+	
 	/**
 	 * This is the protocol's main event handler.
 	 * It accepts the following events:
@@ -103,19 +166,32 @@ public class CausalWaitingSession extends Session {
 			}
 	}
 
+	@SuppressWarnings("unchecked")
 	private void handleView(View view) {
-		ls = view.ls;
-		vs = view.vs;
-		
-		VC = new long[vs.view.length];
-		Arrays.fill(VC,0);
-		
 		// Sanity check
-		if (!pending.isEmpty()) {
+		if (pendingSize > 0) {
 			log.fatal("Received new view but pending messages still exist! View synchrony properties compromised!");
             throw new AppiaError("Received new view but pending messages still exist! View synchrony properties compromised!");
 		}
 		
+		ls = view.ls;
+		vs = view.vs;
+		
+		final int n = vs.view.length;
+		VC = new long[n];
+		VCm = new long[n];
+		changed = new int[n];
+		pending = new ArrayDeque[n];
+		waiting = new ArrayList[n];
+		for (int i = 0; i < n; i++) {
+			pending[i] = new ArrayDeque<EventContainer>();
+			waiting[i] = new ArrayList<EventContainer>();
+		}
+		if (compressed) {
+			lastSent = new long[n];
+			lastReceived = new long[n][n];
+		}
+		
 		try {
 			view.go();
 		} catch (AppiaEventException e) {
@@ -136,9 +212,7 @@ public class CausalWaitingSession extends Session {
             log.debug("CAUSAL Processing event "+event);
         if (!(event instanceof Send)) {
             if (event.getDir() == Direction.DOWN) {
-                Message omsg = event.getMessage();
-                for (int i = 0; i < VC.length; i++)
-                    omsg.pushLong(VC[i]);
+                pushVC(event.getMessage());
                 try {
                     event.go();
                 } catch (AppiaEventException e) {
@@ -147,12 +221,8 @@ public class CausalWaitingSession extends Session {
                 VC[ls.my_rank]++;
             }
             else {
-                if (event.orig != ls.my_rank) {
-                    long[] VCm = new long[VC.length];
-                    extractVCm(event.getMessage(), VCm);
-                    pending.add(new EventContainer(event, VCm));
-                    deliverPending();
-                }
+                if (event.orig != ls.my_rank)
+                    receive(event);
                 else {
                     clearVC(event.getMessage());
                     try {
@@ -171,14 +241,50 @@ public class CausalWaitingSession extends Session {
 	}
 	
 	/**
-	 * Extracts the VC from the header of a message.
+	 * Puts the local VC in the header of a message.
+	 * 
+	 * @param omsg the message where the VC will be inserted.
+	 */
+	private void pushVC(Message omsg) {
+		if (compressed) {
+			int count = 0;
+			for (int i = 0; i < VC.length; i++)
+				if (VC[i] != lastSent[i]) {
+					omsg.pushLong(VC[i]);
+					omsg.pushInt(i);
+					lastSent[i] = VC[i];
+					count++;
+				}
+			omsg.pushInt(count);
+		}
+		else
+			for (int i = 0; i < VC.length; i++)
+				omsg.pushLong(VC[i]);
+	}
+	
+	/**
+	 * Extracts the VC from the header of a message received from another member.
 	 * 
 	 * @param omsg the message from where the VC will be extracted.
-	 * @param VCm array where the values of the VC for the given message will be stored.
+	 * @param orig the sender of the message.
+	 * @return the VC of the message. With compressed vectors, the entries that changed
+	 * are left in <tt>changed</tt>.
 	 */
-	private void extractVCm(Message omsg, long[] VCm) {
+	private long[] extractVCm(Message omsg, int orig) {
+		if (compressed) {
+			final long[] VCx = lastReceived[orig];
+			final int count = omsg.popInt();
+			for (int c = 0; c < count; c++) {
+				final int i = omsg.popInt();
+				VCx[i] = omsg.popLong();
+				changed[c] = i;
+			}
+			changedSize = count;
+			return VCx;
+		}
 		for (int i = VCm.length - 1; i >= 0; i--)
 			VCm[i] = omsg.popLong();
+		return VCm;
 	}
 	
 	/**
@@ -187,31 +293,115 @@ public class CausalWaitingSession extends Session {
 	 * @param omsg the message whose header will be cleared.
 	 */
 	private void clearVC(Message omsg) {
-		for (int i = 0; i < VC.length; i++)
-			omsg.popLong();
+		if (compressed) {
+			final int count = omsg.popInt();
+			for (int c = 0; c < count; c++) {
+				omsg.popInt();
+				omsg.popLong();
+			}
+		}
+		else
+			for (int i = 0; i < VC.length; i++)
+				omsg.popLong();
+	}
+	
+	/**
+	 * Handles a message received from another member, delivering it and the pending
+	 * messages that depend on it, or keeping it until its causal past is delivered.
+	 * <br>
+	 * A message is only checked against the entries that may not be satisfied yet: with
+	 * compressed vectors, the entries that changed since the previous message of the
+	 * same sender, because that message was delivered before.
+	 * 
+	 * @param event the message.
+	 */
+	private void receive(GroupSendableEvent event) {
+		final long[] VCx = extractVCm(event.getMessage(), event.orig);
+		final ArrayDeque<EventContainer> queue = pending[event.orig];
+		if (queue.isEmpty() && canDeliver(VCx)) {
+			deliver(event);
+			deliverPending();
+			return;
+		}
+		
+		int[] entries = null;
+		if (compressed) {
+			entries = new int[changedSize];
+			System.arraycopy(changed, 0, entries, 0, changedSize);
+		}
+		final EventContainer cont = new EventContainer(event, VCx.clone(), entries);
+		queue.addLast(cont);
+		pendingSize++;
+		if (queue.size() == 1) {
+			check(cont);
+			deliverPending();
+		}
+	}
+	
+	/**
+	 * Delivers a message and updates the local vector, marking the pending messages
+	 * that only waited for it as ready.
+	 * 
+	 * @param ev the message to deliver.
+	 */
+	private void deliver(GroupSendableEvent ev) {
+		try {
+			ev.go();
+		} catch (AppiaEventException e) {
+			e.printStackTrace();
+		}
+		final int k = ev.orig;
+		VC[k]++;
+		
+		final ArrayList<EventContainer> list = waiting[k];
+		for (int i = list.size() - 1; i >= 0; i--) {
+			final EventContainer cont = list.get(i);
+			if (cont.getVC()[k] <= VC[k]) {
+				list.set(i, list.get(list.size() - 1));
+				list.remove(list.size() - 1);
+				if (cont.satisfied() == 0)
+					ready.addLast(cont);
+			}
+		}
 	}
 	
 	/**
 	 * Delivers pending messages that satisfy the causality order criteria.
 	 */
 	private void deliverPending() {
-		ListIterator it = pending.listIterator();
-		while (it.hasNext()) {
-			EventContainer cont = (EventContainer) it.next();
-			long[] VCx = cont.getVC();
-			if (canDeliver(VCx)) {
-				it.remove();
-				GroupSendableEvent ev = cont.getEvent();
-				try {
-					ev.go();
-				} catch (AppiaEventException e) {
-					e.printStackTrace();
-				}
-				VC[ev.orig]++;
-				if (!pending.isEmpty() && it.nextIndex() != 0)
-					it = pending.listIterator();
+		while (!ready.isEmpty()) {
+			final EventContainer cont = ready.removeFirst();
+			final ArrayDeque<EventContainer> queue = pending[cont.getEvent().orig];
+			queue.removeFirst();
+			pendingSize--;
+			deliver(cont.getEvent());
+			if (!queue.isEmpty())
+				check(queue.getFirst());
+		}
+	}
+	
+	/**
+	 * Counts the entries of the vector of a message, now first in the queue of its sender,
+	 * that are not satisfied yet, and registers the message as waiting for them. The
+	 * message is marked as ready if all entries are satisfied.
+	 * 
+	 * @param cont the message.
+	 */
+	private void check(EventContainer cont) {
+		final long[] VCx = cont.getVC();
+		final int[] entries = cont.getEntries();
+		final int size = (entries == null) ? VCx.length : entries.length;
+		int missing = 0;
+		for (int e = 0; e < size; e++) {
+			final int i = (entries == null) ? e : entries[e];
+			if (VC[i] < VCx[i]) {
+				waiting[i].add(cont);
+				missing++;
 			}
 		}
+		cont.setMissing(missing);
+		if (missing == 0)
+			ready.addLast(cont);
 	}
 
 	/**
@@ -222,6 +412,12 @@ public class CausalWaitingSession extends Session {
 	 * @return <tt>true</tt> if the causality order criteria is met, <tt>false</tt> otherwise.  
 	 */
 	private boolean canDeliver(long[] VCx) {
+		if (compressed) {
+			for (int c = 0; c < changedSize; c++)
+				if (VC[changed[c]] < VCx[changed[c]])
+					return false;
+			return true;
+		}
 		for (int i = 0; i < VC.length; i++)
 			if (VC[i] < VCx[i])
 				return false;
@@ -40,6 +40,16 @@ public class EventContainer {
 	 */
 	private long[] VC;
 	
+	/**
+	 * Entries of the vector that may not be satisfied yet, or null for all entries.
+	 */
+	private int[] entries;
+	
+	/**
+	 * Number of entries of the vector not yet satisfied by the local vector.
+	 */
+	private int missing;
+	
 	/**
 	 * Creates a new EventContainer storing the given event and causality
 	 * information vector.
@@ -52,6 +62,20 @@ public class EventContainer {
 		this.VC = VC;
 	}
 	
+	/**
+	 * Creates a new EventContainer storing the given event and causality
+	 * information vector, of which only some entries need to be checked.
+	 * 
+	 * @param event the event to be stored in the container.
+	 * @param VC the causality information vector associated with the event stored.
+	 * @param entries the entries of the vector to check, or null for all entries.
+	 */
+	public EventContainer(GroupSendableEvent event, long[] VC, int[] entries) {
+		this.event = event;
+		this.VC = VC;
+		this.entries = entries;
+	}
+	
 	/**
 	 * Sets the event stored in the container.
 	 * 
@@ -87,4 +111,32 @@ public class EventContainer {
 	public long[] getVC() {
 		return VC;
 	}
+
+	/**
+	 * The entries of the causality information vector that must be checked before
+	 * delivering the stored event.
+	 * 
+	 * @return the entries to check, or null if all entries must be checked.
+	 */
+	public int[] getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Sets the number of entries of the vector not yet satisfied.
+	 * 
+	 * @param missing the number of entries not yet satisfied.
+	 */
+	public void setMissing(int missing) {
+		this.missing = missing;
+	}
+
+	/**
+	 * Marks one more entry of the vector as satisfied.
+	 * 
+	 * @return the number of entries still not satisfied.
+	 */
+	public int satisfied() {
+		return --missing;
+	}
 }
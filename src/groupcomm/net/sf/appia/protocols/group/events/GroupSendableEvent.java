@@ -177,4 +177,15 @@ public class GroupSendableEvent extends SendableEvent {
     message=omsg;
   }
 
+  /**
+   * Clears the group attributes, when the event is reused by an
+   * {@link net.sf.appia.core.events.EventPool EventPool}.
+   */
+  protected void reset() {
+    super.reset();
+    group=null;
+    view_id=null;
+    orig=0;
+  }
+
 }
\ No newline at end of file
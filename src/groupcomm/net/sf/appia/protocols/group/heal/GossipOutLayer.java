@@ -47,6 +47,8 @@ public class GossipOutLayer extends Layer {
      * <li>appia.protocols.group.heal.GossipOutEvent
      * <li>appia.protocols.udpsimple.RegisterSocketEvent
      * <li>appia.events.channel.Debug
+     * <li>appia.protocols.fifo.FIFOConfigEvent
+     * <li>appia.protocols.udpsimple.MulticastInitEvent
      * </ul>
      *
      * <b>Events Required</b><br>
@@ -77,6 +79,8 @@ public class GossipOutLayer extends Layer {
                 gossipout,
                 rse,
                 debug,
+                net.sf.appia.protocols.fifo.FIFOConfigEvent.class,
+                net.sf.appia.protocols.udpsimple.MulticastInitEvent.class,
         };
 
         evRequire=new Class[] {};
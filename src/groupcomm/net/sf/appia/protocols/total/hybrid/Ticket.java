@@ -3,6 +3,10 @@ package net.sf.appia.protocols.total.hybrid;
 
 import java.io.*;
 
+import net.sf.appia.core.message.CodecRegistry;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.ObjectCodec;
+
 /**
  * Class that represents a ticket. A ticket is the 
  * information necessary to order a message.
@@ -14,6 +18,33 @@ public class Ticket implements Serializable, Comparable {
 	private int ticketId;
 	private MsgId msgId;
 	
+	/**
+	 * Tag of the codec of tickets in the {@link CodecRegistry}.
+	 */
+	public static final int CODEC_TAG = CodecRegistry.HYBRID_TICKET_TAG;
+	
+	/**
+	 * Writes tickets as four integers.
+	 */
+	public static final ObjectCodec<Ticket> CODEC = new ObjectCodec<Ticket>() {
+		public void push(Ticket t, Message message) {
+			message.pushInt(t.msgId.getSequence());
+			message.pushInt(t.msgId.getSource());
+			message.pushInt(t.ticketId);
+			message.pushInt(t.source);
+		}
+		public Ticket pop(Message message) {
+			final int s = message.popInt();
+			final int tId = message.popInt();
+			final int msgSource = message.popInt();
+			return new Ticket(s, tId, new MsgId(msgSource, message.popInt()));
+		}
+	};
+	
+	static {
+		CodecRegistry.getDefault().register(CODEC_TAG, Ticket.class, CODEC);
+	}
+	
 	/**
 	 * Constructs a new Ticket.
 	 * @param s the message sequencer.
@@ -3,6 +3,7 @@ package  net.sf.appia.protocols.total.hybrid;
 import java.io.Serializable;
 
 import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
 
 /**
  * Message Header to be added to the protocol events.
@@ -54,6 +55,12 @@ public class TotalHybridHeader implements Serializable{
 	 */
 	public final static int PENDING=5;
 	
+	/* bytes of the fields before the tickets, and of each ticket, in the header */
+	private static final int FIXED_SIZE=24;
+	private static final int TICKET_SIZE=12;
+	/* bytes of each ticket in the uniformity information */
+	private static final int UNIFORM_TICKET_SIZE=16;
+	
 	/**
 	 * Default constructor
 	 */
@@ -126,25 +133,25 @@ public class TotalHybridHeader implements Serializable{
 	 * @param f source
 	 */
 	public TotalHybridHeader(Message om, int f){
-		type = om.popInt();
+		final MsgBuffer mbuf = new MsgBuffer();
+		mbuf.len = FIXED_SIZE;
+		om.popReadOnly(mbuf);
 		
+		type = getInt(mbuf.data, mbuf.off);
 		source = f;
-		sequence = om.popInt();
-		sequencer = om.popInt();
-		from = om.popInt();
-		to = om.popInt();
-		
-		int tid, idsource, idseq;
-		int size = om.popInt();
+		sequence = getInt(mbuf.data, mbuf.off + 4);
+		sequencer = getInt(mbuf.data, mbuf.off + 8);
+		from = getInt(mbuf.data, mbuf.off + 12);
+		to = getInt(mbuf.data, mbuf.off + 16);
+		int size = getInt(mbuf.data, mbuf.off + 20);
 		
-		if(size!=-1){
+		if(size > 0){
+			mbuf.len = size * TICKET_SIZE;
+			om.popReadOnly(mbuf);
 			tickets = new Ticket[size];
-			for(int i=0 ; i!=tickets.length ; i++){
-				idseq = om.popInt();
-				idsource = om.popInt();
-				tid = om.popInt();
-				tickets[i] = new Ticket(f,tid,new MsgId(idsource,idseq));
-			}
+			for(int i=0, off=mbuf.off ; i!=tickets.length ; i++, off+=TICKET_SIZE)
+				tickets[i] = new Ticket(f,getInt(mbuf.data, off + 8),
+						new MsgId(getInt(mbuf.data, off + 4),getInt(mbuf.data, off)));
 		}
 		else
 			tickets = new Ticket[0];
@@ -224,23 +231,83 @@ public class TotalHybridHeader implements Serializable{
 	 * @param om Appia Message where to put the header information
 	 */
 	public void writeHeader(Message om){
+		final int size = tickets == null ? 0 : tickets.length;
+		final MsgBuffer mbuf = new MsgBuffer();
+		mbuf.len = FIXED_SIZE + size * TICKET_SIZE;
+		om.push(mbuf);
 		
-		if(tickets!=null){
-			for(int i=tickets.length-1;i>=0;i--){
-				om.pushInt(tickets[i].getTicketId());
-				om.pushInt(tickets[i].getMsgId().getSource());
-				om.pushInt(tickets[i].getMsgId().getSequence());
-			}
-			om.pushInt(tickets.length);
+		putInt(mbuf.data, mbuf.off, type);
+		putInt(mbuf.data, mbuf.off + 4, sequence);
+		putInt(mbuf.data, mbuf.off + 8, sequencer);
+		putInt(mbuf.data, mbuf.off + 12, from);
+		putInt(mbuf.data, mbuf.off + 16, to);
+		putInt(mbuf.data, mbuf.off + 20, tickets == null ? -1 : size);
+		for(int i=0, off=mbuf.off+FIXED_SIZE ; i < size ; i++, off+=TICKET_SIZE){
+			putInt(mbuf.data, off, tickets[i].getMsgId().getSequence());
+			putInt(mbuf.data, off + 4, tickets[i].getMsgId().getSource());
+			putInt(mbuf.data, off + 8, tickets[i].getTicketId());
 		}
-		else
-			om.pushInt(-1);
-		
-		om.pushInt(to);
-		om.pushInt(from);
-		om.pushInt(sequencer);
-		om.pushInt(sequence);
-		om.pushInt(type);
+	}
+	
+	/**
+	 * Pushes the uniformity information, the last ticket ordered by each member,
+	 * into an Appia Message.
+	 * <br>
+	 * Each ticket takes four integers, written in a single header.
+	 * @param lastTicket the last ticket of each member, indexed by rank
+	 * @param om Appia Message where to put the information
+	 * @param mbuf buffer used to access the message, that may be reused
+	 */
+	public static void writeUniformInfo(Ticket[] lastTicket, Message om, MsgBuffer mbuf){
+		mbuf.len = lastTicket.length * UNIFORM_TICKET_SIZE;
+		if (mbuf.len == 0)
+			return;
+		om.push(mbuf);
+		// the ticket of the last member is at the head of the message
+		int off = mbuf.off + mbuf.len;
+		for (int i = 0; i < lastTicket.length; i++) {
+			off -= UNIFORM_TICKET_SIZE;
+			putInt(mbuf.data, off, lastTicket[i].getSource());
+			putInt(mbuf.data, off + 4, lastTicket[i].getTicketId());
+			putInt(mbuf.data, off + 8, lastTicket[i].getMsgId().getSource());
+			putInt(mbuf.data, off + 12, lastTicket[i].getMsgId().getSequence());
+		}
+	}
+	
+	/**
+	 * Pops the uniformity information pushed by {@link #writeUniformInfo(Ticket[], Message, MsgBuffer)}
+	 * and keeps, for each member, the most recent of the received and the known tickets,
+	 * as given by {@link Ticket#compareTo(Object)}.
+	 * @param lastTicket the last ticket of each member, indexed by rank, that is updated
+	 * @param om Appia Message with the information
+	 * @param mbuf buffer used to access the message, that may be reused
+	 */
+	public static void mergeUniformInfo(Ticket[] lastTicket, Message om, MsgBuffer mbuf){
+		mbuf.len = lastTicket.length * UNIFORM_TICKET_SIZE;
+		if (mbuf.len == 0)
+			return;
+		om.popReadOnly(mbuf);
+		int off = mbuf.off + mbuf.len;
+		Ticket t;
+		for (int i = 0; i < lastTicket.length; i++) {
+			off -= UNIFORM_TICKET_SIZE;
+			t = new Ticket(getInt(mbuf.data, off), getInt(mbuf.data, off + 4),
+					new MsgId(getInt(mbuf.data, off + 8), getInt(mbuf.data, off + 12)));
+			if (t.compareTo(lastTicket[i]) > 0)
+				lastTicket[i] = t;
+		}
+	}
+	
+	private static void putInt(byte[] data, int off, int i){
+		data[off] = (byte) (i >>> 24);
+		data[off + 1] = (byte) (i >>> 16);
+		data[off + 2] = (byte) (i >>> 8);
+		data[off + 3] = (byte) i;
+	}
+	
+	private static int getInt(byte[] data, int off){
+		return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16) |
+			((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
 	}
 	
 }
@@ -13,6 +13,7 @@ import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
 import net.sf.appia.core.events.channel.ChannelInit;
 import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
 import net.sf.appia.protocols.group.Endpt;
 import net.sf.appia.protocols.group.LocalState;
 import net.sf.appia.protocols.group.ViewState;
@@ -302,14 +303,7 @@ public class TotalHybridSession extends Session implements InitializableSession
 		
 		Message msg = e.getMessage();
 		if (msg.popBoolean()) {
-			Ticket[] uniformInfo = new Ticket[lastTicket.length];
-			for (int i = uniformInfo.length; i > 0; i--)
-				uniformInfo[i-1] = (Ticket) msg.popObject();
-//			debug("["+ls.my_rank+"] Uniform table received from "+e.orig+": ");
-//			if (debugOn)
-//				for (int i = 0; i < uniformInfo.length; i++)
-//					debug("RANK :"+i+" | LAST_TICKET: "+uniformInfo[i]);
-			mergeUniformInfo(uniformInfo);
+			TotalHybridHeader.mergeUniformInfo(lastTicket, msg, mbuf);
 //			debug("Uniformity information table now is: ");
 //			if (debugOn)
 //				for (int i = 0; i < lastTicket.length; i++)
@@ -405,8 +399,7 @@ public class TotalHybridSession extends Session implements InitializableSession
 			setHeader(e,thh);
 			
 			msg = e.getMessage();
-			for (int i = 0; i < lastTicket.length; i++)
-				msg.pushObject(lastTicket[i]);
+			TotalHybridHeader.writeUniformInfo(lastTicket, msg, mbuf);
 			msg.pushBoolean(true);
 			
 			try{			    
@@ -424,8 +417,7 @@ public class TotalHybridSession extends Session implements InitializableSession
 			setHeader(e,thh);
 			
 			msg = e.getMessage();
-			for (int i = 0; i < lastTicket.length; i++)
-				msg.pushObject(lastTicket[i]);
+			TotalHybridHeader.writeUniformInfo(lastTicket, msg, mbuf);
 			msg.pushBoolean(true);
 			
 			try{			    
@@ -489,8 +481,7 @@ public class TotalHybridSession extends Session implements InitializableSession
 			
 			//event.getObjectsMessage().pushLong(lastOrder);
 			Message msg = event.getMessage();
-			for (int i = 0; i < lastTicket.length; i++)
-				msg.pushObject(lastTicket[i]);
+			TotalHybridHeader.writeUniformInfo(lastTicket, msg, mbuf);
 			
 			event.setChannel(timer.getChannel());
 			event.setDir(Direction.DOWN);
@@ -505,19 +496,14 @@ public class TotalHybridSession extends Session implements InitializableSession
 	}
 	
 	private Ticket[] lastTicket;
+	/* used to write and read the uniformity information */
+	private final MsgBuffer mbuf = new MsgBuffer();
 	
 	private void handleUniformInfo(UniformInfoEvent event) {
 		debug("Received UniformInfo from "+event.orig);
 		//lastOrderList[event.orig] = event.getObjectsMessage().popLong();
 		Message msg = event.getMessage();
-		Ticket[] uniformInfo = new Ticket[lastTicket.length];
-		for (int i = uniformInfo.length; i > 0; i--)
-			uniformInfo[i-1] = (Ticket) msg.popObject();
-		debug("["+ls.my_rank+"] Uniform table received from "+event.orig+": ");
-		if (debugOn)
-			for (int i = 0; i < uniformInfo.length; i++)
-				debug("RANK :"+i+" | LAST_TICKET: "+uniformInfo[i]);
-		mergeUniformInfo(uniformInfo);
+		TotalHybridHeader.mergeUniformInfo(lastTicket, msg, mbuf);
 		debug("Uniformity information table now is: ");
 		if (debugOn)
 			for (int i = 0; i < lastTicket.length; i++)
@@ -711,12 +697,6 @@ public class TotalHybridSession extends Session implements InitializableSession
 		return false;
 	}
 
-	private void mergeUniformInfo(Ticket[] table) {
-		for (int i = 0; i < table.length; i++)
-			if (table[i].compareTo(lastTicket[i]) > 0)
-				lastTicket[i] = table[i];
-	}
-	
 	private TotalHybridHeader getHeader(GroupSendableEvent e){
 		
 		//return (TotalHybridHeader)e.getObjectsMessage().pop();	
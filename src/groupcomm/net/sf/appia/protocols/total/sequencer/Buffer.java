@@ -19,25 +19,69 @@
  */
  package net.sf.appia.protocols.total.sequencer;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import net.sf.appia.protocols.group.events.*;
 
 
 /**
- * Class that implements a buffer to store 
- * events while waiting for the total order.
+ * Buffer of the messages and orders that were not delivered yet.
+ * <br>
+ * The messages are indexed by sender and individual sequence number, and the
+ * messages with a known order are also kept in a circular array indexed by that order,
+ * starting at the next order to be delivered. Finding a message and the next
+ * message to deliver therefore do not depend on the number of buffered messages.
  */
 public class Buffer{
-    Vector lista;
+    private static final int INITIAL_SLOTS=16;
+
+    /* messages by sender and individual sequence number */
+    private HashMap<Long,InfoMessage> messages;
+    /* messages with a known order, by order */
+    private InfoMessage[] slots;
+    /* next order to be delivered */
+    private int next;
 
     /**
      *   Constructs a new Buffer object.
      */
     public Buffer(){
-        lista=new Vector(5,3);
+        messages=new HashMap<Long,InfoMessage>();
+        slots=new InfoMessage[INITIAL_SLOTS];
+        next=1;
+    }
+
+    private static Long key(int emissor, int seq){
+        return Long.valueOf(((long) emissor << 32) | (seq & 0xFFFFFFFFL));
     }
 
+    /*
+     * Puts the message in the slot of its order, growing the array if needed.
+     */
+    private void setSlot(InfoMessage info){
+        final int o=info.getOrder();
+        if(o < next)
+            return;
+        if(o - next >= slots.length){
+            int length=slots.length;
+            while(o - next >= length)
+                length*=2;
+            final InfoMessage[] newSlots=new InfoMessage[length];
+            for(int i=next; i != next+slots.length; i++)
+                newSlots[i & (length-1)]=slots[i & (slots.length-1)];
+            slots=newSlots;
+        }
+        slots[o & (slots.length-1)]=info;
+    }
+
+    private void remove(InfoMessage info){
+        messages.remove(key(info.getSender(),info.getNSeq()));
+        final int o=info.getOrder();
+        if(o != -1 && slots[o & (slots.length-1)] == info)
+            slots[o & (slots.length-1)]=null;
+    }
 
     /**
      *   Insert a new InfoMessage
@@ -47,7 +91,10 @@ public class Buffer{
      *   @param ev the event to be stored
      */
     public void insert(int o, int e, int seq, GroupSendableEvent ev){
-        lista.addElement(new InfoMessage(o,e,seq,ev));
+        final InfoMessage info=new InfoMessage(o,e,seq,ev);
+        messages.put(key(e,seq),info);
+        if(o != -1)
+            setSlot(info);
     }
 
 
@@ -58,11 +105,7 @@ public class Buffer{
      *  @param seq sequence number of the message wanted
      */
     public InfoMessage find(int emissor, int seq){
-        for(int i=0;i!=lista.size();i++)
-            if(((InfoMessage)lista.elementAt(i)).isEqual(emissor,seq))
-                return (InfoMessage)lista.elementAt(i);
-
-        return null;
+        return messages.get(key(emissor,seq));
     }
 
     /**
@@ -74,8 +117,10 @@ public class Buffer{
     public void insertOrder(int o, int emissor, int seq){
         InfoMessage info=find(emissor,seq);
 
-        if( info!=null)
+        if( info!=null){
             info.setOrder(o);
+            setSlot(info);
+        }
         else
             insert(o,emissor,seq,null);
     }
@@ -99,27 +144,19 @@ public class Buffer{
 
     /**
      * Gives an event ready to be delivered
+     * @param ordem the order of the event
      * @return The event to be delivered or null if none is available
      */
     public GroupSendableEvent getReadyEvent(int ordem){
-        GroupSendableEvent evento;
-
-        int tam=lista.size();
-        
-        for(int i=0; i!=tam; i++){
-        	// if it finds an event with the correct order and ready to send it up, returns the event
-          // System.out.println("evento order -> "+ ((InfoMessage)lista.elementAt(i)).getOrder() + "isValid ->"+((InfoMessage)lista.elementAt(i)).isValid() );
-            if(((InfoMessage)lista.elementAt(i)).getOrder()==ordem && ((InfoMessage)lista.elementAt(i)).isValid()){
-                evento=((InfoMessage)lista.elementAt(i)).getEvent();
-                lista.removeElementAt(i);
-                return evento;
-            }
-            // if there is only the order, the protocol cannot send it up yet, so it returns null
-            if(((InfoMessage)lista.elementAt(i)).getOrder()==ordem){
-                return null;
-            }
-        }
-        return null;
+        final InfoMessage info=slots[ordem & (slots.length-1)];
+
+        // if there is only the order, the protocol cannot send it up yet
+        if(info == null || info.getOrder() != ordem || !info.isValid())
+            return null;
+
+        remove(info);
+        next=ordem+1;
+        return info.getEvent();
     }
 
 
@@ -127,43 +164,51 @@ public class Buffer{
      *    @return true if the buffer is empty and false otherwise
      */
     public boolean isEmpty(){
-        return lista.isEmpty();
+        return messages.isEmpty();
     }
 
     public int size(){
-    	return lista.size();
+    	return messages.size();
     }
 
 
     /**
      * Returns an event from the buffer in a deterministic way.
-     * Used when there are view changes in the group
-     * @return The event
+     * Used when there are view changes in the group.
+     * Orders of messages that were not received are ignored.
+     * @return The event, or null if the buffer has no events
      */
     public GroupSendableEvent getMinimum(){
-        int nSeqMin=((InfoMessage)lista.elementAt(0)).getNSeq();
-        int emissor=((InfoMessage)lista.elementAt(0)).getSender();
-        int pos=0;
-        GroupSendableEvent e;
-
-        for(int i=1; i<lista.size(); i++){
-            if(nSeqMin > ((InfoMessage)lista.elementAt(i)).getNSeq()){
-                pos=i;
-                nSeqMin=((InfoMessage)lista.elementAt(i)).getNSeq();
-                emissor=((InfoMessage)lista.elementAt(i)).getSender();
-            }
-            //in the case that is equal, chooses the one with the greater sender.
-            else if(nSeqMin == ((InfoMessage)lista.elementAt(i)).getNSeq()){
-                if(emissor > ((InfoMessage)lista.elementAt(i)).getSender()){
-                    pos=i;
-                    emissor=((InfoMessage)lista.elementAt(i)).getSender();
-                }
-            }
-        }/*end of for*/
-        
-        e=((InfoMessage)lista.elementAt(pos)).getEvent();
-        lista.removeElementAt(pos);
-        return e;
+        InfoMessage min=null;
+
+        final Iterator<InfoMessage> it=messages.values().iterator();
+        while(it.hasNext()){
+            final InfoMessage info=it.next();
+            if(info.getEvent() == null)
+                continue;
+            //in the case that is equal, chooses the one with the smaller sender.
+            if(min == null || info.getNSeq() < min.getNSeq() ||
+                    (info.getNSeq() == min.getNSeq() && info.getSender() < min.getSender()))
+                min=info;
+        }
+
+        if(min == null)
+            return null;
+        remove(min);
+        return min.getEvent();
+    }
+
+    /**
+     * Discards all the messages and orders, and restarts the orders at 1.
+     * Used when there are view changes in the group.
+     */
+    public void clear(){
+        messages.clear();
+        if(slots.length > INITIAL_SLOTS)
+            slots=new InfoMessage[INITIAL_SLOTS];
+        else
+            Arrays.fill(slots,null);
+        next=1;
     }
     
 }
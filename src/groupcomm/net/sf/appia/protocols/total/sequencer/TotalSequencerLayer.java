@@ -37,14 +37,19 @@ public class TotalSequencerLayer extends Layer {
 		evRequire[1]=net.sf.appia.protocols.group.intra.View.class;
 		evRequire[2]=net.sf.appia.protocols.total.sequencer.TotalOrderEvent.class;
 		
-		evAccept=new Class[5];
+		evAccept=new Class[7];
 		evAccept[0]=evRequire[0];
 		evAccept[1]=net.sf.appia.core.events.channel.ChannelInit.class;
 		evAccept[2]=evRequire[1];
 		evAccept[3]=evRequire[2];
 		evAccept[4]=net.sf.appia.protocols.group.sync.BlockOk.class;
-		evProvide=new Class[1];
+		evAccept[5]=OrderFlushEvent.class;
+		evAccept[6]=OrderTimer.class;
+		evProvide=new Class[4];
 		evProvide[0]= evRequire[2];
+		evProvide[1]=net.sf.appia.core.events.channel.EchoEvent.class;
+		evProvide[2]=OrderFlushEvent.class;
+		evProvide[3]=OrderTimer.class;
 	}
 	
 	/** Creates a new session of this layer*/
@@ -21,20 +21,27 @@
 
 import net.sf.appia.core.*;
 import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.EchoEvent;
 import net.sf.appia.core.message.Message;
 import net.sf.appia.protocols.group.*;
 import net.sf.appia.protocols.group.events.*;
 import net.sf.appia.protocols.group.intra.*;
 import net.sf.appia.protocols.group.sync.*;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 
 
 
 /**
  *     Class that implements a total order protocol
- *     using a sequencer based approach
+ *     using a sequencer based approach.
+ *     <br>
+ *     The sequencer sends the orders of the messages of the other members in
+ *     batches. Each {@link TotalOrderEvent} carries runs of consecutive orders given to
+ *     consecutive messages of the same sender.
  */
-public class TotalSequencerSession extends Session {
+public class TotalSequencerSession extends Session implements InitializableSession {
     
     private Channel channel;
 
@@ -48,6 +55,18 @@ public class TotalSequencerSession extends Session {
 
     private boolean blocked=false;
 
+    /* orders held by the sequencer, in runs of (order, sender, seq, count) */
+    private static final int RUN_SIZE=4;
+    private int[] orders=new int[16*RUN_SIZE];
+    private int runs=0;
+    private int batched=0;
+    private boolean idleFlush=false;
+    private boolean timer=false;
+
+    private int paramMaxBatch=64;
+    private long paramMaxDelay=5;
+    private boolean paramIdleFlush=true;
+
     /**
      *   Defaul Constructor 
      *   @param l The layer associated to this section
@@ -59,6 +78,31 @@ public class TotalSequencerSession extends Session {
         list=new Buffer();
     }
 
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>max_batch</b> the maximum number of orders sent in a single message. 1 sends
+     * each order as soon as it is given. (default 64)
+     * <li><b>max_delay</b> the maximum time an order is held, in milliseconds. 0 means orders are
+     * only sent when the batch is full, or when the scheduler is idle. (default 5)
+     * <li><b>idle_flush</b> send the orders when the scheduler has no other events. (default true)
+     * </ul>
+     *
+     * @param params The parameters given in the XML configuration.
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("max_batch"))
+            paramMaxBatch = params.getInt("max_batch");
+        if (params.containsKey("max_delay"))
+            paramMaxDelay = params.getLong("max_delay");
+        if (params.containsKey("idle_flush"))
+            paramIdleFlush = params.getBoolean("idle_flush");
+        // otherwise orders could be held forever
+        if (paramMaxDelay <= 0)
+            paramIdleFlush = true;
+    }
+
     /**
      * Handles incoming events.
      * @param e incoming event.
@@ -73,6 +117,16 @@ public class TotalSequencerSession extends Session {
             handleTotalOrderEvent((TotalOrderEvent)e);
             return;
         }
+        if(e instanceof OrderFlushEvent){
+            idleFlush=false;
+            flushOrders();
+            return;
+        }
+        if(e instanceof OrderTimer){
+            timer=false;
+            flushOrders();
+            return;
+        }
         if(e instanceof GroupSendableEvent){
             //does not ensure total order on events that are not sent to all elements of the group
             if(e instanceof Send){
@@ -114,6 +168,8 @@ public class TotalSequencerSession extends Session {
      * 
      */
     private void handleBlockOk(BlockOk e){        
+        // the orders must be delivered in the current view
+        flushOrders();
         try{
             e.go();
         }
@@ -130,18 +186,103 @@ public class TotalSequencerSession extends Session {
         if(TotalSequencerConfig.debugOn)
         	debug("received TotalOrderEvent");
         if(e.getDir()==Direction.UP) {
-            TotalSequencerHeader h=getHeader(e);
-
             if(! amCoordinator()) {
-        	if(TotalSequencerConfig.debugOn)
-                	debug("inserted the order in the list");
-                list.insertOrder(h.getOrder(),h.getSender(),h.getnSeqInd());
+                Message om = e.getMessage();
+                int order, sender, seq, count;
+                for(int n = om.popInt(); n > 0; n--) {
+                    order = om.popInt();
+                    sender = om.popInt();
+                    seq = om.popInt();
+                    count = om.popInt();
+                    if(TotalSequencerConfig.debugOn)
+                        debug("inserted "+count+" orders in the list");
+                    for(int i = 0; i < count; i++)
+                        list.insertOrder(order+i,sender,seq+i);
+                }
                 sendEvents();
             }
         }
         e = null;
     }
 
+    /*
+     * Adds an order to the batch, extending the last run if possible.
+     */
+    private void addOrder(int order, int sender, int seq) {
+        int last=(runs-1)*RUN_SIZE;
+        if(runs > 0 && orders[last+1] == sender &&
+                orders[last] + orders[last+3] == order && orders[last+2] + orders[last+3] == seq) {
+            orders[last+3]++;
+        }
+        else {
+            if((runs+1)*RUN_SIZE > orders.length){
+                int[] a=new int[orders.length*2];
+                System.arraycopy(orders,0,a,0,orders.length);
+                orders=a;
+            }
+            last=runs*RUN_SIZE;
+            orders[last]=order;
+            orders[last+1]=sender;
+            orders[last+2]=seq;
+            orders[last+3]=1;
+            runs++;
+        }
+        batched++;
+
+        if(batched >= paramMaxBatch)
+            flushOrders();
+        else
+            scheduleFlush();
+    }
+
+    /*
+     * Makes sure the held orders are sent later.
+     */
+    private void scheduleFlush() {
+        try {
+            if (paramIdleFlush && !idleFlush) {
+                new EchoEvent(new OrderFlushEvent(), channel, Direction.DOWN, this).goWhenIdle();
+                idleFlush = true;
+            }
+            if ((paramMaxDelay > 0) && !timer) {
+                new OrderTimer(paramMaxDelay, channel, this).go();
+                timer = true;
+            }
+        } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+        } catch (AppiaException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /*
+     * Sends the held orders in a single TotalOrderEvent.
+     */
+    private void flushOrders() {
+        if(runs == 0)
+            return;
+        if(TotalSequencerConfig.debugOn)
+            debug("Sending "+batched+" orders in "+runs+" runs");
+
+        try{
+            TotalOrderEvent toe = new TotalOrderEvent(channel,Direction.DOWN,this,viewState.group,viewState.id);
+            Message om = toe.getMessage();
+            for(int i = (runs-1)*RUN_SIZE; i >= 0; i-=RUN_SIZE) {
+                om.pushInt(orders[i+3]);
+                om.pushInt(orders[i+2]);
+                om.pushInt(orders[i+1]);
+                om.pushInt(orders[i]);
+            }
+            om.pushInt(runs);
+            toe.go();
+        }
+        catch(AppiaEventException ex) {
+            ex.printStackTrace();
+        }
+        runs=0;
+        batched=0;
+    }
+
     /*
      * Gets all events that already can be forwarded up
      */
@@ -268,7 +409,6 @@ public class TotalSequencerSession extends Session {
      */
     private void handleGroupSendableEventUp(GroupSendableEvent e){
         TotalSequencerHeader h;
-        TotalOrderEvent toe=null;
         
         if(TotalSequencerConfig.debugOn)	
         	debug("Received GroupSendableEvent from DOWN");
@@ -285,19 +425,9 @@ public class TotalSequencerSession extends Session {
             else{
                 if(TotalSequencerConfig.debugOn)
                 	debug("Message was ordered. Sending: "+ordemTotal);
-                try{
-                    toe = new TotalOrderEvent(channel,Direction.DOWN,this,e.group,e.view_id);
-                }
-                catch(Exception ex){
-                    ex.printStackTrace();
-                }
-                
-                TotalSequencerHeader totalSeq_h=new TotalSequencerHeader(ordemTotal++,h.getSender(),h.getnSeqInd());
-
-                setHeader(toe,totalSeq_h);
+                addOrder(ordemTotal++,h.getSender(),h.getnSeqInd());
                 
                 try {
-                    toe.go();
                     e.go();
                 }
                 catch(AppiaEventException ex) {
@@ -363,6 +493,9 @@ public class TotalSequencerSession extends Session {
         if(TotalSequencerConfig.debugOn)
         	debug("Cleaning list");
         orderAlgorithm();
+        list.clear();
+        runs=0;
+        batched=0;
         ordemTotal=1;
         nSeqInd=1;
     }
@@ -375,10 +508,9 @@ public class TotalSequencerSession extends Session {
     private void orderAlgorithm(){
         GroupSendableEvent e;
 
-        while(!list.isEmpty()){        	
+        while((e=list.getMinimum()) != null){        	
             if(TotalSequencerConfig.debugOn)	            
             	debug("Sends the event");
-            e=list.getMinimum();
             try{
                 e.go();
             }
@@ -11,7 +11,7 @@ public class MsgTotalSymmetric extends Object {
 	public GroupSendableEvent evt;
 	
 	public MsgTotalSymmetric(GroupSendableEvent e) {
-		est = ((Long)e.getMessage().popObject()).longValue();
+		est = e.getMessage().popLong();
 		evt = e;	
 	}
 	
@@ -21,6 +21,6 @@ public class MsgTotalSymmetric extends Object {
 	}
 	
 	public void colocaEstNoEvent() {
-		evt.getMessage().pushObject(new Long(est));
+		evt.getMessage().pushLong(est);
 	}
 }
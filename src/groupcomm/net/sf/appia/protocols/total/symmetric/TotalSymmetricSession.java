@@ -411,7 +411,7 @@ public class TotalSymmetricSession extends Session {
 
     // place/add our header to the msgs, i.e., place the timestamp
     private void addHeader(GroupSendableEvent e){
-        e.getMessage().pushObject(new Long(clock));
+        e.getMessage().pushLong(clock);
         incrementClock();
     }
 
@@ -634,7 +634,7 @@ public class TotalSymmetricSession extends Session {
         long est;
 
         Message om = e.getMessage();
-        est = ((Long)om.popObject()).longValue();
+        est = om.popLong();
         est = modifyTimestamp(e.orig, est);
         lastTsReceived[e.orig] = est;
         if (bloqueado == false && canSend())
@@ -18,7 +18,7 @@ public class SymmetricAlive extends GroupSendableEvent implements Cloneable {
 			ViewID view_id, long est) 
 	throws AppiaEventException {
 		super(channel,Direction.DOWN,source,group,view_id);
-		getMessage().pushObject(new Long(est));
+		getMessage().pushLong(est);
 		init(); 
 	}
 }
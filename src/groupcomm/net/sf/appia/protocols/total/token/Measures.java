@@ -23,6 +23,7 @@ package net.sf.appia.protocols.total.token;
 
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -33,8 +34,18 @@ import net.sf.appia.management.AppiaManagementException;
 public class Measures {
 
     public static final String I_HAVE_TOKEN = "i_have_token";
+    public static final String TOKEN_ROTATION = "token_rotation";
+    public static final String TOKEN_ROTATION_AVERAGE = "token_rotation_average";
+    public static final String MESSAGES_PER_TOKEN = "messages_per_token";
+    public static final String TOKEN_BATCH_HISTOGRAM = "token_batch_histogram";
+
+    /* bucket i > 0 counts the visits that sent between 2^(i-1) and 2^i-1 messages */
+    private static final int HISTOGRAM_BUCKETS = 10;
 
     private Map<String,String>jmxFeaturesMap = new Hashtable<String,String>();
+    // last token rotation, in nanoseconds
+    private volatile long lastRotation = 0;
+    private final AtomicLongArray batchHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
 
     private TotalTokenSession session;
     
@@ -42,9 +53,41 @@ public class Measures {
         session = s;
     }
     
+    /**
+     * Registers the time the token took to come back to this member.
+     * @param nanos the rotation time, in nanoseconds.
+     */
+    public void tokenRotation(long nanos){
+        lastRotation = nanos;
+    }
+
+    /**
+     * Registers the number of messages sent in one token visit.
+     * @param messages the number of messages sent with the token.
+     */
+    public void tokenBatch(int messages){
+        final int bucket = 32 - Integer.numberOfLeadingZeros(messages);
+        batchHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    private long[] getHistogram(){
+        final long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for(int i = 0; i < histogram.length; i++)
+            histogram[i] = batchHistogram.get(i);
+        return histogram;
+    }
+
     private Object getParameter(String parameter) throws AppiaManagementException {
         if(parameter.equals(I_HAVE_TOKEN))
             return session.iHaveToken();
+        if(parameter.equals(TOKEN_ROTATION))
+            return (double) lastRotation / 1000000;
+        if(parameter.equals(TOKEN_ROTATION_AVERAGE))
+            return session.getRotationAverage();
+        if(parameter.equals(MESSAGES_PER_TOKEN))
+            return session.getMessagesPerToken();
+        if(parameter.equals(TOKEN_BATCH_HISTOGRAM))
+            return getHistogram();
         throw new AppiaManagementException("Parameter '"+parameter+"' not defined in session "+this.getClass().getName());
     }
 
@@ -60,10 +103,26 @@ public class Measures {
 
     public MBeanAttributeInfo[] getAttributes(String sid) {
         jmxFeaturesMap.put(sid+I_HAVE_TOKEN,I_HAVE_TOKEN);
+        jmxFeaturesMap.put(sid+TOKEN_ROTATION,TOKEN_ROTATION);
+        jmxFeaturesMap.put(sid+TOKEN_ROTATION_AVERAGE,TOKEN_ROTATION_AVERAGE);
+        jmxFeaturesMap.put(sid+MESSAGES_PER_TOKEN,MESSAGES_PER_TOKEN);
+        jmxFeaturesMap.put(sid+TOKEN_BATCH_HISTOGRAM,TOKEN_BATCH_HISTOGRAM);
         return new MBeanAttributeInfo[]{
                 new MBeanAttributeInfo(sid+I_HAVE_TOKEN,
                         "boolean","returns true if the process has the token",
                         true,false,false),
+                new MBeanAttributeInfo(sid+TOKEN_ROTATION,
+                        "double","time (ms) of the last token rotation",
+                        true,false,false),
+                new MBeanAttributeInfo(sid+TOKEN_ROTATION_AVERAGE,
+                        "double","average time (ms) of the token rotation",
+                        true,false,false),
+                new MBeanAttributeInfo(sid+MESSAGES_PER_TOKEN,
+                        "int","maximum number of messages sent in each token visit",
+                        true,false,false),
+                new MBeanAttributeInfo(sid+TOKEN_BATCH_HISTOGRAM,
+                        long[].class.getName(),"number of token visits that sent 0, 1, 2-3, 4-7, ..., 256 or more messages",
+                        true,false,false),
         };
     }
 
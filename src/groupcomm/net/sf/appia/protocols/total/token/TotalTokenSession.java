@@ -21,7 +21,6 @@
 package net.sf.appia.protocols.total.token;
 
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -36,7 +35,6 @@ import net.sf.appia.core.Event;
 import net.sf.appia.core.EventQualifier;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
-import net.sf.appia.core.events.SendableEvent;
 import net.sf.appia.core.events.channel.ChannelClose;
 import net.sf.appia.core.events.channel.ChannelInit;
 import net.sf.appia.core.message.Message;
@@ -64,12 +62,29 @@ public class TotalTokenSession extends Session implements InitializableSession,
 	private static Logger log = Logger.getLogger(TotalTokenSession.class);
 
 	private static final int DEFAULT_NUM_MESSAGES_PER_TOKEN = 10;
+	private static final int DEFAULT_MAX_MESSAGES_PER_TOKEN = 256;
     private static final long DEFAULT_SILENT_PERIOD = 500; // miliseconds
+    // weight of a new sample in the averages of the adaptive mode
+    private static final double AVERAGE_WEIGHT = 0.25;
+    // number of token visits used to send the messages in excess in the queue
+    private static final int DRAIN_VISITS = 4;
 	
 	private long globalSeqNumber;
-	private LinkedList<GroupSendableEvent> pendingMessages, undeliveredMessages;
+	private LinkedList<GroupSendableEvent> pendingMessages;
+	private UndeliveredBuffer undeliveredMessages;
 	private int rankWidthToken, numMessagesPerToken;
 	
+	// adaptive mode
+	private boolean adaptive = false;
+	private int maxMessagesPerToken = DEFAULT_MAX_MESSAGES_PER_TOKEN;
+	private int messagesPerToken;
+	// messages from the application since the last token visit
+	private int arrivals = 0;
+	// nanoseconds. -1 if not known
+	private long tokenReleaseTime = -1, lastVisitTime = -1;
+	// average token rotation, in nanoseconds, and arrival rate, in messages per nanosecond
+	private double rotationAverage = 0, arrivalRate = 0;
+	
 	private LocalState localState;
 	private ViewState viewState;
 	private boolean isBlocked;
@@ -82,9 +97,10 @@ public class TotalTokenSession extends Session implements InitializableSession,
 		super(layer);
 		
 		pendingMessages = new LinkedList<GroupSendableEvent>();
-		undeliveredMessages = new LinkedList<GroupSendableEvent>();
+		undeliveredMessages = new UndeliveredBuffer();
 		rankWidthToken = 0;
 		numMessagesPerToken = DEFAULT_NUM_MESSAGES_PER_TOKEN;
+		messagesPerToken = numMessagesPerToken;
 		isBlocked = true;
 		measures = new Measures(this);
 	}
@@ -97,6 +113,12 @@ public class TotalTokenSession extends Session implements InitializableSession,
        * Default is 10.
        * <li><b>silent_token_period</b> amount of time (miliseconds) to delay the token when there are no 
        * messages being exchanged by the group members. The default is 500ms.
+       * <li><b>adaptive_token</b> if true, the number of messages sent in each token visit
+       * is computed from the number of messages waiting to be sent and from the observed
+       * token rotation time. It is never less than <b>num_messages_per_token</b>.
+       * Default is false.
+       * <li><b>max_messages_per_token</b> maximum number of messages sent in each token visit,
+       * in the adaptive mode. Default is 256.
        * </ul>
        * 
        * @param params The parameters given in the XML configuration.
@@ -111,6 +133,13 @@ public class TotalTokenSession extends Session implements InitializableSession,
             silentPeriod = params.getLong("silent_token_period");
         if(silentPeriod <= 0)
             silentPeriod = DEFAULT_SILENT_PERIOD;
+        if(params.containsKey("adaptive_token"))
+            adaptive = params.getBoolean("adaptive_token");
+        if(params.containsKey("max_messages_per_token"))
+            maxMessagesPerToken = params.getInt("max_messages_per_token");
+        if(maxMessagesPerToken < numMessagesPerToken)
+            maxMessagesPerToken = numMessagesPerToken;
+        messagesPerToken = numMessagesPerToken;
 	}
 
 	public void handle(Event event){
@@ -161,6 +190,9 @@ public class TotalTokenSession extends Session implements InitializableSession,
 		viewState = view.vs;
 		rankWidthToken = 0;
 		globalSeqNumber = 0;
+		undeliveredMessages.clear();
+		tokenReleaseTime = -1;
+		lastVisitTime = -1;
 		isBlocked = false;
 		
 		if(log.isDebugEnabled())
@@ -202,6 +234,7 @@ public class TotalTokenSession extends Session implements InitializableSession,
 			if(log.isDebugEnabled())
 				log.debug("Received Group Sendable from Appl "+event);
 			pendingMessages.addLast(event);
+			arrivals++;
 			if(iHaveToken() && !isBlocked){
 				sendMessages(event.getChannel());
 			}
@@ -215,9 +248,12 @@ public class TotalTokenSession extends Session implements InitializableSession,
 			}
 			
 			if(seq > (globalSeqNumber + 1)){
-				storeUndelivered(event,seq);
-				if(log.isDebugEnabled())
-					log.debug("Message out of order. Storing message with seq = "+seq);
+				if(undeliveredMessages.store(event,seq)){
+					if(log.isDebugEnabled())
+						log.debug("Message out of order. Storing message with seq = "+seq);
+				}
+				else if(log.isDebugEnabled())
+					log.debug("Received undelivered message already stored. Discarding new copy.");
 				return;
 			}
 			
@@ -244,30 +280,24 @@ public class TotalTokenSession extends Session implements InitializableSession,
 			if(hasToken)
 				rotateToken();
 			
-			while(!undeliveredMessages.isEmpty()){
-				final GroupSendableEvent auxEvent = undeliveredMessages.getFirst();
-				final long seqaux = auxEvent.getMessage().peekLong();
-				if(seqaux == (globalSeqNumber + 1)){
-					undeliveredMessages.removeFirst();
-					auxEvent.getMessage().popLong();
-					final boolean auxHasToken = auxEvent.getMessage().popBoolean();
-					if(!(auxEvent instanceof TokenEvent)){
-						try {
-							auxEvent.go();
-						} catch (AppiaEventException e) {
-							e.printStackTrace();
-						}
-						if(log.isDebugEnabled())
-							log.debug("Delivering stored message with seq = "+seqaux);
-					} else if(log.isDebugEnabled())
-						log.debug("Ignored token event with seq = "+seqaux);
+			GroupSendableEvent auxEvent;
+			while((auxEvent = undeliveredMessages.take(globalSeqNumber + 1)) != null){
+				final long seqaux = globalSeqNumber + 1;
+				final boolean auxHasToken = auxEvent.getMessage().popBoolean();
+				if(!(auxEvent instanceof TokenEvent)){
+					try {
+						auxEvent.go();
+					} catch (AppiaEventException e) {
+						e.printStackTrace();
+					}
+					if(log.isDebugEnabled())
+						log.debug("Delivering stored message with seq = "+seqaux);
+				} else if(log.isDebugEnabled())
+					log.debug("Ignored token event with seq = "+seqaux);
 
-					globalSeqNumber = seqaux;
-					if(auxHasToken)
-						rotateToken();
-				}
-				else
-					break;
+				globalSeqNumber = seqaux;
+				if(auxHasToken)
+					rotateToken();
 			}
 			
 			if(iHaveToken() && ! isBlocked)
@@ -311,15 +341,67 @@ public class TotalTokenSession extends Session implements InitializableSession,
 		if(viewState.addresses.length > 1)
             rankWidthToken = ((rankWidthToken+1) == viewState.addresses.length)? 0 : rankWidthToken+1;
 	}
+	
+	/*
+	 * Called when this member starts using the token. Updates the token rotation time
+	 * and, in the adaptive mode, the number of messages that can be sent in this visit.
+	 * Messages arriving during one rotation are sent in the next visit, and the messages
+	 * in excess in the queue are spread over some visits, so that a member with a long
+	 * queue does not hold the token for too long.
+	 */
+	private void tokenVisit(){
+		final long now = System.nanoTime();
+		if(tokenReleaseTime >= 0){
+			final long rotation = now - tokenReleaseTime;
+			rotationAverage = (rotationAverage == 0)? rotation : 
+				(1 - AVERAGE_WEIGHT) * rotationAverage + AVERAGE_WEIGHT * rotation;
+			measures.tokenRotation(rotation);
+		}
+		if(adaptive){
+			if(lastVisitTime >= 0 && now > lastVisitTime)
+				arrivalRate = (1 - AVERAGE_WEIGHT) * arrivalRate 
+					+ AVERAGE_WEIGHT * ((double) arrivals / (now - lastVisitTime));
+			final double expected = arrivalRate * rotationAverage;
+			final int pending = pendingMessages.size();
+			double quota = expected;
+			if(pending > expected)
+				quota += (pending - expected) / DRAIN_VISITS;
+			messagesPerToken = (int) Math.min(maxMessagesPerToken, Math.max(numMessagesPerToken, Math.ceil(quota)));
+		}
+		arrivals = 0;
+		lastVisitTime = now;
+	}
+	
+	private void tokenReleased(int sentMessages){
+		tokenReleaseTime = System.nanoTime();
+		measures.tokenBatch(sentMessages);
+	}
+	
+	/**
+	 * Average time, in milliseconds, the token takes to come back to this member.
+	 */
+	protected double getRotationAverage(){
+		return rotationAverage / 1000000;
+	}
+	
+	/**
+	 * Number of messages this member may send in each token visit.
+	 */
+	protected int getMessagesPerToken(){
+		return messagesPerToken;
+	}
 
 	private void sendMessages(Channel channel) {
 		if(log.isDebugEnabled())
 			log.debug("I'll try to send some messages");
 
+		// only rotates the token when there is more then one member in the group
+		final boolean rotates = viewState.view.length > 1;
+		if(rotates)
+			tokenVisit();
 		final int listSize = pendingMessages.size();
 		if(listSize == 0){
-		    // only rotates the token when there is more then one member in the group
-		    if(viewState.view.length > 1){
+		    if(rotates){
 		        if(log.isDebugEnabled())
 		            log.debug("I do not have any messages. Rotanting token. My rank is "+localState.my_rank);
 		        try {
@@ -330,6 +412,7 @@ public class TotalTokenSession extends Session implements InitializableSession,
 		                sentExplicitToken = true;
 		            token.go();
 		            rotateToken();
+		            tokenReleased(0);
 		        } catch (AppiaEventException e) {
 		            e.printStackTrace();
 		        }
@@ -346,7 +429,7 @@ public class TotalTokenSession extends Session implements InitializableSession,
             // this only sends the token if it is the last message or
             // if the max messages per token were reached with more then one member on the group
             // With only one member, the messages are sent until the end of the buffer is reached.
-			if((i+1) == listSize || (viewState.view.length > 1 && (i+1) ==  numMessagesPerToken))
+			if((i+1) == listSize || (rotates && (i+1) == messagesPerToken))
 				sendToken = true;
 			final GroupSendableEvent ev = pendingMessages.removeFirst();
 			ev.orig = localState.my_rank;
@@ -372,37 +455,16 @@ public class TotalTokenSession extends Session implements InitializableSession,
 			m.pushLong(++globalSeqNumber);
 			try {
 				ev.go();
-				if(sendToken)
+				if(sendToken && rotates){
 					rotateToken();
+					tokenReleased(i+1);
+				}
 			} catch (AppiaEventException e) {
 				e.printStackTrace();
 			}			
 		}
 	}
 
-	private void storeUndelivered(GroupSendableEvent ev, long seq) {
-	    ev.getMessage().pushLong(seq);
-	    if  (undeliveredMessages.isEmpty()) {
-	        undeliveredMessages.add(ev);
-	        return;
-	    }
-	    final ListIterator<GroupSendableEvent> aux=undeliveredMessages.listIterator();
-	    while (aux.hasNext()) {
-	        final SendableEvent evaux=(SendableEvent)aux.next();
-	        final long seqaux= evaux.getMessage().peekLong();
-	        if (seqaux == seq) {
-	            log.debug("Received undelivered message already stored. Discarding new copy.");
-	            return;
-	        }
-	        if (seq < seqaux) {
-	            aux.previous();
-	            aux.add(ev);
-	            return;
-	        }
-	    }
-	    undeliveredMessages.addLast(ev);
-	}
-
 	public Object attributeGetter(String attribute, MBeanAttributeInfo info) throws AppiaManagementException {
 	    return measures.attributeGetter(attribute, info);
 	}
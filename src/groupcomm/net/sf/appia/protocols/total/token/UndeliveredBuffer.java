@@ -0,0 +1,104 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.protocols.total.token;
+
+import java.util.Arrays;
+
+import net.sf.appia.protocols.group.events.GroupSendableEvent;
+
+/**
+ * Messages received out of order by the token based total order protocol.
+ * <br>
+ * The messages are kept in a circular array indexed by their global sequence number,
+ * starting at the next sequence number to be delivered. Storing a message and finding
+ * the next one to deliver do not depend on the number of stored messages.
+ */
+class UndeliveredBuffer {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private GroupSendableEvent[] slots = new GroupSendableEvent[INITIAL_SLOTS];
+    /* sequence number of the first slot, the next to be delivered */
+    private long next = 1;
+    private int size = 0;
+
+    /**
+     * Stores a message.
+     * @param event the message.
+     * @param seq the global sequence number of the message.
+     * @return false if a message with the same sequence number was already stored.
+     */
+    boolean store(GroupSendableEvent event, long seq) {
+        if (seq - next >= slots.length)
+            grow(seq);
+        final int i = (int) seq & (slots.length - 1);
+        if (slots[i] != null)
+            return false;
+        slots[i] = event;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the message with the given sequence number, which is the next one to be
+     * delivered, if it was stored.
+     * @param seq the next sequence number to be delivered.
+     * @return the stored message, or null.
+     */
+    GroupSendableEvent take(long seq) {
+        next = seq;
+        final int i = (int) seq & (slots.length - 1);
+        final GroupSendableEvent event = slots[i];
+        if (event != null) {
+            slots[i] = null;
+            size--;
+            next = seq + 1;
+        }
+        return event;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Discards every stored message and restarts the sequence numbers.
+     */
+    void clear() {
+        Arrays.fill(slots, null);
+        next = 1;
+        size = 0;
+    }
+
+    private void grow(long seq) {
+        int length = slots.length;
+        while (seq - next >= length)
+            length *= 2;
+        final GroupSendableEvent[] newSlots = new GroupSendableEvent[length];
+        for (long s = next; s != next + slots.length; s++)
+            newSlots[(int) s & (length - 1)] = slots[(int) s & (slots.length - 1)];
+        slots = newSlots;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.test.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelInit;
+
+/**
+ * Measures the throughput of {@link Event#asyncGo(Channel, int)} with several
+ * concurrent producer threads, as done by the transport reader threads.
+ * <br>
+ * Usage: <code>AsyncGoBenchmark [producers] [events per producer] [runs]</code>
+ */
+public class AsyncGoBenchmark {
+
+    /**
+     * Event inserted by the producers.
+     */
+    public static class BenchEvent extends Event {
+        public BenchEvent() {
+            super();
+        }
+    }
+
+    /**
+     * Layer that counts the received events.
+     */
+    public static class CountLayer extends Layer {
+        public CountLayer() {
+            evProvide = new Class[0];
+            evRequire = new Class[0];
+            evAccept = new Class[] { ChannelInit.class, BenchEvent.class };
+        }
+
+        public Session createSession() {
+            return new CountSession(this);
+        }
+    }
+
+    /**
+     * Session that counts the received events.
+     */
+    public static class CountSession extends Session {
+        private CountDownLatch done;
+        private long expected;
+        private long received = 0;
+
+        public CountSession(Layer layer) {
+            super(layer);
+        }
+
+        synchronized void expect(long n, CountDownLatch latch) {
+            received = 0;
+            expected = n;
+            done = latch;
+        }
+
+        public void handle(Event event) {
+            if (event instanceof BenchEvent) {
+                if (++received == expected)
+                    done.countDown();
+                return;
+            }
+            try {
+                event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int events = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final CountLayer layer = new CountLayer();
+        final QoS qos = new QoS("AsyncGo Benchmark QoS", new Layer[] { layer });
+        final CountSession session = (CountSession) layer.createSession();
+        final Channel channel = qos.createUnboundChannel("AsyncGo Benchmark Channel", new EventScheduler());
+        final ChannelCursor cc = channel.getCursor();
+        cc.top();
+        cc.setSession(session);
+        channel.start();
+
+        final Thread appiaThread = new Thread(new Runnable() {
+            public void run() {
+                Appia.run();
+            }
+        }, "Appia Thread");
+        appiaThread.setDaemon(true);
+        appiaThread.start();
+
+        System.out.println("Producers: " + producers + " Events per producer: " + events);
+        for (int r = 0; r < runs; r++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            session.expect((long) producers * events, done);
+
+            final Thread[] threads = new Thread[producers];
+            for (int i = 0; i < producers; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < events; j++)
+                                new BenchEvent().asyncGo(channel, Direction.UP);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        } catch (AppiaEventException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }, "Producer " + i);
+                threads[i].start();
+            }
+
+            final long t0 = System.nanoTime();
+            start.countDown();
+            done.await();
+            final long elapsed = System.nanoTime() - t0;
+            for (int i = 0; i < producers; i++)
+                threads[i].join();
+
+            System.out.println("Run " + r + ": " + ((long) producers * events * 1000000000L / elapsed)
+                    + " events/s (" + (elapsed / 1000000) + " ms)");
+        }
+        Appia.getTimerManager().stop();
+    }
+}
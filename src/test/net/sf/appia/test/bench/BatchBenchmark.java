@@ -0,0 +1,117 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.batch.BatchLayer;
+import net.sf.appia.protocols.measures.throughput.ThroughputLayer;
+import net.sf.appia.protocols.measures.throughput.ThroughputSession;
+import net.sf.appia.protocols.nakfifo.NakFifoLayer;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Measures the gain of the {@link BatchLayer} with small messages.
+ * <br>
+ * Two nodes in the same process exchange messages over UDP on the loopback interface,
+ * with the {@link NakFifoLayer}, and with and without the {@link BatchLayer} above it.
+ * One node sends the messages, with a bounded number of them not yet delivered. The
+ * rates are the ones measured by the {@link ThroughputLayer} at the top of the receiver.
+ * <br>
+ * Usage: <code>BatchBenchmark [messages] [size]</code>
+ *
+ * @see TwoNodeBench
+ */
+public class BatchBenchmark {
+
+    /* messages sent and not yet delivered */
+    private static final int WINDOW = 512;
+
+    private static Channel createNode(boolean batching, BenchSession top, ThroughputSession throughput,
+            int port) throws Exception {
+        final NakFifoLayer nakLayer = new NakFifoLayer();
+        final Session nak = TwoNodeBench.createNakFifo(nakLayer);
+        final Layer[] layers = batching
+                ? new Layer[] { new UdpSimpleLayer(), nakLayer, new BatchLayer(), throughput.getLayer() }
+                : new Layer[] { new UdpSimpleLayer(), nakLayer, throughput.getLayer() };
+        final Session[] sessions = batching
+                ? new Session[] { null, nak, null, throughput }
+                : new Session[] { null, nak, throughput };
+        return TwoNodeBench.createNode("Batch " + port, layers, sessions, top, port);
+    }
+
+    private static void run(boolean batching, int messages, int size) throws Exception {
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final ThroughputSession throughput = (ThroughputSession) new ThroughputLayer().createSession();
+        final int senderPort = TwoNodeBench.nextPort();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode(batching, sender,
+                (ThroughputSession) new ThroughputLayer().createSession(), senderPort);
+        createNode(batching, receiver, throughput, receiverPort);
+        final InetSocketAddress dest = TwoNodeBench.address(receiverPort);
+        receiver.expect(messages, WINDOW, false);
+
+        // the rates are measured from now until they are read again
+        throughput.setParameter(ThroughputSession.REFRESH_INTERVAL, Long.valueOf(0));
+        throughput.getParameter(ThroughputSession.THRPUT_MSG_PER_SECOND_UP);
+        throughput.getParameter(ThroughputSession.THRPUT_BYTES_PER_SECOND_UP);
+
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            receiver.acquire();
+            final BenchEvent e = new BenchEvent();
+            final Message m = channel.getMessageFactory().newMessage();
+            m.setByteArray(new byte[size], 0, size);
+            e.setMessage(m);
+            e.dest = dest;
+            e.asyncGo(channel, Direction.DOWN);
+        }
+        final boolean finished = receiver.awaitDone(5, TimeUnit.MINUTES);
+        final long elapsed = System.nanoTime() - t0;
+
+        System.out.println((batching ? "Batching:    " : "No batching: ")
+                + (finished ? "" : "timeout, " + receiver.getRemaining() + " messages missing, ")
+                + throughput.getParameter(ThroughputSession.THRPUT_MSG_PER_SECOND_UP) + " msgs/s, "
+                + throughput.getParameter(ThroughputSession.THRPUT_BYTES_PER_SECOND_UP) + " bytes/s ("
+                + (elapsed / 1000000) + " ms)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        TwoNodeBench.startAppia();
+
+        System.out.println("Messages: " + messages + " Size: " + size + " Window: " + WINDOW);
+        run(false, messages, size);
+        run(true, messages, size);
+        TwoNodeBench.exit();
+    }
+}
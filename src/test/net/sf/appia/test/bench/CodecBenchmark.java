@@ -0,0 +1,80 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.io.Serializable;
+
+import net.sf.appia.core.message.CodecRegistry;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.total.hybrid.MsgId;
+import net.sf.appia.protocols.total.hybrid.Ticket;
+
+/**
+ * Measures the cost of {@link Message#pushObject(Object)} and {@link Message#popObject()}
+ * for objects with a codec in the {@link CodecRegistry}, and for an equivalent object
+ * written with Java serialization.
+ * <br>
+ * Usage: <code>CodecBenchmark [iterations]</code>
+ */
+public class CodecBenchmark {
+
+    /**
+     * A long without a codec.
+     */
+    public static class SerializedLong implements Serializable {
+        private static final long serialVersionUID = 3117237437394426585L;
+        public final long value;
+
+        public SerializedLong(long value) {
+            this.value = value;
+        }
+    }
+
+    private static Object sink;
+
+    private static void run(String name, Object obj, int iterations) {
+        final Message probe = new Message();
+        probe.pushObject(obj);
+        final int bytes = probe.length();
+
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final Message m = new Message();
+            m.pushObject(obj);
+            sink = m.popObject();
+        }
+        final long elapsed = System.nanoTime() - t0;
+        System.out.println(name + ": " + bytes + " bytes, "
+                + (elapsed / iterations) + " ns per push and pop");
+    }
+
+    public static void main(String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        for (int round = 0; round < 2; round++) {
+            System.out.println("Round " + round + ", " + iterations + " iterations");
+            run("Long          ", Long.valueOf(1234567L), iterations);
+            run("SerializedLong", new SerializedLong(1234567L), iterations);
+            run("String        ", "appia group", iterations);
+            run("Ticket        ", new Ticket(1, 42, new MsgId(2, 17)), iterations);
+        }
+        if (sink == null)
+            System.out.println();
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.events.EventPool;
+import net.sf.appia.core.message.PooledMessageFactory;
+import net.sf.appia.protocols.nioudp.NioUdpLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Measures the memory allocated for each message exchanged over UDP, with and without
+ * an {@link EventPool} for the events of the messages.
+ * <br>
+ * Two nodes in the same process exchange messages on the loopback interface, with a
+ * bounded number of them not yet delivered. The sender takes the events from the pool,
+ * and the receiver releases them after they are delivered. The allocated memory is the
+ * one reported by the JVM for all threads.
+ * <br>
+ * Usage: <code>EventPoolBenchmark [messages] [size]</code>
+ *
+ * @see TwoNodeBench
+ */
+public class EventPoolBenchmark {
+
+    /* messages sent and not yet delivered */
+    private static final int WINDOW = 128;
+
+    private static Channel createNode(boolean pooled, BenchSession top, int port) throws Exception {
+        final Channel channel = TwoNodeBench.createChannel("Pool " + port, new Layer[] { new NioUdpLayer() }, null, top);
+        channel.setMessageFactory(new PooledMessageFactory());
+        if (pooled)
+            channel.addEventPool(BenchEvent.class, WINDOW * 2);
+        TwoNodeBench.start(channel, top, port);
+        return channel;
+    }
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] bytes = threads.getThreadAllocatedBytes(threads.getAllThreadIds());
+        long total = 0;
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] > 0)
+                total += bytes[i];
+        return total;
+    }
+
+    private static void run(boolean pooled, int messages, int size) throws Exception {
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final int senderPort = TwoNodeBench.nextPort();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode(pooled, sender, senderPort);
+        createNode(pooled, receiver, receiverPort);
+        final EventPool<BenchEvent> pool = channel.getEventPool(BenchEvent.class);
+        final InetSocketAddress dest = TwoNodeBench.address(receiverPort);
+        final byte[] payload = new byte[size];
+        receiver.expect(messages, WINDOW, false);
+
+        int lost = 0;
+        final long bytes0 = allocatedBytes();
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // a lost datagram does not stop the sender
+            if (!receiver.tryAcquire(50, TimeUnit.MILLISECONDS))
+                lost++;
+            final BenchEvent e = pooled ? pool.acquire() : new BenchEvent();
+            if (pooled)
+                e.getMessage().setByteArray(payload, 0, size);
+            else
+                e.setMessage(channel.getMessageFactory().newMessage(payload, 0, size));
+            e.dest = dest;
+            e.asyncGo(channel, Direction.DOWN);
+        }
+        receiver.awaitDone(1 + lost, TimeUnit.SECONDS);
+        final long elapsed = System.nanoTime() - t0;
+        final long bytes = allocatedBytes() - bytes0;
+        final int remaining = receiver.getRemaining();
+
+        System.out.println((pooled ? "Pooled:     " : "Not pooled: ")
+                + ((long) (messages - remaining) * 1000000000L / elapsed) + " msgs/s, "
+                + (bytes / messages) + " bytes allocated per message"
+                + (remaining > 0 ? ", " + remaining + " lost" : ""));
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        TwoNodeBench.startAppia();
+
+        System.out.println("Messages: " + messages + " Size: " + size + " Window: " + WINDOW
+                + (EventPool.isDebug() ? " (pool debug mode)" : ""));
+        // warm up
+        run(false, messages / 10, size);
+        run(true, messages / 10, size);
+        run(false, messages, size);
+        run(true, messages, size);
+        TwoNodeBench.exit();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.drop.DropLayer;
+import net.sf.appia.protocols.drop.DropSession;
+import net.sf.appia.protocols.nakfifo.NakFifoLayer;
+import net.sf.appia.protocols.nakfifo.NakFifoSession;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Measures the throughput of the {@link NakFifoSession} when messages are lost.
+ * <br>
+ * Two nodes in the same process exchange messages over UDP on the loopback interface.
+ * The {@link DropLayer}, below the reliable layer, drops each message sent by both
+ * nodes, including the negative acknowledgments, with the given probability. One node sends
+ * the messages, with a bounded number of them not yet delivered, and the other checks
+ * that they are delivered in order.
+ * <br>
+ * Usage: <code>LossBenchmark [messages] [size] [drop rate ...]</code>
+ *
+ * @see TwoNodeBench
+ */
+public class LossBenchmark {
+
+    /* messages sent and not yet delivered */
+    private static final int WINDOW = 256;
+
+    private static Channel createNode(String name, BenchSession top, int port) throws Exception {
+        final NakFifoLayer nakLayer = new NakFifoLayer();
+        return TwoNodeBench.createNode(name,
+                new Layer[] { new UdpSimpleLayer(), new DropLayer(), nakLayer },
+                new Session[] { null, null, TwoNodeBench.createNakFifo(nakLayer) }, top, port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final double[] rates;
+        if (args.length > 2) {
+            rates = new double[args.length - 2];
+            for (int i = 0; i < rates.length; i++)
+                rates[i] = Double.parseDouble(args[i + 2]);
+        } else
+            rates = new double[] { 0, 0.01, 0.05, 0.1, 0.2 };
+
+        TwoNodeBench.startAppia();
+
+        DropSession.dropRate = 0;
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode("Sender", sender, TwoNodeBench.nextPort());
+        createNode("Receiver", receiver, receiverPort);
+        final InetSocketAddress dest = TwoNodeBench.address(receiverPort);
+
+        System.out.println("Messages: " + messages + " Size: " + size + " Window: " + WINDOW);
+        for (int r = 0; r < rates.length; r++) {
+            receiver.expect(messages, WINDOW, true);
+            DropSession.dropRate = rates[r];
+
+            final long t0 = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                receiver.acquire();
+                final BenchEvent e = new BenchEvent();
+                final Message m = channel.getMessageFactory().newMessage();
+                m.setByteArray(new byte[size], 0, size);
+                m.pushInt(i);
+                e.setMessage(m);
+                e.dest = dest;
+                e.asyncGo(channel, Direction.DOWN);
+            }
+            final boolean finished = receiver.awaitDone(5, TimeUnit.MINUTES);
+            final long elapsed = System.nanoTime() - t0;
+            DropSession.dropRate = 0;
+
+            System.out.println("Drop rate " + rates[r] + ": "
+                    + (finished ? ((long) messages * 1000000000L / elapsed) + " msgs/s (" + (elapsed / 1000000) + " ms)"
+                            : "timeout, " + receiver.getRemaining() + " messages missing")
+                    + (receiver.getErrors() > 0 ? ", " + receiver.getErrors() + " out of order" : ""));
+            if (!finished)
+                break;
+        }
+        TwoNodeBench.exit();
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.BufferPool;
+import net.sf.appia.core.message.DefaultMessageFactory;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageFactory;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.core.message.PooledMessageFactory;
+
+/**
+ * Measures the throughput and the allocation rate of the message path of a
+ * 6-layer stack, with the {@link DefaultMessageFactory} and with the
+ * {@link PooledMessageFactory}.
+ * <br>
+ * The stack has the application on top, four layers that push and pop headers
+ * with the sizes of the group, stable, causal and FIFO headers, and a loopback
+ * layer at the bottom that frames and serializes each message as the TCP layer
+ * does, and delivers a new copy upwards. This keeps the network out of the measure.
+ * <br>
+ * The allocated bytes are those of the <i>Appia</i> thread, as reported by the JVM.
+ * <br>
+ * Usage: <code>MessageBenchmark [messages] [payload size] [window] [runs]</code>
+ */
+public class MessageBenchmark {
+
+    /**
+     * Event carrying the messages sent by the application.
+     */
+    public static class BenchSendableEvent extends SendableEvent {
+        public BenchSendableEvent() {
+            super();
+        }
+
+        public BenchSendableEvent(Channel channel, int dir, Session source, Message msg)
+                throws AppiaEventException {
+            super(channel, dir, source, msg);
+        }
+    }
+
+    /**
+     * Event carrying the messages delivered to the application.
+     */
+    public static class BenchDeliverEvent extends SendableEvent {
+        public BenchDeliverEvent() {
+            super();
+        }
+
+        public BenchDeliverEvent(Channel channel, int dir, Session source, Message msg)
+                throws AppiaEventException {
+            super(channel, dir, source, msg);
+        }
+    }
+
+    /**
+     * Event that starts a run.
+     */
+    public static class StartEvent extends Event {
+        public StartEvent() {
+            super();
+        }
+    }
+
+    private static final Class[] EVENTS =
+        new Class[] { ChannelInit.class, BenchSendableEvent.class, BenchDeliverEvent.class, StartEvent.class };
+
+    /**
+     * Application layer, that sends and receives the messages.
+     */
+    public static class DriverLayer extends Layer {
+        public DriverLayer() {
+            evProvide = new Class[] { BenchSendableEvent.class };
+            evRequire = new Class[0];
+            evAccept = new Class[] { ChannelInit.class, BenchDeliverEvent.class, StartEvent.class };
+        }
+
+        public Session createSession() {
+            return new DriverSession(this);
+        }
+    }
+
+    /**
+     * Application session. Keeps a window of messages in transit.
+     */
+    public static class DriverSession extends Session {
+        private final MsgBuffer mbuf = new MsgBuffer();
+        private byte[] payload;
+        private int window;
+        private long total;
+        private long sent;
+        private long received;
+        private CountDownLatch done;
+        Channel channel;
+
+        public DriverSession(Layer layer) {
+            super(layer);
+        }
+
+        synchronized void prepare(long total, int payloadSize, int window, CountDownLatch done) {
+            this.total = total;
+            this.payload = new byte[payloadSize];
+            this.window = window;
+            this.done = done;
+        }
+
+        public void handle(Event event) {
+            try {
+                if (event instanceof StartEvent) {
+                    sent = received = 0;
+                    for (int i = 0; (i < window) && (sent < total); i++)
+                        send(event.getChannel());
+                } else if (event instanceof BenchDeliverEvent) {
+                    final Message m = ((BenchDeliverEvent) event).getMessage();
+                    mbuf.len = payload.length;
+                    m.pop(mbuf);
+                    m.discardAll();
+                    if (++received == total)
+                        done.countDown();
+                    else if (sent < total)
+                        send(event.getChannel());
+                } else
+                    event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void send(Channel channel) throws AppiaEventException {
+            final Message m = channel.getMessageFactory().newMessage();
+            mbuf.len = payload.length;
+            m.push(mbuf);
+            System.arraycopy(payload, 0, mbuf.data, mbuf.off, mbuf.len);
+            new BenchSendableEvent(channel, Direction.DOWN, this, m).go();
+            sent++;
+        }
+    }
+
+    /**
+     * Layer that pushes a header on the way down and pops it on the way up.
+     */
+    public static class HeaderLayer extends Layer {
+        final int longs;
+        final int ints;
+
+        public HeaderLayer(int longs, int ints) {
+            this.longs = longs;
+            this.ints = ints;
+            evProvide = new Class[0];
+            evRequire = new Class[0];
+            evAccept = EVENTS;
+        }
+
+        public Session createSession() {
+            return new HeaderSession(this);
+        }
+    }
+
+    /**
+     * Session that pushes a header on the way down and pops it on the way up.
+     */
+    public static class HeaderSession extends Session {
+        private final int longs;
+        private final int ints;
+        private long seq = 0;
+
+        public HeaderSession(HeaderLayer layer) {
+            super(layer);
+            longs = layer.longs;
+            ints = layer.ints;
+        }
+
+        public void handle(Event event) {
+            if (event instanceof SendableEvent) {
+                final Message m = ((SendableEvent) event).getMessage();
+                if (event.getDir() == Direction.DOWN) {
+                    seq++;
+                    for (int i = 0; i < longs; i++)
+                        m.pushLong(seq);
+                    for (int i = 0; i < ints; i++)
+                        m.pushInt(i);
+                } else {
+                    for (int i = 0; i < ints; i++)
+                        m.popInt();
+                    for (int i = 0; i < longs; i++)
+                        m.popLong();
+                }
+            }
+            try {
+                event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Bottom layer that frames and serializes the messages as the TCP layer does,
+     * and delivers them upwards.
+     */
+    public static class LoopbackLayer extends Layer {
+        public LoopbackLayer() {
+            evProvide = new Class[] { BenchDeliverEvent.class };
+            evRequire = new Class[0];
+            evAccept = new Class[] { ChannelInit.class, BenchSendableEvent.class };
+        }
+
+        public Session createSession() {
+            return new LoopbackSession(this);
+        }
+    }
+
+    /**
+     * Bottom session that frames and serializes the messages as the TCP layer does,
+     * and delivers them upwards.
+     */
+    public static class LoopbackSession extends Session {
+        public LoopbackSession(Layer layer) {
+            super(layer);
+        }
+
+        public void handle(Event event) {
+            try {
+                if ((event instanceof BenchSendableEvent) && (event.getDir() == Direction.DOWN)) {
+                    final Channel channel = event.getChannel();
+                    final Message m = ((BenchSendableEvent) event).getMessage();
+                    m.pushString(channel.getChannelID());
+                    m.pushString(event.getClass().getName());
+                    m.pushInt(m.length());
+                    final byte[] data = m.toByteArray();
+                    // ends the route of the sent event
+                    event.go();
+
+                    final Message received = channel.getMessageFactory().newMessage(data, 0, data.length);
+                    received.popInt();
+                    received.popString();
+                    received.popString();
+                    new BenchDeliverEvent(channel, Direction.UP, this, received).go();
+                } else
+                    event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static DriverSession createChannel(String name, MessageFactory factory) throws AppiaException {
+        final DriverLayer driver = new DriverLayer();
+        final Layer[] layers = new Layer[] {
+                new LoopbackLayer(),
+                new HeaderLayer(1, 1), // FIFO
+                new HeaderLayer(1, 2), // causal
+                new HeaderLayer(2, 1), // stable
+                new HeaderLayer(2, 2), // group
+                driver };
+        final QoS qos = new QoS(name + " QoS", layers);
+        final DriverSession session = (DriverSession) driver.createSession();
+        final Channel channel = qos.createUnboundChannel(name, new EventScheduler());
+        channel.setMessageFactory(factory);
+        final ChannelCursor cc = channel.getCursor();
+        cc.top();
+        cc.setSession(session);
+        session.channel = channel;
+        channel.start();
+        return session;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        final int window = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        final int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final BufferPool pool = new BufferPool(BufferPool.DEFAULT_CAPACITY);
+        final DriverSession[] sessions = new DriverSession[] {
+                createChannel("Default", new DefaultMessageFactory()),
+                createChannel("Pooled", new PooledMessageFactory(pool)) };
+
+        final Thread appiaThread = new Thread(new Runnable() {
+            public void run() {
+                Appia.run();
+            }
+        }, "Appia Thread");
+        appiaThread.setDaemon(true);
+        appiaThread.start();
+
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocMx =
+            (mx instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) mx : null;
+
+        System.out.println("Messages: " + messages + " Payload: " + payload + " Window: " + window);
+        for (int r = 0; r < runs; r++) {
+            for (int s = 0; s < sessions.length; s++) {
+                final DriverSession session = sessions[s];
+                final CountDownLatch done = new CountDownLatch(1);
+                session.prepare(messages, payload, window, done);
+
+                final long bytes0 = (allocMx != null) ? allocMx.getThreadAllocatedBytes(appiaThread.getId()) : 0;
+                final long t0 = System.nanoTime();
+                new StartEvent().asyncGo(session.channel, Direction.DOWN);
+                done.await();
+                final long elapsed = System.nanoTime() - t0;
+                final long bytes = (allocMx != null) ? allocMx.getThreadAllocatedBytes(appiaThread.getId()) - bytes0 : -1;
+
+                System.out.println("Run " + r + " " + session.channel.getChannelID() + ": "
+                        + ((long) messages * 1000000000L / elapsed) + " msgs/s, "
+                        + (bytes / messages) + " bytes allocated/msg ("
+                        + (elapsed / 1000000) + " ms)");
+            }
+        }
+        System.out.println("Pool: allocated " + pool.getAllocated() + " reused " + pool.getReused()
+                + " returned " + pool.getReturned());
+        Appia.getTimerManager().stop();
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelInit;
+
+/**
+ * Measures the traversal of events through a stack of layers: the event
+ * {@link Event#init() initialization}, that finds the route of the event, and each
+ * {@link Event#go() go}, that validates the event and inserts it in the scheduler.
+ * <br>
+ * The bottom session creates the events and sends them up. The other sessions
+ * forward them. Events of a subclass without a route of its own are also sent, to
+ * include the lookup of the route of the superclass.
+ * <br>
+ * Usage: <code>RouteBenchmark [layers] [events] [runs]</code>
+ */
+public class RouteBenchmark {
+
+    /**
+     * Event that crosses the stack.
+     */
+    public static class RouteEvent extends Event {
+        public RouteEvent() {
+            super();
+        }
+    }
+
+    /**
+     * Event without a route of its own, that uses the route of {@link RouteEvent}.
+     */
+    public static class SubRouteEvent extends RouteEvent {
+        public SubRouteEvent() {
+            super();
+        }
+    }
+
+    /**
+     * Event that crosses the stack, so that each layer accepts several events.
+     */
+    public static class OtherEvent extends Event {
+        public OtherEvent() {
+            super();
+        }
+    }
+
+    /**
+     * Layer of the stack.
+     */
+    public static class RouteLayer extends Layer {
+        public RouteLayer() {
+            evProvide = new Class[] { RouteEvent.class, OtherEvent.class };
+            evRequire = new Class[0];
+            evAccept = new Class[] { ChannelInit.class, OtherEvent.class, RouteEvent.class, StartEvent.class };
+        }
+
+        public Session createSession() {
+            return new RouteSession(this);
+        }
+    }
+
+    /**
+     * Session that forwards the events, or creates them when it is at the bottom.
+     */
+    public static class RouteSession extends Session {
+        private boolean top = false;
+        private boolean bottom = false;
+        private CountDownLatch done;
+        private Semaphore batches;
+        private long remaining;
+
+        public RouteSession(Layer layer) {
+            super(layer);
+        }
+
+        public void handle(Event event) {
+            if (top && (event instanceof RouteEvent)) {
+                if (--remaining % BATCH == 0)
+                    batches.release();
+                if (remaining == 0)
+                    done.countDown();
+                return;
+            }
+            if (bottom && (event instanceof StartEvent)) {
+                try {
+                    send(event.getChannel(), ((StartEvent) event).events);
+                } catch (AppiaEventException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            try {
+                event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void send(Channel channel, int events) throws AppiaEventException {
+            for (int i = 0; i < events; i++) {
+                final RouteEvent e = ((i & 1) == 0) ? new RouteEvent() : new SubRouteEvent();
+                e.setChannel(channel);
+                e.setDir(Direction.UP);
+                e.setSourceSession(this);
+                e.init();
+                e.go();
+            }
+        }
+    }
+
+    /**
+     * Asynchronous event that makes the bottom session send a batch of events.
+     */
+    public static class StartEvent extends Event {
+        int events;
+
+        public StartEvent() {
+            super();
+        }
+
+        StartEvent(int events) {
+            super();
+            this.events = events;
+        }
+    }
+
+    /* events sent for each StartEvent */
+    private static final int BATCH = 1000;
+    /* batches that can be waiting in the scheduler */
+    private static final int OUTSTANDING = 8;
+
+    public static void main(String[] args) throws Exception {
+        final int nLayers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final int events = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000) / BATCH * BATCH;
+        final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final Layer[] layers = new Layer[nLayers];
+        for (int i = 0; i < nLayers; i++)
+            layers[i] = new RouteLayer();
+        final QoS qos = new QoS("Route Benchmark QoS", layers);
+        final Channel channel = qos.createUnboundChannel("Route Benchmark Channel", new EventScheduler());
+        final ChannelCursor cc = channel.getCursor();
+        final RouteSession[] sessions = new RouteSession[nLayers];
+        cc.bottom();
+        for (int i = 0; i < nLayers; i++) {
+            sessions[i] = (RouteSession) layers[i].createSession();
+            cc.setSession(sessions[i]);
+            cc.up();
+        }
+        final RouteSession top = sessions[nLayers - 1];
+        top.top = true;
+        sessions[0].bottom = true;
+        channel.start();
+
+        final Thread appiaThread = new Thread(new Runnable() {
+            public void run() {
+                Appia.run();
+            }
+        }, "Appia Thread");
+        appiaThread.setDaemon(true);
+        appiaThread.start();
+        // waits for the ChannelInit
+        Thread.sleep(500);
+
+        System.out.println("Layers: " + nLayers + " Events: " + events);
+        for (int r = 0; r < runs; r++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            final Semaphore batches = new Semaphore(OUTSTANDING);
+            top.remaining = events;
+            top.batches = batches;
+            top.done = done;
+
+            final long t0 = System.nanoTime();
+            for (int i = 0; i < events; i += BATCH) {
+                batches.acquire();
+                new StartEvent(BATCH).asyncGo(channel, Direction.DOWN);
+            }
+            done.await();
+            final long elapsed = System.nanoTime() - t0;
+
+            System.out.println("Run " + r + ": " + ((long) events * 1000000000L / elapsed) + " events/s, "
+                    + (elapsed / ((long) events * nLayers)) + " ns/hop (" + (elapsed / 1000000) + " ms)");
+        }
+        Appia.getTimerManager().stop();
+    }
+}
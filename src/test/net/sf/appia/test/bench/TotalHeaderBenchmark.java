@@ -0,0 +1,146 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.lang.management.ManagementFactory;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.protocols.group.events.GroupSendableEvent;
+import net.sf.appia.protocols.total.hybrid.MsgId;
+import net.sf.appia.protocols.total.hybrid.Ticket;
+import net.sf.appia.protocols.total.hybrid.TotalHybridHeader;
+import net.sf.appia.protocols.total.symmetric.MsgTotalSymmetric;
+
+/**
+ * Measures the encoding and decoding of the headers of the total order protocols:
+ * the timestamp of the symmetric protocol, and the header and the uniformity
+ * information of the hybrid protocol, for groups of several sizes.
+ * <br>
+ * Each iteration pushes the header into a message and pops it back. The benchmark prints
+ * the size of the header, the time and the number of bytes allocated by each iteration.
+ * <br>
+ * Usage: <code>TotalHeaderBenchmark [iterations] [members ...]</code>
+ */
+public class TotalHeaderBenchmark {
+
+    private static long sink;
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+     * The message keeps a header below the measured one, as in a protocol stack,
+     * so the space of the popped headers is reused by the next push.
+     */
+    private static Message newMessage() {
+        final Message message = new Message();
+        message.pushInt(0);
+        return message;
+    }
+
+    private static void report(String name, int bytes, long t0, long a0, int iterations) {
+        final long elapsed = System.nanoTime() - t0;
+        final long allocated = allocatedBytes() - a0;
+        System.out.println(name + ": " + bytes + " bytes, " + (elapsed / iterations) + " ns, "
+                + (allocated / iterations) + " bytes allocated");
+    }
+
+    private static void symmetric(int iterations) {
+        final GroupSendableEvent event = new GroupSendableEvent(newMessage());
+        final MsgTotalSymmetric header = new MsgTotalSymmetric(0, event);
+
+        final long a0 = allocatedBytes();
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            header.est = i;
+            header.colocaEstNoEvent();
+            sink += event.getMessage().popLong();
+        }
+        report("Symmetric timestamp      ", 8, t0, a0, iterations);
+    }
+
+    private static void hybridHeader(int tickets, int iterations) {
+        final Ticket[] list = new Ticket[tickets];
+        for (int i = 0; i < list.length; i++)
+            list[i] = new Ticket(0, i, new MsgId(i % 3, i));
+        final TotalHybridHeader header = new TotalHybridHeader(TotalHybridHeader.DATA, 0, 1, 0, list);
+        final Message message = newMessage();
+        header.writeHeader(message);
+        final int bytes = message.length() - 4;
+        new TotalHybridHeader(message, 0);
+
+        final long a0 = allocatedBytes();
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            header.writeHeader(message);
+            sink += new TotalHybridHeader(message, 0).getTickets().length;
+        }
+        report("Hybrid header, " + tickets + " tickets", bytes, t0, a0, iterations);
+    }
+
+    private static void hybridUniform(int members, int iterations) {
+        final Ticket[] sent = new Ticket[members];
+        final Ticket[] known = new Ticket[members];
+        for (int i = 0; i < members; i++) {
+            sent[i] = new Ticket(i, 100 + i, new MsgId(i, 100 + i));
+            known[i] = new Ticket(-1, -1, new MsgId(-1, -1));
+        }
+        final Message message = newMessage();
+        final MsgBuffer mbuf = new MsgBuffer();
+        TotalHybridHeader.writeUniformInfo(sent, message, mbuf);
+        final int bytes = message.length() - 4;
+        TotalHybridHeader.mergeUniformInfo(known, message, mbuf);
+
+        final long a0 = allocatedBytes();
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TotalHybridHeader.writeUniformInfo(sent, message, mbuf);
+            TotalHybridHeader.mergeUniformInfo(known, message, mbuf);
+        }
+        sink += known[0].getTicketId();
+        report("Hybrid uniform, " + members + " members", bytes, t0, a0, iterations);
+    }
+
+    public static void main(String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int[] members;
+        if (args.length > 1) {
+            members = new int[args.length - 1];
+            for (int i = 0; i < members.length; i++)
+                members[i] = Integer.parseInt(args[i + 1]);
+        } else
+            members = new int[] { 3, 8, 16 };
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println("Round " + round + ", " + iterations + " iterations");
+            symmetric(iterations);
+            for (int i = 0; i < members.length; i++) {
+                hybridHeader(members[i], iterations);
+                hybridUniform(members[i], iterations);
+            }
+        }
+        if (sink == 0)
+            System.out.println();
+    }
+}
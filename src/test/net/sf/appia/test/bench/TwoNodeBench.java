@@ -0,0 +1,288 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.nakfifo.NakFifoLayer;
+import net.sf.appia.protocols.nakfifo.NakFifoSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+/**
+ * Support for the benchmarks where two nodes in the same process exchange messages
+ * over UDP on the loopback interface.
+ * <br>
+ * Each benchmark gives the layers of its nodes, below the {@link BenchLayer}, and
+ * the sessions it configures itself. One node sends {@link BenchEvent BenchEvents},
+ * with a bounded number of them not yet delivered, and the {@link BenchSession} of the
+ * other node counts the delivered ones.
+ */
+public class TwoNodeBench {
+
+    /**
+     * Message sent by the benchmarks.
+     */
+    public static class BenchEvent extends SendableEvent {
+        public BenchEvent() {
+            super();
+        }
+    }
+
+    /**
+     * Layer at the top of each node.
+     */
+    public static class BenchLayer extends Layer {
+        public BenchLayer() {
+            evProvide = new Class[] { BenchEvent.class, RegisterSocketEvent.class };
+            evRequire = new Class[0];
+            evAccept = new Class[] { ChannelInit.class, RegisterSocketEvent.class, BenchEvent.class };
+        }
+
+        public Session createSession() {
+            return new BenchSession(this);
+        }
+    }
+
+    /**
+     * Session that counts the delivered messages and, optionally, checks the sequence
+     * number at the head of each one.
+     */
+    public static class BenchSession extends Session {
+        private final CountDownLatch registered = new CountDownLatch(1);
+        private volatile Semaphore window;
+        private volatile CountDownLatch done;
+        private volatile int remaining;
+        private boolean checkOrder;
+        private int next;
+        private volatile int errors;
+
+        public BenchSession(Layer layer) {
+            super(layer);
+        }
+
+        /**
+         * Prepares the session to receive a new run of messages.
+         * @param messages the number of messages of the run.
+         * @param window the number of messages sent and not yet delivered.
+         * @param checkOrder if true, each message starts with its sequence number, from 0.
+         */
+        public void expect(int messages, int window, boolean checkOrder) {
+            this.window = new Semaphore(window);
+            this.done = new CountDownLatch(1);
+            this.checkOrder = checkOrder;
+            this.next = 0;
+            this.errors = 0;
+            this.remaining = messages;
+        }
+
+        /**
+         * Waits until one more message may be sent.
+         */
+        public void acquire() throws InterruptedException {
+            window.acquire();
+        }
+
+        /**
+         * Waits until one more message may be sent, for a while.
+         * @return false if no message was delivered in that time, and it is probably lost.
+         */
+        public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+            return window.tryAcquire(timeout, unit);
+        }
+
+        /**
+         * Waits until all the messages of the run are delivered.
+         * @return false if some are still missing.
+         */
+        public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * @return the messages of the run not yet delivered.
+         */
+        public int getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * @return the messages delivered out of order.
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        public void handle(Event event) {
+            if ((event instanceof RegisterSocketEvent) && (event.getDir() == Direction.UP)) {
+                registered.countDown();
+                return;
+            }
+            if ((event instanceof BenchEvent) && (event.getDir() == Direction.UP)) {
+                if (checkOrder) {
+                    if (((BenchEvent) event).getMessage().popInt() != next)
+                        errors++;
+                    next++;
+                }
+                ((BenchEvent) event).release();
+                window.release();
+                if (--remaining == 0)
+                    done.countDown();
+                return;
+            }
+            try {
+                event.go();
+            } catch (AppiaEventException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int port = 47301;
+
+    /**
+     * @return a new local port for a node.
+     */
+    public static int nextPort() {
+        return port++;
+    }
+
+    /**
+     * @return the address of the node with the given port.
+     */
+    public static InetSocketAddress address(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Starts the Appia thread, as a daemon.
+     */
+    public static void startAppia() {
+        final Thread appiaThread = new Thread(new Runnable() {
+            public void run() {
+                Appia.run();
+            }
+        }, "Appia Thread");
+        appiaThread.setDaemon(true);
+        appiaThread.start();
+    }
+
+    /**
+     * Stops the timers of Appia and the process.
+     */
+    public static void exit() {
+        exit(0);
+    }
+
+    /**
+     * Stops the timers of Appia and the process, with the given exit status.
+     */
+    public static void exit(int status) {
+        Appia.getTimerManager().stop();
+        System.exit(status);
+    }
+
+    /**
+     * Creates the channel of a node, not yet started.
+     * @param name the name of the QoS.
+     * @param layers the layers below the {@link BenchLayer}, the transport first.
+     * @param sessions the sessions of the layers, with the same indexes, or null for the
+     * sessions created by the channel.
+     * @param top the session of the {@link BenchLayer}.
+     * @return the channel.
+     */
+    public static Channel createChannel(String name, Layer[] layers, Session[] sessions, BenchSession top)
+            throws Exception {
+        final Layer[] all = new Layer[layers.length + 1];
+        System.arraycopy(layers, 0, all, 0, layers.length);
+        all[layers.length] = top.getLayer();
+        final QoS qos = new QoS(name + " QoS", all);
+        // both nodes use the same channel ID, that identifies the channel in the datagrams
+        final Channel channel = qos.createUnboundChannel("Bench Channel", new EventScheduler());
+
+        final ChannelCursor cc = channel.getCursor();
+        cc.top();
+        cc.setSession(top);
+        for (int i = layers.length - 1; i >= 0; i--) {
+            cc.down();
+            if ((sessions != null) && (sessions[i] != null))
+                cc.setSession(sessions[i]);
+        }
+        return channel;
+    }
+
+    /**
+     * Starts the channel of a node and opens its socket.
+     * @param channel the channel created by {@link #createChannel(String, Layer[], Session[], BenchSession)}.
+     * @param top the session of the {@link BenchLayer}.
+     * @param port the local port.
+     */
+    public static void start(Channel channel, BenchSession top, int port) throws Exception {
+        channel.start();
+        final RegisterSocketEvent rse = new RegisterSocketEvent(channel, Direction.DOWN, null, port);
+        rse.localHost = InetAddress.getLoopbackAddress();
+        rse.asyncGo(channel, Direction.DOWN);
+        top.registered.await();
+    }
+
+    /**
+     * Creates and starts the channel of a node.
+     * @see #createChannel(String, Layer[], Session[], BenchSession)
+     * @see #start(Channel, BenchSession, int)
+     */
+    public static Channel createNode(String name, Layer[] layers, Session[] sessions, BenchSession top, int port)
+            throws Exception {
+        final Channel channel = createChannel(name, layers, sessions, top);
+        start(channel, top, port);
+        return channel;
+    }
+
+    /**
+     * Creates a {@link NakFifoSession} with short timers, so that the losses are detected
+     * and recovered quickly, but the peers are never suspected, even when several pings are lost.
+     */
+    public static NakFifoSession createNakFifo(NakFifoLayer layer) {
+        final NakFifoSession nak = (NakFifoSession) layer.createSession();
+        final SessionProperties params = new SessionProperties();
+        params.setProperty("timer_period", "20");
+        params.setProperty("resend_nack_time", "40");
+        params.setProperty("max_sent_time", "100");
+        params.setProperty("max_recv_time", "60000");
+        params.setProperty("max_appl_time", "60000");
+        nak.init(params);
+        return nak;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.bench;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.nioudp.NioUdpLayer;
+import net.sf.appia.protocols.nioudp.NioUdpSession;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Measures the number of datagrams per second delivered by the UDP transports,
+ * {@link UdpSimpleLayer} and {@link NioUdpLayer}, with small messages.
+ * <br>
+ * Two nodes in the same process exchange messages on the loopback interface. The sender
+ * keeps a bounded number of messages not yet delivered, and a message that is not delivered
+ * after a while is counted as lost.
+ * <br>
+ * Usage: <code>UdpBenchmark [messages] [readers] [size ...]</code>
+ *
+ * @see TwoNodeBench
+ */
+public class UdpBenchmark {
+
+    /* messages sent and not yet delivered */
+    private static final int WINDOW = 128;
+
+    private static Channel createNode(Layer transport, BenchSession top, int port) throws Exception {
+        Session session = null;
+        if (transport instanceof NioUdpLayer) {
+            final NioUdpSession udp = (NioUdpSession) transport.createSession();
+            udp.setReaders(Integer.getInteger("readers", 1).intValue());
+            session = udp;
+        }
+        return TwoNodeBench.createNode("UDP " + port, new Layer[] { transport }, new Session[] { session }, top, port);
+    }
+
+    private static void run(String name, Layer senderTransport, Layer receiverTransport,
+            int messages, int size) throws Exception {
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final int senderPort = TwoNodeBench.nextPort();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode(senderTransport, sender, senderPort);
+        createNode(receiverTransport, receiver, receiverPort);
+        final InetSocketAddress dest = TwoNodeBench.address(receiverPort);
+        final byte[] payload = new byte[size];
+        receiver.expect(messages, WINDOW, false);
+
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // a lost datagram does not stop the sender
+            receiver.tryAcquire(50, TimeUnit.MILLISECONDS);
+            final BenchEvent e = new BenchEvent();
+            final Message m = channel.getMessageFactory().newMessage();
+            m.setByteArray(payload, 0, size);
+            e.setMessage(m);
+            e.dest = dest;
+            e.asyncGo(channel, Direction.DOWN);
+        }
+        // waits for the last messages
+        receiver.awaitDone(1, TimeUnit.SECONDS);
+        final long elapsed = System.nanoTime() - t0;
+        final int delivered = messages - receiver.getRemaining();
+
+        System.out.println(name + " " + size + " bytes: "
+                + ((long) delivered * 1000000000L / elapsed) + " msgs/s, "
+                + (messages - delivered) + " lost");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        if (args.length > 1)
+            System.setProperty("readers", args[1]);
+        final int[] sizes;
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 0; i < sizes.length; i++)
+                sizes[i] = Integer.parseInt(args[i + 2]);
+        } else
+            sizes = new int[] { 64, 128, 256, 512 };
+
+        TwoNodeBench.startAppia();
+
+        System.out.println("Messages: " + messages + " Window: " + WINDOW
+                + " Readers: " + Integer.getInteger("readers", 1));
+        for (int i = 0; i < sizes.length; i++) {
+            run("UdpSimple", new UdpSimpleLayer(), new UdpSimpleLayer(), messages, sizes[i]);
+            run("NioUdp   ", new NioUdpLayer(), new NioUdpLayer(), messages, sizes[i]);
+        }
+        TwoNodeBench.exit();
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.check;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.fifo.FifoLayer;
+import net.sf.appia.protocols.fifo.FifoSession;
+import net.sf.appia.protocols.frag.FragLayer;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.test.bench.TwoNodeBench;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Checks that a {@link FifoSession} with the shared multicast sends messages of the
+ * maximum PDU size to a group of several members at once.
+ * <br>
+ * Several nodes in the same process use UDP, FIFO and Frag. One of them sends a message
+ * that is split in fragments of the maximum size to all the others. The shared header of
+ * those destinations does not fit in the datagrams, so the fragments must be sent to each
+ * destination, and delivered before the FIFO resends them.
+ *
+ * @see TwoNodeBench
+ */
+public class FifoSharedMulticastCheck {
+
+    /* members of the group, enough for a shared header longer than the spare bytes of UDP */
+    private static final int MEMBERS = 10;
+    /* split in several fragments of the maximum size */
+    private static final int SIZE = 24000;
+
+    private static Channel createNode(BenchSession top, int port) throws Exception {
+        final FifoLayer fifoLayer = new FifoLayer();
+        final FifoSession fifo = (FifoSession) fifoLayer.createSession();
+        fifo.setSharedMulticast(true);
+        return TwoNodeBench.createNode("FIFO " + port,
+                new Layer[] { new UdpSimpleLayer(), fifoLayer, new FragLayer() },
+                new Session[] { null, fifo, null }, top, port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        TwoNodeBench.startAppia();
+
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession[] receivers = new BenchSession[MEMBERS - 1];
+        final InetSocketAddress[] dests = new InetSocketAddress[receivers.length];
+        final Channel channel = createNode(sender, TwoNodeBench.nextPort());
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = (BenchSession) new BenchLayer().createSession();
+            final int port = TwoNodeBench.nextPort();
+            createNode(receivers[i], port);
+            dests[i] = TwoNodeBench.address(port);
+            receivers[i].expect(1, 1, false);
+        }
+
+        final BenchEvent e = new BenchEvent();
+        final Message m = channel.getMessageFactory().newMessage();
+        m.setByteArray(new byte[SIZE], 0, SIZE);
+        e.setMessage(m);
+        e.dest = new AppiaMulticast(null, dests);
+        e.asyncGo(channel, Direction.DOWN);
+
+        boolean ok = true;
+        // the first resend of the FIFO is after more than two seconds
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < receivers.length; i++) {
+            if (!receivers[i].awaitDone(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                System.out.println("FAILED: message not delivered to " + dests[i]);
+                ok = false;
+            }
+        }
+        if (ok)
+            System.out.println("OK: message of " + SIZE + " bytes delivered to " + receivers.length + " members");
+
+        TwoNodeBench.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.check;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.memoryManager.MemoryManager;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.niotcp.NioTcpLayer;
+import net.sf.appia.protocols.niotcp.NioTcpSession;
+import net.sf.appia.test.bench.TwoNodeBench;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Checks that two nodes exchange messages over the loopback with the {@link NioTcpSession}.
+ * <br>
+ * The memory manager of the receiver is above its threshold while the messages are sent,
+ * so the connection must stop reading, and deliver them all when the memory is given back.
+ * After the channels are closed,
+ * the same sessions are used by new channels, that must open their sockets again.
+ *
+ * @see TwoNodeBench
+ */
+public class NioTcpLoopbackCheck {
+
+    private static final int MESSAGES = 20000;
+    private static final int SIZE = 1000;
+    private static final int THRESHOLD = 64 * 1024;
+
+    private static boolean ok = true;
+
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "OK: " : "FAILED: ") + description);
+        ok &= condition;
+    }
+
+    private static Channel createNode(String name, NioTcpSession tcp, BenchSession top, int port,
+            MemoryManager mm) throws Exception {
+        final Channel channel = TwoNodeBench.createChannel(name, new Layer[] { tcp.getLayer() },
+                new Session[] { tcp }, top);
+        channel.setMemoryManager(mm);
+        TwoNodeBench.start(channel, top, port);
+        return channel;
+    }
+
+    private static void run(String name, NioTcpSession senderTcp, NioTcpSession receiverTcp) throws Exception {
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode(name + " sender", senderTcp, sender, TwoNodeBench.nextPort(), null);
+        final MemoryManager mm = new MemoryManager(name + " receiver", 16 * 1024 * 1024, THRESHOLD, THRESHOLD);
+        final Channel receiverChannel = createNode(name + " receiver", receiverTcp, receiver, receiverPort, mm);
+
+        mm.malloc(THRESHOLD + 1);
+        receiver.expect(MESSAGES, MESSAGES, true);
+        for (int i = 0; i < MESSAGES; i++) {
+            final BenchEvent e = new BenchEvent();
+            final Message m = channel.getMessageFactory().newMessage();
+            m.setByteArray(new byte[SIZE], 0, SIZE);
+            m.pushInt(i);
+            e.setMessage(m);
+            e.dest = TwoNodeBench.address(receiverPort);
+            e.asyncGo(channel, Direction.DOWN);
+        }
+        Thread.sleep(1000);
+        check(receiver.getRemaining() == MESSAGES, name + ": " + (MESSAGES - receiver.getRemaining())
+                + " messages delivered while the receiver is full");
+        mm.free(THRESHOLD + 1);
+
+        final boolean delivered = receiver.awaitDone(30, TimeUnit.SECONDS);
+        check(delivered && receiver.getErrors() == 0, name + ": " + (MESSAGES - receiver.getRemaining())
+                + " of " + MESSAGES + " messages delivered in order");
+
+        channel.end();
+        receiverChannel.end();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TwoNodeBench.startAppia();
+
+        final NioTcpLayer layer = new NioTcpLayer();
+        final NioTcpSession senderTcp = (NioTcpSession) layer.createSession();
+        final NioTcpSession receiverTcp = (NioTcpSession) layer.createSession();
+        run("NIO TCP", senderTcp, receiverTcp);
+        // the new channels have the same ID, they must be started after the old ones are closed
+        Thread.sleep(1000);
+        run("NIO TCP reopened", senderTcp, receiverTcp);
+
+        TwoNodeBench.exit(ok ? 0 : 1);
+    }
+}
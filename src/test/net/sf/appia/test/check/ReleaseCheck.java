@@ -0,0 +1,137 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.check;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.EventLeakDetector;
+import net.sf.appia.core.memoryManager.MemoryManager;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.drop.DropLayer;
+import net.sf.appia.protocols.drop.DropSession;
+import net.sf.appia.protocols.fifo.FifoLayer;
+import net.sf.appia.protocols.nakfifo.NakFifoLayer;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.test.bench.TwoNodeBench;
+import net.sf.appia.test.bench.TwoNodeBench.BenchEvent;
+import net.sf.appia.test.bench.TwoNodeBench.BenchLayer;
+import net.sf.appia.test.bench.TwoNodeBench.BenchSession;
+
+/**
+ * Checks that the reliable protocols release the events they discard, so that the
+ * memory of their messages is given back to the {@link MemoryManager}.
+ * <br>
+ * Two nodes in the same process, with a memory manager in each channel, exchange
+ * messages over UDP with the {@link FifoLayer} and the {@link NakFifoLayer}. With the
+ * {@link NakFifoLayer}, the {@link DropLayer} drops some messages, so that they are
+ * retransmitted, kept out of order and received more than once. When all the messages are delivered and
+ * acknowledged, the memory managers must be empty and the {@link EventLeakDetector}
+ * must not report any event.
+ *
+ * @see TwoNodeBench
+ */
+public class ReleaseCheck {
+
+    private static final int SIZE = 100;
+
+    private static boolean ok = true;
+
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "OK: " : "FAILED: ") + description);
+        ok &= condition;
+    }
+
+    private static Channel createNode(String name, Layer reliable, Session session, BenchSession top,
+            int port) throws Exception {
+        final Channel channel = TwoNodeBench.createChannel(name,
+                new Layer[] { new UdpSimpleLayer(), new DropLayer(), reliable },
+                new Session[] { null, null, session }, top);
+        channel.setMemoryManager(new MemoryManager(name, 16 * 1024 * 1024, 8 * 1024 * 1024, 8 * 1024 * 1024));
+        TwoNodeBench.start(channel, top, port);
+        return channel;
+    }
+
+    /* waits until the memory manager is empty, while the acknowledgments arrive */
+    private static boolean awaitEmpty(MemoryManager mm, long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (mm.used() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        return mm.used() == 0;
+    }
+
+    private static void run(String name, int messages, double dropRate, Layer senderLayer, Session senderSession,
+            Layer receiverLayer, Session receiverSession) throws Exception {
+        final BenchSession sender = (BenchSession) new BenchLayer().createSession();
+        final BenchSession receiver = (BenchSession) new BenchLayer().createSession();
+        final int receiverPort = TwoNodeBench.nextPort();
+        final Channel channel = createNode(name + " sender", senderLayer, senderSession, sender,
+                TwoNodeBench.nextPort());
+        final Channel receiverChannel = createNode(name + " receiver", receiverLayer, receiverSession, receiver,
+                receiverPort);
+
+        DropSession.dropRate = dropRate;
+        receiver.expect(messages, messages, true);
+        for (int i = 0; i < messages; i++) {
+            receiver.acquire();
+            final BenchEvent e = new BenchEvent();
+            final Message m = channel.getMessageFactory().newMessage();
+            m.setByteArray(new byte[SIZE], 0, SIZE);
+            m.pushInt(i);
+            e.setMessage(m);
+            e.dest = TwoNodeBench.address(receiverPort);
+            e.asyncGo(channel, Direction.DOWN);
+        }
+        final boolean delivered = receiver.awaitDone(30, TimeUnit.SECONDS);
+        DropSession.dropRate = 0;
+        check(delivered && receiver.getErrors() == 0, name + ": " + (messages - receiver.getRemaining())
+                + " of " + messages + " messages delivered in order");
+
+        check(awaitEmpty(channel.getMemoryManager(), 10000),
+                name + ": sender memory manager empty (" + channel.getMemoryManager().used() + " bytes)");
+        check(awaitEmpty(receiverChannel.getMemoryManager(), 10000),
+                name + ": receiver memory manager empty (" + receiverChannel.getMemoryManager().used() + " bytes)");
+    }
+
+    public static void main(String[] args) throws Exception {
+        EventLeakDetector.setEnabled(true);
+        TwoNodeBench.startAppia();
+
+        /* without losses: the FIFO forgets a silent peer before it resends to it, and the
+           resent messages are then discarded by the receiver */
+        run("FIFO", 1000, 0, new FifoLayer(), null, new FifoLayer(), null);
+        final NakFifoLayer senderNak = new NakFifoLayer();
+        final NakFifoLayer receiverNak = new NakFifoLayer();
+        run("NakFifo", 1000, 0.05, senderNak, TwoNodeBench.createNakFifo(senderNak),
+                receiverNak, TwoNodeBench.createNakFifo(receiverNak));
+
+        // the discarded events that were not released are found when they are collected
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        check(EventLeakDetector.getLeaks() == 0, EventLeakDetector.getLeaks() + " events not released");
+
+        TwoNodeBench.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.check;
+
+import net.sf.appia.core.message.CodecRegistry;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageException;
+
+/**
+ * Checks the coding of strings by the {@link CodecRegistry codec} of the
+ * <code>String</code> class, and the limit of {@link Message#pushString(String)}.
+ * <br>
+ * Strings with a coded length above 64KB must be pushed as objects, and copied from
+ * the bytes of one message to another, as on the network. When they are pushed with
+ * <code>pushString</code>, the message must not be changed.
+ */
+public class StringCodecCheck {
+
+    private static boolean ok = true;
+
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "OK: " : "FAILED: ") + description);
+        ok &= condition;
+    }
+
+    /* a string of the given number of characters, with one, two and three bytes in UTF-8 */
+    private static String string(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (i % 3) {
+            case 0: sb.append((char) ('a' + i % 26)); break;
+            case 1: sb.append('\u00e7'); break;
+            default: sb.append('\u20ac');
+            }
+        }
+        return sb.toString();
+    }
+
+    /* pushes the string as an object, and pops it from a copy of the bytes of the message */
+    private static Object copy(String str) {
+        final Message m = new Message();
+        m.pushInt(7);
+        m.pushObject(str);
+        final byte[] bytes = m.toByteArray();
+        final Message received = new Message();
+        received.setByteArray(bytes, 0, bytes.length);
+        final Object obj = received.popObject();
+        if (received.popInt() != 7 || received.length() != 0)
+            return null;
+        return obj;
+    }
+
+    public static void main(String[] args) {
+        final String[] strings = { "", "appia", string(20000), string(40000), string(200000) };
+        for (int i = 0; i < strings.length; i++)
+            check(strings[i].equals(copy(strings[i])), "object string of " + strings[i].length() + " characters");
+
+        final Message m = new Message();
+        m.pushInt(7);
+        boolean thrown = false;
+        try {
+            m.pushString(string(40000));
+        } catch (MessageException e) {
+            thrown = true;
+        }
+        check(thrown && m.length() == 4 && m.popInt() == 7, "pushString above 64KB leaves the message unchanged");
+
+        System.exit(ok ? 0 : 1);
+    }
+}
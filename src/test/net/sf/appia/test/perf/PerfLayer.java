@@ -47,6 +47,7 @@ public class PerfLayer extends Layer {
         rse,
         net.sf.appia.protocols.group.leave.LeaveEvent.class,
         PerfTimer.class,
+        net.sf.appia.protocols.udpsimple.MulticastInitEvent.class,
     };
     
     evRequire=new Class[] {